@@ -432,6 +432,23 @@ public final class CombatMap extends SherlockActivity {
 		mData = MapData.getInstance();
 		this.mCombatView.setData(mData);
 		this.mTagNavigator.setTagPath(mData.getLastTag());
+		this.parseDeferredSectionsAfterFirstFrame();
+	}
+
+	/**
+	 * Parses the map sections that were not needed to show the map in the
+	 * background, once the view has had a chance to draw. This reports a
+	 * damaged section soon after loading, rather than when it is first used
+	 * or saved.
+	 */
+	private void parseDeferredSectionsAfterFirstFrame() {
+		final MapData data = mData;
+		this.mCombatView.post(new Runnable() {
+			@Override
+			public void run() {
+				new DeferredSectionsLoadTask(data).execute();
+			}
+		});
 	}
 
 	@Override
@@ -490,6 +507,7 @@ public final class CombatMap extends SherlockActivity {
 		if (MapData.hasValidInstance()) {
 			mData = MapData.getInstance();
 			this.mCombatView.setData(mData);
+			this.parseDeferredSectionsAfterFirstFrame();
 		} else {
 			this.loadMap(DataManager.TEMP_MAP_NAME);
 		}
@@ -1145,9 +1163,10 @@ public final class CombatMap extends SherlockActivity {
 		public void run() {
 			try {
 				DataManager dm = new DataManager(this.mContext);
-				dm.saveMapName(this.mFilename);
-				// Only save preview if not saving to temp file.
-				if (this.mFilename != DataManager.TEMP_MAP_NAME) {
+				boolean written = dm.saveMapName(this.mFilename);
+				// Only save preview if not saving to temp file, and if the map
+				// changed since the preview was last saved.
+				if (written && this.mFilename != DataManager.TEMP_MAP_NAME) {
 					Bitmap preview = CombatMap.this.mCombatView.getPreview();
 					if (preview != null) {
 						dm.savePreviewImage(this.mFilename, preview);
@@ -1297,6 +1316,56 @@ public final class CombatMap extends SherlockActivity {
 		}
 	}
 
+	/**
+	 * Task that parses the deferred sections of a map off the UI thread, and
+	 * hands them to the map when on the UI thread again.
+	 * 
+	 * @author Tim
+	 * 
+	 */
+	class DeferredSectionsLoadTask extends
+			AsyncTask<Void, Void, MapData.DeferredSections> {
+
+		/**
+		 * The map to parse the deferred sections of.
+		 */
+		private final MapData mMap;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param map
+		 *            The map to parse the deferred sections of.
+		 */
+		DeferredSectionsLoadTask(MapData map) {
+			this.mMap = map;
+		}
+
+		@Override
+		protected MapData.DeferredSections doInBackground(Void... params) {
+			return this.mMap.parseDeferredSections();
+		}
+
+		@Override
+		protected void onPostExecute(MapData.DeferredSections result) {
+			// A map that was replaced in the meantime parses its sections
+			// when they are first used, if ever.
+			if (this.mMap != CombatMap.this.mData) {
+				return;
+			}
+			try {
+				this.mMap.finishDeferredLoad(result);
+			} catch (IOException e) {
+				Toast toast = Toast.makeText(
+						CombatMap.this.getApplicationContext(),
+						"Could not load part of the map.  Reason: "
+								+ e.toString(), Toast.LENGTH_LONG);
+				toast.show();
+			}
+			CombatMap.this.mCombatView.refreshMap();
+		}
+	}
+
 	/**
 	 * Task that loads the token database off the UI thread, and populates
 	 * everything that needs the database when on the UI thread again.
@@ -15,11 +15,13 @@ import org.apache.commons.io.FileUtils;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 
 import com.tbocek.android.combatmap.model.MapData;
+import com.tbocek.android.combatmap.model.primitives.Util;
 
 /**
  * This class manages saved map and token data and provides an interface to
@@ -61,6 +63,11 @@ public final class DataManager {
      */
     public static final String TEMP_MAP_NAME = "tmp";
 
+    /**
+     * Extension added to files while they are being written.
+     */
+    private static final String TEMP_EXTENSION = ".tmp";
+
     /**
      * The context that this data manager goes through to read and write data.
      */
@@ -96,6 +103,26 @@ public final class DataManager {
      */
     public void deleteTokenImage(final String fileName) {
         this.getTokenImageFile(fileName).delete();
+        this.deleteTokenThumbnails(fileName);
+    }
+
+    /**
+     * Deletes every cached thumbnail of the given token image.
+     * 
+     * @param fileName
+     *            Name of the token image, with extension.
+     */
+    private void deleteTokenThumbnails(final String fileName) {
+        File[] thumbnails = this.getTokenThumbnailDir().listFiles();
+        if (thumbnails == null) {
+            return;
+        }
+        String prefix = fileName + ".";
+        for (File thumbnail : thumbnails) {
+            if (thumbnail.getName().startsWith(prefix)) {
+                thumbnail.delete();
+            }
+        }
     }
 
     /**
@@ -122,16 +149,57 @@ public final class DataManager {
      */
     public void exportImage(final String name, final Bitmap preview,
             final Bitmap.CompressFormat format) throws IOException {
-        String filename =
-                name + (format == Bitmap.CompressFormat.JPEG ? ".jpg" : ".png");
-        FileOutputStream s =
-                new FileOutputStream(this.getExportedImageFileName(filename));
+        FileOutputStream s = this.openExportedImage(name, format);
         BufferedOutputStream buf = new BufferedOutputStream(s);
         preview.compress(format, JPEG_COMPRESSION, buf);
         buf.close();
         s.close();
     }
 
+    /**
+     * Opens an exported image for writing, so that it can be encoded
+     * incrementally.
+     * 
+     * @param name
+     *            Filename to export, without extension.
+     * @param format
+     *            Format the image will be encoded in.
+     * @return Stream to write the encoded image to. The caller must close it.
+     * @throws IOException
+     *             On write error.
+     */
+    public FileOutputStream openExportedImage(final String name,
+            final Bitmap.CompressFormat format) throws IOException {
+        return new FileOutputStream(this.getExportedImageFileName(
+                getExportedImageFileName(name, format)));
+    }
+
+    /**
+     * Deletes an exported image, e.g. because its export was cancelled.
+     * 
+     * @param name
+     *            Filename of the export, without extension.
+     * @param format
+     *            Format the image was encoded in.
+     */
+    public void deleteExportedImage(final String name,
+            final Bitmap.CompressFormat format) {
+        this.getExportedImageFileName(getExportedImageFileName(name, format))
+                .delete();
+    }
+
+    /**
+     * @param name
+     *            Filename of the export, without extension.
+     * @param format
+     *            Format the image is encoded in.
+     * @return Filename of the export, with extension.
+     */
+    private static String getExportedImageFileName(final String name,
+            final Bitmap.CompressFormat format) {
+        return name + (format == Bitmap.CompressFormat.JPEG ? ".jpg" : ".png");
+    }
+
     /**
      * @return File object representing the directory containing exported
      *         images.
@@ -204,6 +272,19 @@ public final class DataManager {
         return dir;
     }
 
+    /**
+     * @return File object representing the directory containing cached
+     *         thumbnails of token images.
+     */
+    private File getTokenThumbnailDir() {
+        File sdcard = this.mContext.getExternalFilesDir(null);
+        File dir = new File(sdcard, "token_thumbnails");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
     /**
      * @return File object representing the directory containing map data files.
      */
@@ -229,6 +310,25 @@ public final class DataManager {
         return new File(sdcard, filename);
     }
 
+    /**
+     * Gets the file for a cached thumbnail of a token image. The name includes
+     * the modification time of the token image, so that thumbnails of a
+     * replaced image are never used.
+     * 
+     * @param filename
+     *            Name of the token image, with extension.
+     * @param lastModified
+     *            Modification time of the token image.
+     * @param size
+     *            Size of the thumbnail.
+     * @return File object for the thumbnail.
+     */
+    private File getTokenThumbnailFile(final String filename,
+            final long lastModified, final int size) {
+        return new File(this.getTokenThumbnailDir(), filename + "."
+                + lastModified + "." + size + IMAGE_EXTENSION);
+    }
+
     /**
      * Returns true if the filename is an image, false otherwise.
      * 
@@ -259,6 +359,7 @@ public final class DataManager {
             MapData.loadFromStream(s, TokenDatabase.getInstanceOrNull());
             s.close();
             MapData.getInstance().setMapAttributesLocked(true);
+            MapData.getInstance().markSaved(name);
         } else if (name.equals(TEMP_MAP_NAME)) {
             MapData.clear();
             MapData.getInstance().setMapAttributesLocked(false);
@@ -284,22 +385,132 @@ public final class DataManager {
     }
 
     /**
-     * Loads the given token image.
+     * Loads a preview image for the given save file, downsampled as far as
+     * possible while staying at least as large as the given size.
+     * 
+     * @param saveFile
+     *            Save file to load a preview for. Do not provide a file
+     *            extension.
+     * @param minWidth
+     *            Smallest width that the loaded image may have, unless the
+     *            image on disk is smaller.
+     * @param minHeight
+     *            Smallest height that the loaded image may have, unless the
+     *            image on disk is smaller.
+     * @return Loaded image.
+     * @throws IOException
+     *             On read error.
+     */
+    public Bitmap loadPreviewImage(final String saveFile, final int minWidth,
+            final int minHeight) throws IOException {
+        File f = this.getSavedMapPreviewImageFile(saveFile);
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        FileInputStream s = new FileInputStream(f);
+        BitmapFactory.decodeStream(s, null, bounds);
+        s.close();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize =
+                Util.computeSampleSize(bounds.outWidth, bounds.outHeight,
+                        minWidth, minHeight);
+        s = new FileInputStream(f);
+        Bitmap b = BitmapFactory.decodeStream(s, null, options);
+        s.close();
+        return b;
+    }
+
+    /**
+     * Loads the given token image, downsampled as far as possible while
+     * staying at least as large as the given size.
      * 
      * @param filename
      *            Filename to load, with extension.
+     * @param minSize
+     *            Smallest width and height that the loaded image may have,
+     *            unless the image on disk is smaller.
      * @return Bitmap of the loaded image.
      * @throws IOException
      *             On read error.
      */
-    public Bitmap loadTokenImage(final String filename) throws IOException {
-        FileInputStream s =
-                new FileInputStream(this.getTokenImageFile(filename));
-        Bitmap b = BitmapFactory.decodeStream(s);
+    public Bitmap loadTokenImage(final String filename, final int minSize)
+            throws IOException {
+        File f = this.getTokenImageFile(filename);
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        FileInputStream s = new FileInputStream(f);
+        BitmapFactory.decodeStream(s, null, bounds);
+        s.close();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize =
+                Util.computeSampleSize(bounds.outWidth, bounds.outHeight,
+                        minSize, minSize);
+        s = new FileInputStream(f);
+        Bitmap b = BitmapFactory.decodeStream(s, null, options);
         s.close();
         return b;
     }
 
+    /**
+     * Loads a small version of the given token image whose width and height
+     * are at least the given size, unless the image on disk is smaller.
+     * Thumbnails are created once and cached on disk, so this only decodes a
+     * small image unless the token image changed.
+     * 
+     * This method may be called from several threads at once.
+     * 
+     * @param filename
+     *            Filename to load, with extension.
+     * @param size
+     *            Smallest width and height of the thumbnail.
+     * @return Bitmap of the thumbnail.
+     * @throws IOException
+     *             On read error.
+     */
+    public Bitmap loadTokenThumbnail(final String filename, final int size)
+            throws IOException {
+        File image = this.getTokenImageFile(filename);
+        File thumbnail =
+                this.getTokenThumbnailFile(filename, image.lastModified(), size);
+        if (thumbnail.exists()) {
+            Bitmap b = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (b != null) {
+                return b;
+            }
+        }
+
+        Bitmap b = this.loadTokenImage(filename, size);
+        if (b == null) {
+            throw new IOException("Could not decode token image " + filename);
+        }
+        float scale = (float) size / Math.min(b.getWidth(), b.getHeight());
+        if (scale < 1) {
+            Bitmap scaled =
+                    Bitmap.createScaledBitmap(b,
+                            Math.max(1, Math.round(b.getWidth() * scale)),
+                            Math.max(1, Math.round(b.getHeight() * scale)),
+                            true);
+            b.recycle();
+            b = scaled;
+        }
+
+        // Write to a temporary file first, so that a thumbnail that is only
+        // partially written is never loaded.
+        File temp =
+                new File(thumbnail.getPath() + "."
+                        + Thread.currentThread().getId() + TEMP_EXTENSION);
+        FileOutputStream s = new FileOutputStream(temp);
+        BufferedOutputStream buf = new BufferedOutputStream(s);
+        b.compress(Bitmap.CompressFormat.JPEG, JPEG_COMPRESSION, buf);
+        buf.close();
+        s.close();
+        if (!temp.renameTo(thumbnail)) {
+            temp.delete();
+        }
+        return b;
+    }
+
     /**
      * Gets a list of saved map names, without the extensions.
      * 
@@ -329,26 +540,61 @@ public final class DataManager {
     }
 
     /**
-     * Saves the map to the given name. This takes care of looking up the full
-     * path.
+     * Saves the map to the given name, and to the temporary map. This takes
+     * care of looking up the full path. Each file is written from memory, and
+     * only if the map has changed since it was last saved under that name.
      * 
      * @param name
      *            Name of the map to save, without the extension.
+     * @return True if the map was written under the given name, false if
+     *         saving it was skipped.
      * @throws IOException
      *             On write error.
      */
-    public void saveMapName(final String name) throws IOException {
-        // Save to temporary map.
-        FileOutputStream s =
-                new FileOutputStream(this.getSavedMapFile(TEMP_MAP_NAME));
-        MapData.saveToStream(s);
-        s.close();
-
-        // Copy temp to desired location
+    public boolean saveMapName(final String name) throws IOException {
+        boolean written = this.saveMapFile(name);
+        // The temporary map is what is loaded on the next launch, so it has
+        // to hold every save.
         if (!name.equals(TEMP_MAP_NAME)) {
-            FileUtils.copyFile(this.getSavedMapFile(TEMP_MAP_NAME),
-                    this.getSavedMapFile(name));
+            this.saveMapFile(TEMP_MAP_NAME);
         }
+        return written;
+    }
+
+    /**
+     * Writes the map to the file with the given name, unless it has not
+     * changed since it was last saved under that name. The map is written to
+     * a temporary file first and moved over the saved map only once it was
+     * written completely, so that a failed save leaves the old map intact.
+     * 
+     * @param name
+     *            Name of the map to save, without the extension.
+     * @return True if the map was written, false if saving was skipped.
+     * @throws IOException
+     *             On write error.
+     */
+    private boolean saveMapFile(final String name) throws IOException {
+        MapData data = MapData.getInstance();
+        File f = this.getSavedMapFile(name);
+        if (data.isSavedAs(name) && f.exists()) {
+            return false;
+        }
+        File temp = new File(f.getPath() + TEMP_EXTENSION);
+        boolean succeeded = false;
+        try {
+            MapData.saveToStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            if (!temp.renameTo(f)) {
+                throw new IOException("Could not replace " + f.getPath());
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                temp.delete();
+            }
+        }
+        data.markSaved(name);
+        return true;
     }
 
     /**
@@ -391,6 +637,7 @@ public final class DataManager {
         image.compress(Bitmap.CompressFormat.JPEG, JPEG_COMPRESSION, buf);
         buf.close();
         s.close();
+        this.deleteTokenThumbnails(filename);
         return filename;
     }
 
@@ -460,4 +707,21 @@ public final class DataManager {
         s.close();
         return b;
     }
+
+    /**
+     * Opens a decoder that decodes rectangular regions of the given map data
+     * image, so that large images never have to be decoded in full.
+     * 
+     * @param filename
+     *            Image file name to open.
+     * @return The region decoder.
+     * @throws IOException
+     *             On read error, or if the image's format can't be decoded a
+     *             region at a time.
+     */
+    public BitmapRegionDecoder openMapDataImageDecoder(final String filename)
+            throws IOException {
+        return BitmapRegionDecoder.newInstance(this.getMapDataFile(filename)
+                .getAbsolutePath(), false);
+    }
 }
@@ -1,14 +1,23 @@
 package com.tbocek.android.combatmap;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.view.View;
 import android.widget.Button;
@@ -21,6 +30,10 @@ import android.widget.Toast;
 import com.tbocek.android.combatmap.model.MapData;
 import com.tbocek.android.combatmap.model.MapDrawer;
 import com.tbocek.android.combatmap.model.MapDrawer.FogOfWarMode;
+import com.tbocek.android.combatmap.model.io.BinaryMapDataDeserializer;
+import com.tbocek.android.combatmap.model.io.BinaryMapDataSerializer;
+import com.tbocek.android.combatmap.model.primitives.BaseToken;
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
 
 /**
  * Provides a dialog for the user to export an image.
@@ -30,6 +43,17 @@ import com.tbocek.android.combatmap.model.MapDrawer.FogOfWarMode;
  */
 public class ExportImageDialog extends Dialog {
 
+    /**
+     * Memory budget for the strip that the map is drawn to before it is
+     * encoded, in bytes.
+     */
+    private static final int STRIP_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Bytes per pixel of the strip.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
     CheckBox mCheckAnnotations;
     CheckBox mCheckFogOfWar;
     CheckBox mCheckGmNotes;
@@ -86,17 +110,7 @@ public class ExportImageDialog extends Dialog {
         this.mExportButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                try {
-                    ExportImageDialog.this.export();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Toast toast =
-                            Toast.makeText(
-                                    ExportImageDialog.this.getContext(),
-                                    "Could not export.  Reason: "
-                                            + e.toString(), Toast.LENGTH_LONG);
-                    toast.show();
-                }
+                ExportImageDialog.this.export();
                 ExportImageDialog.this.dismiss();
             }
         });
@@ -121,49 +135,109 @@ public class ExportImageDialog extends Dialog {
     }
 
     /**
-     * Exports the image using the settings set up in this activity.
-     * @throws IOException if the export failed.
+     * Starts exporting the image using the settings set up in this activity.
+     * The image is drawn and encoded in the background, a strip at a time, so
+     * that the whole image never has to fit in memory.
      */
-    private void export() throws IOException {
+    private void export() {
         int width;
         int height;
+        CoordinateTransformer transformer;
 
-        RectF wholeMapRect = this.mData.getScreenSpaceBoundingRect(30);
         if (this.mRadioExportCurrentView.isChecked()) {
             width = this.mExportWidth;
             height = this.mExportHeight;
+            transformer =
+                    this.mData.getWorldSpaceTransformer().copyWithMovedOrigin(
+                            0, 0);
         } else {
+            RectF wholeMapRect = this.mData.getScreenSpaceBoundingRect(30);
             width = (int) wholeMapRect.width();
             height = (int) wholeMapRect.height();
+            transformer =
+                    this.mData.getWorldSpaceTransformer().copyWithMovedOrigin(
+                            -wholeMapRect.left, -wholeMapRect.top);
         }
-        Bitmap bitmap =
-                Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-
-        if (!this.mRadioExportCurrentView.isChecked()) {
-            this.mData.getWorldSpaceTransformer().moveOrigin(
-                    -wholeMapRect.left, -wholeMapRect.top);
+        if (width <= 0 || height <= 0) {
+            this.showExportError("Nothing to export");
+            return;
         }
 
-        new MapDrawer()
+        MapDrawer drawer = new MapDrawer()
                 .drawGridLines(this.mCheckGridLines.isChecked())
                 .drawGmNotes(this.mCheckGmNotes.isChecked())
                 .drawTokens(this.mCheckTokens.isChecked())
                 .areTokensManipulable(true)
+                .loadImagesSynchronously(true)
                 .drawAnnotations(this.mCheckAnnotations.isChecked())
                 .gmNotesFogOfWar(FogOfWarMode.NOTHING)
                 .backgroundFogOfWar(
                         this.mCheckFogOfWar.isChecked() ? FogOfWarMode.CLIP
-                                : FogOfWarMode.NOTHING)
-                .draw(canvas, this.mData, canvas.getClipBounds());
-
-        new DataManager(this.getContext()).exportImage(this.mEditExportName
-                .getText().toString(), bitmap, Bitmap.CompressFormat.PNG);
+                                : FogOfWarMode.NOTHING);
 
-        if (!this.mRadioExportCurrentView.isChecked()) {
-            this.mData.getWorldSpaceTransformer().moveOrigin(wholeMapRect.left,
-                    wholeMapRect.top);
+        byte[] snapshot;
+        try {
+            snapshot = snapshotMap(this.mData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.showExportError(e.toString());
+            return;
         }
+
+        final ProgressDialog progress = new ProgressDialog(this.getContext());
+        progress.setTitle("Exporting Image");
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(height);
+        final ExportTask task =
+                new ExportTask(this.mEditExportName.getText().toString(),
+                        snapshot, drawer, transformer, width, height,
+                        progress);
+        progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                task.cancel(false);
+            }
+        });
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel",
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        task.cancel(false);
+                    }
+                });
+        progress.show();
+        task.execute();
+    }
+
+    /**
+     * Serializes the map so that a copy of it can be drawn off the UI thread.
+     * Must be called on the UI thread.
+     * 
+     * @param map
+     *            The map to copy.
+     * @return The serialized map.
+     * @throws IOException
+     *             On serialization error.
+     */
+    private static byte[] snapshotMap(MapData map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMapDataSerializer s = new BinaryMapDataSerializer(bytes);
+        map.serialize(s);
+        s.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Tells the user that an export failed.
+     * 
+     * @param reason
+     *            Why the export failed.
+     */
+    private void showExportError(String reason) {
+        Toast toast =
+                Toast.makeText(this.getContext(), "Could not export.  Reason: "
+                        + reason, Toast.LENGTH_LONG);
+        toast.show();
     }
 
     public void prepare(String name, MapData mapData, int width, int height) {
@@ -173,6 +247,185 @@ public class ExportImageDialog extends Dialog {
         this.mExportHeight = height;
     }
 
+    /**
+     * Draws the map a horizontal strip at a time and streams the strips into
+     * a PNG file, so that peak memory use is one strip no matter how large the
+     * exported image is.
+     * 
+     * The map model is not thread safe, so the task draws a private copy of
+     * the map that was serialized on the UI thread when the export started.
+     * The UI thread keeps running for the whole export.
+     * 
+     * @author Tim
+     * 
+     */
+    private final class ExportTask extends AsyncTask<Void, Integer, Exception> {
+        /**
+         * Filename to export to, without extension.
+         */
+        private final String mName;
+
+        /**
+         * Serialized copy of the map to export.
+         */
+        private final byte[] mSnapshot;
+
+        /**
+         * Drawer configured with the layers to export.
+         */
+        private final MapDrawer mDrawer;
+
+        /**
+         * Transformation from world space to the exported image.
+         */
+        private final CoordinateTransformer mTransformer;
+
+        /**
+         * Width of the exported image, in pixels.
+         */
+        private final int mWidth;
+
+        /**
+         * Height of the exported image, in pixels.
+         */
+        private final int mHeight;
+
+        /**
+         * Dialog that shows the export's progress.
+         */
+        private final ProgressDialog mProgress;
+
+        /**
+         * Constructor. Must be called on the UI thread.
+         * 
+         * @param name
+         *            Filename to export to, without extension.
+         * @param snapshot
+         *            Serialized copy of the map to export.
+         * @param drawer
+         *            Drawer configured with the layers to export.
+         * @param transformer
+         *            Transformation from world space to the exported image.
+         * @param width
+         *            Width of the exported image, in pixels.
+         * @param height
+         *            Height of the exported image, in pixels.
+         * @param progress
+         *            Dialog that shows the export's progress.
+         */
+        ExportTask(String name, byte[] snapshot, MapDrawer drawer,
+                CoordinateTransformer transformer, int width, int height,
+                ProgressDialog progress) {
+            this.mName = name;
+            this.mSnapshot = snapshot;
+            this.mDrawer = drawer;
+            this.mTransformer = transformer;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mProgress = progress;
+        }
+
+        @Override
+        protected Exception doInBackground(Void... params) {
+            DataManager dm = new DataManager(ExportImageDialog.this.getContext());
+            try {
+                MapData map =
+                        MapData.deserialize(new BinaryMapDataDeserializer(
+                                new ByteArrayInputStream(this.mSnapshot)),
+                                TokenDatabase.getInstanceOrNull());
+                try {
+                    for (BaseToken t : map.getTokens().asList()) {
+                        t.load();
+                    }
+                    this.writeImage(map, dm);
+                } finally {
+                    map.getBackgroundImages().recycleImages();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                dm.deleteExportedImage(this.mName, Bitmap.CompressFormat.PNG);
+                return e;
+            }
+            if (this.isCancelled()) {
+                dm.deleteExportedImage(this.mName, Bitmap.CompressFormat.PNG);
+            }
+            return null;
+        }
+
+        /**
+         * Draws the map a strip at a time and encodes the strips into the
+         * exported image. Stops early if the task is cancelled.
+         * 
+         * @param map
+         *            The map to draw. Must not be shared with another thread.
+         * @param dm
+         *            Data manager to open the exported image with.
+         * @throws IOException
+         *             On write error.
+         */
+        private void writeImage(MapData map, DataManager dm)
+                throws IOException {
+            int stripHeight =
+                    Math.max(1, Math.min(this.mHeight, STRIP_BUDGET_BYTES
+                            / (BYTES_PER_PIXEL * this.mWidth)));
+            Rect stripRect = new Rect(0, 0, this.mWidth, stripHeight);
+            OutputStream out =
+                    new BufferedOutputStream(dm.openExportedImage(this.mName,
+                            Bitmap.CompressFormat.PNG));
+            try {
+                Bitmap strip =
+                        Bitmap.createBitmap(this.mWidth, stripHeight,
+                                Bitmap.Config.ARGB_8888);
+                try {
+                    Canvas canvas = new Canvas(strip);
+                    StreamingPngEncoder encoder =
+                            new StreamingPngEncoder(out, this.mWidth,
+                                    this.mHeight);
+                    try {
+                        for (int top = 0; top < this.mHeight
+                                && !this.isCancelled(); top += stripHeight) {
+                            int rows =
+                                    Math.min(stripHeight, this.mHeight - top);
+                            strip.eraseColor(Color.TRANSPARENT);
+                            this.mDrawer.useTransformer(
+                                    this.mTransformer.copyWithMovedOrigin(0,
+                                            -top)).draw(canvas, map, stripRect);
+                            encoder.writeRows(strip, rows);
+                            this.publishProgress(top + rows);
+                        }
+                        if (!this.isCancelled()) {
+                            encoder.finish();
+                        }
+                    } finally {
+                        encoder.close();
+                    }
+                } finally {
+                    strip.recycle();
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... rows) {
+            this.mProgress.setProgress(rows[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Exception error) {
+            this.mProgress.dismiss();
+            if (error != null) {
+                ExportImageDialog.this.showExportError(error.toString());
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            this.mProgress.dismiss();
+        }
+    }
+
     private class SetBooleanPreferenceHandler implements
             CompoundButton.OnCheckedChangeListener {
         String mPreference;
@@ -1,7 +1,5 @@
 package com.tbocek.android.combatmap;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Activity;
@@ -14,10 +12,11 @@ import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
 import android.widget.RelativeLayout;
-import android.widget.ScrollView;
-import android.widget.TableLayout;
-import android.widget.TableRow;
 import android.widget.Toast;
 
 import com.tbocek.android.combatmap.model.MapData;
@@ -31,20 +30,35 @@ import com.tbocek.android.combatmap.view.SaveFileButton;
  */
 public final class Load extends Activity {
     /**
-     * Height of a file button.
+     * Height of a file button, in density-independent pixels.
      */
     private static final int FILE_VIEW_HEIGHT = 200;
 
     /**
-     * Padding on each file button.
+     * Padding on each file button, in density-independent pixels.
      */
     private static final int FILE_VIEW_PADDING = 16;
 
     /**
-     * Width of a file button.
+     * Width of a file button, in density-independent pixels.
      */
     private static final int FILE_VIEW_WIDTH = 200;
 
+    /**
+     * Height of a file button, in pixels.
+     */
+    private int mFileViewHeight;
+
+    /**
+     * Padding on each file button, in pixels.
+     */
+    private int mFileViewPadding;
+
+    /**
+     * Width of a file button, in pixels.
+     */
+    private int mFileViewWidth;
+
     /**
      * Listener that creates a menu to delete the given save file.
      */
@@ -82,51 +96,35 @@ public final class Load extends Activity {
     private List<String> mSavedFiles;
 
     /**
-     * Lays out the given save file buttons in a grid.
-     * 
-     * @param views
-     *            The views to lay out.
-     * @return A view containing the entire layout.
+     * Loads and caches the previews shown on the file buttons.
      */
-    private View createLayout(final List<View> views) {
-        TableLayout layout = new TableLayout(this);
-        TableRow currentRow = null;
-        int viewsPerRow =
-                this.getWindowManager().getDefaultDisplay().getWidth()
-                / (FILE_VIEW_WIDTH + 2 * FILE_VIEW_PADDING);
-        int i = 0;
-        for (View v : views) {
-            if (i % viewsPerRow == 0) {
-                currentRow = new TableRow(this);
-                layout.addView(currentRow);
+    private MapPreviewLoader mPreviewLoader;
+
+    /**
+     * Stops loading the preview of file buttons that scroll out of view.
+     */
+    private AbsListView.RecyclerListener mRecyclerListener =
+            new AbsListView.RecyclerListener() {
+        @Override
+        public void onMovedToScrapHeap(View view) {
+            if (view instanceof SaveFileButton) {
+                Load.this.mPreviewLoader.cancel((SaveFileButton) view);
             }
-            currentRow.addView(v);
-            ++i;
         }
-        return layout;
-    }
+    };
 
     /**
-     * Creates a button that represents the given save file and will load it
-     * when pressed.
+     * Creates a button that represents a save file. The button is bound to a
+     * save file by the adapter.
      * 
-     * @param saveFile
-     *            Name of the save file to represent with this button.
      * @return The button.
      */
-    private SaveFileButton createSaveFileButton(final String saveFile) {
+    private SaveFileButton createSaveFileButton() {
         SaveFileButton b = new SaveFileButton(this);
-        b.setFileName(saveFile);
-        try {
-            b.setPreviewImage(this.mDataMgr.loadPreviewImage(saveFile));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        b.setPadding(FILE_VIEW_PADDING, FILE_VIEW_PADDING, FILE_VIEW_PADDING,
-                FILE_VIEW_PADDING);
-        b.setMinimumWidth(FILE_VIEW_WIDTH);
-        b.setMinimumHeight(FILE_VIEW_HEIGHT);
-        b.setOnClickListener(new SaveFileButtonClickListener(saveFile));
+        b.setPadding(this.mFileViewPadding, this.mFileViewPadding,
+                this.mFileViewPadding, this.mFileViewPadding);
+        b.setMinimumWidth(this.mFileViewWidth);
+        b.setMinimumHeight(this.mFileViewHeight);
         this.registerForContextMenu(b);
         b.setOnCreateContextMenuListener(this.mContextMenuListener);
         return b;
@@ -189,10 +187,23 @@ public final class Load extends Activity {
         super.onCreate(savedInstanceState);
 
         this.mDataMgr = new DataManager(this.getApplicationContext());
+        float density = this.getResources().getDisplayMetrics().density;
+        this.mFileViewHeight = (int) (FILE_VIEW_HEIGHT * density);
+        this.mFileViewPadding = (int) (FILE_VIEW_PADDING * density);
+        this.mFileViewWidth = (int) (FILE_VIEW_WIDTH * density);
+        this.mPreviewLoader =
+                new MapPreviewLoader(this.mDataMgr, this.mFileViewWidth,
+                        this.mFileViewHeight, MemoryBudget.MAP_PREVIEW_BYTES);
 
         this.setup();
     }
 
+    @Override
+    protected void onDestroy() {
+        this.mPreviewLoader.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -228,23 +239,22 @@ public final class Load extends Activity {
     }
 
     /**
-     * Loads a list of files and sets up and lays out views to represent all the
-     * files.
+     * Loads a list of files and sets up a grid to represent the files. The
+     * grid only creates buttons for the files in view, and loads their
+     * previews in the background.
      */
     private void setup() {
         this.mSavedFiles = this.mDataMgr.savedFiles();
+        this.mPreviewLoader.cancelAll();
 
         if (this.mSavedFiles.size() > 0) {
-            List<View> fileViews = new ArrayList<View>();
-            for (String saveFile : this.mSavedFiles) {
-                SaveFileButton b = this.createSaveFileButton(saveFile);
-                fileViews.add(b);
-            }
-
-            View layout = this.createLayout(fileViews);
-            ScrollView scroller = new ScrollView(this);
-            scroller.addView(layout);
-            this.setContentView(scroller);
+            GridView grid = new GridView(this);
+            grid.setColumnWidth(this.mFileViewWidth + 2
+                    * this.mFileViewPadding);
+            grid.setNumColumns(GridView.AUTO_FIT);
+            grid.setRecyclerListener(this.mRecyclerListener);
+            grid.setAdapter(new SaveFileAdapter());
+            this.setContentView(grid);
         } else {
             RelativeLayout root = new RelativeLayout(this);
             this.getLayoutInflater().inflate(R.layout.no_files_layout, root);
@@ -252,6 +262,42 @@ public final class Load extends Activity {
         }
     }
 
+    /**
+     * Adapter that binds the save files to recycled file buttons.
+     * 
+     * @author Tim
+     * 
+     */
+    private final class SaveFileAdapter extends BaseAdapter {
+        @Override
+        public int getCount() {
+            return Load.this.mSavedFiles.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return Load.this.mSavedFiles.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            SaveFileButton b =
+                    convertView instanceof SaveFileButton
+                            ? (SaveFileButton) convertView
+                            : Load.this.createSaveFileButton();
+            String saveFile = Load.this.mSavedFiles.get(position);
+            b.setFileName(saveFile);
+            b.setOnClickListener(new SaveFileButtonClickListener(saveFile));
+            Load.this.mPreviewLoader.loadPreview(b, saveFile);
+            return b;
+        }
+    }
+
     /**
      * Listener that loads a file when a button representing that file is
      * clicked.
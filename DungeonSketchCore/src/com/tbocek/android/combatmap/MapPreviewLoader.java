@@ -0,0 +1,220 @@
+package com.tbocek.android.combatmap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+
+import com.tbocek.android.combatmap.view.SaveFileButton;
+
+/**
+ * Loads the previews of saved maps in the background, downsampled to the size
+ * of the buttons that show them, and keeps recently shown previews in memory.
+ *
+ * Previews are loaded in the order they are requested, which for a list is the
+ * order the buttons are laid out in. Each button shows at most one preview;
+ * requesting a new preview for a button, e.g. because the list recycled it,
+ * cancels the preview it was waiting for.
+ *
+ * All methods must be called on the UI thread.
+ *
+ * @author Tim
+ *
+ */
+final class MapPreviewLoader {
+
+    /**
+     * The data manager to load previews from.
+     */
+    private final DataManager mDataManager;
+
+    /**
+     * Smallest width that loaded previews may have.
+     */
+    private final int mWidth;
+
+    /**
+     * Smallest height that loaded previews may have.
+     */
+    private final int mHeight;
+
+    /**
+     * Loaded previews by save file name, weighed by their size in bytes.
+     * Evicted previews may still be shown by a button, so they are not
+     * recycled.
+     */
+    private final WeightedLruCache<String, Bitmap> mPreviews;
+
+    /**
+     * The preview that each button is waiting for.
+     */
+    private Map<SaveFileButton, Request> mPending =
+            new HashMap<SaveFileButton, Request>();
+
+    /**
+     * Thread that loads the previews.
+     */
+    private ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Handler for the UI thread, which loaded previews are handed back to.
+     */
+    private Handler mUiHandler = new Handler();
+
+    /**
+     * Constructor.
+     *
+     * @param dataManager
+     *            The data manager to load previews from.
+     * @param width
+     *            Smallest width that loaded previews may have.
+     * @param height
+     *            Smallest height that loaded previews may have.
+     * @param budgetBytes
+     *            Maximum amount of memory to spend on cached previews.
+     */
+    MapPreviewLoader(DataManager dataManager, int width, int height,
+            long budgetBytes) {
+        this.mDataManager = dataManager;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mPreviews = new WeightedLruCache<String, Bitmap>(budgetBytes) {
+            @Override
+            protected long weigh(Bitmap preview) {
+                return (long) preview.getRowBytes() * preview.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Shows the preview of the given save file on the given button, loading
+     * it in the background if it is not cached. Until then, the button shows
+     * no preview.
+     *
+     * @param button
+     *            The button to show the preview on.
+     * @param saveFile
+     *            Name of the save file, without extension.
+     */
+    void loadPreview(final SaveFileButton button, final String saveFile) {
+        this.cancel(button);
+        Bitmap cached = this.mPreviews.get(saveFile);
+        button.setPreviewImage(cached);
+        if (cached != null) {
+            return;
+        }
+
+        final Request request = new Request(saveFile);
+        this.mPending.put(button, request);
+        request.mFuture = this.mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap preview = null;
+                try {
+                    preview =
+                            MapPreviewLoader.this.mDataManager
+                                    .loadPreviewImage(saveFile,
+                                            MapPreviewLoader.this.mWidth,
+                                            MapPreviewLoader.this.mHeight);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                final Bitmap loaded = preview;
+                MapPreviewLoader.this.mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        MapPreviewLoader.this.onPreviewLoaded(button,
+                                request, loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops loading the preview that the given button is waiting for, e.g.
+     * because it scrolled out of view.
+     *
+     * @param button
+     *            The button.
+     */
+    void cancel(SaveFileButton button) {
+        Request request = this.mPending.remove(button);
+        if (request != null) {
+            request.mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Stops loading every preview.
+     */
+    void cancelAll() {
+        for (Request request : this.mPending.values()) {
+            request.mFuture.cancel(false);
+        }
+        this.mPending.clear();
+    }
+
+    /**
+     * Stops loading previews and frees the loading thread. The loader can't be
+     * used afterwards.
+     */
+    void shutdown() {
+        this.cancelAll();
+        this.mExecutor.shutdownNow();
+    }
+
+    /**
+     * Caches a loaded preview and shows it, if its button still wants it.
+     *
+     * @param button
+     *            The button that requested the preview.
+     * @param request
+     *            The request that loaded the preview.
+     * @param preview
+     *            The loaded preview, or null if it could not be loaded.
+     */
+    private void onPreviewLoaded(SaveFileButton button, Request request,
+            Bitmap preview) {
+        if (preview != null) {
+            this.mPreviews.put(request.mSaveFile, preview);
+        }
+        if (this.mPending.get(button) == request) {
+            this.mPending.remove(button);
+            button.setPreviewImage(preview);
+        }
+    }
+
+    /**
+     * A preview that a button is waiting for.
+     *
+     * @author Tim
+     *
+     */
+    private static final class Request {
+        /**
+         * Name of the save file whose preview is loading.
+         */
+        private final String mSaveFile;
+
+        /**
+         * The background load, used to cancel it.
+         */
+        private Future<?> mFuture;
+
+        /**
+         * Constructor.
+         *
+         * @param saveFile
+         *            Name of the save file whose preview is loading.
+         */
+        Request(String saveFile) {
+            this.mSaveFile = saveFile;
+        }
+    }
+}
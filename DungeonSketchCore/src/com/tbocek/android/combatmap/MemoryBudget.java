@@ -0,0 +1,90 @@
+package com.tbocek.android.combatmap;
+
+/**
+ * Central location for the memory budgets of the bitmap caches. All caches
+ * share one budget, which is a fixed fraction of the maximum heap size and is
+ * divided between them here, so that together they can never claim more of
+ * the heap than that fraction.
+ *
+ * @author Tim
+ *
+ */
+public final class MemoryBudget {
+
+    /**
+     * Fraction of the maximum heap size to spend on all bitmap caches
+     * combined.
+     */
+    private static final int HEAP_FRACTION = 3;
+
+    /**
+     * Memory that all bitmap caches share, in bytes.
+     */
+    private static final long TOTAL_BYTES = Runtime.getRuntime().maxMemory()
+            / HEAP_FRACTION;
+
+    /**
+     * Percentage of the shared budget for rasterized map tiles.
+     */
+    private static final int MAP_TILE_PERCENT = 30;
+
+    /**
+     * Percentage of the shared budget for decoded background image tiles.
+     */
+    private static final int IMAGE_TILE_PERCENT = 25;
+
+    /**
+     * Percentage of the shared budget for decoded token images.
+     */
+    private static final int TOKEN_IMAGE_PERCENT = 20;
+
+    /**
+     * Percentage of the shared budget for pre-rendered token sprites.
+     */
+    private static final int TOKEN_SPRITE_PERCENT = 15;
+
+    /**
+     * Percentage of the shared budget for map previews on the load screen.
+     */
+    private static final int MAP_PREVIEW_PERCENT = 10;
+
+    /**
+     * Memory budget for rasterized map tiles, in bytes.
+     */
+    public static final long MAP_TILE_BYTES = share(MAP_TILE_PERCENT);
+
+    /**
+     * Memory budget for decoded background image tiles, in bytes.
+     */
+    public static final long IMAGE_TILE_BYTES = share(IMAGE_TILE_PERCENT);
+
+    /**
+     * Memory budget for decoded token images, in bytes.
+     */
+    public static final long TOKEN_IMAGE_BYTES = share(TOKEN_IMAGE_PERCENT);
+
+    /**
+     * Memory budget for pre-rendered token sprites, in bytes.
+     */
+    public static final long TOKEN_SPRITE_BYTES = share(TOKEN_SPRITE_PERCENT);
+
+    /**
+     * Memory budget for map previews on the load screen, in bytes.
+     */
+    public static final long MAP_PREVIEW_BYTES = share(MAP_PREVIEW_PERCENT);
+
+    /**
+     * @param percent
+     *            Percentage of the shared budget.
+     * @return That share of the shared budget, in bytes.
+     */
+    private static long share(int percent) {
+        return TOTAL_BYTES * percent / 100;
+    }
+
+    /**
+     * Private constructor because this is a utility class.
+     */
+    private MemoryBudget() {
+    }
+}
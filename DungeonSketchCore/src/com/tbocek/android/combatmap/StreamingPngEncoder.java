@@ -0,0 +1,287 @@
+package com.tbocek.android.combatmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.graphics.Bitmap;
+
+/**
+ * Encodes a PNG image whose rows are supplied a strip at a time, so that
+ * images much larger than any bitmap that fits in memory can be written. The
+ * image is encoded as 8 bit RGBA, with every row using the Sub filter.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tim
+ *
+ */
+final class StreamingPngEncoder {
+
+    /**
+     * Bytes that every PNG file starts with.
+     */
+    private static final byte[] SIGNATURE = new byte[] {(byte) 137, 'P', 'N',
+            'G', '\r', '\n', 26, '\n' };
+
+    /**
+     * Length of the IHDR chunk's data.
+     */
+    private static final int HEADER_LENGTH = 13;
+
+    /**
+     * Bits per channel.
+     */
+    private static final int BIT_DEPTH = 8;
+
+    /**
+     * PNG color type for truecolor with alpha.
+     */
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    /**
+     * Bytes per encoded pixel.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * PNG filter type that encodes each byte as the difference from the
+     * corresponding byte of the pixel to its left.
+     */
+    private static final byte FILTER_SUB = 1;
+
+    /**
+     * Maximum length of an IDAT chunk's data.
+     */
+    private static final int IDAT_LENGTH = 64 * 1024;
+
+    /**
+     * The stream to write the encoded image to.
+     */
+    private final DataOutputStream mOut;
+
+    /**
+     * Width of the image, in pixels.
+     */
+    private final int mWidth;
+
+    /**
+     * Height of the image, in pixels.
+     */
+    private final int mHeight;
+
+    /**
+     * Number of rows encoded so far.
+     */
+    private int mRowsWritten;
+
+    /**
+     * Compresses the filtered rows.
+     */
+    private final Deflater mDeflater = new Deflater();
+
+    /**
+     * Checksum of the chunk being written.
+     */
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * OPTIMIZATION: Preallocated pixels of the row being encoded.
+     */
+    private final int[] mPixels;
+
+    /**
+     * OPTIMIZATION: Preallocated filtered bytes of the row being encoded.
+     */
+    private final byte[] mRow;
+
+    /**
+     * OPTIMIZATION: Preallocated compressed data of the next IDAT chunk.
+     */
+    private final byte[] mIdat = new byte[IDAT_LENGTH];
+
+    /**
+     * Number of bytes of compressed data waiting in mIdat.
+     */
+    private int mIdatLength;
+
+    /**
+     * Constructor. Writes the PNG header.
+     *
+     * @param out
+     *            The stream to write the encoded image to.
+     * @param width
+     *            Width of the image, in pixels.
+     * @param height
+     *            Height of the image, in pixels.
+     * @throws IOException
+     *             On write error.
+     */
+    StreamingPngEncoder(OutputStream out, int width, int height)
+            throws IOException {
+        this.mOut = new DataOutputStream(out);
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mPixels = new int[width];
+        this.mRow = new byte[1 + width * BYTES_PER_PIXEL];
+
+        this.mOut.write(SIGNATURE);
+        byte[] header = new byte[HEADER_LENGTH];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = BIT_DEPTH;
+        header[9] = COLOR_TYPE_RGBA;
+        // Compression, filter and interlace methods are all 0.
+        this.writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Encodes the next rows of the image.
+     *
+     * @param strip
+     *            Bitmap that contains the rows, starting at its top. Must be
+     *            as wide as the image.
+     * @param rows
+     *            Number of rows of the bitmap to encode.
+     * @throws IOException
+     *             On write error.
+     */
+    void writeRows(Bitmap strip, int rows) throws IOException {
+        if (this.mRowsWritten + rows > this.mHeight) {
+            throw new IllegalStateException("Too many rows written");
+        }
+        for (int y = 0; y < rows; ++y) {
+            strip.getPixels(this.mPixels, 0, this.mWidth, 0, y, this.mWidth, 1);
+            this.filterRow();
+            this.mDeflater.setInput(this.mRow);
+            this.deflate(false);
+        }
+        this.mRowsWritten += rows;
+    }
+
+    /**
+     * Writes the remaining compressed data and the end of the image. Every
+     * row must have been written.
+     *
+     * @throws IOException
+     *             On write error.
+     */
+    void finish() throws IOException {
+        if (this.mRowsWritten != this.mHeight) {
+            throw new IllegalStateException("Only " + this.mRowsWritten
+                    + " of " + this.mHeight + " rows written");
+        }
+        this.mDeflater.finish();
+        this.deflate(true);
+        this.writeChunk("IEND", this.mIdat, 0);
+        this.mOut.flush();
+    }
+
+    /**
+     * Releases the compressor and closes the stream, whether or not the image
+     * was finished.
+     *
+     * @throws IOException
+     *             On close error.
+     */
+    void close() throws IOException {
+        this.mDeflater.end();
+        this.mOut.close();
+    }
+
+    /**
+     * Converts the pixels in mPixels to filtered bytes in mRow.
+     */
+    private void filterRow() {
+        this.mRow[0] = FILTER_SUB;
+        int prevR = 0;
+        int prevG = 0;
+        int prevB = 0;
+        int prevA = 0;
+        int i = 1;
+        for (int x = 0; x < this.mWidth; ++x) {
+            int color = this.mPixels[x];
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            int a = color >>> 24;
+            this.mRow[i++] = (byte) (r - prevR);
+            this.mRow[i++] = (byte) (g - prevG);
+            this.mRow[i++] = (byte) (b - prevB);
+            this.mRow[i++] = (byte) (a - prevA);
+            prevR = r;
+            prevG = g;
+            prevB = b;
+            prevA = a;
+        }
+    }
+
+    /**
+     * Compresses the pending input, writing an IDAT chunk whenever one fills
+     * up.
+     *
+     * @param finish
+     *            Whether to flush everything, including a partial chunk.
+     * @throws IOException
+     *             On write error.
+     */
+    private void deflate(boolean finish) throws IOException {
+        while (finish ? !this.mDeflater.finished() : !this.mDeflater
+                .needsInput()) {
+            this.mIdatLength +=
+                    this.mDeflater.deflate(this.mIdat, this.mIdatLength,
+                            this.mIdat.length - this.mIdatLength);
+            if (this.mIdatLength == this.mIdat.length) {
+                this.writeChunk("IDAT", this.mIdat, this.mIdatLength);
+                this.mIdatLength = 0;
+            }
+        }
+        if (finish && this.mIdatLength > 0) {
+            this.writeChunk("IDAT", this.mIdat, this.mIdatLength);
+            this.mIdatLength = 0;
+        }
+    }
+
+    /**
+     * Writes a chunk with its length and checksum.
+     *
+     * @param type
+     *            Four letter chunk type.
+     * @param data
+     *            Buffer holding the chunk's data.
+     * @param length
+     *            Length of the chunk's data.
+     * @throws IOException
+     *             On write error.
+     */
+    private void writeChunk(String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        this.mCrc.reset();
+        this.mCrc.update(typeBytes);
+        this.mCrc.update(data, 0, length);
+        this.mOut.writeInt(length);
+        this.mOut.write(typeBytes);
+        this.mOut.write(data, 0, length);
+        this.mOut.writeInt((int) this.mCrc.getValue());
+    }
+
+    /**
+     * Writes a big endian integer into a buffer.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param offset
+     *            Where to write the integer.
+     * @param value
+     *            The integer.
+     */
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,238 @@
+package com.tbocek.android.combatmap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Map that evicts its least recently used entries once the total weight of its
+ * values, e.g. their size in bytes, exceeds a budget. This is the common part
+ * of the bitmap caches whose budgets are set in MemoryBudget.
+ *
+ * Subclasses say how much each value weighs, and may act on entries that are
+ * evicted, e.g. to reuse their bitmaps. Values are not recycled by the cache
+ * itself, since another thread may still be drawing them.
+ *
+ * This class is not thread safe; caches that are shared between threads must
+ * synchronize their calls.
+ *
+ * @param <K>
+ *            Type of the keys.
+ * @param <V>
+ *            Type of the values.
+ * @author Tim
+ *
+ */
+public abstract class WeightedLruCache<K, V> {
+
+    /**
+     * The cached entries, in least recently used order.
+     */
+    private Map<K, V> mEntries = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+    /**
+     * Maximum total weight of the cached values.
+     */
+    private long mMaxWeight;
+
+    /**
+     * Total weight of the cached values.
+     */
+    private long mWeight;
+
+    /**
+     * Number of entries evicted to stay within the budget.
+     */
+    private long mEvictionCount;
+
+    /**
+     * Constructor.
+     *
+     * @param maxWeight
+     *            Maximum total weight of the cached values.
+     */
+    protected WeightedLruCache(long maxWeight) {
+        this.mMaxWeight = maxWeight;
+    }
+
+    /**
+     * Computes the weight of a value. Must not change while the value is
+     * cached.
+     *
+     * @param value
+     *            The value.
+     * @return The value's weight, e.g. its size in bytes.
+     */
+    protected abstract long weigh(V value);
+
+    /**
+     * Called when an entry is evicted to stay within the budget, or by
+     * evictAll. Not called for entries that are replaced, removed or cleared.
+     *
+     * @param key
+     *            The evicted key.
+     * @param value
+     *            The evicted value.
+     */
+    protected void entryEvicted(K key, V value) {
+    }
+
+    /**
+     * Looks up a value, marking it as recently used.
+     *
+     * @param key
+     *            The key to look up.
+     * @return The value, or null if it is not cached.
+     */
+    public final V get(K key) {
+        return this.mEntries.get(key);
+    }
+
+    /**
+     * Checks whether a value is cached, without marking it as used.
+     *
+     * @param key
+     *            The key to look up.
+     * @return True if the value is cached.
+     */
+    public final boolean containsKey(K key) {
+        return this.mEntries.containsKey(key);
+    }
+
+    /**
+     * Adds a value, evicting least recently used entries if the budget is
+     * exceeded. A value heavier than the whole budget is still cached, on its
+     * own.
+     *
+     * @param key
+     *            The key.
+     * @param value
+     *            The value.
+     * @return The value previously cached for the key, or null.
+     */
+    public final V put(K key, V value) {
+        V old = this.remove(key);
+        long weight = this.weigh(value);
+        this.trimTo(this.mMaxWeight - weight);
+        this.mEntries.put(key, value);
+        this.mWeight += weight;
+        return old;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param key
+     *            The key to remove.
+     * @return The removed value, or null if it was not cached.
+     */
+    public final V remove(K key) {
+        V old = this.mEntries.remove(key);
+        if (old != null) {
+            this.mWeight -= this.weigh(old);
+        }
+        return old;
+    }
+
+    /**
+     * Removes every value.
+     */
+    public final void clear() {
+        this.mEntries.clear();
+        this.mWeight = 0;
+    }
+
+    /**
+     * Evicts least recently used entries until the total weight is at most
+     * the given weight, e.g. to make room before creating a value.
+     *
+     * @param weight
+     *            Total weight to trim to.
+     */
+    public final void trimTo(long weight) {
+        Iterator<Map.Entry<K, V>> it = this.mEntries.entrySet().iterator();
+        while (this.mWeight > weight && it.hasNext()) {
+            Map.Entry<K, V> entry = it.next();
+            it.remove();
+            this.mWeight -= this.weigh(entry.getValue());
+            this.mEvictionCount++;
+            this.entryEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Evicts every entry whose key matches the given predicate.
+     *
+     * @param keys
+     *            Predicate that selects the keys to evict.
+     */
+    public final void evictAll(Predicate<? super K> keys) {
+        Iterator<Map.Entry<K, V>> it = this.mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, V> entry = it.next();
+            if (keys.apply(entry.getKey())) {
+                it.remove();
+                this.mWeight -= this.weigh(entry.getValue());
+                this.entryEvicted(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Changes the budget, evicting entries if needed.
+     *
+     * @param maxWeight
+     *            Maximum total weight of the cached values.
+     */
+    public final void setMaxWeight(long maxWeight) {
+        this.mMaxWeight = maxWeight;
+        this.trimTo(maxWeight);
+    }
+
+    /**
+     * @return Maximum total weight of the cached values.
+     */
+    public final long getMaxWeight() {
+        return this.mMaxWeight;
+    }
+
+    /**
+     * @return Total weight of the cached values.
+     */
+    public final long getWeight() {
+        return this.mWeight;
+    }
+
+    /**
+     * @return Number of entries evicted to stay within the budget.
+     */
+    public final long getEvictionCount() {
+        return this.mEvictionCount;
+    }
+
+    /**
+     * @return Number of cached entries.
+     */
+    public final int size() {
+        return this.mEntries.size();
+    }
+
+    /**
+     * @return True if nothing is cached.
+     */
+    public final boolean isEmpty() {
+        return this.mEntries.isEmpty();
+    }
+
+    /**
+     * @return Read-only view of the cached values, in least recently used
+     *         order.
+     */
+    public final Collection<V> values() {
+        return Collections.unmodifiableCollection(this.mEntries.values());
+    }
+}
@@ -1,6 +1,7 @@
 package com.tbocek.android.combatmap.model;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 import android.graphics.Canvas;
@@ -11,6 +12,7 @@ import com.tbocek.android.combatmap.model.CommandHistory.Command;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
 import com.tbocek.android.combatmap.model.io.MapDataSerializer;
 import com.tbocek.android.combatmap.model.primitives.BackgroundImage;
+import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
 import com.tbocek.android.combatmap.model.primitives.PointF;
 
@@ -34,6 +36,24 @@ public class BackgroundImageCollection {
 
     private ModifyImageCommand mCheckpointedImageCommand;
 
+    /**
+     * Bounds of the checkpointed image when its changes were last reported.
+     * The image is moved and resized directly while it is checkpointed, so
+     * it is compared against this when changed regions are collected.
+     */
+    private BoundingRectangle mCheckpointedImageBounds;
+
+    /**
+     * Regions whose rendering changed since they were last collected.
+     */
+    private ChangedRegions mChangedRegions = new ChangedRegions();
+
+    /**
+     * Number of times that the checkpointed image was found moved or resized
+     * before its command was added to the history.
+     */
+    private long mEditCount;
+
     /**
      * Constructor.
      * @param commandHistory The command history that modifications to this
@@ -66,20 +86,48 @@ public class BackgroundImageCollection {
      * @param canvas The canvas to draw on.
      * @param transformer Transformation from screen space to world space.
      * @param worldSpaceBounds 
+     * @param async If true, parts of images that aren't loaded yet are loaded
+     *      in the background and drawn as placeholders until then.
      */
-    public void draw(Canvas canvas, CoordinateTransformer transformer, RectF worldSpaceBounds) {
+    public void draw(Canvas canvas, CoordinateTransformer transformer, RectF worldSpaceBounds,
+            boolean async) {
         canvas.save();
         transformer.setInverseMatrix(canvas);
 
         for (BackgroundImage i : this.mImages) {
         	if (i.getBoundingRectangle().testClip(worldSpaceBounds)) {
-        		i.draw(canvas, transformer);
+        		i.draw(canvas, transformer, worldSpaceBounds, async);
         	}
         }
 
         canvas.restore();
     }
 
+    /**
+     * Starts loading the parts of images inside the given region in the
+     * background, so that they are ready by the time they are drawn.
+     * @param transformer Transformation from screen space to world space that
+     *      the images will be drawn with.
+     * @param worldSpaceBounds Region to load, in world space.
+     */
+    public void prefetch(CoordinateTransformer transformer, RectF worldSpaceBounds) {
+        for (BackgroundImage i : this.mImages) {
+            if (i.getBoundingRectangle().testClip(worldSpaceBounds)) {
+                i.prefetch(transformer, worldSpaceBounds);
+            }
+        }
+    }
+
+    /**
+     * Records that the given region needs to be redrawn even though no image
+     * was edited, e.g. because part of an image finished loading.
+     * @param worldSpaceRegion The region to redraw, in world space.
+     */
+    public void markRegionChanged(RectF worldSpaceRegion) {
+        this.mChangedRegions.add(worldSpaceRegion.left, worldSpaceRegion.top,
+                worldSpaceRegion.right, worldSpaceRegion.bottom);
+    }
+
     /**
      * Finds the object underneath the given point in world space.
      * 
@@ -116,6 +164,7 @@ public class BackgroundImageCollection {
     public void checkpointImageBefore(BackgroundImage i) {
         if (mCheckpointedImageCommand == null) {
             mCheckpointedImageCommand = new ModifyImageCommand(i);
+            mCheckpointedImageBounds = i.getBoundingRectangle();
         }
 
     }
@@ -132,6 +181,7 @@ public class BackgroundImageCollection {
         // We are not ready to "execute" this command yet - instead we are
         // checkpointing its state.
         if (this.mCheckpointedImageCommand != null) {
+            this.reportCheckpointedImageChanges();
             this.mCheckpointedImageCommand.checkpointAfterState();
             this.mCommandHistory.addToCommandHistory(mCheckpointedImageCommand);
             mCheckpointedImageCommand = null;
@@ -148,6 +198,70 @@ public class BackgroundImageCollection {
         this.mCommandHistory.execute(c);
     }
 
+    /**
+     * Adds the world space regions whose rendering changed since the last call
+     * to the given collection. Regions are only reported once.
+     * 
+     * @param regions
+     *            Collection to add the changed regions to.
+     */
+    public void collectChangedRegions(Collection<RectF> regions) {
+        this.reportCheckpointedImageChanges();
+        this.mChangedRegions.drainTo(regions);
+    }
+
+    /**
+     * @return A counter that increases whenever the rendering of this
+     *         collection changes.
+     */
+    public long getChangeCount() {
+        this.reportCheckpointedImageChanges();
+        return this.mChangedRegions.getChangeCount();
+    }
+
+    /**
+     * Unlike getChangeCount, this does not count images that only finished
+     * loading.
+     * 
+     * @return A counter that increases whenever an image is edited outside
+     *         of the command history. Together with the history's revision,
+     *         it tells whether the images changed.
+     */
+    public long getEditCount() {
+        this.reportCheckpointedImageChanges();
+        return this.mEditCount;
+    }
+
+    /**
+     * Records the area covered by the given image as changed.
+     * @param image The image that was added, removed, or moved.
+     */
+    private void markChanged(BackgroundImage image) {
+        this.mChangedRegions.add(image.getBoundingRectangle(), 0);
+    }
+
+    /**
+     * If the checkpointed image was moved or resized since its bounds were
+     * last recorded, marks both its old and new area as changed.
+     */
+    private void reportCheckpointedImageChanges() {
+        if (this.mCheckpointedImageCommand == null) {
+            return;
+        }
+        BoundingRectangle current =
+                this.mCheckpointedImageCommand.mLiveImage.getBoundingRectangle();
+        BoundingRectangle previous = this.mCheckpointedImageBounds;
+        if (previous.getXMin() != current.getXMin()
+                || previous.getXMax() != current.getXMax()
+                || previous.getYMin() != current.getYMin()
+                || previous.getYMax() != current.getYMax()) {
+            this.mChangedRegions.add(previous, 0);
+            this.mChangedRegions.add(current, 0);
+            this.mCheckpointedImageBounds = current;
+            this.mEditCount++;
+        }
+    }
+
     /**
      * A Command that adds the given image to the list of images.
      * @author Tim
@@ -171,6 +285,7 @@ public class BackgroundImageCollection {
         @Override
         public void execute() {
             BackgroundImageCollection.this.mImages.add(mImage);
+            BackgroundImageCollection.this.markChanged(mImage);
         }
 
         @Override
@@ -181,7 +296,8 @@ public class BackgroundImageCollection {
         @Override
         public void undo() {
             BackgroundImageCollection.this.mImages.remove(mImage);
-
+            BackgroundImageCollection.this.markChanged(mImage);
+            mImage.recycle();
         }
     }
 
@@ -208,6 +324,8 @@ public class BackgroundImageCollection {
         @Override
         public void execute() {
             BackgroundImageCollection.this.mImages.remove(mImage);
+            BackgroundImageCollection.this.markChanged(mImage);
+            mImage.recycle();
         }
 
         @Override
@@ -218,6 +336,7 @@ public class BackgroundImageCollection {
         @Override
         public void undo() {
             BackgroundImageCollection.this.mImages.add(mImage);
+            BackgroundImageCollection.this.markChanged(mImage);
         }
     }
 
@@ -271,7 +390,9 @@ public class BackgroundImageCollection {
 
         @Override
         public void execute() {
+            BackgroundImageCollection.this.markChanged(this.mLiveImage);
             this.mLiveImage.copyLocationDataFrom(this.mAfter);
+            BackgroundImageCollection.this.markChanged(this.mLiveImage);
         }
 
         @Override
@@ -281,7 +402,9 @@ public class BackgroundImageCollection {
 
         @Override
         public void undo() {
+            BackgroundImageCollection.this.markChanged(this.mLiveImage);
             this.mLiveImage.copyLocationDataFrom(this.mBefore);
+            BackgroundImageCollection.this.markChanged(this.mLiveImage);
         }
     }
 
@@ -305,4 +428,14 @@ public class BackgroundImageCollection {
         return this.mImages.contains(selectedImage);
     }
 
+    /**
+     * Closes every image and frees their decoders. Should be called when the
+     * map is discarded.
+     */
+    public void recycleImages() {
+        for (BackgroundImage image : this.mImages) {
+            image.recycle();
+        }
+    }
+
 }
@@ -0,0 +1,230 @@
+package com.tbocek.android.combatmap.model;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.PointF;
+
+/**
+ * A screen-sized bitmap holding everything that MapDrawer draws below the
+ * token layer. While only tokens change (e.g. while a token is dragged), a
+ * frame only needs to blit this bitmap and redraw the tokens.
+ *
+ * The bitmap is considered stale after any change to the map other than to
+ * its tokens, after the world space transformation changes, or when it is
+ * drawn with different layer options. It is only rebuilt once the
+ * transformation holds still for a frame, so that panning and zooming do not
+ * pay for an extra full screen blit on every frame.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tim
+ *
+ */
+public final class BelowTokensCache {
+
+    /**
+     * What MapDrawer should do with the cache for the current frame.
+     */
+    enum Action {
+        /**
+         * The cached bitmap is up to date and can be blitted.
+         */
+        BLIT,
+
+        /**
+         * The cached bitmap needs to be redrawn before blitting it.
+         */
+        REBUILD,
+
+        /**
+         * The layers should be drawn directly, bypassing the cache.
+         */
+        BYPASS
+    }
+
+    /**
+     * Number of map collections whose change counts are tracked.
+     */
+    private static final int TRACKED_COLLECTIONS = 6;
+
+    /**
+     * The cached layers.
+     */
+    private Bitmap mBitmap;
+
+    /**
+     * Whether the cached bitmap holds a complete rendering.
+     */
+    private boolean mValid;
+
+    /**
+     * The map that the cached bitmap was rendered from.
+     */
+    private MapData mData;
+
+    /**
+     * Layer options that the cached bitmap was rendered with.
+     */
+    private int mLayerOptions;
+
+    /**
+     * Grid state that the cached bitmap was rendered with.
+     */
+    private GridSnapshot mGrid = new GridSnapshot();
+
+    /**
+     * Change counts of the map collections when the cached bitmap was
+     * rendered.
+     */
+    private long[] mChangeCounts = new long[TRACKED_COLLECTIONS];
+
+    /**
+     * OPTIMIZATION: Preallocated array for the current change counts.
+     */
+    private long[] mCurrentChangeCounts = new long[TRACKED_COLLECTIONS];
+
+    /**
+     * World space transformation the cached bitmap was rendered with.
+     */
+    private float mOriginX;
+
+    /**
+     * World space transformation the cached bitmap was rendered with.
+     */
+    private float mOriginY;
+
+    /**
+     * World space transformation the cached bitmap was rendered with.
+     */
+    private float mZoom;
+
+    /**
+     * World space transformation seen by the previous frame.
+     */
+    private float mLastOriginX;
+
+    /**
+     * World space transformation seen by the previous frame.
+     */
+    private float mLastOriginY;
+
+    /**
+     * World space transformation seen by the previous frame.
+     */
+    private float mLastZoom;
+
+    /**
+     * Frees the cached bitmap.
+     */
+    public void clear() {
+        if (this.mBitmap != null) {
+            this.mBitmap.recycle();
+            this.mBitmap = null;
+        }
+        this.mValid = false;
+    }
+
+    /**
+     * Decides how the layers below the tokens should be drawn this frame.
+     *
+     * @param m
+     *            The map being drawn.
+     * @param layerOptions
+     *            Opaque value describing which layers MapDrawer draws and
+     *            how; the cache is stale if this changes.
+     * @param width
+     *            Width of the screen.
+     * @param height
+     *            Height of the screen.
+     * @return The action to take.
+     */
+    Action update(MapData m, int layerOptions, int width, int height) {
+        CoordinateTransformer transformer = m.getWorldSpaceTransformer();
+        PointF origin = transformer.getOrigin();
+        float zoom = transformer.worldSpaceToScreenSpace(1.0f);
+        boolean transformStable =
+                origin.x == this.mLastOriginX && origin.y == this.mLastOriginY
+                        && zoom == this.mLastZoom;
+        this.mLastOriginX = origin.x;
+        this.mLastOriginY = origin.y;
+        this.mLastZoom = zoom;
+
+        this.readChangeCounts(m, this.mCurrentChangeCounts);
+        if (this.mValid && this.mBitmap.getWidth() == width
+                && this.mBitmap.getHeight() == height && m == this.mData
+                && layerOptions == this.mLayerOptions
+                && this.mGrid.matches(m.getGrid()) && origin.x == this.mOriginX
+                && origin.y == this.mOriginY && zoom == this.mZoom
+                && Arrays.equals(this.mCurrentChangeCounts,
+                        this.mChangeCounts)) {
+            return Action.BLIT;
+        }
+
+        this.mValid = false;
+        if (!transformStable) {
+            return Action.BYPASS;
+        }
+
+        if (this.mBitmap == null || this.mBitmap.getWidth() != width
+                || this.mBitmap.getHeight() != height) {
+            this.clear();
+            this.mBitmap =
+                    Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        this.mData = m;
+        this.mLayerOptions = layerOptions;
+        this.mGrid.capture(m.getGrid());
+        this.mOriginX = origin.x;
+        this.mOriginY = origin.y;
+        this.mZoom = zoom;
+        // Capture the counts from before the rebuild; anything that changes
+        // while drawing (such as a live line) should invalidate the result.
+        System.arraycopy(this.mCurrentChangeCounts, 0, this.mChangeCounts, 0,
+                TRACKED_COLLECTIONS);
+        return Action.REBUILD;
+    }
+
+    /**
+     * @return A canvas to redraw the cached layers into. Only valid after
+     *         update returned REBUILD.
+     */
+    Canvas beginRebuild() {
+        this.mBitmap.eraseColor(0);
+        return new Canvas(this.mBitmap);
+    }
+
+    /**
+     * Marks the rebuilt bitmap as ready to use.
+     */
+    void finishRebuild() {
+        this.mValid = true;
+    }
+
+    /**
+     * @return The cached bitmap.
+     */
+    Bitmap getBitmap() {
+        return this.mBitmap;
+    }
+
+    /**
+     * Reads the change counts of every non-token collection in the map.
+     *
+     * @param m
+     *            The map.
+     * @param out
+     *            Array to write the counts to.
+     */
+    private void readChangeCounts(MapData m, long[] out) {
+        out[0] = m.getBackgroundLines().getChangeCount();
+        out[1] = m.getBackgroundImages().getChangeCount();
+        out[2] = m.getBackgroundFogOfWar().getChangeCount();
+        out[3] = m.getGmNoteLines().getChangeCount();
+        out[4] = m.getGmNotesFogOfWar().getChangeCount();
+        out[5] = m.getAnnotationLines().getChangeCount();
+    }
+}
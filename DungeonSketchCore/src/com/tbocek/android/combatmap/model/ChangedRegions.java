@@ -0,0 +1,118 @@
+package com.tbocek.android.combatmap.model;
+
+import java.util.Collection;
+import java.util.List;
+
+import android.graphics.RectF;
+
+import com.google.common.collect.Lists;
+import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
+
+/**
+ * Accumulates the world space regions of a collection that changed
+ * appearance, so that a consumer holding rendered copies of the collection
+ * (such as the map tile cache) can throw away only the parts that are stale.
+ *
+ * The number of retained regions is bounded; once it is exceeded, the regions
+ * are merged into their union. This keeps collections that nobody drains from
+ * growing without bound.
+ *
+ * @author Tim
+ *
+ */
+final class ChangedRegions {
+
+    /**
+     * Maximum number of separate regions to track before merging them.
+     */
+    private static final int MAX_REGIONS = 32;
+
+    /**
+     * The changed regions, in world space.
+     */
+    private List<RectF> mRegions = Lists.newArrayList();
+
+    /**
+     * Number of changes recorded over the lifetime of this object. Unlike the
+     * regions, this is never drained, so any number of consumers can use it to
+     * tell whether something changed since they last looked.
+     */
+    private long mChangeCount;
+
+    /**
+     * Records that the given rectangle changed.
+     *
+     * @param r
+     *            The changed rectangle, in world space.
+     * @param margin
+     *            Amount to grow the rectangle by on each side, e.g. to account
+     *            for stroke widths.
+     */
+    void add(BoundingRectangle r, float margin) {
+        if (r.getXMin() > r.getXMax() || r.getYMin() > r.getYMax()) {
+            // Nothing has been drawn in an empty rectangle.
+            return;
+        }
+        this.add(r.getXMin() - margin, r.getYMin() - margin, r.getXMax()
+                + margin, r.getYMax() + margin);
+    }
+
+    /**
+     * Records that the given rectangle changed.
+     *
+     * @param left
+     *            Left edge, in world space.
+     * @param top
+     *            Top edge, in world space.
+     * @param right
+     *            Right edge, in world space.
+     * @param bottom
+     *            Bottom edge, in world space.
+     */
+    void add(float left, float top, float right, float bottom) {
+        this.mChangeCount++;
+        if (!this.mRegions.isEmpty()) {
+            RectF last = this.mRegions.get(this.mRegions.size() - 1);
+            if (last.contains(left, top, right, bottom)) {
+                return;
+            }
+        }
+        if (this.mRegions.size() >= MAX_REGIONS) {
+            RectF union = this.mRegions.get(0);
+            for (int i = 1; i < this.mRegions.size(); ++i) {
+                union.union(this.mRegions.get(i));
+            }
+            this.mRegions.clear();
+            this.mRegions.add(union);
+            union.union(left, top, right, bottom);
+            return;
+        }
+        this.mRegions.add(new RectF(left, top, right, bottom));
+    }
+
+    /**
+     * Forgets all changed regions.
+     */
+    void clear() {
+        this.mRegions.clear();
+        this.mChangeCount++;
+    }
+
+    /**
+     * @return The number of changes recorded so far.
+     */
+    long getChangeCount() {
+        return this.mChangeCount;
+    }
+
+    /**
+     * Moves every region recorded so far into the given collection.
+     *
+     * @param out
+     *            Collection to add the regions to.
+     */
+    void drainTo(Collection<RectF> out) {
+        out.addAll(this.mRegions);
+        this.mRegions.clear();
+    }
+}
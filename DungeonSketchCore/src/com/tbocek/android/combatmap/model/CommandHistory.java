@@ -22,6 +22,11 @@ public class CommandHistory {
      */
     private transient Stack<Command> mUndo = new Stack<Command>();
 
+    /**
+     * Number of times that commands were executed, undone, redone or added.
+     */
+    private transient long mRevision;
+
     /**
      * Adds the given command to the command history without executing it.
      * 
@@ -31,6 +36,7 @@ public class CommandHistory {
     public void addToCommandHistory(final Command command) {
         this.mUndo.add(command);
         this.mRedo.clear();
+        this.mRevision++;
     }
 
     /**
@@ -59,9 +65,19 @@ public class CommandHistory {
             command.execute();
             this.mUndo.add(command);
             this.mRedo.clear();
+            this.mRevision++;
         }
     }
 
+    /**
+     * @return A counter that increases whenever a command is executed, undone,
+     *         redone or added to this history, and so whenever the state that
+     *         the history covers may have changed.
+     */
+    public long getRevision() {
+        return this.mRevision;
+    }
+
     /**
      * Deserializes the object. This uses the standard deserialization but must
      * also create transient objects that manage undo and redo.
@@ -88,6 +104,7 @@ public class CommandHistory {
             Command c = this.mRedo.pop();
             c.execute();
             this.mUndo.push(c);
+            this.mRevision++;
         }
     }
 
@@ -99,6 +116,7 @@ public class CommandHistory {
             Command c = this.mUndo.pop();
             c.undo();
             this.mRedo.push(c);
+            this.mRevision++;
         }
     }
 
@@ -0,0 +1,229 @@
+package com.tbocek.android.combatmap.model;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.graphics.Region;
+
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.PointF;
+
+/**
+ * Cached union of the regions in a fog of war collection. Clipping to the fog
+ * of war used to union every visible fog region into the canvas clip on every
+ * frame, several times per frame; this keeps the unioned result around and
+ * applies it with a single clip operation.
+ *
+ * The union only covers the fog of war near the visible region: the screen
+ * plus a margin, so that panning a short way does not uncover any of it. It is
+ * kept in world space scaled by the zoom level, so panning only has to offset
+ * it by the whole number of pixels nearest to the world space origin. It is
+ * rebuilt when the fog of war or the zoom level changes, or when the screen
+ * pans past the covered area.
+ *
+ * Regions are in device coordinates, so the mask can only be applied to
+ * canvases whose device coordinates are screen coordinates.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tim
+ *
+ */
+public final class FogOfWarMask {
+
+    /**
+     * Extra area, in pixels, around the fog of war bounds that the union is
+     * clipped to. Covers rounding of the bounds.
+     */
+    private static final int BOUNDS_MARGIN = 1;
+
+    /**
+     * Area around the screen that the union covers, as a fraction of the
+     * screen size on each side.
+     */
+    private static final float PAN_MARGIN = 0.5f;
+
+    /**
+     * The unioned fog of war, in world space scaled by the zoom level.
+     */
+    private Region mRegion = new Region();
+
+    /**
+     * The unioned fog of war, offset into screen space.
+     */
+    private Region mScreenRegion = new Region();
+
+    /**
+     * Whether mRegion holds a complete union.
+     */
+    private boolean mValid;
+
+    /**
+     * Whether mScreenRegion holds mRegion at the current offset.
+     */
+    private boolean mScreenRegionValid;
+
+    /**
+     * The fog of war collection the region was built from.
+     */
+    private LineCollection mFogOfWar;
+
+    /**
+     * Change count of the fog of war collection when the region was built.
+     */
+    private long mChangeCount;
+
+    /**
+     * Zoom level the region was built with.
+     */
+    private float mZoom;
+
+    /**
+     * Area that the region covers, in world space.
+     */
+    private RectF mCoveredWorldSpace = new RectF();
+
+    /**
+     * Whether the region covers the whole fog of war, so that panning never
+     * requires a rebuild.
+     */
+    private boolean mCoversAll;
+
+    /**
+     * Horizontal offset, in whole pixels, that mScreenRegion was moved by.
+     */
+    private int mOffsetX;
+
+    /**
+     * Vertical offset, in whole pixels, that mScreenRegion was moved by.
+     */
+    private int mOffsetY;
+
+    /**
+     * Number of fog of war regions that were culled when the region was built.
+     */
+    private int mCulledShapeCount;
+
+    /**
+     * OPTIMIZATION: Preallocated world space to scaled world space matrix.
+     */
+    private Matrix mWorldToScaled = new Matrix();
+
+    /**
+     * OPTIMIZATION: Preallocated region covering the fog of war bounds.
+     */
+    private Region mBoundsRegion = new Region();
+
+    /**
+     * OPTIMIZATION: Preallocated screen area, in world space.
+     */
+    private RectF mScreenWorldSpace = new RectF();
+
+    /**
+     * Forgets the unioned region.
+     */
+    public void clear() {
+        this.mRegion.setEmpty();
+        this.mScreenRegion.setEmpty();
+        this.mFogOfWar = null;
+        this.mValid = false;
+        this.mScreenRegionValid = false;
+    }
+
+    /**
+     * Clips the canvas to the fog of war, rebuilding the unioned region first
+     * if it is stale.
+     *
+     * @param canvas
+     *            The canvas to clip.
+     * @param fogOfWar
+     *            The fog of war collection to clip to.
+     * @param transformer
+     *            The world space to screen space transformation.
+     * @return The number of fog of war regions that were culled when the
+     *         region was built.
+     */
+    int apply(Canvas canvas, LineCollection fogOfWar,
+            CoordinateTransformer transformer) {
+        float zoom = transformer.worldSpaceToScreenSpace(1.0f);
+        long changeCount = fogOfWar.getChangeCount();
+
+        PointF screenOrigin = transformer.screenSpaceToWorldSpace(0, 0);
+        this.mScreenWorldSpace.set(screenOrigin.x, screenOrigin.y,
+                screenOrigin.x
+                        + transformer.screenSpaceToWorldSpace(canvas
+                                .getWidth()),
+                screenOrigin.y
+                        + transformer.screenSpaceToWorldSpace(canvas
+                                .getHeight()));
+        boolean panned =
+                !this.mCoversAll
+                        && !this.mCoveredWorldSpace
+                                .contains(this.mScreenWorldSpace);
+
+        if (!this.mValid || fogOfWar != this.mFogOfWar
+                || changeCount != this.mChangeCount || zoom != this.mZoom
+                || panned) {
+            this.rebuild(fogOfWar, zoom, this.mScreenWorldSpace);
+            this.mFogOfWar = fogOfWar;
+            this.mChangeCount = changeCount;
+            this.mZoom = zoom;
+            this.mValid = true;
+            this.mScreenRegionValid = false;
+        }
+
+        PointF origin = transformer.getOrigin();
+        int offsetX = Math.round(origin.x);
+        int offsetY = Math.round(origin.y);
+        if (!this.mScreenRegionValid || offsetX != this.mOffsetX
+                || offsetY != this.mOffsetY) {
+            this.mRegion.translate(offsetX, offsetY, this.mScreenRegion);
+            this.mOffsetX = offsetX;
+            this.mOffsetY = offsetY;
+            this.mScreenRegionValid = true;
+        }
+
+        canvas.clipRegion(this.mScreenRegion, Region.Op.INTERSECT);
+        return this.mCulledShapeCount;
+    }
+
+    /**
+     * Unions the regions in the fog of war near the screen into mRegion.
+     *
+     * @param fogOfWar
+     *            The fog of war collection to union.
+     * @param zoom
+     *            The zoom level to scale world space by.
+     * @param screen
+     *            The screen area, in world space.
+     */
+    private void rebuild(LineCollection fogOfWar, float zoom, RectF screen) {
+        this.mRegion.setEmpty();
+        this.mCulledShapeCount = 0;
+        this.mCoversAll = true;
+        if (fogOfWar.isEmpty()) {
+            return;
+        }
+
+        float marginX = screen.width() * PAN_MARGIN;
+        float marginY = screen.height() * PAN_MARGIN;
+        this.mCoveredWorldSpace.set(screen.left - marginX, screen.top
+                - marginY, screen.right + marginX, screen.bottom + marginY);
+        RectF bounds = fogOfWar.getBoundingRectangle().toRectF();
+        this.mCoversAll = this.mCoveredWorldSpace.contains(bounds);
+        if (!bounds.intersect(this.mCoveredWorldSpace)) {
+            // None of the fog of war is near the screen.
+            return;
+        }
+
+        this.mWorldToScaled.setScale(zoom, zoom);
+        this.mBoundsRegion.set(
+                (int) Math.floor(bounds.left * zoom) - BOUNDS_MARGIN,
+                (int) Math.floor(bounds.top * zoom) - BOUNDS_MARGIN,
+                (int) Math.ceil(bounds.right * zoom) + BOUNDS_MARGIN,
+                (int) Math.ceil(bounds.bottom * zoom) + BOUNDS_MARGIN);
+        this.mCulledShapeCount =
+                fogOfWar.unionFogOfWar(this.mRegion, this.mWorldToScaled,
+                        this.mBoundsRegion, bounds);
+    }
+}
@@ -1,6 +1,11 @@
 package com.tbocek.android.combatmap.model;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
 
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
 import com.tbocek.android.combatmap.model.primitives.PointF;
@@ -13,6 +18,51 @@ import com.tbocek.android.combatmap.model.primitives.PointF;
  * @author Tim
  */
 public abstract class GridDrawStrategy {
+    /**
+     * Largest grid period, in pixels, that is drawn by tiling a cached
+     * pattern. Grids with larger periods have few enough lines on screen that
+     * drawing them directly is cheap.
+     */
+    private static final int MAX_PATTERN_SIZE = 256;
+
+    /**
+     * Largest distance, in pixels, that tiling a pattern may move a grid line
+     * from where it would be drawn directly.
+     */
+    private static final float MAX_PATTERN_DRIFT = 0.5f;
+
+    /**
+     * One period of the grid, rendered at the zoom level in mPatternZoom.
+     */
+    private Bitmap mPattern;
+
+    /**
+     * Zoom level the cached pattern was rendered at.
+     */
+    private float mPatternZoom;
+
+    /**
+     * Line color the cached pattern was rendered with.
+     */
+    private int mPatternColor;
+
+    /**
+     * Paint that tiles the cached pattern. The pattern is tiled unscaled at
+     * whole pixel offsets, so bitmap filtering is left off to keep the lines
+     * sharp.
+     */
+    private Paint mPatternPaint = new Paint();
+
+    /**
+     * Shader that tiles the cached pattern.
+     */
+    private BitmapShader mPatternShader;
+
+    /**
+     * OPTIMIZATION: Preallocated matrix to position the pattern.
+     */
+    private Matrix mPatternMatrix = new Matrix();
+
     /**
      * Draws the grid lines.
      * 
@@ -27,6 +77,159 @@ public abstract class GridDrawStrategy {
             final CoordinateTransformer transformer,
             final GridColorScheme colorScheme);
 
+    /**
+     * Draws the grid lines covering the given screen space region, using as
+     * few draw calls as possible.
+     * 
+     * @param canvas
+     *            Canvas to draw on.
+     * @param zoom
+     *            Size of one grid unit, in screen space.
+     * @param originX
+     *            Screen space location of the grid space origin.
+     * @param originY
+     *            Screen space location of the grid space origin.
+     * @param width
+     *            Width of the region to cover.
+     * @param height
+     *            Height of the region to cover.
+     * @param colorScheme
+     *            The color scheme used to draw the grid.
+     */
+    protected abstract void drawGridLines(final Canvas canvas,
+            final float zoom, final float originX, final float originY,
+            final float width, final float height,
+            final GridColorScheme colorScheme);
+
+    /**
+     * Fills the canvas by tiling a cached rendering of one period of the
+     * grid, so that the cost of drawing the grid does not depend on how many
+     * cells are on screen. The pattern is rendered again when the zoom level
+     * or color scheme changes.
+     * 
+     * Shaders tile whole pixels, and scaling the pattern to a fractional
+     * period would blur the lines, so this only draws when the period is close
+     * enough to a whole number of pixels that no line on the canvas moves by
+     * more than half a pixel.
+     * 
+     * @param canvas
+     *            Canvas to draw on.
+     * @param zoom
+     *            Size of one grid unit, in screen space.
+     * @param origin
+     *            Screen space location of the grid space origin.
+     * @param periodX
+     *            Horizontal distance after which the grid repeats, in screen
+     *            space.
+     * @param periodY
+     *            Vertical distance after which the grid repeats, in screen
+     *            space.
+     * @param colorScheme
+     *            The color scheme used to draw the grid.
+     * @return False if the period is too large to cache or not close enough
+     *         to a whole number of pixels, in which case nothing was drawn.
+     */
+    protected final boolean drawFromPattern(final Canvas canvas,
+            final float zoom, final PointF origin, final float periodX,
+            final float periodY, final GridColorScheme colorScheme) {
+        if (periodX > MAX_PATTERN_SIZE || periodY > MAX_PATTERN_SIZE) {
+            return false;
+        }
+
+        int patternWidth = Math.round(periodX);
+        int patternHeight = Math.round(periodY);
+        if (patternWidth < 1 || patternHeight < 1) {
+            return false;
+        }
+
+        // Each period tiled drifts by the rounding error, so the error may be
+        // at most the allowed drift spread over the periods on the canvas.
+        float extent = Math.max(canvas.getWidth(), canvas.getHeight());
+        if (Math.abs(periodX - patternWidth) * extent > MAX_PATTERN_DRIFT
+                * periodX
+                || Math.abs(periodY - patternHeight) * extent
+                        > MAX_PATTERN_DRIFT * periodY) {
+            return false;
+        }
+
+        if (this.mPattern == null || zoom != this.mPatternZoom
+                || colorScheme.getLineColor() != this.mPatternColor) {
+            if (this.mPattern == null
+                    || this.mPattern.getWidth() != patternWidth
+                    || this.mPattern.getHeight() != patternHeight) {
+                if (this.mPattern != null) {
+                    this.mPattern.recycle();
+                }
+                this.mPattern =
+                        Bitmap.createBitmap(patternWidth, patternHeight,
+                                Bitmap.Config.ARGB_8888);
+                this.mPatternShader =
+                        new BitmapShader(this.mPattern, Shader.TileMode.REPEAT,
+                                Shader.TileMode.REPEAT);
+                this.mPatternPaint.setShader(this.mPatternShader);
+            }
+            this.mPattern.eraseColor(0);
+            Canvas patternCanvas = new Canvas(this.mPattern);
+            this.drawGridLines(patternCanvas, zoom, 0, 0, patternWidth,
+                    patternHeight, colorScheme);
+            this.mPatternZoom = zoom;
+            this.mPatternColor = colorScheme.getLineColor();
+        }
+
+        this.mPatternMatrix.setTranslate(Math.round(origin.x % periodX),
+                Math.round(origin.y % periodY));
+        this.mPatternShader.setLocalMatrix(this.mPatternMatrix);
+        canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(),
+                this.mPatternPaint);
+        return true;
+    }
+
+    /**
+     * Makes sure that the given line buffer can hold the given number of
+     * lines.
+     * 
+     * @param buffer
+     *            The current buffer, or null.
+     * @param lines
+     *            The number of lines needed.
+     * @return The given buffer if it is big enough, otherwise a larger one.
+     */
+    protected static float[] ensureLineCapacity(final float[] buffer,
+            final int lines) {
+        // Each line is two points of two coordinates each.
+        int size = lines * 4;
+        if (buffer != null && buffer.length >= size) {
+            return buffer;
+        }
+        return new float[Math.max(size, buffer == null ? 0 : buffer.length * 2)];
+    }
+
+    /**
+     * Adds a line to a line buffer.
+     * 
+     * @param lines
+     *            The buffer to add to.
+     * @param count
+     *            Number of floats already in the buffer.
+     * @param x1
+     *            Start x coordinate.
+     * @param y1
+     *            Start y coordinate.
+     * @param x2
+     *            End x coordinate.
+     * @param y2
+     *            End y coordinate.
+     * @return The new number of floats in the buffer.
+     */
+    protected static int addLine(final float[] lines, final int count,
+            final float x1, final float y1, final float x2, final float y2) {
+        lines[count] = x1;
+        lines[count + 1] = y1;
+        lines[count + 2] = x2;
+        lines[count + 3] = y2;
+        return count + 4;
+    }
+
     /**
      * Given a point, returns a the point nearest to that point that will draw a
      * circle of the given diameter snapped to the grid.
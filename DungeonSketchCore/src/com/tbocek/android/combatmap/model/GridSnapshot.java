@@ -0,0 +1,79 @@
+package com.tbocek.android.combatmap.model;
+
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.PointF;
+
+/**
+ * Records everything that affects how a grid is drawn, so that cached
+ * renderings of the map can tell when the grid has changed underneath them.
+ *
+ * @author Tim
+ *
+ */
+final class GridSnapshot {
+
+    /**
+     * The grid object that was captured.
+     */
+    private Grid mGrid;
+
+    /**
+     * Color scheme of the captured grid.
+     */
+    private GridColorScheme mColorScheme;
+
+    /**
+     * Draw strategy of the captured grid.
+     */
+    private GridDrawStrategy mDrawStrategy;
+
+    /**
+     * X origin of the captured grid to world space transformation.
+     */
+    private float mOriginX;
+
+    /**
+     * Y origin of the captured grid to world space transformation.
+     */
+    private float mOriginY;
+
+    /**
+     * Zoom level of the captured grid to world space transformation.
+     */
+    private float mZoom;
+
+    /**
+     * Records the current state of the given grid.
+     *
+     * @param grid
+     *            The grid to capture.
+     */
+    void capture(Grid grid) {
+        CoordinateTransformer gridToWorld =
+                grid.gridSpaceToWorldSpaceTransformer();
+        PointF origin = gridToWorld.getOrigin();
+        this.mGrid = grid;
+        this.mColorScheme = grid.getColorScheme();
+        this.mDrawStrategy = grid.getDrawStrategy();
+        this.mOriginX = origin.x;
+        this.mOriginY = origin.y;
+        this.mZoom = gridToWorld.worldSpaceToScreenSpace(1.0f);
+    }
+
+    /**
+     * @param grid
+     *            The grid to compare against.
+     * @return True if the given grid would draw the same as the captured one.
+     */
+    boolean matches(Grid grid) {
+        if (grid != this.mGrid || grid.getColorScheme() != this.mColorScheme
+                || grid.getDrawStrategy() != this.mDrawStrategy) {
+            return false;
+        }
+        CoordinateTransformer gridToWorld =
+                grid.gridSpaceToWorldSpaceTransformer();
+        PointF origin = gridToWorld.getOrigin();
+        return origin.x == this.mOriginX && origin.y == this.mOriginY
+                && gridToWorld.worldSpaceToScreenSpace(1.0f) == this.mZoom;
+    }
+}
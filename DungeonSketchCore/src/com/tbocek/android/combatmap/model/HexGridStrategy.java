@@ -34,39 +34,66 @@ public final class HexGridStrategy extends GridDrawStrategy {
      */
     private static final float MIN_SQUARE_SIZE = 15;
 
+    /**
+     * Paint for the grid lines.
+     */
+    private Paint mPaint = new Paint();
+
+    /**
+     * OPTIMIZATION: Reusable buffer for the grid lines.
+     */
+    private float[] mLines;
+
     @Override
     public void drawGrid(final Canvas canvas,
             final CoordinateTransformer transformer,
             final GridColorScheme colorScheme) {
-        Paint paint = new Paint();
-        paint.setColor(colorScheme.getLineColor());
-
-        int width = canvas.getWidth();
-        int height = canvas.getHeight();
-
         // The height of each hexagonal element.
         float h = transformer.worldSpaceToScreenSpace(1.0f);
+        if (h < MIN_SQUARE_SIZE) {
+            return;
+        }
 
         // Length of any line segment of the hexagon.
         float l = .5f * h / COSINE_30_DEGREES;
-
         float innerOffset = l * COSINE_60_DEGREES;
 
-        if (h < MIN_SQUARE_SIZE) {
-            return;
+        // The pattern repeats every two columns of hexes.
+        PointF origin = transformer.getOrigin();
+        if (!this.drawFromPattern(canvas, h, origin, 2 * (l + innerOffset), h,
+                colorScheme)) {
+            this.drawGridLines(canvas, h, origin.x, origin.y,
+                    canvas.getWidth(), canvas.getHeight(), colorScheme);
         }
+    }
 
-        float numSquaresHorizontal = (float) width / (l + innerOffset);
-        float numSquaresVertical =
-                numSquaresHorizontal * ((float) height) / ((float) width);
+    @Override
+    protected void drawGridLines(final Canvas canvas, final float h,
+            final float originX, final float originY, final float width,
+            final float height, final GridColorScheme colorScheme) {
+        this.mPaint.setColor(colorScheme.getLineColor());
 
-        PointF origin = transformer.getOrigin();
+        // Length of any line segment of the hexagon.
+        float l = .5f * h / COSINE_30_DEGREES;
+
+        float innerOffset = l * COSINE_60_DEGREES;
 
-        float offsetX = origin.x % (l + innerOffset);
-        float offsetY = origin.y % h;
+        float numSquaresHorizontal = width / (l + innerOffset);
+        float numSquaresVertical =
+                numSquaresHorizontal * height / width;
+
+        float offsetX = originX % (l + innerOffset);
+        float offsetY = originY % h;
 
         int innerPointStartX =
-                (int) ((origin.x % ((l + innerOffset) * 2)) / (l + innerOffset));
+                (int) ((originX % ((l + innerOffset) * 2)) / (l + innerOffset));
+
+        // Each cell contributes three lines.
+        this.mLines =
+                ensureLineCapacity(this.mLines, 3
+                        * ((int) numSquaresHorizontal + 3)
+                        * ((int) numSquaresVertical + 3));
+        int count = 0;
 
         // Draw the vertical undulating "lines". We want to start slightly
         // offscreen
@@ -76,11 +103,12 @@ public final class HexGridStrategy extends GridDrawStrategy {
             for (int i = -1; i <= numSquaresVertical + 1; ++i) {
                 float y =
                         i * h + offsetY - (j - innerPointStartX) % 2 * .5f * h;
-                canvas.drawLine(x, y, innerX, y + h / 2, paint);
-                canvas.drawLine(innerX, y + h / 2, x, y + h, paint);
-                canvas.drawLine(innerX, y + h / 2, innerX + l, y + h / 2, paint);
+                count = addLine(this.mLines, count, x, y, innerX, y + h / 2);
+                count = addLine(this.mLines, count, innerX, y + h / 2, x, y + h);
+                count = addLine(this.mLines, count, innerX, y + h / 2, innerX + l, y + h / 2);
             }
         }
+        canvas.drawLines(this.mLines, 0, count, this.mPaint);
     }
 
     private PointF getNearestHexCorner(float centroidX, float centroidY,
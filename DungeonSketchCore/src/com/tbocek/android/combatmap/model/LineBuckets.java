@@ -0,0 +1,165 @@
+package com.tbocek.android.combatmap.model;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.tbocek.android.combatmap.model.primitives.Shape;
+
+/**
+ * The lines of a LineCollection in draw order: by descending stroke width, and
+ * in insertion order among lines of the same width. Lines are kept in one
+ * bucket per distinct stroke width, so adding or removing a line only has to
+ * find its bucket instead of walking a sorted list. Lines drawn above and below
+ * the grid share the same buckets; only their counts are kept separately, and
+ * drawing picks them out of the spatial index results.
+ *
+ * A line's stroke width must not change while it is in the buckets.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tim
+ *
+ */
+final class LineBuckets implements Iterable<Shape> {
+
+    /**
+     * Subsets of the lines that can be drawn separately.
+     */
+    enum Partition {
+        /**
+         * Every line.
+         */
+        ALL,
+
+        /**
+         * Lines that are drawn above the grid.
+         */
+        ABOVE_GRID,
+
+        /**
+         * Lines that are drawn below the grid.
+         */
+        BELOW_GRID;
+
+        /**
+         * @param line
+         *            The line to check.
+         * @return True if the line belongs to this partition.
+         */
+        boolean contains(Shape line) {
+            switch (this) {
+            case ABOVE_GRID:
+                return !line.shouldDrawBelowGrid();
+            case BELOW_GRID:
+                return line.shouldDrawBelowGrid();
+            default:
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The lines, grouped by stroke width, widest first. Each bucket keeps its
+     * lines in insertion order.
+     */
+    private final TreeMap<Float, Set<Shape>> mBuckets =
+            new TreeMap<Float, Set<Shape>>(Collections.<Float> reverseOrder());
+
+    /**
+     * Number of lines in all buckets.
+     */
+    private int mSize;
+
+    /**
+     * Number of lines in all buckets that are drawn below the grid.
+     */
+    private int mBelowGridSize;
+
+    /**
+     * Adds a line after every line that is at least as wide.
+     *
+     * @param line
+     *            The line to add.
+     */
+    void add(Shape line) {
+        Float width = line.getStrokeWidth();
+        Set<Shape> bucket = this.mBuckets.get(width);
+        if (bucket == null) {
+            bucket = Sets.newLinkedHashSet();
+            this.mBuckets.put(width, bucket);
+        }
+        if (bucket.add(line)) {
+            this.mSize++;
+            if (line.shouldDrawBelowGrid()) {
+                this.mBelowGridSize++;
+            }
+        }
+    }
+
+    /**
+     * Removes a line.
+     *
+     * @param line
+     *            The line to remove.
+     * @return True if the line was present.
+     */
+    boolean remove(Shape line) {
+        Float width = line.getStrokeWidth();
+        Set<Shape> bucket = this.mBuckets.get(width);
+        if (bucket == null || !bucket.remove(line)) {
+            return false;
+        }
+        if (bucket.isEmpty()) {
+            this.mBuckets.remove(width);
+        }
+        this.mSize--;
+        if (line.shouldDrawBelowGrid()) {
+            this.mBelowGridSize--;
+        }
+        return true;
+    }
+
+    /**
+     * Removes every line.
+     */
+    void clear() {
+        this.mBuckets.clear();
+        this.mSize = 0;
+        this.mBelowGridSize = 0;
+    }
+
+    /**
+     * @return True if there are no lines.
+     */
+    boolean isEmpty() {
+        return this.mSize == 0;
+    }
+
+    /**
+     * @param partition
+     *            The partition to count.
+     * @return The number of lines in the given partition.
+     */
+    int size(Partition partition) {
+        switch (partition) {
+        case ABOVE_GRID:
+            return this.mSize - this.mBelowGridSize;
+        case BELOW_GRID:
+            return this.mBelowGridSize;
+        default:
+            return this.mSize;
+        }
+    }
+
+    /**
+     * @return Iterator over every line, in draw order.
+     */
+    @Override
+    public Iterator<Shape> iterator() {
+        return Iterables.concat(this.mBuckets.values()).iterator();
+    }
+}
@@ -3,16 +3,21 @@ package com.tbocek.android.combatmap.model;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Set;
 
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
 import android.graphics.Region.Op;
+import android.util.Log;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
 import com.tbocek.android.combatmap.model.io.MapDataSerializer;
 import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
@@ -35,25 +40,98 @@ import com.tbocek.android.combatmap.model.primitives.Util;
  */
 public final class LineCollection implements UndoRedoTarget {
 
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG =
+            "com.tbocek.android.combatmap.model.LineCollection";
+
+    /**
+     * Size of each cell in the spatial index, in world space.
+     */
+    private static final float INDEX_CELL_SIZE = 4.0f;
+
+    /**
+     * Orders lines by descending stroke width. The spatial index returns lines
+     * with the same stroke width in the order they were added, so query
+     * results come out in draw order.
+     */
+    private static final Comparator<Shape> STROKE_WIDTH_ORDER =
+            new Comparator<Shape>() {
+                @Override
+                public int compare(Shape lhs, Shape rhs) {
+                    return Float.compare(rhs.getStrokeWidth(),
+                            lhs.getStrokeWidth());
+                }
+            };
+
     /**
      * Undo/Redo History.
      */
     private CommandHistory mCommandHistory;
 
     /**
-     * The internal list of lines.
+     * The lines, sorted by stroke width.
      */
-    private List<Shape> mLines = Lists.newArrayList();
-    
+    private LineBuckets mLines = new LineBuckets();
+
     /**
-     * Cache of lines that should be drawn above the grid.
+     * Spatial index over the bounding rectangles of every line, used so that
+     * hit testing, erasing and drawing only visit nearby lines.
      */
-    private List<Shape> mAboveGridLines = Lists.newArrayList();
-    
+    private SpatialIndex<Shape> mIndex = new SpatialIndex<Shape>(
+            INDEX_CELL_SIZE, STROKE_WIDTH_ORDER);
+
+    /**
+     * Lines that have been handed out to calling code that may still change
+     * their bounds (lines that are being drawn, or lines that were found and
+     * may be given a draw offset). These are re-indexed before every query.
+     */
+    private List<Shape> mLiveLines = Lists.newArrayList();
+
     /**
-     * Cache of lines that should be drawn below the grid.
+     * Largest finite stroke width of any line added to this collection. Used
+     * to grow visibility queries, since strokes extend past the bounding
+     * rectangles that are indexed.
      */
-    private List<Shape> mBelowGridLines = Lists.newArrayList();
+    private float mMaxStrokeWidth;
+
+    /**
+     * Scratch list that receives spatial index query results.
+     */
+    private List<Shape> mQueryResults = Lists.newArrayList();
+
+    /**
+     * Regions whose rendering changed since they were last collected.
+     */
+    private ChangedRegions mChangedRegions = new ChangedRegions();
+
+    /**
+     * Lines that may need optimizing: lines that were erased, retired from
+     * the live lines with an offset or erased points, or added while needing
+     * optimization since the last call to optimize(). Lines leave this set
+     * when they are removed from the collection.
+     */
+    private Set<Shape> mDirtyLines = Sets.newLinkedHashSet();
+
+    /**
+     * Stream holding this collection's lines that has not been read yet, or
+     * null if the lines are loaded.
+     */
+    private MapDataDeserializer mDeferredSource;
+
+    /**
+     * Error that occurred while reading the deferred lines, if any. Kept so
+     * that saving fails instead of overwriting the lines with an empty
+     * collection.
+     */
+    private IOException mDeferredLoadError;
+
+    /**
+     * Number of changes counted by getChangeCount that came from reading
+     * lines from a stream rather than from edits.
+     */
+    private long mLoadChangeCount;
 
     /**
      * Constructor allowing multiple line collections to share one undo/redo
@@ -80,28 +158,108 @@ public final class LineCollection implements UndoRedoTarget {
      * Removes all lines.
      */
     public void clear() {
+        this.mDeferredSource = null;
+        this.mDeferredLoadError = null;
+        this.refreshLiveLines();
+        this.mChangedRegions.add(this.mIndex.getBoundingRectangle(),
+                this.mMaxStrokeWidth / 2);
         this.mLines.clear();
+        this.mIndex.clear();
+        this.mLiveLines.clear();
+        this.mDirtyLines.clear();
     }
 
     /**
-     * Draws all lines on the given canvas.
+     * Adds the world space regions whose rendering changed since the last call
+     * to the given collection. Regions are only reported once.
+     * 
+     * @param regions
+     *            Collection to add the changed regions to.
+     */
+    public void collectChangedRegions(Collection<RectF> regions) {
+        this.refreshLiveLines();
+        this.mChangedRegions.drainTo(regions);
+    }
+
+    /**
+     * @return A counter that increases whenever the rendering of this
+     *         collection changes.
+     */
+    public long getChangeCount() {
+        this.refreshLiveLines();
+        return this.mChangedRegions.getChangeCount();
+    }
+
+    /**
+     * @return A counter that increases whenever the lines are edited. Unlike
+     *         getChangeCount, reading lines from a stream, including a
+     *         deferred read, does not count.
+     */
+    public long getEditCount() {
+        return this.getChangeCount() - this.mLoadChangeCount;
+    }
+
+    /**
+     * Clips the canvas to the union of the regions in this collection. Regions
+     * that fall outside of the visible bounds are skipped, since they cannot
+     * affect the visible portion of the clip.
      * 
      * @param canvas
      *            The canvas to draw on.
-     * @param worldSpaceBounds 
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of regions that the spatial index culled.
      */
-    public void clipFogOfWar(final Canvas canvas, RectF worldSpaceBounds) {
+    public int clipFogOfWar(final Canvas canvas, RectF worldSpaceBounds) {
+        this.ensureLoaded();
         Rect r = canvas.getClipBounds();
 
         // Remove the current clip.
         canvas.clipRect(r, Op.DIFFERENCE);
 
         // Union together the regions that are supposed to draw.
-        for (Shape maskRegion: this.mLines) {
-        	maskRegion.clipFogOfWar(canvas);
+        List<Shape> candidates = this.queryVisibleLines(worldSpaceBounds);
+        int culled = this.mLines.size(LineBuckets.Partition.ALL)
+                - candidates.size();
+        for (Shape maskRegion: candidates) {
+            if (maskRegion.isVisible(worldSpaceBounds)) {
+                maskRegion.clipFogOfWar(canvas);
+            }
         }
+        candidates.clear();
 
         canvas.clipRect(r, Op.INTERSECT);
+        return culled;
+    }
+
+    /**
+     * Adds the union of the regions in this collection to the given region,
+     * in the space that worldToScreen maps to. Regions that fall outside of
+     * the given bounds are skipped.
+     * 
+     * @param region
+     *            The region to add to.
+     * @param worldToScreen
+     *            Matrix that converts world space to the region's space.
+     * @param screenBounds
+     *            The area of interest, in the region's space.
+     * @param worldSpaceBounds
+     *            The area of interest, in world space.
+     * @return The number of regions that the spatial index culled.
+     */
+    public int unionFogOfWar(final Region region, final Matrix worldToScreen,
+            final Region screenBounds, RectF worldSpaceBounds) {
+        this.ensureLoaded();
+        List<Shape> candidates = this.queryVisibleLines(worldSpaceBounds);
+        int culled = this.mLines.size(LineBuckets.Partition.ALL)
+                - candidates.size();
+        for (Shape maskRegion: candidates) {
+            if (maskRegion.isVisible(worldSpaceBounds)) {
+                maskRegion.unionFogOfWar(region, worldToScreen, screenBounds);
+            }
+        }
+        candidates.clear();
+        return culled;
     }
 
     /**
@@ -115,11 +273,7 @@ public final class LineCollection implements UndoRedoTarget {
      * @return The new line.
      */
     public Shape createCircle(int newLineColor, float newLineStrokeWidth) {
-        Circle l = new Circle(newLineColor, newLineStrokeWidth);
-        Command c = new Command(this);
-        c.addCreatedShape(l);
-        this.mCommandHistory.execute(c);
-        return l;
+        return this.addNewShape(new Circle(newLineColor, newLineStrokeWidth));
     }
 
     /**
@@ -134,11 +288,8 @@ public final class LineCollection implements UndoRedoTarget {
      */
     public Shape createFreehandLine(final int newLineColor,
             final float newLineStrokeWidth) {
-        FreehandLine l = new FreehandLine(newLineColor, newLineStrokeWidth);
-        Command c = new Command(this);
-        c.addCreatedShape(l);
-        this.mCommandHistory.execute(c);
-        return l;
+        return this.addNewShape(new FreehandLine(newLineColor,
+                newLineStrokeWidth));
     }
 
     /**
@@ -152,11 +303,8 @@ public final class LineCollection implements UndoRedoTarget {
      * @return The new line.
      */
     public Shape createRectangle(int newLineColor, float newLineStrokeWidth) {
-        Rectangle l = new Rectangle(newLineColor, newLineStrokeWidth);
-        Command c = new Command(this);
-        c.addCreatedShape(l);
-        this.mCommandHistory.execute(c);
-        return l;
+        return this.addNewShape(new Rectangle(newLineColor,
+                newLineStrokeWidth));
     }
 
     /**
@@ -170,11 +318,8 @@ public final class LineCollection implements UndoRedoTarget {
      * @return The new line.
      */
     public Shape createStraightLine(int newLineColor, float newLineStrokeWidth) {
-        StraightLine l = new StraightLine(newLineColor, newLineStrokeWidth);
-        Command c = new Command(this);
-        c.addCreatedShape(l);
-        this.mCommandHistory.execute(c);
-        return l;
+        return this.addNewShape(new StraightLine(newLineColor,
+                newLineStrokeWidth));
     }
 
     /**
@@ -198,11 +343,28 @@ public final class LineCollection implements UndoRedoTarget {
     public Shape
     createText(String text, float size, int color, float strokeWidth,
             PointF location, CoordinateTransformer transform) {
-        Text t = new Text(text, size, color, strokeWidth, location, transform);
+        return this.addNewShape(new Text(text, size, color, strokeWidth,
+                location, transform));
+    }
+
+    /**
+     * Adds a newly created shape to the collection as an undoable operation.
+     * Since the caller will typically keep adding points to the shape, it is
+     * tracked as a live line until the next shape is created or the collection
+     * is optimized.
+     * 
+     * @param shape
+     *            The new shape.
+     * @return The new shape.
+     */
+    private Shape addNewShape(Shape shape) {
+        this.ensureLoaded();
+        this.retireLiveLines();
         Command c = new Command(this);
-        c.addCreatedShape(t);
+        c.addCreatedShape(shape);
         this.mCommandHistory.execute(c);
-        return t;
+        this.markLive(shape);
+        return shape;
     }
 
     /**
@@ -212,7 +374,8 @@ public final class LineCollection implements UndoRedoTarget {
      *            The shape to delete.
      */
     public void deleteShape(Shape l) {
-        if (this.mLines.contains(l)) {
+        this.ensureLoaded();
+        if (this.mIndex.contains(l)) {
             Command c = new Command(this);
             c.addDeletedShape(l);
             this.mCommandHistory.execute(c);
@@ -228,17 +391,108 @@ public final class LineCollection implements UndoRedoTarget {
      *             On deserialization error.
      */
     public void deserialize(MapDataDeserializer s) throws IOException {
+        this.ensureLoaded();
+        this.addLoadedShapes(readShapes(s));
+    }
+
+    /**
+     * Populates this line collection from the given stream the first time
+     * the lines are needed, instead of now. Calls that only check for changes
+     * or undo history do not load the lines. The lines can also be read ahead
+     * of time with readShapes and handed over with finishDeferredLoad.
+     * 
+     * @param s
+     *            Stream to load from. Must not be shared with other readers,
+     *            since it is read later.
+     */
+    public void deserializeOnFirstUse(MapDataDeserializer s) {
+        this.mDeferredSource = s;
+        this.mDeferredLoadError = null;
+    }
+
+    /**
+     * @return True if lines passed to deserializeOnFirstUse have not been read
+     *         yet.
+     */
+    public boolean isLoadDeferred() {
+        return this.mDeferredSource != null;
+    }
+
+    /**
+     * Completes a deferred load with lines that were read ahead of time, e.g.
+     * on a background thread. Does nothing if the deferred lines were already
+     * read because they were needed first.
+     * 
+     * @param shapes
+     *            The lines read from the deferred stream, or null if reading
+     *            failed.
+     * @param error
+     *            The error that reading failed with, or null on success.
+     */
+    public void finishDeferredLoad(List<Shape> shapes, IOException error) {
+        if (this.mDeferredSource == null) {
+            return;
+        }
+        this.mDeferredSource = null;
+        if (error != null) {
+            this.mDeferredLoadError = error;
+        } else {
+            this.addLoadedShapes(shapes);
+        }
+    }
+
+    /**
+     * Reads the deferred lines, if they have not been read yet.
+     */
+    private void ensureLoaded() {
+        MapDataDeserializer s = this.mDeferredSource;
+        if (s == null) {
+            return;
+        }
+        this.mDeferredSource = null;
+        try {
+            this.addLoadedShapes(readShapes(s));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load deferred lines", e);
+            this.mDeferredLoadError = e;
+        }
+    }
+
+    /**
+     * Reads an array of shapes. Does not touch any line collection, so it may
+     * be called on any thread.
+     * 
+     * @param s
+     *            Stream to load from.
+     * @return The shapes, in the order they were saved.
+     * @throws IOException
+     *             On deserialization error.
+     */
+    public static List<Shape> readShapes(MapDataDeserializer s)
+            throws IOException {
+        List<Shape> shapes = Lists.newArrayList();
         int arrayLevel = s.expectArrayStart();
         while (s.hasMoreArrayItems(arrayLevel)) {
-        	Shape shape = Shape.deserialize(s);
-            this.mLines.add(shape);
-            if (shape.shouldDrawBelowGrid()) {
-            	mBelowGridLines.add(shape);
-            } else {
-            	mAboveGridLines.add(shape);
-            }
+            shapes.add(Shape.deserialize(s));
         }
         s.expectArrayEnd();
+        return shapes;
+    }
+
+    /**
+     * Adds lines that were read from a stream, without recording a command.
+     * 
+     * @param shapes
+     *            The lines to add.
+     */
+    private void addLoadedShapes(List<Shape> shapes) {
+        long changesBefore = this.mChangedRegions.getChangeCount();
+        for (Shape shape : shapes) {
+            this.mLines.add(shape);
+            this.indexLine(shape);
+        }
+        this.mLoadChangeCount +=
+                this.mChangedRegions.getChangeCount() - changesBefore;
     }
 
     /**
@@ -246,14 +500,18 @@ public final class LineCollection implements UndoRedoTarget {
      * 
      * @param canvas
      *            The canvas to draw on.
-     * @param worldSpaceBounds 
+     * @param transformer
+     *            The world space to screen space transformation the canvas
+     *            draws with; used to pick each line's level of detail.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of lines that were culled.
      */
-    public void drawAllLines(final Canvas canvas, RectF worldSpaceBounds) {
-        for (Shape shape: mLines) {
-            shape.applyDrawOffsetToCanvas(canvas);
-            shape.draw(canvas);
-            shape.revertDrawOffsetFromCanvas(canvas);
-        }
+    public int drawAllLines(final Canvas canvas,
+            final CoordinateTransformer transformer, RectF worldSpaceBounds) {
+        this.ensureLoaded();
+        return this.drawLines(canvas, transformer,
+                LineBuckets.Partition.ALL, worldSpaceBounds);
     }
 
     /**
@@ -261,14 +519,18 @@ public final class LineCollection implements UndoRedoTarget {
      * 
      * @param canvas
      *            The canvas to draw on.
-     * @param worldSpaceBounds 
+     * @param transformer
+     *            The world space to screen space transformation the canvas
+     *            draws with; used to pick each line's level of detail.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of lines that were culled.
      */
-    public void drawAllLinesAboveGrid(final Canvas canvas, RectF worldSpaceBounds) {
-        for (Shape shape: mAboveGridLines) {
-            shape.applyDrawOffsetToCanvas(canvas);
-            shape.draw(canvas);
-            shape.revertDrawOffsetFromCanvas(canvas);
-        }
+    public int drawAllLinesAboveGrid(final Canvas canvas,
+            final CoordinateTransformer transformer, RectF worldSpaceBounds) {
+        this.ensureLoaded();
+        return this.drawLines(canvas, transformer,
+                LineBuckets.Partition.ABOVE_GRID, worldSpaceBounds);
     }
 
     /**
@@ -276,27 +538,98 @@ public final class LineCollection implements UndoRedoTarget {
      * 
      * @param canvas
      *            The canvas to draw on.
-     * @param worldSpaceBounds 
+     * @param transformer
+     *            The world space to screen space transformation the canvas
+     *            draws with; used to pick each line's level of detail.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of lines that were culled.
      */
-    public void drawAllLinesBelowGrid(final Canvas canvas, RectF worldSpaceBounds) {
-        for (Shape shape: mBelowGridLines) {
-            shape.applyDrawOffsetToCanvas(canvas);
-            shape.draw(canvas);
-            shape.revertDrawOffsetFromCanvas(canvas);
+    public int drawAllLinesBelowGrid(final Canvas canvas,
+            final CoordinateTransformer transformer, RectF worldSpaceBounds) {
+        this.ensureLoaded();
+        return this.drawLines(canvas, transformer,
+                LineBuckets.Partition.BELOW_GRID, worldSpaceBounds);
+    }
+
+    /**
+     * Draws the lines from the given partition that intersect the visible
+     * region. Only lines near the visible region are visited; they are drawn
+     * in the same order that they appear in the partition.
+     * 
+     * @param canvas
+     *            The canvas to draw on.
+     * @param transformer
+     *            The world space to screen space transformation the canvas
+     *            draws with.
+     * @param partition
+     *            The lines to draw.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of lines in the partition that the spatial index
+     *         culled.
+     */
+    private int drawLines(final Canvas canvas,
+            final CoordinateTransformer transformer,
+            LineBuckets.Partition partition, RectF worldSpaceBounds) {
+        // The index returns lines in draw order, so no sorting is needed.
+        List<Shape> candidates = this.queryVisibleLines(worldSpaceBounds);
+        int found = 0;
+        for (Shape shape: candidates) {
+            if (!partition.contains(shape)) {
+                continue;
+            }
+            found++;
+            if (shape.isVisible(worldSpaceBounds)) {
+                shape.applyDrawOffsetToCanvas(canvas);
+                shape.draw(canvas, transformer);
+                shape.revertDrawOffsetFromCanvas(canvas);
+            }
         }
+        candidates.clear();
+        return this.mLines.size(partition) - found;
     }
 
     /**
-     * Draws all lines on the given canvas.
+     * Finds the lines that could be visible in the given region. The returned
+     * list is a scratch list owned by this collection; callers should clear it
+     * when they are done with it.
+     * 
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return Lines near the visible region, in draw order.
+     */
+    private List<Shape> queryVisibleLines(RectF worldSpaceBounds) {
+        this.refreshLiveLines();
+        float margin = this.mMaxStrokeWidth / 2;
+        this.mQueryResults.clear();
+        this.mIndex.query(worldSpaceBounds.left - margin,
+                worldSpaceBounds.top - margin, worldSpaceBounds.right + margin,
+                worldSpaceBounds.bottom + margin, this.mQueryResults);
+        return this.mQueryResults;
+    }
+
+    /**
+     * Draws all lines on the given canvas as fog of war regions.
      * 
      * @param canvas
      *            The canvas to draw on.
-     * @param worldSpaceBounds 
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of regions that the spatial index culled.
      */
-    public void drawFogOfWar(final Canvas canvas, RectF worldSpaceBounds) {
-        for (Shape shape: mLines) {
-        	shape.drawFogOfWar(canvas);
+    public int drawFogOfWar(final Canvas canvas, RectF worldSpaceBounds) {
+        this.ensureLoaded();
+        List<Shape> candidates = this.queryVisibleLines(worldSpaceBounds);
+        int culled = this.mLines.size(LineBuckets.Partition.ALL)
+                - candidates.size();
+        for (Shape shape: candidates) {
+            if (shape.isVisible(worldSpaceBounds)) {
+                shape.drawFogOfWar(canvas);
+            }
         }
+        candidates.clear();
+        return culled;
     }
 
     /**
@@ -313,6 +646,7 @@ public final class LineCollection implements UndoRedoTarget {
      */
     public void editText(Text editedTextObject, String text, float size,
             CoordinateTransformer transformer) {
+        this.ensureLoaded();
         Text newText =
                 new Text(text, size, editedTextObject.getColor(),
                         editedTextObject.getWidth(),
@@ -324,17 +658,48 @@ public final class LineCollection implements UndoRedoTarget {
     }
 
     /**
-     * Erases all points on lines centered at a given location.
+     * Erases all points on lines centered at a given location. Only lines
+     * whose bounds intersect the eraser are visited, and they are remembered
+     * so that optimize() can limit itself to them.
      * 
      * @param location
      *            The point in world space to center the erase on.
      * @param radius
      *            Radius around the point to erase, in world space.
-     */						
-    public void erase(final PointF location, final float radius) {
-        for (int i = 0; i < this.mLines.size(); ++i) {
-            this.mLines.get(i).erase(location, radius);
+     * @return The world space region whose rendering may have changed; empty
+     *         if the eraser did not touch any line.
+     */
+    public RectF erase(final PointF location, final float radius) {
+        this.ensureLoaded();
+        this.refreshLiveLines();
+        List<Shape> candidates = this.mQueryResults;
+        candidates.clear();
+        this.mIndex.query(location.x - radius, location.y - radius,
+                location.x + radius, location.y + radius, candidates);
+        RectF changed = new RectF();
+        for (Shape l : candidates) {
+            BoundingRectangle bounds = l.getBoundingRectangle();
+            if (!bounds.intersectsWithCircle(location, radius)) {
+                continue;
+            }
+            l.erase(location, radius);
+            this.mDirtyLines.add(l);
+
+            // Erasing only removes what is under the eraser, so only the part
+            // of the line that the eraser covers can change.
+            float margin = getStrokeMargin(l);
+            changed.union(
+                    Math.max(bounds.getXMin(), location.x - radius) - margin,
+                    Math.max(bounds.getYMin(), location.y - radius) - margin,
+                    Math.min(bounds.getXMax(), location.x + radius) + margin,
+                    Math.min(bounds.getYMax(), location.y + radius) + margin);
         }
+        candidates.clear();
+        if (!changed.isEmpty()) {
+            this.mChangedRegions.add(changed.left, changed.top, changed.right,
+                    changed.bottom);
+        }
+        return changed;
     }
 
     /**
@@ -361,63 +726,212 @@ public final class LineCollection implements UndoRedoTarget {
      * @return A shape that meets the criteria.
      */
     public Shape findShape(final PointF under, final Class<?> requestedClass) {
-        for (Shape l : this.mLines) {
+        this.ensureLoaded();
+        this.refreshLiveLines();
+        List<Shape> candidates = this.mQueryResults;
+        candidates.clear();
+        this.mIndex.query(under, candidates);
+        Shape found = null;
+        for (Shape l : candidates) {
             if ((requestedClass == null || l.getClass() == requestedClass)
                     && l.contains(under)) {
-                return l;
+                found = l;
+                break;
             }
         }
-        return null;
+        candidates.clear();
+
+        // The caller may move the shape it found, so keep its index entry
+        // up to date.
+        if (found != null) {
+            this.markLive(found);
+        }
+        return found;
+    }
+
+    /**
+     * Finds the shape whose bounding rectangle is closest to the given point,
+     * potentially with the given type. Only shapes near the point are
+     * examined.
+     * 
+     * @param location
+     *            Point to search from, in world space.
+     * @param maxDistance
+     *            Shapes farther than this from the point are ignored.
+     * @param requestedClass
+     *            Desired class (subclass of Shape) to find, or null to find
+     *            anything.
+     * @return The closest shape, or null if no shape is within range.
+     */
+    public Shape findNearestShape(final PointF location, float maxDistance,
+            final Class<?> requestedClass) {
+        this.ensureLoaded();
+        this.refreshLiveLines();
+        Predicate<Shape> filter = null;
+        if (requestedClass != null) {
+            filter = new Predicate<Shape>() {
+                @Override
+                public boolean apply(Shape s) {
+                    return s.getClass() == requestedClass;
+                }
+            };
+        }
+        Shape found = this.mIndex.findNearest(location, maxDistance, filter);
+
+        // The caller may move the shape it found, so keep its index entry
+        // up to date.
+        if (found != null) {
+            this.markLive(found);
+        }
+        return found;
     }
 
     /**
      * @return The bounding rectangle that bounds all lines in the collection.
      */
     public BoundingRectangle getBoundingRectangle() {
-        BoundingRectangle r = new BoundingRectangle();
-        for (Shape l : this.mLines) {
-            r.updateBounds(l.getBoundingRectangle());
-        }
-        return r;
+        this.ensureLoaded();
+        this.refreshLiveLines();
+        return this.mIndex.getBoundingRectangle();
     }
 
     /**
-     * Inserts a new line into the list of lines, making sure that the lines are
-     * sorted by line width.
+     * Adds the given line to the spatial index.
      * 
      * @param line
      *            The line to add.
      */
-    private void insertLine(final Shape line) {
-        if (this.mLines.isEmpty()) {
-            this.mLines.add(line);
-            return;
+    private void indexLine(final Shape line) {
+        this.mIndex.insert(line, line.getDrawBoundingRectangle());
+        if (line.getStrokeWidth() != Float.POSITIVE_INFINITY) {
+            this.mMaxStrokeWidth =
+                    Math.max(this.mMaxStrokeWidth, line.getStrokeWidth());
         }
+        this.markChanged(line, line.getDrawBoundingRectangle());
 
-        ListIterator<Shape> it = this.mLines.listIterator();
-        while (it.hasNext()
-                && this.mLines.get(it.nextIndex()).getStrokeWidth() >= line
-                .getStrokeWidth()) {
-            it.next();
-        }
-        it.add(line);
-        
-        if (line.shouldDrawBelowGrid()) {
-	        it = this.mBelowGridLines.listIterator();
-	        while (it.hasNext()
-	                && this.mBelowGridLines.get(it.nextIndex()).getStrokeWidth() >= line
-	                .getStrokeWidth()) {
-	            it.next();
-	        }
-	        it.add(line);
-        } else {
-	        it = this.mAboveGridLines.listIterator();
-	        while (it.hasNext()
-	                && this.mAboveGridLines.get(it.nextIndex()).getStrokeWidth() >= line
-	                .getStrokeWidth()) {
-	            it.next();
-	        }
-	        it.add(line);
+        // Undoing an optimization brings back lines that still need it.
+        this.markDirtyIfNeeded(line);
+    }
+
+    /**
+     * Adds the given line to the lines that optimize() visits, if it has
+     * anything to optimize.
+     * 
+     * @param line
+     *            The line to check.
+     */
+    private void markDirtyIfNeeded(final Shape line) {
+        if (!line.isValid() || line.needsOptimization() || line.hasOffset()) {
+            this.mDirtyLines.add(line);
+        }
+    }
+
+    /**
+     * Removes the given line from the spatial index.
+     * 
+     * @param line
+     *            The line to remove.
+     */
+    private void unindexLine(final Shape line) {
+        BoundingRectangle indexed = this.mIndex.getBounds(line);
+        if (indexed != null) {
+            this.markChanged(line, indexed);
+        }
+        this.markChanged(line, line.getDrawBoundingRectangle());
+        this.mIndex.remove(line);
+        this.mLiveLines.remove(line);
+        this.mDirtyLines.remove(line);
+    }
+
+    /**
+     * Records that the given area, occupied by the given line, needs to be
+     * redrawn.
+     * 
+     * @param line
+     *            The line that changed.
+     * @param bounds
+     *            The area it changed in, in world space.
+     */
+    private void markChanged(final Shape line, final BoundingRectangle bounds) {
+        this.mChangedRegions.add(bounds, getStrokeMargin(line));
+    }
+
+    /**
+     * @param line
+     *            The line to check.
+     * @return Distance that the given line's stroke extends past its bounding
+     *         rectangle.
+     */
+    private static float getStrokeMargin(final Shape line) {
+        float width = line.getStrokeWidth();
+        return width == Float.POSITIVE_INFINITY ? 0 : width / 2;
+    }
+
+    /**
+     * Starts tracking the given line as one whose bounds may change.
+     * 
+     * @param line
+     *            The line to track.
+     */
+    private void markLive(final Shape line) {
+        if (!this.mLiveLines.contains(line)) {
+            this.mLiveLines.add(line);
+        }
+    }
+
+    /**
+     * Updates the spatial index with the current bounds of every live line.
+     */
+    private void refreshLiveLines() {
+        for (Shape l : this.mLiveLines) {
+            // Live lines can change appearance without changing bounds (e.g.
+            // a freehand line doubling back), so always report them.
+            BoundingRectangle indexed = this.mIndex.getBounds(l);
+            if (indexed != null) {
+                this.markChanged(l, indexed);
+            }
+            BoundingRectangle current = l.getDrawBoundingRectangle();
+            this.markChanged(l, current);
+            this.mIndex.update(l, current);
+        }
+    }
+
+    /**
+     * Updates the spatial index for the live lines and then stops tracking
+     * them. Should be called once the caller is done directly modifying
+     * shapes it got from this collection, so that they are no longer
+     * reported as changing. Lines that were given an offset are remembered
+     * for the next call to optimize().
+     */
+    public void retireLiveLines() {
+        this.refreshLiveLines();
+        for (Shape l : this.mLiveLines) {
+            l.finishEditing();
+            this.markDirtyIfNeeded(l);
+        }
+        this.mLiveLines.clear();
+    }
+
+    /**
+     * Removes and adds lines. Each line only has to find its stroke width
+     * bucket, so the cost is proportional to the number of lines changed
+     * rather than to the size of the collection.
+     * 
+     * @param removed
+     *            The lines to remove.
+     * @param added
+     *            The lines to add. Lines of the same stroke width are placed
+     *            in the order given, after every existing line of that width.
+     */
+    private void replaceLines(final Collection<Shape> removed,
+            final Collection<Shape> added) {
+        for (Shape l : removed) {
+            this.unindexLine(l);
+            this.mLines.remove(l);
+        }
+        for (Shape l : added) {
+            this.mLines.add(l);
+            this.indexLine(l);
         }
     }
 
@@ -425,6 +939,7 @@ public final class LineCollection implements UndoRedoTarget {
      * @return True if this collection has no lines in it, False otherwise.
      */
     public boolean isEmpty() {
+        this.ensureLoaded();
         return this.mLines.isEmpty();
     }
 
@@ -432,24 +947,52 @@ public final class LineCollection implements UndoRedoTarget {
      * Performs an optimization pass on the lines. This removes all erased
      * points (rather than keeping them marked as not drawn), and splits each
      * line with erased points into individual lines representing the newly
-     * disjoint sections.
+     * disjoint sections. Only lines that may have changed since the last pass
+     * are visited.
+     * 
+     * @return The world space region covered by the lines that were replaced.
      */
-    public void optimize() {
+    public RectF optimize() {
+        this.ensureLoaded();
+        this.retireLiveLines();
         Command c = new Command(this);
-        for (int i = 0; i < this.mLines.size(); ++i) {
-            if (!this.mLines.get(i).isValid()) {
-                c.addDeletedShape(this.mLines.get(i));
-            } else if (this.mLines.get(i).needsOptimization()) {
-                List<Shape> optimizedLines =
-                        this.mLines.get(i).removeErasedPoints();
-                c.addDeletedShape(this.mLines.get(i));
-                c.addCreatedShapes(optimizedLines);
-            } else if (this.mLines.get(i).hasOffset()) {
-                c.addDeletedShape(this.mLines.get(i));
-                c.addCreatedShape(this.mLines.get(i).commitDrawOffset());
+        RectF changed = new RectF();
+        for (Shape l : this.mDirtyLines) {
+            if (this.addOptimization(c, l)) {
+                BoundingRectangle bounds = l.getDrawBoundingRectangle();
+                float margin = getStrokeMargin(l);
+                changed.union(bounds.getXMin() - margin, bounds.getYMin()
+                        - margin, bounds.getXMax() + margin, bounds.getYMax()
+                        + margin);
             }
         }
+        this.mDirtyLines.clear();
         this.mCommandHistory.execute(c);
+        return changed;
+    }
+
+    /**
+     * Adds the changes needed to optimize the given line to a command.
+     * 
+     * @param c
+     *            The command to add to.
+     * @param l
+     *            The line to optimize.
+     * @return True if the line needed optimizing.
+     */
+    private boolean addOptimization(final Command c, final Shape l) {
+        if (!l.isValid()) {
+            c.addDeletedShape(l);
+        } else if (l.needsOptimization()) {
+            c.addDeletedShape(l);
+            c.addCreatedShapes(l.removeErasedPoints());
+        } else if (l.hasOffset()) {
+            c.addDeletedShape(l);
+            c.addCreatedShape(l.commitDrawOffset());
+        } else {
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -469,6 +1012,10 @@ public final class LineCollection implements UndoRedoTarget {
      *             On serialization error.
      */
     public void serialize(MapDataSerializer s) throws IOException {
+        this.ensureLoaded();
+        if (this.mDeferredLoadError != null) {
+            throw new IOException(this.mDeferredLoadError);
+        }
         s.startArray();
         for (Shape shape : this.mLines) {
             if (shape.isValid()) {
@@ -485,19 +1032,6 @@ public final class LineCollection implements UndoRedoTarget {
     public void undo() {
         this.mCommandHistory.undo();
     }
-    
-    private void partitionLinesBelowAboveGrid() {
-    	mBelowGridLines.clear();
-    	mAboveGridLines.clear();
-    	
-    	for (Shape s: mLines) {
-    		if (s.shouldDrawBelowGrid()) {
-    			mBelowGridLines.add(s);
-    		} else {
-    			mAboveGridLines.add(s);
-    		}
-    	}
-    }
 
     /**
      * This class represents a command that adds and deletes lines.
@@ -566,18 +1100,7 @@ public final class LineCollection implements UndoRedoTarget {
          */
         @Override
         public void execute() {
-            List<Shape> newLines = new LinkedList<Shape>();
-            for (Shape l : this.mLineCollection.mLines) {
-                if (!this.mDeleted.contains(l)) {
-                    newLines.add(l);
-                }
-            }
-            this.mLineCollection.mLines = newLines;
-
-            for (Shape l : this.mCreated) {
-                this.mLineCollection.insertLine(l);
-            }
-            this.mLineCollection.partitionLinesBelowAboveGrid();
+            this.mLineCollection.replaceLines(this.mDeleted, this.mCreated);
         }
 
         /**
@@ -593,18 +1116,7 @@ public final class LineCollection implements UndoRedoTarget {
          */
         @Override
         public void undo() {
-            List<Shape> newLines = new LinkedList<Shape>();
-            for (Shape l : this.mLineCollection.mLines) {
-                if (!this.mCreated.contains(l)) {
-                    newLines.add(l);
-                }
-            }
-            this.mLineCollection.mLines = newLines;
-
-            for (Shape l : this.mDeleted) {
-                this.mLineCollection.insertLine(l);
-            }
-            this.mLineCollection.partitionLinesBelowAboveGrid();
+            this.mLineCollection.replaceLines(this.mCreated, this.mDeleted);
         }
     }
 
@@ -1,21 +1,39 @@
 package com.tbocek.android.combatmap.model;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.util.Log;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.tbocek.android.combatmap.TokenDatabase;
+import com.tbocek.android.combatmap.model.io.BinaryMapDataDeserializer;
+import com.tbocek.android.combatmap.model.io.BinaryMapFormat;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
 import com.tbocek.android.combatmap.model.io.MapDataSerializer;
+import com.tbocek.android.combatmap.model.io.SectionedMapReader;
+import com.tbocek.android.combatmap.model.io.SectionedMapWriter;
 import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.Shape;
 
 /**
  * This is a data class that collects everything that makes up the current map
@@ -27,6 +45,12 @@ import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
  */
 public final class MapData {
 
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG =
+            "com.tbocek.android.combatmap.model.MapData";
+
     /**
      * Initial zoom level of newly created maps. Corresponds to 1 square = 64
      * pixels. Not density independent.
@@ -47,6 +71,62 @@ public final class MapData {
      */
     private static final int MAP_DATA_VERSION = 2;
 
+    /**
+     * Name of the section holding the map data version, grid, view
+     * transformation and last tag.
+     */
+    private static final String SECTION_HEADER = "header";
+
+    /**
+     * Name of the section holding the tokens.
+     */
+    private static final String SECTION_TOKENS = "tokens";
+
+    /**
+     * Name of the section holding the background lines.
+     */
+    private static final String SECTION_BACKGROUND_LINES = "background";
+
+    /**
+     * Name of the section holding the background fog of war.
+     */
+    private static final String SECTION_BACKGROUND_FOG = "backgroundFog";
+
+    /**
+     * Name of the section holding the background images.
+     */
+    private static final String SECTION_BACKGROUND_IMAGES = "backgroundImages";
+
+    /**
+     * Name of the section holding the GM note lines.
+     */
+    private static final String SECTION_GM_NOTES = "gmNotes";
+
+    /**
+     * Name of the section holding the GM notes fog of war.
+     */
+    private static final String SECTION_GM_NOTES_FOG = "gmNotesFog";
+
+    /**
+     * Name of the section holding the annotation lines.
+     */
+    private static final String SECTION_ANNOTATIONS = "annotations";
+
+    /**
+     * Every section, in the order they are saved.
+     */
+    private static final String[] SECTIONS = new String[] {SECTION_HEADER,
+            SECTION_TOKENS, SECTION_BACKGROUND_LINES, SECTION_BACKGROUND_FOG,
+            SECTION_BACKGROUND_IMAGES, SECTION_GM_NOTES, SECTION_GM_NOTES_FOG,
+            SECTION_ANNOTATIONS };
+
+    /**
+     * Sections that are hidden in most modes, and so are not parsed while the
+     * map is loaded. See parseDeferredSections.
+     */
+    private static final String[] DEFERRED_SECTIONS = new String[] {
+            SECTION_GM_NOTES, SECTION_GM_NOTES_FOG, SECTION_ANNOTATIONS };
+
     /**
      * Command history to use for the annotations.
      */
@@ -113,6 +193,58 @@ public final class MapData {
     
     private String mLastTag = TokenDatabase.ALL;
 
+    /**
+     * Names of the saved maps that hold the cached sections. Emptied whenever
+     * the cached sections are replaced, since the files are then out of date
+     * until the caller confirms that they were written.
+     */
+    private Set<String> mSavedMapNames = Sets.newHashSet();
+
+    /**
+     * Encoded contents of each section as last saved or loaded, by name.
+     * Sections that have not changed since are written from here instead of
+     * being serialized again.
+     */
+    private Map<String, byte[]> mSectionCache = Maps.newHashMap();
+
+    /**
+     * Revision of each section when it was cached, by name. See
+     * getSectionRevision.
+     */
+    private Map<String, Long> mSectionCacheRevisions = Maps.newHashMap();
+
+    /**
+     * The sectioned map that the deferred sections were loaded from, or null
+     * if they have been handed to their line collections. The reader is not
+     * modified after it is created, so it can be read from any thread.
+     */
+    private SectionedMapReader mDeferredReader;
+
+    /**
+     * Number of times that the grid, the view or the last tag changed.
+     */
+    private long mHeaderRevision;
+
+    /**
+     * The grid as of the last change to mHeaderRevision.
+     */
+    private GridSnapshot mSavedGrid = new GridSnapshot();
+
+    /**
+     * X origin of the view as of the last change to mHeaderRevision.
+     */
+    private float mSavedViewOriginX;
+
+    /**
+     * Y origin of the view as of the last change to mHeaderRevision.
+     */
+    private float mSavedViewOriginY;
+
+    /**
+     * Zoom level of the view as of the last change to mHeaderRevision.
+     */
+    private float mSavedViewZoom;
+
     /**
      * Command history to use for combat tokens.
      */
@@ -135,7 +267,21 @@ public final class MapData {
      * Clears the map by loading a new instance.
      */
     public static void clear() {
-        instance = new MapData();
+        replaceInstance(new MapData());
+    }
+
+    /**
+     * Makes the given map the current one, and frees the background images of
+     * the map it replaces.
+     * 
+     * @param m
+     *            The new map data, or null to force a reload.
+     */
+    private static void replaceInstance(MapData m) {
+        if (instance != null && instance != m) {
+            instance.mBackgroundImages.recycleImages();
+        }
+        instance = m;
     }
 
     /**
@@ -172,6 +318,265 @@ public final class MapData {
         return data;
     }
 
+    /**
+     * Creates, populates, and returns a new MapData object from a sectioned
+     * map. The sections needed to draw the background layer are parsed in
+     * parallel. The GM notes and annotations are hidden in most modes, so
+     * they are only parsed when parseDeferredSections runs or when they are
+     * first used, whichever comes first. Every section must be present.
+     * 
+     * @param reader
+     *            The sectioned map to read from.
+     * @param tokens
+     *            Token database to load tokens from.
+     * @return The created map data.
+     * @throws IOException
+     *             On deserialization error.
+     */
+    private static MapData deserializeSections(
+            final SectionedMapReader reader, final TokenDatabase tokens)
+            throws IOException {
+        final MapData data = new MapData();
+        MapDataDeserializer header = reader.openSection(SECTION_HEADER);
+        @SuppressWarnings("unused")
+        int mapDataVersion = header.readInt();
+        data.mGrid = Grid.deserialize(header);
+        data.mTransformer = CoordinateTransformer.deserialize(header);
+        data.mLastTag = header.readString();
+
+        List<Callable<Void>> loads = Lists.newArrayList();
+        loads.add(new SectionLoad(reader, SECTION_TOKENS) {
+            @Override
+            protected void load(MapDataDeserializer s) throws IOException {
+                data.mTokens.deserialize(s, tokens);
+            }
+        });
+        loads.add(new SectionLoad(reader, SECTION_BACKGROUND_IMAGES) {
+            @Override
+            protected void load(MapDataDeserializer s) throws IOException {
+                data.mBackgroundImages.deserialize(s);
+            }
+        });
+        loads.add(lineCollectionLoad(reader, SECTION_BACKGROUND_LINES,
+                data.mBackgroundLines));
+        loads.add(lineCollectionLoad(reader, SECTION_BACKGROUND_FOG,
+                data.mBackgroundFogOfWar));
+
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Math.min(loads.size(), Runtime
+                        .getRuntime().availableProcessors()));
+        try {
+            for (Future<Void> load : pool.invokeAll(loads)) {
+                load.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while loading map");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (String section : DEFERRED_SECTIONS) {
+            data.getDeferredLines(section).deserializeOnFirstUse(
+                    reader.openSection(section));
+        }
+        data.mDeferredReader = reader;
+
+        // The loaded sections can be saved again as they are until they
+        // change, which also keeps the deferred ones from being parsed.
+        for (String section : SECTIONS) {
+            data.mSectionCache.put(section, reader.getSection(section));
+            data.mSectionCacheRevisions.put(section,
+                    data.getSectionRevision(section));
+        }
+        return data;
+    }
+
+    /**
+     * Creates a task that populates a line collection from a section.
+     * 
+     * @param reader
+     *            The sectioned map to read from.
+     * @param section
+     *            Name of the section holding the lines.
+     * @param lines
+     *            The line collection to populate.
+     * @return The task.
+     */
+    private static Callable<Void> lineCollectionLoad(
+            final SectionedMapReader reader, final String section,
+            final LineCollection lines) {
+        return new SectionLoad(reader, section) {
+            @Override
+            protected void load(MapDataDeserializer s) throws IOException {
+                lines.deserialize(s);
+            }
+        };
+    }
+
+    /**
+     * Parses the sections that were left unparsed when the map was loaded.
+     * Does not modify the map, so it can run on a background thread once the
+     * map is shown; pass the result to finishDeferredLoad on the thread that
+     * owns the map.
+     * 
+     * @return The parsed sections.
+     */
+    public DeferredSections parseDeferredSections() {
+        DeferredSections parsed = new DeferredSections();
+        SectionedMapReader reader = this.mDeferredReader;
+        if (reader == null) {
+            return parsed;
+        }
+        for (String section : DEFERRED_SECTIONS) {
+            try {
+                parsed.mShapes.put(section, LineCollection
+                        .readShapes(reader.openSection(section)));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not load map section " + section, e);
+                parsed.mErrors.put(section, e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not load map section " + section, e);
+                parsed.mErrors.put(section, new IOException(e));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Hands sections parsed by parseDeferredSections to the line collections
+     * that have not needed them yet. A section that could not be parsed is
+     * reported here, and also keeps the map from being saved, so that the
+     * damaged section is not overwritten with an empty layer.
+     * 
+     * @param parsed
+     *            The parsed sections.
+     * @throws IOException
+     *             If a section could not be parsed.
+     */
+    public void finishDeferredLoad(DeferredSections parsed)
+            throws IOException {
+        if (this.mDeferredReader == null) {
+            return;
+        }
+        IOException firstError = null;
+        String firstErrorSection = null;
+        for (String section : DEFERRED_SECTIONS) {
+            IOException error = parsed.mErrors.get(section);
+            this.getDeferredLines(section).finishDeferredLoad(
+                    parsed.mShapes.get(section), error);
+            if (error != null && firstError == null) {
+                firstError = error;
+                firstErrorSection = section;
+            }
+        }
+        this.mDeferredReader = null;
+        if (firstError != null) {
+            throw new IOException("Could not load map section "
+                    + firstErrorSection, firstError);
+        }
+    }
+
+    /**
+     * @param section
+     *            Name of a deferred section.
+     * @return The line collection that the section holds.
+     */
+    private LineCollection getDeferredLines(String section) {
+        if (section.equals(SECTION_GM_NOTES)) {
+            return this.mGmNoteLines;
+        } else if (section.equals(SECTION_GM_NOTES_FOG)) {
+            return this.mGmNotesFogOfWar;
+        } else if (section.equals(SECTION_ANNOTATIONS)) {
+            return this.mAnnotationLines;
+        }
+        throw new IllegalArgumentException("Not a deferred section "
+                + section);
+    }
+
+    /**
+     * Result of parseDeferredSections.
+     * 
+     * @author Tim
+     * 
+     */
+    public static final class DeferredSections {
+        /**
+         * Shapes parsed from each section, by section name.
+         */
+        private Map<String, List<Shape>> mShapes = Maps.newHashMap();
+
+        /**
+         * Errors from sections that could not be parsed, by section name.
+         */
+        private Map<String, IOException> mErrors = Maps.newHashMap();
+
+        /**
+         * Constructor.
+         */
+        private DeferredSections() {
+        }
+    }
+
+    /**
+     * Task that parses one section of a sectioned map, and logs which section
+     * it was if parsing fails.
+     * 
+     * @author Tim
+     * 
+     */
+    private abstract static class SectionLoad implements Callable<Void> {
+        /**
+         * The sectioned map to read from.
+         */
+        private final SectionedMapReader mReader;
+
+        /**
+         * Name of the section to parse.
+         */
+        private final String mSection;
+
+        /**
+         * Constructor.
+         * 
+         * @param reader
+         *            The sectioned map to read from.
+         * @param section
+         *            Name of the section to parse.
+         */
+        SectionLoad(SectionedMapReader reader, String section) {
+            this.mReader = reader;
+            this.mSection = section;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                this.load(this.mReader.openSection(this.mSection));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not load map section " + this.mSection, e);
+                throw e;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not load map section " + this.mSection, e);
+                throw e;
+            }
+            return null;
+        }
+
+        /**
+         * Parses the section.
+         * 
+         * @param s
+         *            Deserializer positioned at the start of the section.
+         * @throws IOException
+         *             On deserialization error.
+         */
+        protected abstract void load(MapDataDeserializer s)
+                throws IOException;
+    }
+
     /**
      * Gets the current map data instance.
      * 
@@ -196,11 +601,12 @@ public final class MapData {
      * is needed.
      */
     public static void invalidate() {
-        instance = null;
+        replaceInstance(null);
     }
 
     /**
-     * Loads the map data from an input stream.
+     * Loads the map data from an input stream, in the sectioned, binary or
+     * text format.
      * 
      * @param input
      *            The stream to read from.
@@ -213,11 +619,31 @@ public final class MapData {
      */
     public static void loadFromStream(final InputStream input,
             TokenDatabase tokens) throws IOException, ClassNotFoundException {
-        InputStreamReader inReader = new InputStreamReader(input);
+        BufferedInputStream buffered = new BufferedInputStream(input);
+        if (BinaryMapFormat.isSectionedMap(buffered)) {
+            try {
+                replaceInstance(MapData.deserializeSections(
+                        new SectionedMapReader(buffered), tokens));
+            } finally {
+                buffered.close();
+            }
+            return;
+        }
+        if (BinaryMapFormat.isBinaryMap(buffered)) {
+            try {
+                replaceInstance(MapData.deserialize(
+                        new BinaryMapDataDeserializer(buffered), tokens));
+            } finally {
+                buffered.close();
+            }
+            return;
+        }
+
+        InputStreamReader inReader = new InputStreamReader(buffered);
         BufferedReader reader = new BufferedReader(inReader);
         MapDataDeserializer s = new MapDataDeserializer(reader);
         try {
-            instance = MapData.deserialize(s, tokens);
+            replaceInstance(MapData.deserialize(s, tokens));
         } finally {
             reader.close();
             inReader.close();
@@ -225,7 +651,7 @@ public final class MapData {
     }
 
     /**
-     * Saves the map data to a stream.
+     * Saves the map data to a stream, in the sectioned format.
      * 
      * @param output
      *            The stream to write to.
@@ -234,15 +660,14 @@ public final class MapData {
      */
     public static void saveToStream(final OutputStream output)
             throws IOException {
-        OutputStreamWriter outWriter = new OutputStreamWriter(output);
-        BufferedWriter writer = new BufferedWriter(outWriter);
-        MapDataSerializer s = new MapDataSerializer(writer);
-        // TODO: Buffer this into memory and then write on a different thread.
+        // TODO: Write on a different thread, now that this is buffered into
+        // memory.
         try {
-            instance.serialize(s);
+            SectionedMapWriter writer = new SectionedMapWriter();
+            instance.serializeSections(writer);
+            writer.writeTo(output);
         } finally {
-            writer.close();
-            outWriter.close();
+            output.close();
         }
     }
 
@@ -390,6 +815,195 @@ public final class MapData {
         s.serializeString(mLastTag != null ? mLastTag : TokenDatabase.ALL);
     }
 
+    /**
+     * Saves the entire MapData as independently readable sections. Sections
+     * that have not changed since they were last saved or loaded are written
+     * from the cache instead of being serialized again.
+     * 
+     * @param writer
+     *            The sectioned map to write to.
+     * @throws IOException
+     *             On serialization error.
+     */
+    private void serializeSections(SectionedMapWriter writer)
+            throws IOException {
+        for (String section : SECTIONS) {
+            byte[] contents;
+            if (this.isSectionChanged(section)) {
+                // The saved files are out of date until the caller marks them
+                // saved.
+                this.mSavedMapNames.clear();
+                contents = this.encodeSection(section);
+                this.mSectionCache.put(section, contents);
+                this.mSectionCacheRevisions.put(section,
+                        this.getSectionRevision(section));
+            } else {
+                contents = this.mSectionCache.get(section);
+            }
+            writer.addSection(section, contents);
+        }
+    }
+
+    /**
+     * Serializes one section of the map.
+     * 
+     * @param section
+     *            Name of the section.
+     * @param s
+     *            The stream to save to.
+     * @throws IOException
+     *             On serialization error.
+     */
+    private void serializeSection(String section, MapDataSerializer s)
+            throws IOException {
+        if (section.equals(SECTION_HEADER)) {
+            s.serializeInt(MAP_DATA_VERSION);
+            this.mGrid.serialize(s);
+            this.mTransformer.serialize(s);
+            s.serializeString(mLastTag != null ? mLastTag : TokenDatabase.ALL);
+        } else if (section.equals(SECTION_TOKENS)) {
+            this.mTokens.serialize(s);
+        } else if (section.equals(SECTION_BACKGROUND_LINES)) {
+            this.mBackgroundLines.serialize(s);
+        } else if (section.equals(SECTION_BACKGROUND_FOG)) {
+            this.mBackgroundFogOfWar.serialize(s);
+        } else if (section.equals(SECTION_BACKGROUND_IMAGES)) {
+            this.mBackgroundImages.serialize(s);
+        } else if (section.equals(SECTION_GM_NOTES)) {
+            this.mGmNoteLines.serialize(s);
+        } else if (section.equals(SECTION_GM_NOTES_FOG)) {
+            this.mGmNotesFogOfWar.serialize(s);
+        } else if (section.equals(SECTION_ANNOTATIONS)) {
+            this.mAnnotationLines.serialize(s);
+        } else {
+            throw new IllegalArgumentException("Unknown section " + section);
+        }
+    }
+
+    /**
+     * @param section
+     *            Name of the section.
+     * @return The encoded contents of the section.
+     * @throws IOException
+     *             On serialization error.
+     */
+    private byte[] encodeSection(String section) throws IOException {
+        SectionedMapWriter writer = new SectionedMapWriter();
+        this.serializeSection(section, writer.beginSection(section));
+        return writer.getSection(section);
+    }
+
+    /**
+     * Gets a counter that increases whenever a section's contents may have
+     * changed. It combines the revision of the command history that covers
+     * the section with a count of the changes made outside that history,
+     * such as points added to a line after the command that created it ran.
+     * 
+     * @param section
+     *            Name of the section.
+     * @return The revision.
+     */
+    private long getSectionRevision(String section) {
+        if (section.equals(SECTION_HEADER)) {
+            return this.getHeaderRevision();
+        } else if (section.equals(SECTION_TOKENS)) {
+            return this.mTokenCollectionCommandHistory.getRevision()
+                    + this.mTokens.getChangeCount();
+        } else if (section.equals(SECTION_BACKGROUND_LINES)) {
+            return this.mBackgroundCommandHistory.getRevision()
+                    + this.mBackgroundLines.getEditCount();
+        } else if (section.equals(SECTION_BACKGROUND_FOG)) {
+            return this.mBackgroundCommandHistory.getRevision()
+                    + this.mBackgroundFogOfWar.getEditCount();
+        } else if (section.equals(SECTION_BACKGROUND_IMAGES)) {
+            return this.mBackgroundCommandHistory.getRevision()
+                    + this.mBackgroundImages.getEditCount();
+        } else if (section.equals(SECTION_GM_NOTES)) {
+            return this.mGmNotesCommandHistory.getRevision()
+                    + this.mGmNoteLines.getEditCount();
+        } else if (section.equals(SECTION_GM_NOTES_FOG)) {
+            return this.mGmNotesCommandHistory.getRevision()
+                    + this.mGmNotesFogOfWar.getEditCount();
+        } else if (section.equals(SECTION_ANNOTATIONS)) {
+            return this.mAnntationCommandHistory.getRevision()
+                    + this.mAnnotationLines.getEditCount();
+        }
+        throw new IllegalArgumentException("Unknown section " + section);
+    }
+
+    /**
+     * Gets a counter that increases whenever the grid, the view or the last
+     * tag changes. Moving the view only re-encodes the small header section,
+     * but it does make the map unsaved, so that the view survives the process
+     * being killed.
+     * 
+     * @return The revision of the header.
+     */
+    private long getHeaderRevision() {
+        if (!this.mSavedGrid.matches(this.mGrid)) {
+            this.mSavedGrid.capture(this.mGrid);
+            this.mHeaderRevision++;
+        }
+        PointF origin = this.mTransformer.getOrigin();
+        float zoom = this.mTransformer.worldSpaceToScreenSpace(1.0f);
+        if (origin.x != this.mSavedViewOriginX
+                || origin.y != this.mSavedViewOriginY
+                || zoom != this.mSavedViewZoom) {
+            this.mSavedViewOriginX = origin.x;
+            this.mSavedViewOriginY = origin.y;
+            this.mSavedViewZoom = zoom;
+            this.mHeaderRevision++;
+        }
+        return this.mHeaderRevision;
+    }
+
+    /**
+     * @param section
+     *            Name of the section.
+     * @return True if the section changed since it was last cached, or if it
+     *         never was.
+     */
+    private boolean isSectionChanged(String section) {
+        Long cached = this.mSectionCacheRevisions.get(section);
+        return cached == null || cached != this.getSectionRevision(section);
+    }
+
+    /**
+     * @return True if the map changed since it was last saved or loaded, or
+     *         if it never was.
+     */
+    public boolean hasUnsavedChanges() {
+        for (String section : SECTIONS) {
+            if (this.isSectionChanged(section)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the map, as last saved or loaded, is stored under the given
+     * name.
+     * 
+     * @param name
+     *            Name of the saved map.
+     */
+    public void markSaved(String name) {
+        this.mSavedMapNames.add(name);
+    }
+
+    /**
+     * Checks whether saving under the given name can be skipped.
+     * 
+     * @param name
+     *            Name of the saved map.
+     * @return True if the map was saved or loaded under that name and has not
+     *         changed since.
+     */
+    public boolean isSavedAs(String name) {
+        return this.mSavedMapNames.contains(name) && !this.hasUnsavedChanges();
+    }
+
     /**
      * @param grid
      *            the grid to set
@@ -409,6 +1023,9 @@ public final class MapData {
     }
     
     public void setLastTag(String lastTag) {
+        if (lastTag == null ? mLastTag != null : !lastTag.equals(mLastTag)) {
+            this.mHeaderRevision++;
+        }
     	mLastTag = lastTag;
     }
     
@@ -6,6 +6,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.Text;
 
 public class MapDrawer {
     private boolean mAreTokensManipulable;
@@ -19,6 +20,54 @@ public class MapDrawer {
 
     private boolean mApplyMaskToTokens;
 
+    /**
+     * Number of shapes that were skipped during the last draw because they
+     * fell outside of the visible region.
+     */
+    private int mCulledShapeCount;
+
+    /**
+     * Number of tokens that were skipped during the last draw because they
+     * fell outside of the visible region.
+     */
+    private int mCulledTokenCount;
+
+    /**
+     * Tile cache to draw the static map layers from, or null to draw them
+     * directly.
+     */
+    private MapTileCache mTileCache;
+
+    /**
+     * Cache of everything below the token layer, or null to always draw those
+     * layers directly.
+     */
+    private BelowTokensCache mBelowTokensCache;
+
+    /**
+     * Cached union of the background fog of war, or null to clip to the fog
+     * of war directly.
+     */
+    private FogOfWarMask mBackgroundFogOfWarMask;
+
+    /**
+     * Cached union of the GM notes fog of war, or null to clip to the fog of
+     * war directly.
+     */
+    private FogOfWarMask mGmNotesFogOfWarMask;
+
+    /**
+     * Transformation to draw the map with instead of the map's own, or null
+     * to use the map's.
+     */
+    private CoordinateTransformer mTransformer;
+
+    /**
+     * Whether background images that are not loaded yet are decoded before
+     * drawing them, rather than in the background.
+     */
+    private boolean mLoadImagesSynchronously;
+
     public MapDrawer areTokensManipulable(boolean val) {
         this.mAreTokensManipulable = val;
         return this;
@@ -30,79 +79,407 @@ public class MapDrawer {
     }
 
     public void draw(Canvas canvas, MapData m, Rect bounds) {
-    	PointF wsOrigin = m.getWorldSpaceTransformer().screenSpaceToWorldSpace(bounds.left, bounds.top);
-    	float wsWidth = m.getWorldSpaceTransformer().screenSpaceToWorldSpace(bounds.width());
-    	float wsHeight = m.getWorldSpaceTransformer().screenSpaceToWorldSpace(bounds.height());
-    	RectF worldSpaceBounds = new RectF(wsOrigin.x, wsOrigin.y, wsOrigin.x + wsWidth, wsOrigin.y + wsHeight);
-        
-    	m.getGrid().drawBackground(canvas);
-
-        canvas.save();
-        m.getWorldSpaceTransformer().setMatrix(canvas);
-        if (this.mBackgroundFogOfWar == FogOfWarMode.CLIP
-                && !m.getBackgroundFogOfWar().isEmpty()) {
-            m.getBackgroundFogOfWar().clipFogOfWar(canvas, worldSpaceBounds);
-        }
-        m.getBackgroundLines().drawAllLinesBelowGrid(canvas, worldSpaceBounds);
-        m.getBackgroundImages().draw(canvas, m.getWorldSpaceTransformer(), worldSpaceBounds);
-        canvas.restore();
+        this.mCulledShapeCount = 0;
+        this.mCulledTokenCount = 0;
+    	RectF worldSpaceBounds = this.getWorldSpaceBounds(m, bounds);
 
-        if (this.mDrawGridLines) {
-            m.getGrid().draw(canvas, m.getWorldSpaceTransformer());
+        if (this.mBelowTokensCache != null) {
+            this.drawBelowTokensFromCache(canvas, m, worldSpaceBounds);
+        } else {
+            this.drawBelowTokens(canvas, m, worldSpaceBounds);
         }
 
         canvas.save();
-        m.getWorldSpaceTransformer().setMatrix(canvas);
         if (this.mBackgroundFogOfWar == FogOfWarMode.CLIP
-                && !m.getBackgroundFogOfWar().isEmpty()) {
-            m.getBackgroundFogOfWar().clipFogOfWar(canvas, worldSpaceBounds);
+                && !m.getBackgroundFogOfWar().isEmpty()
+                && this.mApplyMaskToTokens) {
+            this.getTransformer(m).setMatrix(canvas);
+            this.mCulledShapeCount +=
+                    this.clipToFogOfWar(canvas, m, m.getBackgroundFogOfWar(),
+                            this.mBackgroundFogOfWarMask, worldSpaceBounds);
+            this.getTransformer(m).setInverseMatrix(canvas);
         }
-        m.getBackgroundLines().drawAllLinesAboveGrid(canvas, worldSpaceBounds);
-        if (this.mBackgroundFogOfWar == FogOfWarMode.DRAW) {
-            m.getBackgroundFogOfWar().drawFogOfWar(canvas, worldSpaceBounds);
+        CoordinateTransformer gridSpace =
+                m.getGrid().gridSpaceToScreenSpaceTransformer(
+                        this.getTransformer(m));
+        if (this.mDrawTokens) {
+            PointF gsOrigin = gridSpace.screenSpaceToWorldSpace(bounds.left, bounds.top);
+            RectF gridSpaceBounds = new RectF(gsOrigin.x, gsOrigin.y,
+                    gsOrigin.x + gridSpace.screenSpaceToWorldSpace(bounds.width()),
+                    gsOrigin.y + gridSpace.screenSpaceToWorldSpace(bounds.height()));
+            this.mCulledTokenCount =
+                    m.getTokens().drawAllTokens(canvas, gridSpace, gridSpaceBounds,
+                            m.getGrid().isDark(), this.mAreTokensManipulable);
         }
         canvas.restore();
+    }
+
+    /**
+     * Draws every layer below the tokens.
+     *
+     * @param canvas
+     *            The canvas to draw on.
+     * @param m
+     *            The map to draw.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     */
+    private void drawBelowTokens(Canvas canvas, MapData m, RectF worldSpaceBounds) {
+        if (this.mTileCache != null
+                && this.mTileCache.prepare(m, this.mDrawGridLines, this
+                        .getTransformer(m).worldSpaceToScreenSpace(1.0f))) {
+            this.drawStaticLayersFromCache(canvas, m, worldSpaceBounds);
+        } else {
+            this.drawStaticLayers(canvas, m, worldSpaceBounds);
+        }
 
         canvas.save();
-        m.getWorldSpaceTransformer().setMatrix(canvas);
+        this.getTransformer(m).setMatrix(canvas);
 
         if (this.mDrawGmNotes) {
             canvas.save();
             if (this.mGmNoteFogOfWar == FogOfWarMode.CLIP) {
-                m.getGmNotesFogOfWar().clipFogOfWar(canvas, worldSpaceBounds);
+                this.mCulledShapeCount +=
+                        this.clipToFogOfWar(canvas, m, m.getGmNotesFogOfWar(),
+                                this.mGmNotesFogOfWarMask, worldSpaceBounds);
             }
-            m.getGmNoteLines().drawAllLines(canvas, worldSpaceBounds);
+            this.mCulledShapeCount +=
+                    m.getGmNoteLines().drawAllLines(canvas,
+                        this.getTransformer(m), worldSpaceBounds);
             if (this.mGmNoteFogOfWar == FogOfWarMode.DRAW) {
-                m.getGmNotesFogOfWar().drawFogOfWar(canvas, worldSpaceBounds);
+                this.mCulledShapeCount +=
+                        m.getGmNotesFogOfWar().drawFogOfWar(canvas, worldSpaceBounds);
             }
             canvas.restore();
             
         }
 
         if (this.mDrawAnnotations) {
+            this.mCulledShapeCount +=
+                    m.getAnnotationLines().drawAllLines(canvas,
+                        this.getTransformer(m), worldSpaceBounds);
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Draws every layer below the tokens using the screen-sized cache,
+     * rebuilding it first if it is stale.
+     *
+     * @param canvas
+     *            The canvas to draw on.
+     * @param m
+     *            The map to draw.
+     * @param worldSpaceBounds
+     *            The region to draw, in world space, if the cache is bypassed.
+     */
+    private void drawBelowTokensFromCache(Canvas canvas, MapData m,
+            RectF worldSpaceBounds) {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        BelowTokensCache.Action action =
+                this.mBelowTokensCache.update(m, this.getLayerOptions(), width,
+                        height);
+        if (action == BelowTokensCache.Action.BYPASS) {
+            this.drawBelowTokens(canvas, m, worldSpaceBounds);
+            return;
+        }
+        if (action == BelowTokensCache.Action.REBUILD) {
+            // Draw the whole screen, not just the dirty region, so that
+            // later frames can use any part of it.
+            Canvas cacheCanvas = this.mBelowTokensCache.beginRebuild();
+            this.drawBelowTokens(cacheCanvas, m,
+                    this.getWorldSpaceBounds(m, new Rect(0, 0, width, height)));
+            this.mBelowTokensCache.finishRebuild();
+        }
+        canvas.drawBitmap(this.mBelowTokensCache.getBitmap(), 0, 0, null);
+    }
+
+    /**
+     * @return A value that identifies which layers this drawer draws below the
+     *         tokens, and how.
+     */
+    private int getLayerOptions() {
+        int options = 0;
+        options = options * 2 + (Text.areBoundingBoxesDrawn() ? 1 : 0);
+        options = options * 2 + (this.mDrawGridLines ? 1 : 0);
+        options = options * 2 + (this.mDrawGmNotes ? 1 : 0);
+        options = options * 2 + (this.mDrawAnnotations ? 1 : 0);
+        options = options * (FogOfWarMode.values().length + 1)
+                + (this.mBackgroundFogOfWar != null ? this.mBackgroundFogOfWar.ordinal() + 1 : 0);
+        options = options * (FogOfWarMode.values().length + 1)
+                + (this.mGmNoteFogOfWar != null ? this.mGmNoteFogOfWar.ordinal() + 1 : 0);
+        return options;
+    }
+
+    /**
+     * @param m
+     *            The map being drawn.
+     * @return The world space to screen space transformation to draw with.
+     */
+    private CoordinateTransformer getTransformer(MapData m) {
+        return this.mTransformer != null ? this.mTransformer : m
+                .getWorldSpaceTransformer();
+    }
+
+    /**
+     * Converts a screen space rectangle to world space.
+     *
+     * @param m
+     *            The map whose transformation to use.
+     * @param bounds
+     *            The rectangle in screen space.
+     * @return The rectangle in world space.
+     */
+    private RectF getWorldSpaceBounds(MapData m, Rect bounds) {
+    	PointF wsOrigin = this.getTransformer(m).screenSpaceToWorldSpace(bounds.left, bounds.top);
+    	float wsWidth = this.getTransformer(m).screenSpaceToWorldSpace(bounds.width());
+    	float wsHeight = this.getTransformer(m).screenSpaceToWorldSpace(bounds.height());
+    	return new RectF(wsOrigin.x, wsOrigin.y, wsOrigin.x + wsWidth, wsOrigin.y + wsHeight);
+    }
 
-            m.getAnnotationLines().drawAllLines(canvas, worldSpaceBounds);
+    /**
+     * Draws the background, background lines, background images and grid
+     * directly.
+     *
+     * @param canvas
+     *            The canvas to draw on.
+     * @param m
+     *            The map to draw.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     */
+    private void drawStaticLayers(Canvas canvas, MapData m, RectF worldSpaceBounds) {
+        m.getGrid().drawBackground(canvas);
+
+        canvas.save();
+        this.getTransformer(m).setMatrix(canvas);
+        if (this.mBackgroundFogOfWar == FogOfWarMode.CLIP
+                && !m.getBackgroundFogOfWar().isEmpty()) {
+            this.mCulledShapeCount +=
+                    this.clipToFogOfWar(canvas, m, m.getBackgroundFogOfWar(),
+                            this.mBackgroundFogOfWarMask, worldSpaceBounds);
         }
+        this.mCulledShapeCount +=
+                m.getBackgroundLines().drawAllLinesBelowGrid(canvas,
+                        this.getTransformer(m), worldSpaceBounds);
+        m.getBackgroundImages().draw(canvas, this.getTransformer(m),
+                worldSpaceBounds, !this.mLoadImagesSynchronously);
         canvas.restore();
 
+        if (this.mDrawGridLines) {
+            m.getGrid().draw(canvas, this.getTransformer(m));
+        }
+
         canvas.save();
+        this.getTransformer(m).setMatrix(canvas);
         if (this.mBackgroundFogOfWar == FogOfWarMode.CLIP
-                && !m.getBackgroundFogOfWar().isEmpty()
-                && this.mApplyMaskToTokens) {
-            m.getWorldSpaceTransformer().setMatrix(canvas);
-            m.getBackgroundFogOfWar().clipFogOfWar(canvas, worldSpaceBounds);
-            m.getWorldSpaceTransformer().setInverseMatrix(canvas);
+                && !m.getBackgroundFogOfWar().isEmpty()) {
+            this.mCulledShapeCount +=
+                    this.clipToFogOfWar(canvas, m, m.getBackgroundFogOfWar(),
+                            this.mBackgroundFogOfWarMask, worldSpaceBounds);
         }
-        CoordinateTransformer gridSpace =
-                m.getGrid().gridSpaceToScreenSpaceTransformer(
-                        m.getWorldSpaceTransformer());
-        if (this.mDrawTokens) {
-            m.getTokens().drawAllTokens(canvas, gridSpace,
-                    m.getGrid().isDark(), this.mAreTokensManipulable);
+        this.mCulledShapeCount +=
+                m.getBackgroundLines().drawAllLinesAboveGrid(canvas,
+                        this.getTransformer(m), worldSpaceBounds);
+        if (this.mBackgroundFogOfWar == FogOfWarMode.DRAW) {
+            this.mCulledShapeCount +=
+                    m.getBackgroundFogOfWar().drawFogOfWar(canvas, worldSpaceBounds);
         }
         canvas.restore();
     }
 
+    /**
+     * Draws the background, background lines, background images and grid from
+     * the tile cache. The fog of war is still applied live, since it does not
+     * affect the grid and changes independently of the cached layers. The
+     * tiles are drawn in screen space; the fog of war clip is set up in world
+     * space and kept while the matrix is restored.
+     *
+     * @param canvas
+     *            The canvas to draw on.
+     * @param m
+     *            The map to draw.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     */
+    private void drawStaticLayersFromCache(Canvas canvas, MapData m,
+            RectF worldSpaceBounds) {
+        if (this.mBackgroundFogOfWar == FogOfWarMode.CLIP
+                && !m.getBackgroundFogOfWar().isEmpty()) {
+            // The grid is not masked, so the layers around it need to be
+            // clipped separately.
+            m.getGrid().drawBackground(canvas);
+
+            canvas.save();
+            this.clipToBackgroundFogOfWarInScreenSpace(canvas, m,
+                    worldSpaceBounds);
+            this.mTileCache.draw(canvas, this.getTransformer(m),
+                    worldSpaceBounds, MapTileCache.Layer.BELOW_GRID);
+            canvas.restore();
+
+            if (this.mDrawGridLines) {
+                m.getGrid().draw(canvas, this.getTransformer(m));
+            }
+
+            canvas.save();
+            this.clipToBackgroundFogOfWarInScreenSpace(canvas, m,
+                    worldSpaceBounds);
+            this.mTileCache.draw(canvas, this.getTransformer(m),
+                    worldSpaceBounds, MapTileCache.Layer.ABOVE_GRID);
+            canvas.restore();
+        } else {
+            this.mTileCache.draw(canvas, this.getTransformer(m),
+                    worldSpaceBounds, MapTileCache.Layer.ALL);
+        }
+
+        if (this.mBackgroundFogOfWar == FogOfWarMode.DRAW) {
+            canvas.save();
+            this.getTransformer(m).setMatrix(canvas);
+            this.mCulledShapeCount +=
+                    m.getBackgroundFogOfWar().drawFogOfWar(canvas, worldSpaceBounds);
+            canvas.restore();
+        }
+    }
+
+    /**
+     * @return The number of shapes that were skipped during the last call to
+     *         draw because they fell outside of the visible region.
+     */
+    public int getCulledShapeCount() {
+        return this.mCulledShapeCount;
+    }
+
+    /**
+     * @return The number of tokens that were skipped during the last call to
+     *         draw because they fell outside of the visible region.
+     */
+    public int getCulledTokenCount() {
+        return this.mCulledTokenCount;
+    }
+
+    /**
+     * Draws everything below the token layer from the given screen-sized
+     * cache, so that frames where only tokens changed are cheap.
+     *
+     * @param cache
+     *            The cache to use, or null to draw directly.
+     * @return This drawer.
+     */
+    public MapDrawer useBelowTokensCache(BelowTokensCache cache) {
+        this.mBelowTokensCache = cache;
+        return this;
+    }
+
+    /**
+     * Clips to the fog of war using cached screen space unions instead of
+     * re-unioning every fog of war region on each clip. Only valid when
+     * drawing to a canvas in screen coordinates.
+     *
+     * @param background
+     *            Mask for the background fog of war, or null to clip directly.
+     * @param gmNotes
+     *            Mask for the GM notes fog of war, or null to clip directly.
+     * @return This drawer.
+     */
+    public MapDrawer useFogOfWarMasks(FogOfWarMask background,
+            FogOfWarMask gmNotes) {
+        this.mBackgroundFogOfWarMask = background;
+        this.mGmNotesFogOfWarMask = gmNotes;
+        return this;
+    }
+
+    /**
+     * Clips the canvas to the given fog of war, through the given mask if
+     * there is one. The canvas must already be in world space.
+     *
+     * @param canvas
+     *            The canvas to clip.
+     * @param m
+     *            The map being drawn.
+     * @param fogOfWar
+     *            The fog of war to clip to.
+     * @param mask
+     *            Cached union of the fog of war, or null.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return The number of fog of war regions that were culled.
+     */
+    private int clipToFogOfWar(Canvas canvas, MapData m,
+            LineCollection fogOfWar, FogOfWarMask mask, RectF worldSpaceBounds) {
+        if (mask != null) {
+            return mask.apply(canvas, fogOfWar, this.getTransformer(m));
+        }
+        return fogOfWar.clipFogOfWar(canvas, worldSpaceBounds);
+    }
+
+    /**
+     * Clips the canvas to the background fog of war, leaving the canvas in
+     * screen space. Only the matrix is restored afterwards, so the clip stays
+     * in effect until the caller's next restore.
+     *
+     * @param canvas
+     *            The canvas to clip, in screen space.
+     * @param m
+     *            The map being drawn.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     */
+    private void clipToBackgroundFogOfWarInScreenSpace(Canvas canvas,
+            MapData m, RectF worldSpaceBounds) {
+        canvas.save(Canvas.MATRIX_SAVE_FLAG);
+        this.getTransformer(m).setMatrix(canvas);
+        this.mCulledShapeCount +=
+                this.clipToFogOfWar(canvas, m, m.getBackgroundFogOfWar(),
+                        this.mBackgroundFogOfWarMask, worldSpaceBounds);
+        canvas.restore();
+    }
+
+    /**
+     * Draws the static map layers from the given tile cache instead of
+     * rasterizing them on every draw.
+     *
+     * @param cache
+     *            The cache to use, or null to draw directly.
+     * @return This drawer.
+     */
+    public MapDrawer useTileCache(MapTileCache cache) {
+        this.mTileCache = cache;
+        return this;
+    }
+
+    /**
+     * Draws the map with the given transformation instead of the map's own,
+     * e.g. to draw part of the map to an offscreen canvas without moving the
+     * map's view. Not supported together with the tile or below-tokens
+     * caches, which are built from the map's own transformation.
+     *
+     * @param transformer
+     *            The world space to screen space transformation to use, or
+     *            null to use the map's.
+     * @return This drawer.
+     */
+    public MapDrawer useTransformer(CoordinateTransformer transformer) {
+        this.mTransformer = transformer;
+        return this;
+    }
+
+    /**
+     * Sets whether background images are decoded before they are drawn. By
+     * default, images that are not loaded yet are decoded in the background
+     * and drawn once they are ready, so that drawing to the screen never
+     * waits on a decode. Offscreen renders such as exports should decode
+     * synchronously so that the images are included.
+     *
+     * @param val
+     *            True to decode images before drawing them.
+     * @return This drawer.
+     */
+    public MapDrawer loadImagesSynchronously(boolean val) {
+        this.mLoadImagesSynchronously = val;
+        return this;
+    }
+
     public MapDrawer drawAnnotations(boolean val) {
         this.mDrawAnnotations = val;
         return this;
@@ -0,0 +1,426 @@
+package com.tbocek.android.combatmap.model;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.tbocek.android.combatmap.WeightedLruCache;
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.PointF;
+import com.tbocek.android.combatmap.model.primitives.Text;
+
+/**
+ * Cache of rasterized tiles for the map layers that rarely change: the
+ * background, background lines, background images and the grid. Tiles are
+ * fixed-size bitmaps keyed by their position at the current zoom level, so
+ * that panning only has to blit already rendered tiles.
+ *
+ * Tiles are rendered at the exact zoom level they are drawn at and blitted
+ * unscaled at whole pixel positions, so they line up without blurring or
+ * seams. While the zoom level is changing the layers are drawn directly
+ * instead, and tiles are only rendered once it settles. Edits to the
+ * background lines and images are picked up through their changed regions,
+ * and only the tiles that overlap a changed region are thrown away. Tiles are
+ * evicted in least recently used order once the memory budget is exceeded.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tim
+ *
+ */
+public final class MapTileCache {
+
+    /**
+     * Width and height of each tile, in pixels.
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * Memory used by each tile, in bytes.
+     */
+    private static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    /**
+     * Extra area, in pixels, around each tile that is considered when deciding
+     * whether a change affects the tile. Covers antialiasing and rounding of
+     * image bounds.
+     */
+    private static final float INVALIDATION_MARGIN = 2;
+
+    /**
+     * Maximum number of evicted bitmaps to hold on to for reuse.
+     */
+    private static final int MAX_SPARE_BITMAPS = 4;
+
+    /**
+     * Groups of layers that tiles can be rendered for.
+     */
+    enum Layer {
+        /**
+         * Background color, lines below the grid, images, the grid and lines
+         * above the grid, composited together.
+         */
+        ALL,
+
+        /**
+         * Lines below the grid and background images, on a transparent
+         * background.
+         */
+        BELOW_GRID,
+
+        /**
+         * Lines above the grid, on a transparent background.
+         */
+        ABOVE_GRID
+    }
+
+    /**
+     * Rendered tiles, weighed by their size in bytes. Evicted tiles are kept
+     * for reuse.
+     */
+    private final WeightedLruCache<TileKey, Bitmap> mTiles;
+
+    /**
+     * Evicted bitmaps that can be reused for new tiles.
+     */
+    private List<Bitmap> mSpareBitmaps = Lists.newArrayList();
+
+    /**
+     * Paint used to blit tiles. Tiles are never scaled, so bitmap filtering is
+     * left off.
+     */
+    private Paint mBlitPaint = new Paint();
+
+    /**
+     * OPTIMIZATION: Preallocated list that receives changed regions.
+     */
+    private List<RectF> mChangedRegions = Lists.newArrayList();
+
+    /**
+     * The map that the cached tiles were rendered from.
+     */
+    private MapData mData;
+
+    /**
+     * State of the grid that the cached tiles were rendered with.
+     */
+    private GridSnapshot mGrid = new GridSnapshot();
+
+    /**
+     * Whether the cached tiles include grid lines.
+     */
+    private boolean mDrawGridLines;
+
+    /**
+     * Whether the cached tiles were rendered with text bounding boxes.
+     */
+    private boolean mTextBoundingBoxes;
+
+    /**
+     * Zoom level that the cached tiles were rendered at.
+     */
+    private float mTileZoom = Float.NaN;
+
+    /**
+     * Zoom level of the previous frame, used to tell when zooming has
+     * settled.
+     */
+    private float mLastZoom = Float.NaN;
+
+    /**
+     * Constructor.
+     *
+     * @param budgetBytes
+     *            Maximum amount of memory to spend on tile bitmaps.
+     */
+    public MapTileCache(long budgetBytes) {
+        this.mTiles = new WeightedLruCache<TileKey, Bitmap>(budgetBytes) {
+            @Override
+            protected long weigh(Bitmap tile) {
+                return TILE_BYTES;
+            }
+
+            @Override
+            protected void entryEvicted(TileKey key, Bitmap tile) {
+                MapTileCache.this.recycle(tile);
+            }
+        };
+    }
+
+    /**
+     * Throws away all rendered tiles and frees their memory.
+     */
+    public void clear() {
+        for (Bitmap b : this.mTiles.values()) {
+            b.recycle();
+        }
+        this.mTiles.clear();
+        for (Bitmap b : this.mSpareBitmaps) {
+            b.recycle();
+        }
+        this.mSpareBitmaps.clear();
+        this.mTileZoom = Float.NaN;
+    }
+
+    /**
+     * Brings the cache up to date with the given map before drawing. Drops
+     * everything if the map or its grid changed, and drops the tiles affected
+     * by edits to the background lines and images otherwise.
+     *
+     * @param m
+     *            The map that is about to be drawn.
+     * @param drawGridLines
+     *            Whether grid lines should be part of the tiles.
+     * @param zoom
+     *            The world to screen space zoom level of the frame.
+     * @return True if the frame should be drawn from tiles, false if the zoom
+     *         level is still changing and the layers should be drawn directly.
+     */
+    boolean prepare(MapData m, boolean drawGridLines, float zoom) {
+        if (m != this.mData || !this.mGrid.matches(m.getGrid())
+                || drawGridLines != this.mDrawGridLines
+                || Text.areBoundingBoxesDrawn() != this.mTextBoundingBoxes) {
+            this.clear();
+            this.mData = m;
+            this.mGrid.capture(m.getGrid());
+            this.mDrawGridLines = drawGridLines;
+            this.mTextBoundingBoxes = Text.areBoundingBoxesDrawn();
+        }
+
+        // Drain the changed regions even if the cache was just cleared, so
+        // that stale regions don't invalidate freshly rendered tiles later.
+        m.getBackgroundLines().collectChangedRegions(this.mChangedRegions);
+        m.getBackgroundImages().collectChangedRegions(this.mChangedRegions);
+        if (!this.mTiles.isEmpty()) {
+            for (RectF r : this.mChangedRegions) {
+                this.invalidate(r);
+            }
+        }
+        this.mChangedRegions.clear();
+
+        boolean settled = zoom == this.mLastZoom;
+        this.mLastZoom = zoom;
+        if (settled && zoom != this.mTileZoom) {
+            // Tiles from another zoom level will not line up with this one.
+            this.dropAllTiles();
+            this.mTileZoom = zoom;
+        }
+        return settled;
+    }
+
+    /**
+     * Draws the given layers from cached tiles, rendering any missing tiles.
+     * prepare must have been called first, and must have returned true.
+     *
+     * @param canvas
+     *            Canvas to draw on, in screen space.
+     * @param transformer
+     *            The world to screen space transformation of the frame.
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @param layer
+     *            The layers to draw.
+     */
+    void draw(Canvas canvas, CoordinateTransformer transformer,
+            RectF worldSpaceBounds, Layer layer) {
+        float zoom = this.mTileZoom;
+
+        // Round the origin once for every tile, so that all tiles move by the
+        // same whole number of pixels and stay flush with each other.
+        PointF origin = transformer.getOrigin();
+        int originX = Math.round(origin.x);
+        int originY = Math.round(origin.y);
+
+        // Widen the range by a pixel to cover the rounding of the origin.
+        int x0 = (int) Math.floor((worldSpaceBounds.left * zoom - 1)
+                / TILE_SIZE);
+        int y0 = (int) Math.floor((worldSpaceBounds.top * zoom - 1)
+                / TILE_SIZE);
+        int x1 = (int) Math.floor((worldSpaceBounds.right * zoom + 1)
+                / TILE_SIZE);
+        int y1 = (int) Math.floor((worldSpaceBounds.bottom * zoom + 1)
+                / TILE_SIZE);
+
+        for (int x = x0; x <= x1; ++x) {
+            for (int y = y0; y <= y1; ++y) {
+                TileKey key = new TileKey(layer, x, y);
+                Bitmap tile = this.mTiles.get(key);
+                if (tile == null) {
+                    tile = this.renderTile(key);
+                }
+                canvas.drawBitmap(tile, originX + x * TILE_SIZE, originY + y
+                        * TILE_SIZE, this.mBlitPaint);
+            }
+        }
+    }
+
+    /**
+     * @return The number of tiles currently held in memory.
+     */
+    public int size() {
+        return this.mTiles.size();
+    }
+
+    /**
+     * Renders the given tile and adds it to the cache.
+     *
+     * @param key
+     *            The tile to render.
+     * @return The rendered tile.
+     */
+    private Bitmap renderTile(TileKey key) {
+        // Make room first, so that an evicted tile's bitmap can be reused.
+        this.mTiles.trimTo(this.mTiles.getMaxWeight() - TILE_BYTES);
+
+        Bitmap tile;
+        if (!this.mSpareBitmaps.isEmpty()) {
+            tile = this.mSpareBitmaps.remove(this.mSpareBitmaps.size() - 1);
+        } else {
+            tile =
+                    Bitmap.createBitmap(TILE_SIZE, TILE_SIZE,
+                            Bitmap.Config.ARGB_8888);
+        }
+        tile.eraseColor(Color.TRANSPARENT);
+
+        Canvas c = new Canvas(tile);
+        CoordinateTransformer transformer =
+                new CoordinateTransformer(-key.mX * TILE_SIZE, -key.mY
+                        * TILE_SIZE, this.mTileZoom);
+        float tileWorldSize = TILE_SIZE / this.mTileZoom;
+        RectF bounds =
+                new RectF(key.mX * tileWorldSize, key.mY * tileWorldSize,
+                        (key.mX + 1) * tileWorldSize, (key.mY + 1)
+                                * tileWorldSize);
+        MapData m = this.mData;
+
+        if (key.mLayer == Layer.ALL) {
+            m.getGrid().drawBackground(c);
+        }
+        if (key.mLayer != Layer.ABOVE_GRID) {
+            c.save();
+            transformer.setMatrix(c);
+            m.getBackgroundLines().drawAllLinesBelowGrid(c, transformer,
+                    bounds);
+            m.getBackgroundImages().draw(c, transformer, bounds, true);
+            c.restore();
+        }
+        if (key.mLayer == Layer.ALL && this.mDrawGridLines) {
+            m.getGrid().draw(c, transformer);
+        }
+        if (key.mLayer != Layer.BELOW_GRID) {
+            c.save();
+            transformer.setMatrix(c);
+            m.getBackgroundLines().drawAllLinesAboveGrid(c, transformer,
+                    bounds);
+            c.restore();
+        }
+
+        this.mTiles.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Drops every tile that overlaps the given region.
+     *
+     * @param region
+     *            The changed region, in world space.
+     */
+    private void invalidate(final RectF region) {
+        final float tileWorldSize = TILE_SIZE / this.mTileZoom;
+        final float margin = INVALIDATION_MARGIN / this.mTileZoom;
+        this.mTiles.evictAll(new Predicate<TileKey>() {
+            @Override
+            public boolean apply(TileKey key) {
+                return key.mX * tileWorldSize - margin <= region.right
+                        && (key.mX + 1) * tileWorldSize + margin >= region.left
+                        && key.mY * tileWorldSize - margin <= region.bottom
+                        && (key.mY + 1) * tileWorldSize + margin >= region.top;
+            }
+        });
+    }
+
+    /**
+     * Drops every tile, keeping a few of their bitmaps for reuse.
+     */
+    private void dropAllTiles() {
+        for (Bitmap b : this.mTiles.values()) {
+            this.recycle(b);
+        }
+        this.mTiles.clear();
+    }
+
+    /**
+     * Holds on to a no longer needed tile bitmap for reuse, or frees it.
+     *
+     * @param b
+     *            The bitmap.
+     */
+    private void recycle(Bitmap b) {
+        if (this.mSpareBitmaps.size() < MAX_SPARE_BITMAPS) {
+            this.mSpareBitmaps.add(b);
+        } else {
+            b.recycle();
+        }
+    }
+
+    /**
+     * Identifies a single tile.
+     *
+     * @author Tim
+     *
+     */
+    private static final class TileKey {
+        /**
+         * The layers rendered into the tile.
+         */
+        private final Layer mLayer;
+
+        /**
+         * Column of the tile at the zoom level of the cache.
+         */
+        private final int mX;
+
+        /**
+         * Row of the tile at the zoom level of the cache.
+         */
+        private final int mY;
+
+        /**
+         * Constructor.
+         *
+         * @param layer
+         *            The layers rendered into the tile.
+         * @param x
+         *            Column of the tile.
+         * @param y
+         *            Row of the tile.
+         */
+        TileKey(Layer layer, int x, int y) {
+            this.mLayer = layer;
+            this.mX = x;
+            this.mY = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return this.mLayer == other.mLayer && this.mX == other.mX && this.mY == other.mY;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = this.mLayer.hashCode();
+            h = h * 31 + this.mX;
+            return h * 31 + this.mY;
+        }
+    }
+}
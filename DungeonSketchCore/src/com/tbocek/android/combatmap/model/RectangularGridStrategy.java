@@ -38,77 +38,119 @@ public final class RectangularGridStrategy extends GridDrawStrategy {
      */
     private static final float MINOR_GRID_LINE_WIDTH = 1;
 
+    /**
+     * Paint for minor grid lines.
+     */
+    private Paint mThinPaint = new Paint();
+
+    /**
+     * Paint for major grid lines.
+     */
+    private Paint mThickPaint = new Paint();
+
+    /**
+     * OPTIMIZATION: Reusable buffer for the minor grid lines.
+     */
+    private float[] mThinLines;
+
+    /**
+     * OPTIMIZATION: Reusable buffer for the major grid lines.
+     */
+    private float[] mThickLines;
+
+    /**
+     * Constructor.
+     */
+    public RectangularGridStrategy() {
+        this.mThinPaint.setStrokeWidth(MINOR_GRID_LINE_WIDTH);
+        this.mThickPaint.setStrokeWidth(MAJOR_GRID_LINE_WIDTH);
+    }
+
     @Override
     public void drawGrid(final Canvas canvas,
             final CoordinateTransformer transformer,
             final GridColorScheme colorScheme) {
-    	
-    	// TODO: Create and cache these when the color is updated instead of every time
-    	// a draw is requested.
-        Paint thinPaint = new Paint();
-        thinPaint.setColor(colorScheme.getLineColor());
-        thinPaint.setStrokeWidth(MINOR_GRID_LINE_WIDTH);
-        
-        Paint thickPaint = new Paint();
-        thickPaint.setColor(colorScheme.getLineColor());
-        thickPaint.setStrokeWidth(MAJOR_GRID_LINE_WIDTH);
-        
-        int width = canvas.getWidth();
-        int height = canvas.getHeight();
-
         float squareSize = transformer.worldSpaceToScreenSpace(1.0f);
-        float numSquaresHorizontal = (float) width / squareSize;
-        float numSquaresVertical =
-                numSquaresHorizontal * ((float) height) / ((float) width);
+        if (squareSize < MAJOR_GRID_LINE_SIZE_LIMIT) {
+            return;
+        }
+
+        PointF origin = transformer.getOrigin();
+        float period = squareSize * MAJOR_GRID_LINE_FREQUENCY;
+        if (!this.drawFromPattern(canvas, squareSize, origin, period, period,
+                colorScheme)) {
+            this.drawGridLines(canvas, squareSize, origin.x, origin.y,
+                    canvas.getWidth(), canvas.getHeight(), colorScheme);
+        }
+    }
+
+    @Override
+    protected void drawGridLines(final Canvas canvas, final float squareSize,
+            final float originX, final float originY, final float width,
+            final float height, final GridColorScheme colorScheme) {
+        this.mThinPaint.setColor(colorScheme.getLineColor());
+        this.mThickPaint.setColor(colorScheme.getLineColor());
+
+        float numSquaresHorizontal = width / squareSize;
+        float numSquaresVertical = height / squareSize;
 
         boolean shouldDrawMinorLines = squareSize >= MINOR_GRID_LINE_SIZE_LIMIT;
         boolean shouldDrawMajorLines = squareSize >= MAJOR_GRID_LINE_SIZE_LIMIT;
-        boolean shouldDrawCurrentLine = true;
 
-        PointF origin = transformer.getOrigin();
-
-        float offsetX = origin.x % squareSize;
-        float offsetY = origin.y % squareSize;
+        float offsetX = originX % squareSize;
+        float offsetY = originY % squareSize;
 
         int thickLineStartX =
-                (int) ((origin.x % (squareSize * MAJOR_GRID_LINE_FREQUENCY)) / squareSize);
+                (int) ((originX % (squareSize * MAJOR_GRID_LINE_FREQUENCY)) / squareSize);
         int thickLineStartY =
-                (int) ((origin.y % (squareSize * MAJOR_GRID_LINE_FREQUENCY)) / squareSize);
-
-        Paint currentPaint = thinPaint;
-        for (int i = 0; i <= numSquaresHorizontal; ++i) {
+                (int) ((originY % (squareSize * MAJOR_GRID_LINE_FREQUENCY)) / squareSize);
+
+        // Gather the lines for each paint, so that each is drawn in a single
+        // call.
+        int maxLines =
+                (int) numSquaresHorizontal + (int) numSquaresVertical + 6;
+        this.mThinLines = ensureLineCapacity(this.mThinLines, maxLines);
+        this.mThickLines = ensureLineCapacity(this.mThickLines, maxLines);
+        int thinCount = 0;
+        int thickCount = 0;
+
+        // Start slightly offscreen; with a negative origin (as used when
+        // rendering map tiles) the offset is negative too, and the last line
+        // would otherwise fall short of the far edge.
+        for (int i = -1; i <= numSquaresHorizontal + 1; ++i) {
+            float x = i * squareSize + offsetX;
             if ((i - thickLineStartX) % MAJOR_GRID_LINE_FREQUENCY == 0) {
-                currentPaint = (shouldDrawMinorLines
-                        ? thickPaint
-                        : thinPaint);
-                shouldDrawCurrentLine = shouldDrawMajorLines;
-            } else {
-                currentPaint = thinPaint;
-                shouldDrawCurrentLine = shouldDrawMinorLines;
-            }
-
-            if (shouldDrawCurrentLine) {
-                canvas.drawLine(i * squareSize + offsetX, 0, i * squareSize
-                        + offsetX, height, currentPaint);
+                if (!shouldDrawMajorLines) {
+                    continue;
+                }
+                if (shouldDrawMinorLines) {
+                    thickCount = addLine(this.mThickLines, thickCount, x, 0, x, height);
+                } else {
+                    thinCount = addLine(this.mThinLines, thinCount, x, 0, x, height);
+                }
+            } else if (shouldDrawMinorLines) {
+                thinCount = addLine(this.mThinLines, thinCount, x, 0, x, height);
             }
         }
 
-        for (int i = 0; i <= numSquaresVertical; ++i) {
+        for (int i = -1; i <= numSquaresVertical + 1; ++i) {
+            float y = i * squareSize + offsetY;
             if ((i - thickLineStartY) % MAJOR_GRID_LINE_FREQUENCY == 0) {
-                currentPaint = (shouldDrawMinorLines
-                        ? thickPaint
-                        : thinPaint);
-                shouldDrawCurrentLine = shouldDrawMajorLines;
-            } else {
-            	currentPaint = thinPaint;
-                shouldDrawCurrentLine = shouldDrawMinorLines;
-            }
-
-            if (shouldDrawCurrentLine) {
-                canvas.drawLine(0, i * squareSize + offsetY, width, i
-                        * squareSize + offsetY, currentPaint);
+                if (!shouldDrawMajorLines) {
+                    continue;
+                }
+                if (shouldDrawMinorLines) {
+                    thickCount = addLine(this.mThickLines, thickCount, 0, y, width, y);
+                } else {
+                    thinCount = addLine(this.mThinLines, thinCount, 0, y, width, y);
+                }
+            } else if (shouldDrawMinorLines) {
+                thinCount = addLine(this.mThinLines, thinCount, 0, y, width, y);
             }
         }
+
+        canvas.drawLines(this.mThinLines, 0, thinCount, this.mThinPaint);
+        canvas.drawLines(this.mThickLines, 0, thickCount, this.mThickPaint);
     }
 
     // Returns nearest snap point in grid space
@@ -0,0 +1,657 @@
+package com.tbocek.android.combatmap.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.RectF;
+
+import com.google.common.base.Predicate;
+import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
+import com.tbocek.android.combatmap.model.primitives.PointF;
+
+/**
+ * Uniform grid spatial index over objects with rectangular bounds. Each object
+ * is registered in every grid cell that its bounding rectangle touches, so
+ * point and rectangle queries only need to look at the handful of cells that
+ * overlap the query rather than at every object. Objects that would span an
+ * unreasonable number of cells are kept in a separate list that every query
+ * scans.
+ *
+ * Query results are conservative: every object whose bounds intersect the
+ * query is returned, but so may some objects that only share a cell with it.
+ * Callers should perform their own exact test on the results.
+ *
+ * This class is not thread safe.
+ *
+ * @param <T>
+ *            Type of the indexed objects.
+ * @author Tim
+ *
+ */
+final class SpatialIndex<T> {
+
+    /**
+     * Objects whose bounds span more than this many cells are not binned, and
+     * are instead checked by every query.
+     */
+    private static final int MAX_CELLS_PER_ENTRY = 256;
+
+    /**
+     * Size of each grid cell, in the coordinate space of the indexed bounds.
+     */
+    private final float mCellSize;
+
+    /**
+     * Order that query results are returned in: by the order given to the
+     * constructor, if any, and then by the sequence in which objects were
+     * added to the index.
+     */
+    private final Comparator<Entry<T>> mResultOrder;
+
+    /**
+     * Map from packed cell coordinates to the entries in that cell.
+     */
+    private Map<Long, List<Entry<T>>> mCells =
+            new HashMap<Long, List<Entry<T>>>();
+
+    /**
+     * Map from indexed object to its entry.
+     */
+    private Map<T, Entry<T>> mEntries = new HashMap<T, Entry<T>>();
+
+    /**
+     * Entries that are too large to bin.
+     */
+    private List<Entry<T>> mOversized = new ArrayList<Entry<T>>();
+
+    /**
+     * Sequence number to assign to the next inserted entry.
+     */
+    private long mNextSequence;
+
+    /**
+     * Stamp used to avoid returning an entry twice from the same query.
+     */
+    private int mQueryStamp;
+
+    /**
+     * Cached union of the bounds of all indexed objects. Null if it needs to
+     * be recomputed.
+     */
+    private BoundingRectangle mTotalBounds = new BoundingRectangle();
+
+    /**
+     * Scratch list reused across queries.
+     */
+    private List<Entry<T>> mScratch = new ArrayList<Entry<T>>();
+
+    /**
+     * Constructor for an index whose query results are in insertion order.
+     *
+     * @param cellSize
+     *            Size of each grid cell.
+     */
+    SpatialIndex(float cellSize) {
+        this(cellSize, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cellSize
+     *            Size of each grid cell.
+     * @param order
+     *            Order to return query results in, so that callers that need
+     *            them in a particular order do not have to sort them again.
+     *            Objects that it considers equal are returned in insertion
+     *            order. Null to return everything in insertion order. The
+     *            order of an object must not change while it is indexed.
+     */
+    SpatialIndex(float cellSize, final Comparator<? super T> order) {
+        this.mCellSize = cellSize;
+        this.mResultOrder = new Comparator<Entry<T>>() {
+            @Override
+            public int compare(Entry<T> lhs, Entry<T> rhs) {
+                if (order != null) {
+                    int c = order.compare(lhs.mObject, rhs.mObject);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return lhs.mSequence < rhs.mSequence ? -1
+                        : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+            }
+        };
+    }
+
+    /**
+     * Removes all objects from the index.
+     */
+    void clear() {
+        this.mCells.clear();
+        this.mEntries.clear();
+        this.mOversized.clear();
+        this.mTotalBounds = new BoundingRectangle();
+    }
+
+    /**
+     * @param o
+     *            The object to check.
+     * @return True if the object is in the index.
+     */
+    boolean contains(T o) {
+        return this.mEntries.containsKey(o);
+    }
+
+    /**
+     * Adds an object to the index. If the object is already indexed, this is
+     * equivalent to calling update.
+     *
+     * @param o
+     *            The object to add.
+     * @param bounds
+     *            The object's bounds.
+     */
+    void insert(T o, BoundingRectangle bounds) {
+        if (this.mEntries.containsKey(o)) {
+            this.update(o, bounds);
+            return;
+        }
+        Entry<T> e = new Entry<T>(o, this.mNextSequence++);
+        this.mEntries.put(o, e);
+        this.bin(e, bounds);
+    }
+
+    /**
+     * Removes an object from the index.
+     *
+     * @param o
+     *            The object to remove.
+     */
+    void remove(T o) {
+        Entry<T> e = this.mEntries.remove(o);
+        if (e != null) {
+            this.unbin(e);
+            // The union may shrink, recompute lazily.
+            this.mTotalBounds = null;
+        }
+    }
+
+    /**
+     * Swaps an indexed object for another one, which takes over the original
+     * object's place in the insertion order.
+     *
+     * @param o
+     *            The object to replace.
+     * @param replacement
+     *            The object to index in its place.
+     * @param bounds
+     *            The replacement's bounds.
+     */
+    void replace(T o, T replacement, BoundingRectangle bounds) {
+        Entry<T> old = this.mEntries.remove(o);
+        if (old == null) {
+            this.insert(replacement, bounds);
+            return;
+        }
+        this.unbin(old);
+        this.mTotalBounds = null;
+        Entry<T> e = new Entry<T>(replacement, old.mSequence);
+        this.mEntries.put(replacement, e);
+        this.bin(e, bounds);
+    }
+
+    /**
+     * Re-bins an object after its bounds changed. The object keeps its
+     * original insertion order.
+     *
+     * @param o
+     *            The object to update.
+     * @param bounds
+     *            The object's new bounds.
+     */
+    void update(T o, BoundingRectangle bounds) {
+        Entry<T> e = this.mEntries.get(o);
+        if (e == null) {
+            this.insert(o, bounds);
+            return;
+        }
+        if (e.hasSameBounds(bounds)) {
+            return;
+        }
+        this.unbin(e);
+        this.bin(e, bounds);
+        this.mTotalBounds = null;
+    }
+
+    /**
+     * @param o
+     *            The object to look up.
+     * @return A copy of the bounds the object was last indexed with, or null
+     *         if the object is not indexed.
+     */
+    BoundingRectangle getBounds(T o) {
+        Entry<T> e = this.mEntries.get(o);
+        if (e == null) {
+            return null;
+        }
+        BoundingRectangle r = new BoundingRectangle();
+        if (!e.isEmpty()) {
+            e.updateBounds(r);
+        }
+        return r;
+    }
+
+    /**
+     * @return The smallest rectangle enclosing the bounds of every indexed
+     *         object.
+     */
+    BoundingRectangle getBoundingRectangle() {
+        if (this.mTotalBounds == null) {
+            BoundingRectangle r = new BoundingRectangle();
+            for (Entry<T> e : this.mEntries.values()) {
+                if (!e.isEmpty()) {
+                    e.updateBounds(r);
+                }
+            }
+            this.mTotalBounds = r;
+        }
+        BoundingRectangle copy = new BoundingRectangle();
+        copy.updateBounds(this.mTotalBounds);
+        return copy;
+    }
+
+    /**
+     * Finds objects whose cells contain the given point.
+     *
+     * @param p
+     *            The point to query.
+     * @param result
+     *            Collection to add candidates to, in result order.
+     */
+    void query(PointF p, Collection<T> result) {
+        this.query(p.x, p.y, p.x, p.y, result);
+    }
+
+    /**
+     * Finds objects whose cells intersect the given rectangle.
+     *
+     * @param r
+     *            The rectangle to query.
+     * @param result
+     *            Collection to add candidates to, in result order.
+     */
+    void query(RectF r, Collection<T> result) {
+        this.query(r.left, r.top, r.right, r.bottom, result);
+    }
+
+    /**
+     * Finds objects whose cells intersect the given rectangle.
+     *
+     * @param xMin
+     *            Left edge of the query.
+     * @param yMin
+     *            Top edge of the query.
+     * @param xMax
+     *            Right edge of the query.
+     * @param yMax
+     *            Bottom edge of the query.
+     * @param result
+     *            Collection to add candidates to, in result order.
+     */
+    void query(float xMin, float yMin, float xMax, float yMax,
+            Collection<T> result) {
+        int stamp = ++this.mQueryStamp;
+        List<Entry<T>> found = this.mScratch;
+        found.clear();
+
+        for (Entry<T> e : this.mOversized) {
+            if (e.intersects(xMin, yMin, xMax, yMax)) {
+                e.mStamp = stamp;
+                found.add(e);
+            }
+        }
+
+        int cx0 = this.cellCoord(xMin);
+        int cy0 = this.cellCoord(yMin);
+        int cx1 = this.cellCoord(xMax);
+        int cy1 = this.cellCoord(yMax);
+        long cellCount = ((long) cx1 - cx0 + 1) * ((long) cy1 - cy0 + 1);
+        if (cellCount > this.mCells.size()) {
+            // Cheaper to walk the occupied cells than the requested ones.
+            for (Map.Entry<Long, List<Entry<T>>> cell : this.mCells
+                    .entrySet()) {
+                long key = cell.getKey();
+                int cx = (int) (key >> 32);
+                int cy = (int) key;
+                if (cx >= cx0 && cx <= cx1 && cy >= cy0 && cy <= cy1) {
+                    this.collect(cell.getValue(), stamp, xMin, yMin, xMax,
+                            yMax, found);
+                }
+            }
+        } else {
+            for (long cx = cx0; cx <= cx1; ++cx) {
+                for (long cy = cy0; cy <= cy1; ++cy) {
+                    List<Entry<T>> cell = this.mCells.get(cellKey(cx, cy));
+                    if (cell != null) {
+                        this.collect(cell, stamp, xMin, yMin, xMax, yMax,
+                                found);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(found, this.mResultOrder);
+        for (Entry<T> e : found) {
+            result.add(e.mObject);
+        }
+        found.clear();
+    }
+
+    /**
+     * Finds the object whose bounds are closest to the given point. Searches
+     * outward ring by ring, so only cells near the point are examined.
+     *
+     * @param p
+     *            The point to search from.
+     * @param maxDistance
+     *            Objects whose bounds are farther away than this are ignored.
+     * @param filter
+     *            Only objects matching this predicate are considered, or null
+     *            to consider everything.
+     * @return The closest object, or null if none is within range.
+     */
+    T findNearest(PointF p, float maxDistance, Predicate<? super T> filter) {
+        int stamp = ++this.mQueryStamp;
+        Entry<T> best = null;
+        float bestDistance = maxDistance;
+
+        for (Entry<T> e : this.mOversized) {
+            e.mStamp = stamp;
+            float d = e.distanceTo(p.x, p.y);
+            if (d <= bestDistance
+                    && (filter == null || filter.apply(e.mObject))) {
+                best = e;
+                bestDistance = d;
+            }
+        }
+
+        if (this.mCells.isEmpty()) {
+            return best != null ? best.mObject : null;
+        }
+
+        int cx = this.cellCoord(p.x);
+        int cy = this.cellCoord(p.y);
+
+        // Never search farther out than the outermost occupied cell.
+        BoundingRectangle total = this.getBoundingRectangle();
+        long ringsToCover =
+                Math.max(
+                        Math.max(Math.abs((long) cx
+                                - this.cellCoord(total.getXMin())),
+                                Math.abs((long) cx
+                                        - this.cellCoord(total.getXMax()))),
+                        Math.max(Math.abs((long) cy
+                                - this.cellCoord(total.getYMin())),
+                                Math.abs((long) cy
+                                        - this.cellCoord(total.getYMax()))));
+        long maxRing =
+                Math.min((long) Math.ceil(maxDistance / this.mCellSize),
+                        ringsToCover);
+        for (long ring = 0; ring <= maxRing; ++ring) {
+            // Every cell in this ring is at least (ring - 1) cells away.
+            if (best != null && (ring - 1) * this.mCellSize > bestDistance) {
+                break;
+            }
+            for (long x = cx - ring; x <= cx + ring; ++x) {
+                for (long y = cy - ring; y <= cy + ring; ++y) {
+                    if (Math.abs(x - cx) != ring && Math.abs(y - cy) != ring) {
+                        continue;
+                    }
+                    List<Entry<T>> cell = this.mCells.get(cellKey(x, y));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Entry<T> e : cell) {
+                        if (e.mStamp == stamp) {
+                            continue;
+                        }
+                        e.mStamp = stamp;
+                        float d = e.distanceTo(p.x, p.y);
+                        if (d <= bestDistance
+                                && (filter == null || filter.apply(e.mObject))) {
+                            best = e;
+                            bestDistance = d;
+                        }
+                    }
+                }
+            }
+        }
+        return best != null ? best.mObject : null;
+    }
+
+    /**
+     * @return The number of indexed objects.
+     */
+    int size() {
+        return this.mEntries.size();
+    }
+
+    /**
+     * Adds entries from the given cell that intersect the query and have not
+     * been seen yet in this query.
+     */
+    private void collect(List<Entry<T>> cell, int stamp, float xMin,
+            float yMin, float xMax, float yMax, List<Entry<T>> found) {
+        for (Entry<T> e : cell) {
+            if (e.mStamp != stamp && e.intersects(xMin, yMin, xMax, yMax)) {
+                e.mStamp = stamp;
+                found.add(e);
+            }
+        }
+    }
+
+    /**
+     * Records the given bounds in the entry and adds it to the cells those
+     * bounds cover.
+     */
+    private void bin(Entry<T> e, BoundingRectangle bounds) {
+        e.setBounds(bounds);
+        if (this.mTotalBounds != null && !e.isEmpty()) {
+            e.updateBounds(this.mTotalBounds);
+        }
+        if (e.isEmpty()) {
+            return;
+        }
+
+        int cx0 = this.cellCoord(e.mXMin);
+        int cy0 = this.cellCoord(e.mYMin);
+        int cx1 = this.cellCoord(e.mXMax);
+        int cy1 = this.cellCoord(e.mYMax);
+        if (((long) cx1 - cx0 + 1) * ((long) cy1 - cy0 + 1) > MAX_CELLS_PER_ENTRY) {
+            e.mOversized = true;
+            this.mOversized.add(e);
+            return;
+        }
+
+        for (long cx = cx0; cx <= cx1; ++cx) {
+            for (long cy = cy0; cy <= cy1; ++cy) {
+                Long key = cellKey(cx, cy);
+                List<Entry<T>> cell = this.mCells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<Entry<T>>(4);
+                    this.mCells.put(key, cell);
+                }
+                cell.add(e);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry from every cell it was binned into.
+     */
+    private void unbin(Entry<T> e) {
+        if (e.isEmpty()) {
+            return;
+        }
+        if (e.mOversized) {
+            this.mOversized.remove(e);
+            e.mOversized = false;
+            return;
+        }
+        int cx0 = this.cellCoord(e.mXMin);
+        int cy0 = this.cellCoord(e.mYMin);
+        int cx1 = this.cellCoord(e.mXMax);
+        int cy1 = this.cellCoord(e.mYMax);
+        for (long cx = cx0; cx <= cx1; ++cx) {
+            for (long cy = cy0; cy <= cy1; ++cy) {
+                Long key = cellKey(cx, cy);
+                List<Entry<T>> cell = this.mCells.get(key);
+                if (cell != null) {
+                    cell.remove(e);
+                    if (cell.isEmpty()) {
+                        this.mCells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a coordinate to the index of the cell containing it.
+     */
+    private int cellCoord(float v) {
+        float c = (float) Math.floor(v / this.mCellSize);
+        if (c >= Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        } else if (c <= Integer.MIN_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+        return (int) c;
+    }
+
+    /**
+     * Packs two cell coordinates into one map key.
+     */
+    private static Long cellKey(long cx, long cy) {
+        return Long.valueOf((cx << 32) | (cy & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Bookkeeping for a single indexed object.
+     *
+     * @param <T>
+     *            Type of the indexed object.
+     */
+    private static final class Entry<T> {
+        /**
+         * The indexed object.
+         */
+        private final T mObject;
+
+        /**
+         * Order in which this object was added to the index.
+         */
+        private final long mSequence;
+
+        /**
+         * Last query that visited this entry.
+         */
+        private int mStamp;
+
+        /**
+         * Whether this entry is in the oversized list rather than binned.
+         */
+        private boolean mOversized;
+
+        /**
+         * Indexed left bounds.
+         */
+        private float mXMin;
+
+        /**
+         * Indexed right bounds.
+         */
+        private float mXMax;
+
+        /**
+         * Indexed top bounds.
+         */
+        private float mYMin;
+
+        /**
+         * Indexed bottom bounds.
+         */
+        private float mYMax;
+
+        /**
+         * Constructor.
+         *
+         * @param o
+         *            The indexed object.
+         * @param sequence
+         *            Insertion order of the object.
+         */
+        Entry(T o, long sequence) {
+            this.mObject = o;
+            this.mSequence = sequence;
+        }
+
+        /**
+         * Snapshots the given bounds.
+         */
+        void setBounds(BoundingRectangle r) {
+            this.mXMin = r.getXMin();
+            this.mXMax = r.getXMax();
+            this.mYMin = r.getYMin();
+            this.mYMax = r.getYMax();
+        }
+
+        /**
+         * @return True if the snapshot matches the given bounds.
+         */
+        boolean hasSameBounds(BoundingRectangle r) {
+            return this.mXMin == r.getXMin() && this.mXMax == r.getXMax()
+                    && this.mYMin == r.getYMin() && this.mYMax == r.getYMax();
+        }
+
+        /**
+         * @return True if the bounds do not contain any point. This is the
+         *         case for shapes that have not had points added yet.
+         */
+        boolean isEmpty() {
+            return !(this.mXMin <= this.mXMax && this.mYMin <= this.mYMax);
+        }
+
+        /**
+         * @return True if the snapshot intersects the given rectangle.
+         */
+        boolean intersects(float xMin, float yMin, float xMax, float yMax) {
+            return this.mXMin <= xMax && this.mXMax >= xMin
+                    && this.mYMin <= yMax && this.mYMax >= yMin;
+        }
+
+        /**
+         * @return Distance from the given point to the snapshot, or 0 if the
+         *         point is inside it.
+         */
+        float distanceTo(float x, float y) {
+            float dx = Math.max(Math.max(this.mXMin - x, x - this.mXMax), 0);
+            float dy = Math.max(Math.max(this.mYMin - y, y - this.mYMax), 0);
+            return (float) Math.sqrt(dx * dx + dy * dy);
+        }
+
+        /**
+         * Grows the given rectangle to include the snapshot.
+         */
+        void updateBounds(BoundingRectangle r) {
+            r.updateBounds(new PointF(this.mXMin, this.mYMin));
+            r.updateBounds(new PointF(this.mXMax, this.mYMax));
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.List;
 
 import android.graphics.Canvas;
+import android.graphics.RectF;
 
 import com.google.common.collect.Lists;
 import com.tbocek.android.combatmap.TokenDatabase;
@@ -25,6 +26,12 @@ import com.tbocek.android.combatmap.model.primitives.Util;
  */
 public final class TokenCollection implements UndoRedoTarget {
 
+    /**
+     * Size of a spatial index cell, in grid space. Most tokens are one or two
+     * grid squares across, so each token lands in only a few cells.
+     */
+    private static final float INDEX_CELL_SIZE = 2.0f;
+
     /**
      * Command that is checkpointed to while modifying a token, so that the
      * state can be saved for undo/redo.
@@ -41,6 +48,33 @@ public final class TokenCollection implements UndoRedoTarget {
      */
     private List<BaseToken> mTokens = new ArrayList<BaseToken>();
 
+    /**
+     * Spatial index over the grid space bounds of every token in mTokens.
+     */
+    private transient SpatialIndex<BaseToken> mIndex =
+            new SpatialIndex<BaseToken>(INDEX_CELL_SIZE);
+
+    /**
+     * Tokens that have been checkpointed for modification. Their location and
+     * size can be changed directly by whoever checkpointed them, so they are
+     * re-binned before each query until the checkpoint is resolved.
+     */
+    private transient List<BaseToken> mLiveTokens = new ArrayList<BaseToken>();
+
+    /**
+     * OPTIMIZATION: Preallocated list that receives spatial index query
+     * results.
+     */
+    private transient List<BaseToken> mQueryResults =
+            new ArrayList<BaseToken>();
+
+    /**
+     * Number of times that tokens were changed outside of the command
+     * history: checkpointed for modification, restored after an abandoned
+     * modification, or swapped for real tokens in place of placeholders.
+     */
+    private transient long mChangeCount;
+
     /**
      * Constructor.
      * 
@@ -66,6 +100,15 @@ public final class TokenCollection implements UndoRedoTarget {
         return this.mTokens;
     }
 
+    /**
+     * @return A counter that increases whenever tokens may have changed
+     *         outside of the command history. Together with the history's
+     *         revision, it tells whether the tokens changed.
+     */
+    public long getChangeCount() {
+        return this.mChangeCount;
+    }
+
     @Override
     public boolean canRedo() {
         return this.mCommandHistory.canRedo();
@@ -98,7 +141,12 @@ public final class TokenCollection implements UndoRedoTarget {
      *            List of tokens to checkpoint.
      */
     public void checkpointTokens(Collection<BaseToken> l) {
-        this.mBuildingCommand = new ModifyTokenCommand(l);
+        // The tokens are modified directly from now until the command is
+        // added to the history.
+        this.mChangeCount++;
+        this.retireLiveTokens();
+        this.mLiveTokens.addAll(l);
+        this.mBuildingCommand = new ModifyTokenCommand(this, l);
         this.mBuildingCommand.checkpointBeforeState();
     }
 
@@ -114,6 +162,7 @@ public final class TokenCollection implements UndoRedoTarget {
             this.mCommandHistory.addToCommandHistory(this.mBuildingCommand);
             this.mBuildingCommand = null;
         }
+        this.retireLiveTokens();
     }
 
     /**
@@ -128,7 +177,10 @@ public final class TokenCollection implements UndoRedoTarget {
                     this.mTokens.get(i).deplaceholderize(tokenDatabase);
             if (realToken != this.mTokens.get(i)) {
                 this.mTokens.get(i).copyAttributesTo(realToken);
+                this.mIndex.replace(this.mTokens.get(i), realToken,
+                        realToken.getBoundingRectangle());
                 this.mTokens.set(i, realToken);
+                this.mChangeCount++;
             }
         }
     }
@@ -147,30 +199,50 @@ public final class TokenCollection implements UndoRedoTarget {
             throws IOException {
         int arrayLevel = s.expectArrayStart();
         while (s.hasMoreArrayItems(arrayLevel)) {
-            this.mTokens.add(BaseToken.deserialize(s, tokenDatabase));
+            BaseToken t = BaseToken.deserialize(s, tokenDatabase);
+            this.mTokens.add(t);
+            this.indexToken(t);
         }
         s.expectArrayEnd();
     }
 
     /**
-     * Draws all tokens.
+     * Draws the tokens that are within the given region.
      * 
      * @param canvas
      *            The canvas to draw on.
      * @param transformer
      *            Transformer from grid space to screen space.
+     * @param gridSpaceBounds
+     *            The visible region, in grid space.
      * @param isDark
      *            Whether to draw as if on a dark background.
      * @param isManipulatable
      *            Whether tokens can currently be manipulated.
+     * @return The number of tokens that were skipped because they fell
+     *         outside the visible region.
      */
-    public void drawAllTokens(final Canvas canvas,
-            final CoordinateTransformer transformer, boolean isDark,
-            boolean isManipulatable) {
-        for (int i = 0; i < this.mTokens.size(); ++i) {
-            this.mTokens.get(i).drawInPosition(canvas, transformer, isDark,
+    public int drawAllTokens(final Canvas canvas,
+            final CoordinateTransformer transformer, RectF gridSpaceBounds,
+            boolean isDark, boolean isManipulatable) {
+        this.refreshLiveTokens();
+        // Borders and selection indicators are drawn in screen space around
+        // the token, so pad the query by their width.
+        float margin =
+                transformer
+                        .screenSpaceToWorldSpace(2 * BaseToken.SELECTION_STROKE_WIDTH);
+        List<BaseToken> visible = this.mQueryResults;
+        visible.clear();
+        this.mIndex.query(gridSpaceBounds.left - margin, gridSpaceBounds.top
+                - margin, gridSpaceBounds.right + margin,
+                gridSpaceBounds.bottom + margin, visible);
+        for (int i = 0; i < visible.size(); ++i) {
+            visible.get(i).drawInPosition(canvas, transformer, isDark,
                     isManipulatable);
         }
+        int culled = this.mTokens.size() - visible.size();
+        visible.clear();
+        return culled;
     }
 
     /**
@@ -180,11 +252,8 @@ public final class TokenCollection implements UndoRedoTarget {
      * @return The bounding rectangle.
      */
     public BoundingRectangle getBoundingRectangle() {
-        BoundingRectangle r = new BoundingRectangle();
-        for (BaseToken t : this.mTokens) {
-            r.updateBounds(t.getBoundingRectangle());
-        }
-        return r;
+        this.refreshLiveTokens();
+        return this.mIndex.getBoundingRectangle();
     }
 
     /**
@@ -198,17 +267,23 @@ public final class TokenCollection implements UndoRedoTarget {
      */
     public BaseToken getTokenUnderPoint(final PointF p,
             final CoordinateTransformer transformer) {
-        for (int i = 0; i < this.mTokens.size(); ++i) {
+        this.refreshLiveTokens();
+        List<BaseToken> candidates = this.mQueryResults;
+        candidates.clear();
+        this.mIndex.query(transformer.screenSpaceToWorldSpace(p), candidates);
+        BaseToken found = null;
+        for (int i = 0; i < candidates.size(); ++i) {
+            BaseToken t = candidates.get(i);
             float distance =
-                    Util.distance(p, transformer
-                            .worldSpaceToScreenSpace(this.mTokens.get(i)
-                                    .getLocation()));
-            if (distance < transformer.worldSpaceToScreenSpace(this.mTokens
-                    .get(i).getSize() / 2)) {
-                return this.mTokens.get(i);
+                    Util.distance(p,
+                            transformer.worldSpaceToScreenSpace(t.getLocation()));
+            if (distance < transformer.worldSpaceToScreenSpace(t.getSize() / 2)) {
+                found = t;
+                break;
             }
         }
-        return null;
+        candidates.clear();
+        return found;
     }
 
     /**
@@ -233,13 +308,25 @@ public final class TokenCollection implements UndoRedoTarget {
      */
     private boolean
     isLocationUnoccupied(final PointF point, final double radius) {
-        for (BaseToken t : this.mTokens) {
+        this.refreshLiveTokens();
+        List<BaseToken> candidates = this.mQueryResults;
+        candidates.clear();
+        // Any token close enough to intersect must have bounds that overlap
+        // the square around the attempted circle.
+        float r = (float) radius;
+        this.mIndex.query(point.x - r, point.y - r, point.x + r, point.y + r,
+                candidates);
+        boolean unoccupied = true;
+        for (int i = 0; i < candidates.size(); ++i) {
+            BaseToken t = candidates.get(i);
             if (Util.distance(point, t.getLocation()) < radius + t.getSize()
                     / 2) {
-                return false;
+                unoccupied = false;
+                break;
             }
         }
-        return true;
+        candidates.clear();
+        return unoccupied;
     }
 
     /**
@@ -349,7 +436,9 @@ public final class TokenCollection implements UndoRedoTarget {
         if (this.mBuildingCommand != null) {
             this.mBuildingCommand.undo();
             this.mBuildingCommand = null;
+            this.mChangeCount++;
         }
+        this.retireLiveTokens();
     }
 
     /**
@@ -381,11 +470,47 @@ public final class TokenCollection implements UndoRedoTarget {
     private boolean tryToPlaceHere(final BaseToken t, final PointF point) {
         if (this.isLocationUnoccupied(point, t.getSize() / 2)) {
             t.setLocation(point);
+            if (this.mIndex.contains(t)) {
+                this.indexToken(t);
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Adds the token to the spatial index, or re-bins it if it is already
+     * indexed.
+     * 
+     * @param t
+     *            The token to index.
+     */
+    private void indexToken(BaseToken t) {
+        this.mIndex.update(t, t.getBoundingRectangle());
+    }
+
+    /**
+     * Re-bins every checkpointed token that is still in the collection, so
+     * that queries see the result of any direct modifications.
+     */
+    private void refreshLiveTokens() {
+        for (int i = 0; i < this.mLiveTokens.size(); ++i) {
+            BaseToken t = this.mLiveTokens.get(i);
+            if (this.mIndex.contains(t)) {
+                this.indexToken(t);
+            }
+        }
+    }
+
+    /**
+     * Brings the index up to date with the checkpointed tokens and stops
+     * tracking them.
+     */
+    private void retireLiveTokens() {
+        this.refreshLiveTokens();
+        this.mLiveTokens.clear();
+    }
+
     /**
      * Undoes the current operation in the token collection's command history.
      */
@@ -427,6 +552,7 @@ public final class TokenCollection implements UndoRedoTarget {
         @Override
         public void execute() {
             this.mCollection.mTokens.add(this.mToAdd);
+            this.mCollection.indexToken(this.mToAdd);
         }
 
         @Override
@@ -437,7 +563,7 @@ public final class TokenCollection implements UndoRedoTarget {
         @Override
         public void undo() {
             this.mCollection.mTokens.remove(this.mToAdd);
-
+            this.mCollection.mIndex.remove(this.mToAdd);
         }
     }
 
@@ -459,6 +585,11 @@ public final class TokenCollection implements UndoRedoTarget {
          */
         private List<BaseToken> mBeforeState = Lists.newArrayList();
 
+        /**
+         * Token collection whose index needs to follow the modified tokens.
+         */
+        private TokenCollection mCollection;
+
         /**
          * The token that this command modifies. Should always be the "live"
          * version of the token.
@@ -468,10 +599,14 @@ public final class TokenCollection implements UndoRedoTarget {
         /**
          * Constructor.
          * 
+         * @param collection
+         *            The token collection that owns the tokens.
          * @param tokens
          *            List of tokens that this command modifies.
          */
-        public ModifyTokenCommand(Collection<BaseToken> tokens) {
+        public ModifyTokenCommand(TokenCollection collection,
+                Collection<BaseToken> tokens) {
+            this.mCollection = collection;
             this.mTokensToModify = new ArrayList<BaseToken>(tokens);
         }
 
@@ -499,6 +634,7 @@ public final class TokenCollection implements UndoRedoTarget {
                 this.mAfterState.get(i).copyAttributesTo(
                         this.mTokensToModify.get(i));
             }
+            this.reindex();
         }
 
         @Override
@@ -512,6 +648,18 @@ public final class TokenCollection implements UndoRedoTarget {
                 this.mBeforeState.get(i).copyAttributesTo(
                         this.mTokensToModify.get(i));
             }
+            this.reindex();
+        }
+
+        /**
+         * Re-bins the modified tokens that are still in the collection.
+         */
+        private void reindex() {
+            for (BaseToken t : this.mTokensToModify) {
+                if (this.mCollection.mIndex.contains(t)) {
+                    this.mCollection.indexToken(t);
+                }
+            }
         }
 
     }
@@ -568,6 +716,7 @@ public final class TokenCollection implements UndoRedoTarget {
         public void execute() {
             for (BaseToken t : this.mToRemove) {
                 this.mCollection.mTokens.remove(t);
+                this.mCollection.mIndex.remove(t);
             }
         }
 
@@ -579,6 +728,9 @@ public final class TokenCollection implements UndoRedoTarget {
         @Override
         public void undo() {
             this.mCollection.mTokens.addAll(this.mToRemove);
+            for (BaseToken t : this.mToRemove) {
+                this.mCollection.indexToken(t);
+            }
         }
     }
 }
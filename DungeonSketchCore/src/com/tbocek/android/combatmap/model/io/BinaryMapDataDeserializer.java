@@ -0,0 +1,293 @@
+package com.tbocek.android.combatmap.model.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads map data written in the compact binary encoding described in
+ * BinaryMapFormat, through the same hooks as the text deserializer.
+ *
+ * @author Tim
+ *
+ */
+public class BinaryMapDataDeserializer extends MapDataDeserializer {
+    /**
+     * Size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Stream to read data from, or null if all of the data is in mBuffer.
+     */
+    private InputStream mIn;
+
+    /**
+     * OPTIMIZATION: Preallocated buffer of bytes read from the stream.
+     */
+    private byte[] mBuffer;
+
+    /**
+     * Position of the next unread byte in mBuffer.
+     */
+    private int mBufferPosition;
+
+    /**
+     * End of the valid bytes in mBuffer.
+     */
+    private int mBufferLength;
+
+    /**
+     * The current number of nested arrays.
+     */
+    private int mArrayLevel;
+
+    /**
+     * Strings read so far, by their index in the string table.
+     */
+    private List<String> mStringTable = new ArrayList<String>();
+
+    /**
+     * Constructor. Reads and checks the binary format header.
+     *
+     * @param in
+     *            The stream to read from.
+     * @throws IOException
+     *             If the stream does not hold a supported binary map.
+     */
+    public BinaryMapDataDeserializer(InputStream in) throws IOException {
+        this.mIn = in;
+        this.mBuffer = new byte[BUFFER_SIZE];
+        for (byte b : BinaryMapFormat.MAGIC) {
+            if (this.readByte() != (b & 0xff)) {
+                throw new IOException("Not a binary map");
+            }
+        }
+        int version = this.readVarint();
+        if (version > BinaryMapFormat.FORMAT_VERSION) {
+            throw new IOException("Unsupported binary map format version "
+                    + version);
+        }
+    }
+
+    /**
+     * Constructor that reads headerless map data from part of an array, as
+     * sections of a sectioned map are stored. The array is not copied.
+     *
+     * @param data
+     *            Array holding the data.
+     * @param offset
+     *            Offset of the data in the array.
+     * @param length
+     *            Length of the data.
+     */
+    BinaryMapDataDeserializer(byte[] data, int offset, int length) {
+        this.mBuffer = data;
+        this.mBufferPosition = offset;
+        this.mBufferLength = offset + length;
+    }
+
+    @Override
+    public void expectArrayEnd() throws IOException {
+        this.expectTag(BinaryMapFormat.TAG_ARRAY_END, "array end");
+        this.mArrayLevel--;
+    }
+
+    @Override
+    public int expectArrayStart() throws IOException {
+        this.expectTag(BinaryMapFormat.TAG_ARRAY_START, "array start");
+        this.mArrayLevel++;
+        // Return the array level at which this array will end.
+        return this.mArrayLevel - 1;
+    }
+
+    @Override
+    public void expectObjectEnd() throws IOException {
+        this.expectTag(BinaryMapFormat.TAG_OBJECT_END, "object end");
+    }
+
+    @Override
+    public void expectObjectStart() throws IOException {
+        this.expectTag(BinaryMapFormat.TAG_OBJECT_START, "object start");
+    }
+
+    @Override
+    public int getArrayLevel() {
+        return this.mArrayLevel;
+    }
+
+    @Override
+    public boolean hasMoreArrayItems(int terminateAtArrayLevel)
+            throws IOException {
+        return this.peekByte() != BinaryMapFormat.TAG_ARRAY_END;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        int tag = this.readByte();
+        if (tag == BinaryMapFormat.TAG_TRUE) {
+            return true;
+        } else if (tag == BinaryMapFormat.TAG_FALSE) {
+            return false;
+        }
+        throw new SyncException("Expected boolean, got tag " + tag);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        this.expectTag(BinaryMapFormat.TAG_FLOAT, "float");
+        return this.readRawFloat();
+    }
+
+    @Override
+    public float[] readCoordinates() throws IOException {
+        int tag = this.readByte();
+        if (tag == BinaryMapFormat.TAG_RAW_COORDINATES) {
+            float[] coordinates = new float[this.readVarint()];
+            for (int i = 0; i < coordinates.length; ++i) {
+                coordinates[i] = this.readRawFloat();
+            }
+            return coordinates;
+        } else if (tag == BinaryMapFormat.TAG_QUANTIZED_COORDINATES) {
+            float[] coordinates = new float[this.readVarint()];
+            double quantum = Math.scalb(1.0, unzigzag(this.readVarint()));
+            // Holds the last quantized value of each coordinate of a point.
+            int[] previous = new int[BinaryMapFormat.COORDINATES_PER_POINT];
+            for (int i = 0; i < coordinates.length; ++i) {
+                int p = i % BinaryMapFormat.COORDINATES_PER_POINT;
+                previous[p] += unzigzag(this.readVarint());
+                coordinates[i] = (float) (previous[p] * quantum);
+            }
+            return coordinates;
+        }
+        throw new SyncException("Expected coordinates, got tag " + tag);
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        this.expectTag(BinaryMapFormat.TAG_INT, "int");
+        return unzigzag(this.readVarint());
+    }
+
+    @Override
+    public String readString() throws IOException {
+        int tag = this.readByte();
+        if (tag == BinaryMapFormat.TAG_STRING_REF) {
+            int index = this.readVarint();
+            if (index >= this.mStringTable.size()) {
+                throw new IOException("Bad string reference " + index);
+            }
+            return this.mStringTable.get(index);
+        } else if (tag == BinaryMapFormat.TAG_NEW_STRING) {
+            byte[] utf8 = new byte[this.readVarint()];
+            for (int i = 0; i < utf8.length; ++i) {
+                utf8[i] = (byte) this.readByte();
+            }
+            String value = new String(utf8, "UTF-8");
+            this.mStringTable.add(value);
+            return value;
+        }
+        throw new SyncException("Expected string, got tag " + tag);
+    }
+
+    /**
+     * Consumes a tag, throwing if it is not the expected one.
+     *
+     * @param expected
+     *            The expected tag.
+     * @param description
+     *            Description of the expected value, for the error message.
+     * @throws IOException
+     *             If a different tag was read.
+     */
+    private void expectTag(int expected, String description)
+            throws IOException {
+        int tag = this.readByte();
+        if (tag != expected) {
+            throw new SyncException("Expected " + description + ", got tag "
+                    + tag);
+        }
+    }
+
+    /**
+     * Reads the bits of a float, big endian.
+     *
+     * @return The read float.
+     * @throws IOException
+     *             On read error.
+     */
+    private float readRawFloat() throws IOException {
+        int bits = this.readByte() << 24;
+        bits |= this.readByte() << 16;
+        bits |= this.readByte() << 8;
+        bits |= this.readByte();
+        return Float.intBitsToFloat(bits);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @return The read value.
+     * @throws IOException
+     *             On read error, or if the varint is too long.
+     */
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            int b = this.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Consumes and returns the next byte.
+     *
+     * @return The byte, from 0 to 255.
+     * @throws IOException
+     *             On read error or at the end of the stream.
+     */
+    private int readByte() throws IOException {
+        int b = this.peekByte();
+        this.mBufferPosition++;
+        return b;
+    }
+
+    /**
+     * Returns the next byte without consuming it.
+     *
+     * @return The byte, from 0 to 255.
+     * @throws IOException
+     *             On read error or at the end of the stream.
+     */
+    private int peekByte() throws IOException {
+        if (this.mBufferPosition == this.mBufferLength) {
+            if (this.mIn == null) {
+                throw new EOFException("Unexpected end of binary map");
+            }
+            this.mBufferLength = this.mIn.read(this.mBuffer);
+            this.mBufferPosition = 0;
+            if (this.mBufferLength <= 0) {
+                this.mBufferLength = 0;
+                throw new EOFException("Unexpected end of binary map");
+            }
+        }
+        return this.mBuffer[this.mBufferPosition] & 0xff;
+    }
+
+    /**
+     * Reverses the zigzag encoding of a signed value.
+     *
+     * @param value
+     *            The zigzag encoded value.
+     * @return The signed value.
+     */
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
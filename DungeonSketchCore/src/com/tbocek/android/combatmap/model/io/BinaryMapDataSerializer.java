@@ -0,0 +1,297 @@
+package com.tbocek.android.combatmap.model.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes map data in the compact binary encoding described in
+ * BinaryMapFormat, through the same hooks as the text serializer.
+ *
+ * @author Tim
+ *
+ */
+public class BinaryMapDataSerializer extends MapDataSerializer {
+    /**
+     * Size of the write buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Bytes needed to write a raw float.
+     */
+    private static final int FLOAT_BYTES = 4;
+
+    /**
+     * Stream to write data to.
+     */
+    private OutputStream mOut;
+
+    /**
+     * OPTIMIZATION: Preallocated buffer of bytes not yet written to the
+     * stream.
+     */
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Number of bytes waiting in mBuffer.
+     */
+    private int mBufferLength;
+
+    /**
+     * Index in the string table of every string written so far.
+     */
+    private Map<String, Integer> mStringTable = new HashMap<String, Integer>();
+
+    /**
+     * OPTIMIZATION: Preallocated buffer for the quantized values of a
+     * coordinate run.
+     */
+    private int[] mQuantized = new int[0];
+
+    /**
+     * Constructor. Writes the binary format header.
+     *
+     * @param out
+     *            The stream to write map data to.
+     * @throws IOException
+     *             On write error.
+     */
+    public BinaryMapDataSerializer(OutputStream out) throws IOException {
+        this(out, true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param out
+     *            The stream to write map data to.
+     * @param writeHeader
+     *            Whether to write the binary format header. Sections of a
+     *            sectioned map are written without one.
+     * @throws IOException
+     *             On write error.
+     */
+    BinaryMapDataSerializer(OutputStream out, boolean writeHeader)
+            throws IOException {
+        this.mOut = out;
+        if (writeHeader) {
+            for (byte b : BinaryMapFormat.MAGIC) {
+                this.writeByte(b);
+            }
+            this.writeVarint(BinaryMapFormat.FORMAT_VERSION);
+        }
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_ARRAY_END);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_OBJECT_END);
+    }
+
+    @Override
+    public void serializeBoolean(boolean value) throws IOException {
+        this.writeByte(value ? BinaryMapFormat.TAG_TRUE
+                : BinaryMapFormat.TAG_FALSE);
+    }
+
+    @Override
+    public void serializeFloat(float value) throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_FLOAT);
+        this.writeRawFloat(value);
+    }
+
+    /**
+     * Writes a run of coordinates, quantized and delta encoded if that is
+     * smaller than writing them raw.
+     *
+     * @param coordinates
+     *            Buffer holding the coordinates.
+     * @param count
+     *            Number of coordinates to write from the start of the buffer.
+     * @throws IOException
+     *             On write error.
+     */
+    @Override
+    public void serializeCoordinates(float[] coordinates, int count)
+            throws IOException {
+        float maxAbs = 0;
+        for (int i = 0; i < count; ++i) {
+            float v = coordinates[i];
+            if (Float.isNaN(v) || Float.isInfinite(v)) {
+                this.writeRawCoordinates(coordinates, count);
+                return;
+            }
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+        }
+
+        int exponent =
+                (maxAbs == 0 ? 0 : Math.getExponent(maxAbs))
+                        - BinaryMapFormat.QUANTIZATION_BITS;
+        double quantum = Math.scalb(1.0, exponent);
+        if (this.mQuantized.length < count) {
+            this.mQuantized = new int[count];
+        }
+        int quantizedBytes = varintLength(zigzag(exponent));
+        for (int i = 0; i < count; ++i) {
+            this.mQuantized[i] = (int) Math.round(coordinates[i] / quantum);
+            int previous =
+                    i >= BinaryMapFormat.COORDINATES_PER_POINT ? this.mQuantized[i
+                            - BinaryMapFormat.COORDINATES_PER_POINT] : 0;
+            quantizedBytes += varintLength(zigzag(this.mQuantized[i] - previous));
+        }
+        if (quantizedBytes >= FLOAT_BYTES * count) {
+            this.writeRawCoordinates(coordinates, count);
+            return;
+        }
+
+        this.writeByte(BinaryMapFormat.TAG_QUANTIZED_COORDINATES);
+        this.writeVarint(count);
+        this.writeVarint(zigzag(exponent));
+        for (int i = 0; i < count; ++i) {
+            int previous =
+                    i >= BinaryMapFormat.COORDINATES_PER_POINT ? this.mQuantized[i
+                            - BinaryMapFormat.COORDINATES_PER_POINT] : 0;
+            this.writeVarint(zigzag(this.mQuantized[i] - previous));
+        }
+    }
+
+    @Override
+    public void serializeInt(int value) throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_INT);
+        this.writeVarint(zigzag(value));
+    }
+
+    @Override
+    public void serializeString(String value) throws IOException {
+        Integer index = this.mStringTable.get(value);
+        if (index != null) {
+            this.writeByte(BinaryMapFormat.TAG_STRING_REF);
+            this.writeVarint(index);
+            return;
+        }
+        this.mStringTable.put(value, this.mStringTable.size());
+        byte[] utf8 = value.getBytes("UTF-8");
+        this.writeByte(BinaryMapFormat.TAG_NEW_STRING);
+        this.writeVarint(utf8.length);
+        for (byte b : utf8) {
+            this.writeByte(b);
+        }
+    }
+
+    @Override
+    public void startArray() throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_ARRAY_START);
+    }
+
+    @Override
+    public void startObject() throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_OBJECT_START);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.mOut.write(this.mBuffer, 0, this.mBufferLength);
+        this.mBufferLength = 0;
+        this.mOut.flush();
+    }
+
+    /**
+     * Writes a run of coordinates as raw floats.
+     *
+     * @param coordinates
+     *            Buffer holding the coordinates.
+     * @param count
+     *            Number of coordinates to write from the start of the buffer.
+     * @throws IOException
+     *             On write error.
+     */
+    private void writeRawCoordinates(float[] coordinates, int count)
+            throws IOException {
+        this.writeByte(BinaryMapFormat.TAG_RAW_COORDINATES);
+        this.writeVarint(count);
+        for (int i = 0; i < count; ++i) {
+            this.writeRawFloat(coordinates[i]);
+        }
+    }
+
+    /**
+     * Writes the bits of a float, big endian.
+     *
+     * @param value
+     *            The float to write.
+     * @throws IOException
+     *             On write error.
+     */
+    private void writeRawFloat(float value) throws IOException {
+        int bits = Float.floatToRawIntBits(value);
+        this.writeByte(bits >>> 24);
+        this.writeByte(bits >>> 16);
+        this.writeByte(bits >>> 8);
+        this.writeByte(bits);
+    }
+
+    /**
+     * Writes an unsigned varint: seven bits per byte, least significant
+     * first, with the high bit set on every byte but the last.
+     *
+     * @param value
+     *            The value to write, treated as unsigned.
+     * @throws IOException
+     *             On write error.
+     */
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            this.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        this.writeByte(value);
+    }
+
+    /**
+     * Writes the low eight bits of a value.
+     *
+     * @param value
+     *            The byte to write.
+     * @throws IOException
+     *             On write error.
+     */
+    private void writeByte(int value) throws IOException {
+        if (this.mBufferLength == this.mBuffer.length) {
+            this.mOut.write(this.mBuffer, 0, this.mBufferLength);
+            this.mBufferLength = 0;
+        }
+        this.mBuffer[this.mBufferLength++] = (byte) value;
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that values of small magnitude
+     * have short varints.
+     *
+     * @param value
+     *            The signed value.
+     * @return The zigzag encoded value.
+     */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * @param value
+     *            A value, treated as unsigned.
+     * @return The number of bytes needed to write it as a varint.
+     */
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
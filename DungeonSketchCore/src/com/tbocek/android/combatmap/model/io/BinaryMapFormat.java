@@ -0,0 +1,188 @@
+package com.tbocek.android.combatmap.model.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Constants shared by the binary map encoding's serializer and deserializer.
+ *
+ * A binary map starts with MAGIC and a varint format version, followed by the
+ * same sequence of values that the text format would contain. Every value
+ * starts with a one byte tag, so that the deserializer can detect when it is
+ * out of sync the same way it does for text. Ints are zigzag varints, floats
+ * are raw IEEE 754 bits, and strings are written once and then referred to by
+ * their index in a string table. Coordinate runs are either raw floats or
+ * zigzag varint deltas between quantized coordinates.
+ *
+ * A sectioned map starts with SECTIONED_MAGIC and holds several independent
+ * headerless binary streams, each with its own string table, behind a table
+ * of their names and byte lengths, so that sections can be parsed in parallel
+ * or later.
+ *
+ * Text maps start with a decimal version number, so the formats can be told
+ * apart from the first bytes of a file.
+ *
+ * @author Tim
+ *
+ */
+public final class BinaryMapFormat {
+    /**
+     * Bytes that every binary map starts with.
+     */
+    static final byte[] MAGIC = new byte[] {'D', 'S', 'M', 'B' };
+
+    /**
+     * Version of the binary encoding that is written. This versions the
+     * encoding itself; the version of the map data is stored inside it.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Bytes that every sectioned map starts with.
+     */
+    static final byte[] SECTIONED_MAGIC = new byte[] {'D', 'S', 'M', 'S' };
+
+    /**
+     * Version of the sectioned container that is written.
+     */
+    static final int SECTIONED_FORMAT_VERSION = 1;
+
+    /**
+     * Tag for the start of an object.
+     */
+    static final int TAG_OBJECT_START = 1;
+
+    /**
+     * Tag for the end of an object.
+     */
+    static final int TAG_OBJECT_END = 2;
+
+    /**
+     * Tag for the start of an array.
+     */
+    static final int TAG_ARRAY_START = 3;
+
+    /**
+     * Tag for the end of an array.
+     */
+    static final int TAG_ARRAY_END = 4;
+
+    /**
+     * Tag for a false boolean.
+     */
+    static final int TAG_FALSE = 5;
+
+    /**
+     * Tag for a true boolean.
+     */
+    static final int TAG_TRUE = 6;
+
+    /**
+     * Tag for an int, followed by a zigzag varint.
+     */
+    static final int TAG_INT = 7;
+
+    /**
+     * Tag for a float, followed by its four bytes, big endian.
+     */
+    static final int TAG_FLOAT = 8;
+
+    /**
+     * Tag for a string that is not in the string table yet, followed by the
+     * varint length of its UTF-8 encoding and the encoding. The string is
+     * added to the end of the table.
+     */
+    static final int TAG_NEW_STRING = 9;
+
+    /**
+     * Tag for a string in the string table, followed by its varint index.
+     */
+    static final int TAG_STRING_REF = 10;
+
+    /**
+     * Tag for a run of raw coordinates, followed by the varint number of
+     * coordinates and their four byte floats.
+     */
+    static final int TAG_RAW_COORDINATES = 11;
+
+    /**
+     * Tag for a run of quantized coordinates, followed by the varint number of
+     * coordinates, the zigzag varint exponent of the quantum, and a zigzag
+     * varint per coordinate holding the difference in quanta from the same
+     * coordinate of the previous point.
+     */
+    static final int TAG_QUANTIZED_COORDINATES = 12;
+
+    /**
+     * Number of coordinates that make up one point.
+     */
+    static final int COORDINATES_PER_POINT = 2;
+
+    /**
+     * Number of bits of precision kept for the largest coordinate of a
+     * quantized run. Floats have 24, so coordinates are rounded to within
+     * 2^-21 of the largest coordinate, far below anything that can be seen.
+     */
+    static final int QUANTIZATION_BITS = 20;
+
+    /**
+     * Private constructor because this class only holds constants.
+     */
+    private BinaryMapFormat() {
+    }
+
+    /**
+     * Checks whether a stream holds a binary map, without consuming any of it.
+     *
+     * @param in
+     *            The stream to check. Must support mark and reset.
+     * @return True if the stream starts with a binary map, false if it should
+     *         be read as text.
+     * @throws IOException
+     *             On read error.
+     */
+    public static boolean isBinaryMap(InputStream in) throws IOException {
+        return startsWith(in, MAGIC);
+    }
+
+    /**
+     * Checks whether a stream holds a sectioned map, without consuming any of
+     * it.
+     *
+     * @param in
+     *            The stream to check. Must support mark and reset.
+     * @return True if the stream starts with a sectioned map.
+     * @throws IOException
+     *             On read error.
+     */
+    public static boolean isSectionedMap(InputStream in) throws IOException {
+        return startsWith(in, SECTIONED_MAGIC);
+    }
+
+    /**
+     * Checks whether a stream starts with the given bytes, without consuming
+     * any of it.
+     *
+     * @param in
+     *            The stream to check. Must support mark and reset.
+     * @param magic
+     *            The bytes to look for.
+     * @return True if the stream starts with the bytes.
+     * @throws IOException
+     *             On read error.
+     */
+    private static boolean startsWith(InputStream in, byte[] magic)
+            throws IOException {
+        in.mark(magic.length);
+        try {
+            for (byte b : magic) {
+                if (in.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+}
@@ -1,33 +1,101 @@
 package com.tbocek.android.combatmap.model.io;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 /**
  * Wraps a BufferedReader to provide a layer of functions specific to the map
  * data format.
  * 
+ * Each line of the text format is one token. Tokens are read into a char
+ * buffer and parsed where they lie, so reading numbers, booleans and object
+ * and array delimiters allocates nothing; only readString creates a String.
+ * Peeking ahead scans further into the buffer instead of queueing the peeked
+ * tokens.
+ * 
  * @author Tim
  * 
  */
 public class MapDataDeserializer {
     /**
-     * The current number of nested arrays.
+     * Initial size of the buffer that coordinate runs are read into.
      */
-    private int mArrayLevel;
+    private static final int INITIAL_COORDINATE_CAPACITY = 32;
+
+    /**
+     * Initial size of the character buffer. The buffer grows if a peek needs
+     * to look further ahead than it holds.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Most digits of an int that are parsed in place; longer ints are handed
+     * to Integer.parseInt.
+     */
+    private static final int MAX_INT_DIGITS = 10;
+
+    /**
+     * Most significant digits of a float that are parsed in place, chosen so
+     * that the digits fit in a long exactly.
+     */
+    private static final int MAX_FLOAT_DIGITS = 18;
+
+    /**
+     * Largest mantissa that converts to a double exactly.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /**
+     * Most digits of a float's exponent that are parsed in place, so that
+     * parsing the exponent cannot overflow.
+     */
+    private static final int MAX_EXPONENT_DIGITS = 3;
 
     /**
-     * A buffer for tokens that we have peeked at. This allows us to look ahead
-     * without consuming.
+     * Powers of ten that are exactly representable as doubles.
      */
-    private LinkedList<String> mPeekBuffer = new LinkedList<String>();
+    private static final double[] POWERS_OF_TEN = new double[] {1e0, 1e1,
+            1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+            1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * The current number of nested arrays.
+     */
+    private int mArrayLevel;
 
     /**
      * The reader to read from.
      */
     private BufferedReader mReader;
 
+    /**
+     * OPTIMIZATION: Preallocated buffer of characters read from the reader.
+     */
+    private char[] mBuffer;
+
+    /**
+     * Position in mBuffer of the first character of the next token.
+     */
+    private int mPosition;
+
+    /**
+     * Number of valid characters in mBuffer.
+     */
+    private int mLimit;
+
+    /**
+     * Whether the reader has no more characters.
+     */
+    private boolean mEndOfStream;
+
+    /**
+     * Length of the token that starts at mPosition, set by beginToken, or -1
+     * if there are no more tokens.
+     */
+    private int mTokenLength;
+
     /**
      * Constructor.
      * 
@@ -36,6 +104,14 @@ public class MapDataDeserializer {
      */
     public MapDataDeserializer(BufferedReader reader) {
         this.mReader = reader;
+        this.mBuffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Constructor for deserializers that read another encoding and override
+     * every read method.
+     */
+    protected MapDataDeserializer() {
     }
 
     /**
@@ -46,12 +122,8 @@ public class MapDataDeserializer {
      *             If we are not at the end of the array as expected.
      */
     public void expectArrayEnd() throws IOException {
-        String t = this.nextToken();
-        if (t.equals("]")) {
-            this.mArrayLevel--;
-        } else {
-            throw new SyncException("Expected array end, got " + t);
-        }
+        this.expectToken(']', "array end");
+        this.mArrayLevel--;
     }
 
     /**
@@ -63,12 +135,8 @@ public class MapDataDeserializer {
      *             If we are not at the start of the array as expected.
      */
     public int expectArrayStart() throws IOException {
-        String t = this.nextToken();
-        if (t.equals("[")) {
-            this.mArrayLevel++;
-        } else {
-            throw new SyncException("Expected array start, got " + t);
-        }
+        this.expectToken('[', "array start");
+        this.mArrayLevel++;
         // Return the array level at which this array will end.
         return this.mArrayLevel - 1;
     }
@@ -81,10 +149,7 @@ public class MapDataDeserializer {
      *             If we are not at the end of the object as expected.
      */
     public void expectObjectEnd() throws IOException {
-        String t = this.nextToken();
-        if (!t.equals("}")) {
-            throw new SyncException("Expected object end, got " + t);
-        }
+        this.expectToken('}', "object end");
     }
 
     /**
@@ -95,9 +160,27 @@ public class MapDataDeserializer {
      *             If we are not at the start of the object as expected.
      */
     public void expectObjectStart() throws IOException {
-        String t = this.nextToken();
-        if (!t.equals("{")) {
-            throw new SyncException("Expected object start, got " + t);
+        this.expectToken('{', "object start");
+    }
+
+    /**
+     * Consumes a token, throwing if it is not the given delimiter.
+     * 
+     * @param delimiter
+     *            The expected delimiter.
+     * @param description
+     *            Description of the delimiter, for the error message.
+     * @throws IOException
+     *             If a different token was read.
+     */
+    private void expectToken(char delimiter, String description)
+            throws IOException {
+        this.beginToken();
+        boolean matched = this.isToken(delimiter);
+        String t = matched ? null : this.getTokenString();
+        this.endToken();
+        if (!matched) {
+            throw new SyncException("Expected " + description + ", got " + t);
         }
     }
 
@@ -114,17 +197,16 @@ public class MapDataDeserializer {
      */
     private int getNextArrayLevel() throws IOException {
         int l = this.mArrayLevel;
-        String s;
-        do {
-            s = this.peek();
-            if (s == null) {
+        int offset = 0;
+        while (true) {
+            int end = this.findTokenEnd(offset);
+            if (end - offset != 1
+                    || this.mBuffer[this.mPosition + offset] != ']') {
                 break;
             }
-
-            if (s.equals("]")) {
-                l--;
-            }
-        } while (s.equals("]"));
+            l--;
+            offset = this.skipTerminator(end);
+        }
         return l;
     }
 
@@ -144,41 +226,141 @@ public class MapDataDeserializer {
     }
 
     /**
-     * Reads and returns a token.
+     * Finds the next token without consuming it, setting mTokenLength.
      * 
-     * @return The read token, or null if at EOF.
      * @throws IOException
      *             On read error.
      */
-    private String nextToken() throws IOException {
-        String s;
-        if (this.mPeekBuffer.size() == 0) {
-            s = this.mReader.readLine();
-        } else {
-            s = this.mPeekBuffer.remove();
+    private void beginToken() throws IOException {
+        this.mTokenLength = this.findTokenEnd(0);
+    }
+
+    /**
+     * Consumes the token found by beginToken.
+     * 
+     * @throws IOException
+     *             On read error.
+     */
+    private void endToken() throws IOException {
+        if (this.mTokenLength >= 0) {
+            this.mPosition += this.skipTerminator(this.mTokenLength);
+        }
+    }
+
+    /**
+     * Finds the next token, throwing if there is none.
+     * 
+     * @throws IOException
+     *             On read error, or at the end of the stream.
+     */
+    private void beginRequiredToken() throws IOException {
+        this.beginToken();
+        if (this.mTokenLength < 0) {
+            throw new EOFException("Unexpected end of map data");
         }
+    }
+
+    /**
+     * @param c
+     *            A character.
+     * @return Whether the token found by beginToken consists of just the
+     *         given character.
+     */
+    private boolean isToken(char c) {
+        return this.mTokenLength == 1 && this.mBuffer[this.mPosition] == c;
+    }
 
-        if (s == null) {
+    /**
+     * @return The token found by beginToken, or null if there are no more
+     *         tokens.
+     */
+    private String getTokenString() {
+        if (this.mTokenLength < 0) {
             return null;
         }
-        return s;
+        return new String(this.mBuffer, this.mPosition, this.mTokenLength);
+    }
+
+    /**
+     * Finds the end of the token that starts at the given offset from
+     * mPosition. Tokens end at a line break or at the end of the stream, like
+     * BufferedReader.readLine.
+     * 
+     * @param start
+     *            Offset from mPosition of the start of the token.
+     * @return Offset from mPosition of the end of the token, or -1 if the
+     *         stream ends before the token starts.
+     * @throws IOException
+     *             On read error.
+     */
+    private int findTokenEnd(int start) throws IOException {
+        int i = start;
+        while (true) {
+            if (this.mPosition + i == this.mLimit && !this.fill()) {
+                return i > start ? i : -1;
+            }
+            char c = this.mBuffer[this.mPosition + i];
+            if (c == '\n' || c == '\r') {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Skips the line break at the end of a token.
+     * 
+     * @param end
+     *            Offset from mPosition of the end of the token.
+     * @return Offset from mPosition of the start of the following token.
+     * @throws IOException
+     *             On read error.
+     */
+    private int skipTerminator(int end) throws IOException {
+        if (this.mPosition + end == this.mLimit) {
+            // The last token ended at the end of the stream.
+            return end;
+        }
+        char c = this.mBuffer[this.mPosition + end];
+        end++;
+        if (c == '\r'
+                && (this.mPosition + end < this.mLimit || this.fill())
+                && this.mBuffer[this.mPosition + end] == '\n') {
+            end++;
+        }
+        return end;
     }
 
     /**
-     * Reads and returns a token from the stream, placing it in a queue of
-     * tokens that have already been peeked at.
+     * Reads more characters into the buffer, first moving the unconsumed
+     * characters to its start, or growing it if they fill it. Offsets from
+     * mPosition remain valid.
      * 
-     * @return The read token.
+     * @return False if the stream has no more characters.
      * @throws IOException
      *             On read error.
      */
-    private String peek() throws IOException {
-        String s;
-        s = this.mReader.readLine();
-        if (s != null) {
-            this.mPeekBuffer.add(s);
+    private boolean fill() throws IOException {
+        if (this.mEndOfStream) {
+            return false;
         }
-        return s;
+        if (this.mPosition > 0) {
+            System.arraycopy(this.mBuffer, this.mPosition, this.mBuffer, 0,
+                    this.mLimit - this.mPosition);
+            this.mLimit -= this.mPosition;
+            this.mPosition = 0;
+        } else if (this.mLimit == this.mBuffer.length) {
+            this.mBuffer = Arrays.copyOf(this.mBuffer, 2 * this.mBuffer.length);
+        }
+        int read =
+                this.mReader.read(this.mBuffer, this.mLimit,
+                        this.mBuffer.length - this.mLimit);
+        if (read < 0) {
+            this.mEndOfStream = true;
+            return false;
+        }
+        this.mLimit += read;
+        return true;
     }
 
     /**
@@ -189,7 +371,10 @@ public class MapDataDeserializer {
      *             On read error.
      */
     public boolean readBoolean() throws IOException {
-        return !this.nextToken().equals("0");
+        this.beginRequiredToken();
+        boolean value = !this.isToken('0');
+        this.endToken();
+        return value;
     }
 
     /**
@@ -200,7 +385,34 @@ public class MapDataDeserializer {
      *             On read error.
      */
     public float readFloat() throws IOException {
-        return Float.parseFloat(this.nextToken());
+        this.beginRequiredToken();
+        try {
+            return this.parseFloatToken();
+        } finally {
+            this.endToken();
+        }
+    }
+
+    /**
+     * Consumes and returns a run of interleaved x and y coordinates written by
+     * MapDataSerializer.serializeCoordinates.
+     * 
+     * @return The read coordinates. The array is exactly as long as the run.
+     * @throws IOException
+     *             On read error.
+     */
+    public float[] readCoordinates() throws IOException {
+        float[] coordinates = new float[INITIAL_COORDINATE_CAPACITY];
+        int count = 0;
+        int arrayLevel = this.expectArrayStart();
+        while (this.hasMoreArrayItems(arrayLevel)) {
+            if (count == coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, 2 * count);
+            }
+            coordinates[count++] = this.readFloat();
+        }
+        this.expectArrayEnd();
+        return Arrays.copyOf(coordinates, count);
     }
 
     /**
@@ -211,18 +423,156 @@ public class MapDataDeserializer {
      *             On read error.
      */
     public int readInt() throws IOException {
-        return Integer.parseInt(this.nextToken());
+        this.beginRequiredToken();
+        try {
+            return this.parseIntToken();
+        } finally {
+            this.endToken();
+        }
     }
 
     /**
      * Consumes and returns a string value.
      * 
-     * @return The read value.
+     * @return The read value, or null if at EOF.
      * @throws IOException
      *             On read error.
      */
     public String readString() throws IOException {
-        return this.nextToken();
+        this.beginToken();
+        String value = this.getTokenString();
+        this.endToken();
+        return value;
+    }
+
+    /**
+     * Parses the token found by beginToken as an int. Plain decimal ints are
+     * parsed in place; anything else goes through Integer.parseInt so that
+     * it is accepted or rejected exactly as before.
+     * 
+     * @return The parsed value.
+     */
+    private int parseIntToken() {
+        int i = this.mPosition;
+        int end = this.mPosition + this.mTokenLength;
+        boolean negative = i < end && this.mBuffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > MAX_INT_DIGITS) {
+            return Integer.parseInt(this.getTokenString());
+        }
+        long value = 0;
+        for (; i < end; ++i) {
+            int digit = this.mBuffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(this.getTokenString());
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return Integer.parseInt(this.getTokenString());
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the token found by beginToken as a float. Plain decimal and
+     * scientific notation with few enough digits, which covers everything
+     * Float.toString writes except NaN and infinities, is parsed in place;
+     * anything else goes through Float.parseFloat. The in place result is
+     * correctly rounded: the digits and the power of ten are exact doubles,
+     * so their product or quotient is the correctly rounded double, and the
+     * rare doubles that land exactly halfway between two floats, where
+     * rounding again to a float could go the wrong way, are handed to
+     * Float.parseFloat too.
+     * 
+     * @return The parsed value.
+     */
+    private float parseFloatToken() {
+        int i = this.mPosition;
+        int end = this.mPosition + this.mTokenLength;
+        boolean negative = i < end && this.mBuffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean anyDigits = false;
+        boolean fraction = false;
+        for (; i < end; ++i) {
+            char c = this.mBuffer[i];
+            if (c == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            anyDigits = true;
+            if (mantissa == 0 && digit == 0) {
+                // Leading zeros are not significant.
+                if (fraction) {
+                    scale--;
+                }
+                continue;
+            }
+            if (++digits > MAX_FLOAT_DIGITS) {
+                return Float.parseFloat(this.getTokenString());
+            }
+            mantissa = mantissa * 10 + digit;
+            if (fraction) {
+                scale--;
+            }
+        }
+        if (!anyDigits) {
+            return Float.parseFloat(this.getTokenString());
+        }
+
+        if (i < end && (this.mBuffer[i] == 'E' || this.mBuffer[i] == 'e')) {
+            i++;
+            boolean negativeExponent = i < end && this.mBuffer[i] == '-';
+            if (negativeExponent) {
+                i++;
+            }
+            if (i == end || end - i > MAX_EXPONENT_DIGITS) {
+                return Float.parseFloat(this.getTokenString());
+            }
+            int exponent = 0;
+            for (; i < end; ++i) {
+                int digit = this.mBuffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Float.parseFloat(this.getTokenString());
+                }
+                exponent = exponent * 10 + digit;
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (i != end) {
+            return Float.parseFloat(this.getTokenString());
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0.0f : 0.0f;
+        }
+        if (mantissa > MAX_EXACT_MANTISSA
+                || Math.abs(scale) >= POWERS_OF_TEN.length) {
+            return Float.parseFloat(this.getTokenString());
+        }
+        double d =
+                scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa
+                        * POWERS_OF_TEN[scale];
+        float f = (float) d;
+        double error = Math.abs(d - f);
+        float ulp = Math.ulp(f);
+        if (Float.isInfinite(f) || error * 2 == ulp || error * 4 == ulp) {
+            return Float.parseFloat(this.getTokenString());
+        }
+        return negative ? -f : f;
     }
 
     /**
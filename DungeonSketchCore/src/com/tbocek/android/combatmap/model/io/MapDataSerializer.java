@@ -27,6 +27,13 @@ public class MapDataSerializer {
         this.mWriter = writer;
     }
 
+    /**
+     * Constructor for serializers that write another encoding and override
+     * every write method.
+     */
+    protected MapDataSerializer() {
+    }
+
     /**
      * Writes the tokens needed to signal an array end.
      * 
@@ -72,6 +79,36 @@ public class MapDataSerializer {
         this.mWriter.write('\n');
     }
 
+    /**
+     * Writes a run of interleaved x and y coordinates, e.g. the points of a
+     * line.
+     * 
+     * @param coordinates
+     *            Buffer holding the coordinates.
+     * @param count
+     *            Number of coordinates to write from the start of the buffer.
+     * @throws IOException
+     *             On write error.
+     */
+    public void serializeCoordinates(float[] coordinates, int count)
+            throws IOException {
+        this.startArray();
+        for (int i = 0; i < count; ++i) {
+            this.serializeFloat(coordinates[i]);
+        }
+        this.endArray();
+    }
+
+    /**
+     * Writes any buffered data to the underlying stream.
+     * 
+     * @throws IOException
+     *             On write error.
+     */
+    public void flush() throws IOException {
+        this.mWriter.flush();
+    }
+
     /**
      * Writes an integer value.
      * 
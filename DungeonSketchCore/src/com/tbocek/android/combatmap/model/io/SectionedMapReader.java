@@ -0,0 +1,105 @@
+package com.tbocek.android.combatmap.model.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads a sectioned map written by SectionedMapWriter. The whole file is read
+ * into memory up front and split into one array per section; each section can
+ * then be opened with its own deserializer, so sections can be parsed on
+ * different threads or only when they are needed. The reader is not modified
+ * after it is created, so it can be shared between threads. Holding on to one section does not keep the rest of the
+ * file in memory.
+ *
+ * @author Tim
+ *
+ */
+public final class SectionedMapReader {
+    /**
+     * Encoded contents of each section, by name.
+     */
+    private Map<String, byte[]> mSections = Maps.newHashMap();
+
+    /**
+     * Constructor. Reads the whole stream and its table of sections.
+     *
+     * @param in
+     *            The stream to read. Is not closed.
+     * @throws IOException
+     *             On read error, or if the stream does not hold a supported
+     *             sectioned map.
+     */
+    public SectionedMapReader(InputStream in) throws IOException {
+        byte[] data = ByteStreams.toByteArray(in);
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream header = new DataInputStream(bytes);
+        for (byte b : BinaryMapFormat.SECTIONED_MAGIC) {
+            if (header.readByte() != b) {
+                throw new IOException("Not a sectioned map");
+            }
+        }
+        int version = header.readInt();
+        if (version > BinaryMapFormat.SECTIONED_FORMAT_VERSION) {
+            throw new IOException("Unsupported sectioned map format version "
+                    + version);
+        }
+
+        int sectionCount = header.readInt();
+        String[] names = new String[sectionCount];
+        int[] lengths = new int[sectionCount];
+        for (int i = 0; i < sectionCount; ++i) {
+            names[i] = header.readUTF();
+            lengths[i] = header.readInt();
+        }
+
+        // Sections follow the table, in the same order.
+        int offset = data.length - bytes.available();
+        for (int i = 0; i < sectionCount; ++i) {
+            if (lengths[i] < 0 || lengths[i] > data.length - offset) {
+                throw new IOException("Section " + names[i]
+                        + " extends past the end of the map");
+            }
+            this.mSections.put(names[i],
+                    Arrays.copyOfRange(data, offset, offset + lengths[i]));
+            offset += lengths[i];
+        }
+    }
+
+    /**
+     * Opens a section for reading. Each call returns a new deserializer that
+     * is independent of any others.
+     *
+     * @param name
+     *            Name the section was written with.
+     * @return Deserializer positioned at the start of the section.
+     * @throws IOException
+     *             If the map has no section with that name.
+     */
+    public MapDataDeserializer openSection(String name) throws IOException {
+        byte[] contents = this.mSections.get(name);
+        if (contents == null) {
+            throw new IOException("Map is missing section " + name);
+        }
+        return new BinaryMapDataDeserializer(contents, 0, contents.length);
+    }
+
+    /**
+     * Returns the encoded contents of a section, which can be written back
+     * unchanged with SectionedMapWriter.addSection.
+     *
+     * @param name
+     *            Name the section was written with.
+     * @return The encoded contents, or null if the map has no such section.
+     *         Not a copy, so must not be modified.
+     */
+    public byte[] getSection(String name) {
+        return this.mSections.get(name);
+    }
+}
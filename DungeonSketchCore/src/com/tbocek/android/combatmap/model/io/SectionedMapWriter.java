@@ -0,0 +1,134 @@
+package com.tbocek.android.combatmap.model.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Builds a sectioned map: map data split into named sections that are each
+ * written with their own binary serializer, so that they can be read back
+ * independently of each other. The file starts with a table of the sections'
+ * names and byte lengths, followed by the sections in the same order.
+ *
+ * @author Tim
+ *
+ */
+public final class SectionedMapWriter {
+    /**
+     * Names of the sections begun so far.
+     */
+    private List<String> mNames = Lists.newArrayList();
+
+    /**
+     * Encoded contents of the finished sections, in the same order as their
+     * names. The section being written has no entry yet.
+     */
+    private List<byte[]> mContents = Lists.newArrayList();
+
+    /**
+     * Serializer for the section being written, or null if there is none.
+     */
+    private MapDataSerializer mCurrent;
+
+    /**
+     * Stream that the section being written is encoded into.
+     */
+    private ByteArrayOutputStream mCurrentContents;
+
+    /**
+     * Finishes the current section, if any, and begins a new one.
+     *
+     * @param name
+     *            Name to read the section back by.
+     * @return Serializer to write the section's contents to. Only valid until
+     *         the next section is begun.
+     * @throws IOException
+     *             On serialization error.
+     */
+    public MapDataSerializer beginSection(String name) throws IOException {
+        this.finishSection();
+        this.mNames.add(name);
+        this.mCurrentContents = new ByteArrayOutputStream();
+        this.mCurrent = new BinaryMapDataSerializer(this.mCurrentContents,
+                false);
+        return this.mCurrent;
+    }
+
+    /**
+     * Finishes the current section, if any, and adds a section that was
+     * already encoded, such as one returned by getSection on an earlier
+     * writer.
+     *
+     * @param name
+     *            Name to read the section back by.
+     * @param contents
+     *            Encoded contents of the section. Not copied.
+     * @throws IOException
+     *             On serialization error.
+     */
+    public void addSection(String name, byte[] contents) throws IOException {
+        this.finishSection();
+        this.mNames.add(name);
+        this.mContents.add(contents);
+    }
+
+    /**
+     * Finishes the current section, if any, and returns the encoded contents
+     * of a section.
+     *
+     * @param name
+     *            Name of the section.
+     * @return The encoded contents, or null if there is no such section.
+     * @throws IOException
+     *             On serialization error.
+     */
+    public byte[] getSection(String name) throws IOException {
+        this.finishSection();
+        int index = this.mNames.indexOf(name);
+        return index >= 0 ? this.mContents.get(index) : null;
+    }
+
+    /**
+     * Finishes the current section and writes the sectioned map. Does not
+     * close the stream.
+     *
+     * @param out
+     *            The stream to write to.
+     * @throws IOException
+     *             On write error.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        this.finishSection();
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(BinaryMapFormat.SECTIONED_MAGIC);
+        data.writeInt(BinaryMapFormat.SECTIONED_FORMAT_VERSION);
+        data.writeInt(this.mNames.size());
+        for (int i = 0; i < this.mNames.size(); ++i) {
+            data.writeUTF(this.mNames.get(i));
+            data.writeInt(this.mContents.get(i).length);
+        }
+        for (byte[] contents : this.mContents) {
+            data.write(contents);
+        }
+        data.flush();
+    }
+
+    /**
+     * Flushes the section being written, if any, and stores its contents.
+     *
+     * @throws IOException
+     *             On serialization error.
+     */
+    private void finishSection() throws IOException {
+        if (this.mCurrent != null) {
+            this.mCurrent.flush();
+            this.mContents.add(this.mCurrentContents.toByteArray());
+            this.mCurrent = null;
+            this.mCurrentContents = null;
+        }
+    }
+}
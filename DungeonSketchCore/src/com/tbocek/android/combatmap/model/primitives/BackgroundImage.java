@@ -1,38 +1,162 @@
 package com.tbocek.android.combatmap.model.primitives;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
 
 import com.tbocek.android.combatmap.DataManager;
+import com.tbocek.android.combatmap.MemoryBudget;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
 import com.tbocek.android.combatmap.model.io.MapDataSerializer;
 
 public class BackgroundImage implements Cloneable{
 
+    /**
+     * Receives notifications when parts of background images finish loading in
+     * the background.
+     * 
+     * @author Tim
+     * 
+     */
+    public interface LoadListener {
+        /**
+         * Called on the UI thread when part of a background image finished
+         * loading and needs to be redrawn.
+         * 
+         * @param image
+         *            The image that was loaded.
+         * @param worldSpaceRegion
+         *            The part of the image that was loaded, in world space.
+         */
+        void onImageLoaded(BackgroundImage image, RectF worldSpaceRegion);
+    }
+
+    /**
+     * Width and height of a decoded tile, in pixels of the decoded tile.
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * Number of coarser sample sizes to look for a cached tile at while the
+     * tile at the right sample size is loading.
+     */
+    private static final int MAX_COARSER_LEVELS = 4;
+
+    /**
+     * Decoded tiles of every background image.
+     */
+    private static ImageTileCache tileCache = new ImageTileCache(
+            MemoryBudget.IMAGE_TILE_BYTES);
+
+    /**
+     * Paint used to draw tiles, which are usually scaled.
+     * OPTIMIZATION: Preallocated and reused.
+     */
+    private static final Paint TILE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Paint used to fill the parts of images that are still loading.
+     * OPTIMIZATION: Preallocated and reused.
+     */
+    private static final Paint PLACEHOLDER_PAINT = new Paint();
+
+    static {
+        PLACEHOLDER_PAINT.setColor(Color.argb(64, 128, 128, 128));
+    }
+
+    /**
+     * Thread that opens images and decodes tiles in the background. A single
+     * thread keeps the memory used by decodes in flight bounded.
+     */
+    private static ExecutorService loadExecutor = Executors
+            .newSingleThreadExecutor();
+
     /**
      * The data manager that is used to load custom images.
      */
     private static transient DataManager dataManager = null;
 
+    /**
+     * Handler for the UI thread that background loads are handed back to. If
+     * null, images are loaded synchronously.
+     */
+    private static Handler uiHandler = null;
+
+    /**
+     * Listener that is notified when background loads finish.
+     */
+    private static LoadListener loadListener = null;
+
     public static void registerDataManager(DataManager dataManager) {
         BackgroundImage.dataManager = dataManager;
     }
 
+    /**
+     * Makes images load in the background instead of on the draw path.
+     * 
+     * @param listener
+     *            Listener that is notified on the UI thread when part of an
+     *            image finished loading.
+     * @param handler
+     *            Handler for the UI thread.
+     */
+    public static void registerLoadListener(LoadListener listener,
+            Handler handler) {
+        BackgroundImage.loadListener = listener;
+        BackgroundImage.uiHandler = handler;
+    }
+
     /**
      * Path that this image should load from.
      */
     private String mPath;
 
     /**
-     * Drawable containing the background image.
+     * Decoder that decodes tiles of the background image. Null if the image
+     * is not loaded yet, or if its format can't be decoded a region at a time.
+     */
+    private transient BitmapRegionDecoder mDecoder = null;
+
+    /**
+     * Width of the full resolution image, in pixels.
+     */
+    private transient int mImageWidth;
+
+    /**
+     * Height of the full resolution image, in pixels.
+     */
+    private transient int mImageHeight;
+
+    /**
+     * Drawable containing the entire background image. Only used for images
+     * that can't be decoded a region at a time.
      */
     private transient Drawable mDrawable = null;
     private transient boolean mTriedToLoadDrawable = false;
 
+    /**
+     * Whether the image is being opened in the background.
+     */
+    private transient boolean mLoadPending = false;
+
+    /**
+     * Whether the image was recycled and has not been drawn since. An image
+     * that finishes opening in this state is closed again right away.
+     */
+    private transient boolean mRecycled = false;
+
     /**
      * Height of the image's containing rectangle, in world space.
      */
@@ -53,7 +177,7 @@ public class BackgroundImage implements Cloneable{
     private float mOriginalAspectRatio = 1;
 
     /**
-     * Constructor.
+     * Constructor. The image is not loaded until it is first drawn.
      * @param path Path to the resource to load.
      * @param originWorldSpace Initial position of the background image, in
      *     world space.
@@ -61,11 +185,18 @@ public class BackgroundImage implements Cloneable{
     public BackgroundImage(String path, PointF originWorldSpace) {
         this.mPath = path;
         this.mOriginWorldSpace = originWorldSpace;
+    }
 
-        // TODO: BAD!!! VERY BAD!!! GET THIS OFF THE UI THREAD!!!!
-        loadDrawable();
+    /**
+     * @return True if the image was opened and can be drawn.
+     */
+    private boolean isLoaded() {
+        return this.mDecoder != null || this.mDrawable != null;
     }
 
+    /**
+     * Opens the image on the calling thread.
+     */
     private void loadDrawable() {
         // Don't go any further if we've already tried and failed.
         if (mTriedToLoadDrawable) {
@@ -77,22 +208,129 @@ public class BackgroundImage implements Cloneable{
             return;
         }
 
-        Bitmap b;
+        LoadedImage loaded = loadImage(this.mPath);
+        if (loaded != null) {
+            this.setLoadedImage(loaded);
+        } else {
+            this.mTriedToLoadDrawable = true;
+        }
+    }
+
+    /**
+     * Starts opening the image in the background, unless that already started
+     * or failed before. The listener is notified once the image can be drawn.
+     */
+    private void requestLoad() {
+        if (this.mLoadPending || this.mTriedToLoadDrawable
+                || dataManager == null) {
+            return;
+        }
+        this.mLoadPending = true;
+        final String path = this.mPath;
+        final Handler handler = uiHandler;
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final LoadedImage loaded = loadImage(path);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        BackgroundImage.this.onLoadFinished(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Takes over an image that was opened in the background. Called on the UI
+     * thread.
+     * 
+     * @param loaded
+     *            The opened image, or null if it could not be opened.
+     */
+    private void onLoadFinished(LoadedImage loaded) {
+        this.mLoadPending = false;
+        if (loaded == null) {
+            this.mTriedToLoadDrawable = true;
+            return;
+        }
+        if (this.mRecycled) {
+            // Removed from the map while it was opening.
+            recycleDecoder(loaded.mDecoder);
+            return;
+        }
+        if (this.isLoaded()) {
+            // Loaded synchronously in the meantime, so this copy is not
+            // needed.
+            recycleDecoder(loaded.mDecoder);
+            return;
+        }
+        this.setLoadedImage(loaded);
+        this.notifyLoaded(this.getBoundingRectangle().toRectF());
+    }
+
+    /**
+     * Tells the load listener that part of this image can be redrawn.
+     * 
+     * @param worldSpaceRegion
+     *            The part of the image that was loaded, in world space.
+     */
+    private void notifyLoaded(RectF worldSpaceRegion) {
+        if (loadListener != null) {
+            loadListener.onImageLoaded(this, worldSpaceRegion);
+        }
+    }
+
+    /**
+     * Starts using an opened image.
+     * 
+     * @param loaded
+     *            The opened image.
+     */
+    private void setLoadedImage(LoadedImage loaded) {
+        this.mDecoder = loaded.mDecoder;
+        this.mDrawable = loaded.mDrawable;
+        this.mImageWidth = loaded.mWidth;
+        this.mImageHeight = loaded.mHeight;
+        // If no width and height yet, set height = 1, width according to
+        // aspect ratio of the original image.
+        if (this.mWidthWorldSpace < Util.FP_COMPARE_ERROR
+                && this.mHeightWorldSpace < Util.FP_COMPARE_ERROR) {
+            this.mOriginalAspectRatio =
+                    ((float) this.mImageWidth) / this.mImageHeight;
+            this.mHeightWorldSpace = 1;
+            this.mWidthWorldSpace = mOriginalAspectRatio;
+        }
+    }
+
+    /**
+     * Opens the image at the given path. Safe to call from any thread.
+     * 
+     * @param path
+     *            Path of the image to open.
+     * @return The opened image, or null if it could not be opened.
+     */
+    private static LoadedImage loadImage(String path) {
         try {
-            b = dataManager.loadMapDataImage(this.mPath);
-            this.mDrawable = new BitmapDrawable(b);
-            // If no width and height yet, set height = 1, width according to
-            // aspect ratio of the original image.
-            if (this.mWidthWorldSpace < Util.FP_COMPARE_ERROR
-                    && this.mHeightWorldSpace < Util.FP_COMPARE_ERROR) {
-                this.mOriginalAspectRatio =
-                        ((float) b.getWidth()) / b.getHeight();
-                this.mHeightWorldSpace = 1;
-                this.mWidthWorldSpace = mOriginalAspectRatio;
+            try {
+                BitmapRegionDecoder decoder =
+                        dataManager.openMapDataImageDecoder(path);
+                return new LoadedImage(decoder, null, decoder.getWidth(),
+                        decoder.getHeight());
+            } catch (IOException e) {
+                // Not every format can be decoded a region at a time (e.g.
+                // GIF), so fall back on decoding the entire image.
+                Bitmap b = dataManager.loadMapDataImage(path);
+                if (b == null) {
+                    throw new IOException("Could not decode " + path);
+                }
+                return new LoadedImage(null, new BitmapDrawable(b),
+                        b.getWidth(), b.getHeight());
             }
         } catch (IOException e) {
             e.printStackTrace();
-            this.mTriedToLoadDrawable = true;
+            return null;
         }
     }
 
@@ -105,16 +343,42 @@ public class BackgroundImage implements Cloneable{
      *            Canvas to draw on.
      * @param transformer
      *            The screen to world space transformer.
+     * @param worldSpaceBounds
+     *            Region of world space that is being drawn. Only the tiles of
+     *            the image inside this region are decoded.
+     * @param async
+     *            If true, parts of the image that are not loaded yet are
+     *            loaded in the background and a placeholder is drawn in their
+     *            place. If false, they are loaded before drawing.
      */
-    public void draw(Canvas c, CoordinateTransformer transformer) {
-        if (this.mDrawable == null) {
-            // TODO: GET THIS OFF THE UI THREAD!!!!
-            loadDrawable();
-            if (this.mDrawable == null) {
+    public void draw(Canvas c, CoordinateTransformer transformer,
+            RectF worldSpaceBounds, boolean async) {
+        this.mRecycled = false;
+        boolean loadInBackground = async && uiHandler != null;
+        if (!this.isLoaded()) {
+            if (loadInBackground) {
+                this.requestLoad();
+            } else {
+                this.loadDrawable();
+            }
+            if (!this.isLoaded()) {
+                if (this.mLoadPending) {
+                    c.drawRect(this.toScreenSpace(transformer, new RectF(
+                            this.mOriginWorldSpace.x,
+                            this.mOriginWorldSpace.y,
+                            this.mOriginWorldSpace.x + this.mWidthWorldSpace,
+                            this.mOriginWorldSpace.y + this.mHeightWorldSpace)),
+                            PLACEHOLDER_PAINT);
+                }
                 return;
             }
         }
 
+        if (this.mDecoder != null) {
+            this.drawTiles(c, transformer, worldSpaceBounds, loadInBackground);
+            return;
+        }
+
         // Convert bounding rectangle bounds to screen space.
         PointF upperLeft =
                 transformer.worldSpaceToScreenSpace(new PointF(
@@ -133,6 +397,326 @@ public class BackgroundImage implements Cloneable{
         this.mDrawable.draw(c);
     }
 
+    /**
+     * Starts loading the parts of the image inside the given region in the
+     * background, so that they are ready by the time they scroll into view.
+     * Does nothing if images are loaded synchronously.
+     * 
+     * @param transformer
+     *            The screen to world space transformer the image will be
+     *            drawn with.
+     * @param worldSpaceBounds
+     *            Region of world space to load.
+     */
+    public void prefetch(CoordinateTransformer transformer,
+            RectF worldSpaceBounds) {
+        if (uiHandler == null) {
+            return;
+        }
+        if (!this.isLoaded()) {
+            this.requestLoad();
+            return;
+        }
+        if (this.mDecoder == null) {
+            return;
+        }
+        Rect tiles = new Rect();
+        int sampleSize =
+                this.getVisibleTiles(transformer, worldSpaceBounds, tiles);
+        for (int row = tiles.top; row < tiles.bottom; ++row) {
+            for (int column = tiles.left; column < tiles.right; ++column) {
+                this.requestTile(sampleSize, column, row);
+            }
+        }
+    }
+
+    /**
+     * Draws the tiles of the image that are inside the given region. Needs to
+     * assume an untransformed coordinate space.
+     *
+     * @param c
+     *            Canvas to draw on.
+     * @param transformer
+     *            The screen to world space transformer.
+     * @param worldSpaceBounds
+     *            Region of world space that is being drawn.
+     * @param async
+     *            Whether to decode missing tiles in the background.
+     */
+    private void drawTiles(Canvas c, CoordinateTransformer transformer,
+            RectF worldSpaceBounds, boolean async) {
+        Rect tiles = new Rect();
+        int sampleSize =
+                this.getVisibleTiles(transformer, worldSpaceBounds, tiles);
+        for (int row = tiles.top; row < tiles.bottom; ++row) {
+            for (int column = tiles.left; column < tiles.right; ++column) {
+                Rect region = this.getTileRegion(sampleSize, column, row);
+                RectF dest =
+                        this.toScreenSpace(transformer,
+                                this.getWorldSpaceBounds(region));
+                Bitmap tile = tileCache.get(this.mPath, sampleSize, column, row);
+                if (tile == null) {
+                    if (async) {
+                        this.requestTile(sampleSize, column, row);
+                    } else {
+                        tile = decodeTile(this.mDecoder, region, sampleSize);
+                        if (tile != null) {
+                            tileCache.put(this.mPath, sampleSize, column, row,
+                                    tile);
+                        }
+                    }
+                }
+                if (tile != null) {
+                    c.drawBitmap(tile, null, dest, TILE_PAINT);
+                } else if (!this.drawCoarserTile(c, region, sampleSize, dest)) {
+                    c.drawRect(dest, PLACEHOLDER_PAINT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws part of a cached tile at a coarser sample size in place of a tile
+     * that is still loading.
+     * 
+     * @param c
+     *            Canvas to draw on.
+     * @param region
+     *            Part of the full resolution image covered by the missing
+     *            tile.
+     * @param sampleSize
+     *            Sample size of the missing tile.
+     * @param dest
+     *            Screen space rectangle of the missing tile.
+     * @return True if a coarser tile was drawn.
+     */
+    private boolean drawCoarserTile(Canvas c, Rect region, int sampleSize,
+            RectF dest) {
+        for (int level = 1; level <= MAX_COARSER_LEVELS; ++level) {
+            int coarseSampleSize = sampleSize << level;
+            int coarseTileSize = TILE_SIZE * coarseSampleSize;
+            int column = region.left / coarseTileSize;
+            int row = region.top / coarseTileSize;
+            Bitmap coarse =
+                    tileCache.get(this.mPath, coarseSampleSize, column, row);
+            if (coarse != null) {
+                int offsetX = column * coarseTileSize;
+                int offsetY = row * coarseTileSize;
+                Rect src =
+                        new Rect((region.left - offsetX) / coarseSampleSize,
+                                (region.top - offsetY) / coarseSampleSize,
+                                Math.min(coarse.getWidth(), (region.right
+                                        - offsetX + coarseSampleSize - 1)
+                                        / coarseSampleSize), Math.min(
+                                        coarse.getHeight(), (region.bottom
+                                                - offsetY + coarseSampleSize - 1)
+                                                / coarseSampleSize));
+                c.drawBitmap(coarse, src, dest, TILE_PAINT);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts decoding the given tile in the background, unless it is already
+     * cached or being decoded. The listener is notified once it is decoded.
+     * 
+     * @param sampleSize
+     *            Sample size to decode the tile at.
+     * @param column
+     *            Column of the tile.
+     * @param row
+     *            Row of the tile.
+     */
+    private void requestTile(final int sampleSize, final int column,
+            final int row) {
+        final String path = this.mPath;
+        if (!tileCache.markPending(path, sampleSize, column, row)) {
+            return;
+        }
+        final BitmapRegionDecoder decoder = this.mDecoder;
+        final Rect region = this.getTileRegion(sampleSize, column, row);
+        final Handler handler = uiHandler;
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap tile = decodeTile(decoder, region, sampleSize);
+                if (tile == null) {
+                    tileCache.clearPending(path, sampleSize, column, row);
+                    return;
+                }
+                tileCache.put(path, sampleSize, column, row, tile);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        BackgroundImage.this
+                                .notifyLoaded(BackgroundImage.this
+                                        .getWorldSpaceBounds(region));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Finds the tiles of the image that intersect the given region, and the
+     * coarsest sample size that still has at least one image pixel per screen
+     * pixel.
+     * 
+     * @param transformer
+     *            The screen to world space transformer.
+     * @param worldSpaceBounds
+     *            Region of world space that is being drawn.
+     * @param tiles
+     *            Receives the columns (left inclusive, right exclusive) and
+     *            rows (top inclusive, bottom exclusive) of the tiles. Empty if
+     *            no tiles intersect the region.
+     * @return The sample size to decode the tiles at.
+     */
+    private int getVisibleTiles(CoordinateTransformer transformer,
+            RectF worldSpaceBounds, Rect tiles) {
+        tiles.setEmpty();
+        if (this.mWidthWorldSpace <= 0 || this.mHeightWorldSpace <= 0) {
+            return 1;
+        }
+        float left = this.mOriginWorldSpace.x;
+        float top = this.mOriginWorldSpace.y;
+        float pixelsPerWorldX = this.mImageWidth / this.mWidthWorldSpace;
+        float pixelsPerWorldY = this.mImageHeight / this.mHeightWorldSpace;
+
+        // Find the part of the image that is being drawn, in image pixels.
+        int visibleLeft =
+                Math.max(0, (int) ((worldSpaceBounds.left - left)
+                        * pixelsPerWorldX));
+        int visibleTop =
+                Math.max(0, (int) ((worldSpaceBounds.top - top)
+                        * pixelsPerWorldY));
+        int visibleRight =
+                Math.min(this.mImageWidth, (int) Math
+                        .ceil((worldSpaceBounds.right - left) * pixelsPerWorldX));
+        int visibleBottom =
+                Math.min(this.mImageHeight, (int) Math
+                        .ceil((worldSpaceBounds.bottom - top) * pixelsPerWorldY));
+
+        int sampleSize =
+                Util.computeSampleSize(this.mImageWidth, this.mImageHeight,
+                        (int) Math.ceil(transformer
+                                .worldSpaceToScreenSpace(this.mWidthWorldSpace)),
+                        (int) Math.ceil(transformer
+                                .worldSpaceToScreenSpace(this.mHeightWorldSpace)));
+        if (visibleLeft >= visibleRight || visibleTop >= visibleBottom) {
+            return sampleSize;
+        }
+        int tileSizeImageSpace = TILE_SIZE * sampleSize;
+        tiles.set(visibleLeft / tileSizeImageSpace, visibleTop
+                / tileSizeImageSpace, (visibleRight + tileSizeImageSpace - 1)
+                / tileSizeImageSpace, (visibleBottom + tileSizeImageSpace - 1)
+                / tileSizeImageSpace);
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize
+     *            Sample size of the tile.
+     * @param column
+     *            Column of the tile.
+     * @param row
+     *            Row of the tile.
+     * @return Part of the full resolution image covered by the tile.
+     */
+    private Rect getTileRegion(int sampleSize, int column, int row) {
+        int tileSizeImageSpace = TILE_SIZE * sampleSize;
+        return new Rect(column * tileSizeImageSpace, row * tileSizeImageSpace,
+                Math.min(this.mImageWidth, (column + 1) * tileSizeImageSpace),
+                Math.min(this.mImageHeight, (row + 1) * tileSizeImageSpace));
+    }
+
+    /**
+     * @param region
+     *            Part of the full resolution image, in image pixels.
+     * @return Where that part of the image is drawn, in world space.
+     */
+    private RectF getWorldSpaceBounds(Rect region) {
+        float pixelsPerWorldX = this.mImageWidth / this.mWidthWorldSpace;
+        float pixelsPerWorldY = this.mImageHeight / this.mHeightWorldSpace;
+        return new RectF(this.mOriginWorldSpace.x + region.left
+                / pixelsPerWorldX, this.mOriginWorldSpace.y + region.top
+                / pixelsPerWorldY, this.mOriginWorldSpace.x + region.right
+                / pixelsPerWorldX, this.mOriginWorldSpace.y + region.bottom
+                / pixelsPerWorldY);
+    }
+
+    /**
+     * @param transformer
+     *            The screen to world space transformer.
+     * @param r
+     *            A rectangle in world space.
+     * @return The rectangle in screen space.
+     */
+    private RectF toScreenSpace(CoordinateTransformer transformer, RectF r) {
+        PointF upperLeft = transformer.worldSpaceToScreenSpace(r.left, r.top);
+        PointF lowerRight =
+                transformer.worldSpaceToScreenSpace(r.right, r.bottom);
+        return new RectF(upperLeft.x, upperLeft.y, lowerRight.x, lowerRight.y);
+    }
+
+    /**
+     * Decodes a tile of an image. Safe to call from any thread. Decodes are
+     * serialized per decoder, since the synchronous draw path and the load
+     * executor can share a decoder, and a decoder must not be recycled while
+     * it is decoding.
+     * 
+     * @param decoder
+     *            Decoder for the image.
+     * @param region
+     *            Part of the full resolution image covered by the tile.
+     * @param sampleSize
+     *            Sample size to decode the tile at.
+     * @return The decoded tile, or null if it could not be decoded or the
+     *         decoder was recycled.
+     */
+    private static Bitmap decodeTile(BitmapRegionDecoder decoder, Rect region,
+            int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        synchronized (decoder) {
+            if (decoder.isRecycled()) {
+                return null;
+            }
+            return decoder.decodeRegion(region, options);
+        }
+    }
+
+    /**
+     * Frees the native memory held by a decoder, once any decode in progress
+     * on it finished.
+     * 
+     * @param decoder
+     *            The decoder to recycle, or null.
+     */
+    private static void recycleDecoder(BitmapRegionDecoder decoder) {
+        if (decoder != null) {
+            synchronized (decoder) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Closes the image and frees its decoder. Should be called when the image
+     * is removed from the map. The image is opened again if it is drawn after
+     * this, e.g. because the removal was undone.
+     */
+    public void recycle() {
+        BitmapRegionDecoder decoder = this.mDecoder;
+        this.mDecoder = null;
+        this.mDrawable = null;
+        this.mTriedToLoadDrawable = false;
+        this.mRecycled = true;
+        recycleDecoder(decoder);
+    }
+
     public BoundingRectangle getBoundingRectangle() {
         return this.getBoundingRectangle(0);
     }
@@ -252,4 +836,52 @@ public class BackgroundImage implements Cloneable{
         mOriginWorldSpace = from.mOriginWorldSpace;
     }
 
+    /**
+     * An image that was opened, but not yet taken over by a BackgroundImage.
+     * 
+     * @author Tim
+     * 
+     */
+    private static final class LoadedImage {
+        /**
+         * Region decoder for the image, or null if the image was decoded in
+         * full.
+         */
+        private final BitmapRegionDecoder mDecoder;
+
+        /**
+         * The decoded image, or null if a region decoder was opened.
+         */
+        private final Drawable mDrawable;
+
+        /**
+         * Width of the full resolution image, in pixels.
+         */
+        private final int mWidth;
+
+        /**
+         * Height of the full resolution image, in pixels.
+         */
+        private final int mHeight;
+
+        /**
+         * Constructor.
+         * 
+         * @param decoder
+         *            Region decoder for the image, or null.
+         * @param drawable
+         *            The decoded image, or null.
+         * @param width
+         *            Width of the full resolution image, in pixels.
+         * @param height
+         *            Height of the full resolution image, in pixels.
+         */
+        LoadedImage(BitmapRegionDecoder decoder, Drawable drawable, int width,
+                int height) {
+            this.mDecoder = decoder;
+            this.mDrawable = drawable;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+    }
 }
@@ -36,6 +36,17 @@ public abstract class BaseToken {
      */
     public static final float SELECTION_STROKE_WIDTH = 4;
 
+    /**
+     * Paint used to draw the selection border.
+     */
+    private static final Paint SELECTION_PAINT = new Paint();
+
+    static {
+        SELECTION_PAINT.setStrokeWidth(SELECTION_STROKE_WIDTH);
+        SELECTION_PAINT.setColor(Util.ICS_BLUE);
+        SELECTION_PAINT.setStyle(Style.STROKE);
+    }
+
     /**
      * Tweak to the token's size so that it doesn't totally inscribe a grid
      * square.
@@ -256,12 +267,8 @@ public abstract class BaseToken {
         }
 
         if (this.mSelected) {
-            // TODO: Cache this.
-            Paint selectPaint = new Paint();
-            selectPaint.setStrokeWidth(SELECTION_STROKE_WIDTH);
-            selectPaint.setColor(Util.ICS_BLUE);
-            selectPaint.setStyle(Style.STROKE);
-            c.drawCircle(x, y, radius + SELECTION_STROKE_WIDTH, selectPaint);
+            c.drawCircle(x, y, radius + SELECTION_STROKE_WIDTH,
+                    SELECTION_PAINT);
         }
     }
 
@@ -374,13 +381,8 @@ public abstract class BaseToken {
         }
 
         if (this.mSelected) {
-            // TODO: Cache this.
-            Paint selectPaint = new Paint();
-            selectPaint.setStrokeWidth(SELECTION_STROKE_WIDTH);
-            selectPaint.setColor(Util.ICS_BLUE);
-            selectPaint.setStyle(Style.STROKE);
             c.drawCircle(center.x, center.y, radius + SELECTION_STROKE_WIDTH,
-                    selectPaint);
+                    SELECTION_PAINT);
         }
     }
 
@@ -526,6 +528,17 @@ public abstract class BaseToken {
     public void load() {
     }
 
+    /**
+     * Makes this token load a small version of its image, for tokens that are
+     * only shown on buttons. Must be called before the token is loaded.
+     * 
+     * @param size
+     *            Largest diameter, in pixels, that the token will be drawn
+     *            at.
+     */
+    public void setThumbnailSize(int size) {
+    }
+
     /**
      * If possible, permanently deletes this token from internal storage.
      * 
@@ -234,10 +234,23 @@ public final class BoundingRectangle {
      *            The point to include.
      */
     public void updateBounds(final PointF p) {
-        this.mXMin = Math.min(this.mXMin, p.x);
-        this.mXMax = Math.max(this.mXMax, p.x);
-        this.mYMin = Math.min(this.mYMin, p.y);
-        this.mYMax = Math.max(this.mYMax, p.y);
+        this.updateBounds(p.x, p.y);
+    }
+
+    /**
+     * Updates the bounds of the rectangle so that the given point is also
+     * included.
+     * 
+     * @param x
+     *            X coordinate of the point to include.
+     * @param y
+     *            Y coordinate of the point to include.
+     */
+    public void updateBounds(final float x, final float y) {
+        this.mXMin = Math.min(this.mXMin, x);
+        this.mXMax = Math.max(this.mXMax, x);
+        this.mYMin = Math.min(this.mYMin, y);
+        this.mYMax = Math.max(this.mYMax, y);
     }
     
     
@@ -253,6 +266,25 @@ public final class BoundingRectangle {
     		     (this.mYMin > clipRegion.bottom && this.mYMax > clipRegion.bottom));
     }
 
+    /**
+     * Tests whether this rectangle partially falls within the given rectangle
+     * after being translated and grown by the given amounts.  This avoids
+     * allocating a moved copy of the rectangle when testing shapes that have
+     * a pending draw offset.
+     * @param clipRegion The rectangle to test against.
+     * @param deltaX Amount to translate this rectangle in the X dimension.
+     * @param deltaY Amount to translate this rectangle in the Y dimension.
+     * @param margin Amount to grow this rectangle by on every side.
+     * @return True if the translated rectangle intersects the clip region.
+     */
+    public boolean testClip(final RectF clipRegion, float deltaX, float deltaY,
+            float margin) {
+        return this.mXMin + deltaX - margin <= clipRegion.right
+                && this.mXMax + deltaX + margin >= clipRegion.left
+                && this.mYMin + deltaY - margin <= clipRegion.bottom
+                && this.mYMax + deltaY + margin >= clipRegion.top;
+    }
+
 	public void expand(float margin) {
 		this.mXMin -= margin;
 		this.mXMax += margin;
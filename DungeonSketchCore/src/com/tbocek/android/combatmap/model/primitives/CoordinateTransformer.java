@@ -95,6 +95,22 @@ public final class CoordinateTransformer {
         return new PointF(this.mOriginX, this.mOriginY);
     }
 
+    /**
+     * Returns a copy of this transformation with the origin moved by the
+     * specified amount, leaving this transformation unchanged.
+     * 
+     * @param dx
+     *            Amount to move in x dimension.
+     * @param dy
+     *            Amount to move in y dimension.
+     * @return The moved copy.
+     */
+    public CoordinateTransformer copyWithMovedOrigin(final float dx,
+            final float dy) {
+        return new CoordinateTransformer(this.mOriginX + dx, this.mOriginY + dy,
+                this.mZoomLevel);
+    }
+
     /**
      * Moves the origin by the specified amount.
      * 
@@ -61,7 +61,7 @@ public final class CustomBitmapToken extends DrawableToken {
 
         Bitmap b;
         try {
-            b = dataManager.loadTokenImage(this.mFilename);
+            b = dataManager.loadTokenImage(this.mFilename, MAX_IMAGE_SIZE);
             return new BitmapDrawable(b);
         } catch (IOException e) {
             e.printStackTrace();
@@ -69,6 +69,26 @@ public final class CustomBitmapToken extends DrawableToken {
         }
     }
 
+    @Override
+    protected Drawable createThumbnailDrawable(int size) {
+        if (dataManager == null) {
+            return null;
+        }
+
+        try {
+            return new BitmapDrawable(dataManager.loadTokenThumbnail(
+                    this.mFilename, size));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    protected boolean hasThumbnails() {
+        return true;
+    }
+
     @Override
     public Set<String> getDefaultTags() {
         Set<String> s = new HashSet<String>();
@@ -1,19 +1,25 @@
 package com.tbocek.android.combatmap.model.primitives;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
 import android.util.Log;
 
 import com.tbocek.android.combatmap.DeveloperMode;
+import com.tbocek.android.combatmap.MemoryBudget;
+import com.tbocek.android.combatmap.TokenLoadManager;
 
 /**
  * Base class for tokens that display some sort of drawable. Provides standard
@@ -46,8 +52,35 @@ public abstract class DrawableToken extends BaseToken {
      * Map between token ID and the the drawable that has been loaded for that
      * token ID, if it exists. Drawables already in this map will be reused.
      */
-    private static Map<String, Drawable> drawableCache =
-            new HashMap<String, Drawable>();
+    private static TokenImageCache drawableCache = new TokenImageCache(
+            MemoryBudget.TOKEN_IMAGE_BYTES);
+
+    /**
+     * Size, in pixels, that token images need to be loaded at. Tokens drawn up
+     * to this size are drawn from the sprite cache, so larger images would only
+     * be scaled down again.
+     */
+    protected static final int MAX_IMAGE_SIZE =
+            TokenSpriteCache.MAX_SPRITE_DIAMETER;
+
+    /**
+     * Sizes, in pixels, that thumbnails of token images are loaded at. Tokens
+     * shown on buttons load the smallest of these that is at least as large as
+     * the button, so that thumbnails can be shared between buttons of similar
+     * sizes.
+     */
+    private static final int[] THUMBNAIL_SIZES = {64, 128, 256};
+
+    /**
+     * Separates the token ID from the size in the cache keys of thumbnails.
+     */
+    private static final String THUMBNAIL_KEY_SEPARATOR = "#thumbnail";
+
+    /**
+     * Pre-rendered token images, so that most token draws are a single blit.
+     */
+    private static TokenSpriteCache spriteCache = new TokenSpriteCache(
+            MemoryBudget.TOKEN_SPRITE_BYTES);
 
     /**
      * Alpha value that will draw at full opacity.
@@ -60,9 +93,64 @@ public abstract class DrawableToken extends BaseToken {
     private static final int HALF_OPACITY = 128;
 
     /**
-     * The loaded drawable to use.
+     * Paint used to blit sprites at full opacity.
+     */
+    private static final Paint SPRITE_PAINT = new Paint(
+            Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Paint used to blit sprites at half opacity.
+     */
+    private static final Paint TRANSLUCENT_SPRITE_PAINT = new Paint(
+            Paint.FILTER_BITMAP_FLAG);
+
+    static {
+        TRANSLUCENT_SPRITE_PAINT.setAlpha(HALF_OPACITY);
+    }
+
+    /**
+     * Handler for the UI thread that reloads of evicted images are handed
+     * back to. If null, evicted images are reloaded synchronously.
      */
-    private transient Drawable mDrawable;
+    private static Handler reloadHandler = null;
+
+    /**
+     * Callback that is notified when an evicted image finished reloading.
+     */
+    private static TokenLoadManager.JobCallback reloadCallback = null;
+
+    /**
+     * Makes images that were evicted from the cache reload through the token
+     * load manager instead of on the draw path.
+     * 
+     * @param callback
+     *            Callback that is notified on the UI thread when an image
+     *            finished reloading, e.g. to redraw the map.
+     * @param handler
+     *            Handler for the UI thread.
+     */
+    public static void registerReloadCallback(
+            TokenLoadManager.JobCallback callback, Handler handler) {
+        DrawableToken.reloadCallback = callback;
+        DrawableToken.reloadHandler = handler;
+    }
+
+    /**
+     * Whether this token loaded its drawable before. If the drawable was
+     * evicted from the cache since, it is loaded again when it is needed.
+     */
+    private transient boolean mLoaded;
+
+    /**
+     * Whether a reload of this token's evicted drawable is queued.
+     */
+    private transient boolean mReloadPending;
+
+    /**
+     * Size of the thumbnail that this token loads instead of its full image,
+     * or 0 if it loads its full image.
+     */
+    private transient int mThumbnailSize;
 
     /**
      * Sets the clip of the given canvas to a circle centered at (x,y) with
@@ -93,52 +181,110 @@ public abstract class DrawableToken extends BaseToken {
      */
     protected abstract Drawable createDrawable();
 
+    /**
+     * Loads a small version of the drawable. Only called if hasThumbnails
+     * returns true.
+     * 
+     * @param size
+     *            Smallest width and height that the thumbnail may have.
+     * @return The created drawable, or null if the drawable could not be
+     *         created.
+     */
+    protected Drawable createThumbnailDrawable(int size) {
+        return this.createDrawable();
+    }
+
+    /**
+     * @return True if this token type can load thumbnails that are cheaper
+     *         than its full image.
+     */
+    protected boolean hasThumbnails() {
+        return false;
+    }
+
     @Override
     public final void drawBloodiedImpl(final Canvas c, final float x,
             final float y, final float radius, final boolean isManipulatable) {
-        Drawable d = this.getDrawable();
-        if (d != null) {
-            d.setColorFilter(BLOODIED_FILTER);
-            this.drawImpl(c, x, y, radius, false, isManipulatable);
-            d.setColorFilter(null);
-        } else {
+        if (!this.drawSprite(c, x, y, radius,
+                TokenSpriteCache.Variant.BLOODIED, BLOODIED_FILTER,
+                isManipulatable ? FULL_OPACITY : HALF_OPACITY)) {
             this.drawPlaceholder(c, x, y, radius);
         }
-
     }
 
     @Override
     protected final void drawGhost(final Canvas c, final float x,
             final float y, final float radius) {
-        Drawable d = this.getDrawable();
-        if (d != null) {
-            d.setAlpha(HALF_OPACITY);
-            this.drawImpl(c, x, y, radius, false, true);
-            d.setAlpha(FULL_OPACITY);
-        }
+        this.drawSprite(c, x, y, radius, TokenSpriteCache.Variant.NORMAL, null,
+                HALF_OPACITY);
     }
 
     @Override
     public final void drawImpl(final Canvas c, final float x, final float y,
             final float radius, final boolean darkBackground,
             final boolean isManipulatable) {
-        Drawable d = this.getDrawable();
-        if (d != null) {
-            c.save(Canvas.CLIP_SAVE_FLAG);
-            this.clipToCircle(c, x, y, radius);
-            d.setBounds(new Rect((int) (x - radius), (int) (y - radius),
-                    (int) (x + radius), (int) (y + radius)));
-            if (!isManipulatable) {
-                d.setAlpha(HALF_OPACITY);
+        if (!this.drawSprite(c, x, y, radius, TokenSpriteCache.Variant.NORMAL,
+                null, isManipulatable ? FULL_OPACITY : HALF_OPACITY)) {
+            this.drawPlaceholder(c, x, y, radius);
+        }
+    }
+
+    /**
+     * Draws the token's image clipped to a circle, from the sprite cache if
+     * possible.
+     * 
+     * @param c
+     *            The canvas to draw on.
+     * @param x
+     *            X coordinate of the token's center.
+     * @param y
+     *            Y coordinate of the token's center.
+     * @param radius
+     *            Radius of the token.
+     * @param variant
+     *            How to render the image.
+     * @param filter
+     *            Color filter that renders the variant, or null.
+     * @param alpha
+     *            Opacity to draw with; either FULL_OPACITY or HALF_OPACITY.
+     * @return False if the image is not loaded, so nothing was drawn.
+     */
+    private boolean drawSprite(final Canvas c, final float x, final float y,
+            final float radius, final TokenSpriteCache.Variant variant,
+            final ColorFilter filter, final int alpha) {
+        Bitmap sprite =
+                spriteCache.getSprite(this.getTokenId(), radius, variant);
+        if (sprite == null) {
+            // Only a sprite that has not been rendered yet needs the drawable.
+            Drawable d = this.getDrawable();
+            if (d == null) {
+                return false;
             }
-            d.draw(c);
-            if (!isManipulatable) {
+            sprite =
+                    spriteCache.renderSprite(this.getTokenId(), d, radius,
+                            variant, filter, this.mThumbnailSize != 0
+                                    ? this.mThumbnailSize
+                                    : MAX_IMAGE_SIZE);
+            if (sprite == null) {
+                // Too large to cache; draw the drawable directly.
+                c.save(Canvas.CLIP_SAVE_FLAG);
+                this.clipToCircle(c, x, y, radius);
+                d.setBounds(new Rect((int) (x - radius), (int) (y - radius),
+                        (int) (x + radius), (int) (y + radius)));
+                d.setColorFilter(filter);
+                d.setAlpha(alpha);
+                d.draw(c);
                 d.setAlpha(FULL_OPACITY);
+                d.setColorFilter(null);
+                c.restore();
+                return true;
             }
-            c.restore();
-        } else {
-            this.drawPlaceholder(c, x, y, radius);
         }
+        c.drawBitmap(sprite, null, new RectF(x - radius, y - radius, x
+                + radius, y + radius), alpha == FULL_OPACITY
+                ? SPRITE_PAINT
+                : TRANSLUCENT_SPRITE_PAINT);
+        return true;
     }
 
     /**
@@ -164,41 +310,128 @@ public abstract class DrawableToken extends BaseToken {
     }
 
     /**
-     * Returns the drawable associated with this token. This may cause the
-     * drawable to be loaded.
+     * Returns the drawable associated with this token. If this token loaded
+     * the drawable before and it was evicted since, a reload is queued and
+     * the placeholder is drawn until it finishes.
      * 
-     * @return The drawable.
+     * @return The drawable, or null if it is not loaded.
      */
     private Drawable getDrawable() {
-        synchronized (drawableCache) {
-            if (drawableCache.containsKey(this.getTokenId())) {
-                return drawableCache.get(this.getTokenId());
+        Drawable d = drawableCache.get(this.getImageKey());
+        if (d == null && this.mLoaded) {
+            if (reloadHandler == null) {
+                d = this.loadDrawable();
+            } else {
+                this.queueReload();
             }
-            return this.mDrawable;
         }
+        return d;
+    }
+
+    /**
+     * Queues a reload of this token's evicted drawable on the token load
+     * manager, unless one is already queued.
+     */
+    private void queueReload() {
+        if (this.mReloadPending) {
+            return;
+        }
+        this.mReloadPending = true;
+        TokenLoadManager.getInstance().startJob(
+                Collections.<BaseToken> singletonList(this),
+                new TokenLoadManager.JobCallback() {
+                    @Override
+                    public void onJobComplete(List<BaseToken> loadedTokens) {
+                        DrawableToken.this.mReloadPending = false;
+                        if (reloadCallback != null) {
+                            reloadCallback.onJobComplete(loadedTokens);
+                        }
+                    }
+                }, reloadHandler);
+    }
+
+    /**
+     * @return The cache of loaded token images, e.g. to read its statistics.
+     */
+    public static TokenImageCache getDrawableCache() {
+        return drawableCache;
+    }
+
+    /**
+     * Changes the amount of memory that loaded token images may use.
+     * 
+     * @param budgetBytes
+     *            The new memory budget, in bytes.
+     */
+    public static void setDrawableCacheBudget(long budgetBytes) {
+        drawableCache.setBudget(budgetBytes);
+    }
+
+    /**
+     * @return The key that this token's image is cached under.
+     */
+    private String getImageKey() {
+        if (this.mThumbnailSize == 0) {
+            return this.getTokenId();
+        }
+        return this.getTokenId() + THUMBNAIL_KEY_SEPARATOR
+                + this.mThumbnailSize;
     }
 
     @Override
     public final void load() {
-        if (this.mDrawable == null) {
-            this.mDrawable = this.createDrawable();
+        if (!drawableCache.contains(this.getImageKey())) {
+            this.loadDrawable();
+        } else {
+            this.mLoaded = true;
         }
+    }
 
-        if (this.mDrawable != null) {
-            synchronized (drawableCache) {
-                drawableCache.put(this.getTokenId(), this.mDrawable);
+    @Override
+    public final void setThumbnailSize(int size) {
+        if (!this.hasThumbnails()) {
+            return;
+        }
+        int thumbnailSize = 0;
+        for (int s : THUMBNAIL_SIZES) {
+            if (s >= size) {
+                thumbnailSize = s;
+                break;
+            }
+        }
+        if (thumbnailSize != this.mThumbnailSize) {
+            this.mThumbnailSize = thumbnailSize;
+            this.mLoaded = false;
+        }
+    }
+
+    /**
+     * Creates the drawable and adds it to the cache.
+     * 
+     * @return The created drawable, or null if it could not be created.
+     */
+    private Drawable loadDrawable() {
+        Drawable d =
+                this.mThumbnailSize != 0 ? this
+                        .createThumbnailDrawable(this.mThumbnailSize) : this
+                        .createDrawable();
+        if (d != null) {
+            drawableCache.put(this.getImageKey(), d);
+            this.mLoaded = true;
+        } else {
+            this.mLoaded = false;
+            if (DeveloperMode.DEVELOPER_MODE) {
+                Log.d(DrawableToken.class.getName(),
+                        "Drawable object failed to load for "
+                                + this.getTokenId());
             }
-        } else if (DeveloperMode.DEVELOPER_MODE) {
-            Log.d(DrawableToken.class.getName(),
-                    "Drawable object failed to load for " + this.getTokenId());
         }
+        return d;
     }
 
     @Override
     public final boolean needsLoad() {
-        synchronized (drawableCache) {
-            return !drawableCache.containsKey(this.getTokenId());
-        }
+        return !drawableCache.contains(this.getImageKey());
     }
 
 }
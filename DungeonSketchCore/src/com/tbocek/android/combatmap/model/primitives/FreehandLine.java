@@ -2,6 +2,7 @@ package com.tbocek.android.combatmap.model.primitives;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import android.graphics.Path;
@@ -22,6 +23,17 @@ public final class FreehandLine extends Shape {
      */
     public static final String SHAPE_TYPE = "fh";
 
+    /**
+     * Simplified paths that keep more than this fraction of the points are
+     * not worth building; the full path is drawn instead.
+     */
+    private static final float MAX_SIMPLIFIED_FRACTION = 0.75f;
+
+    /**
+     * Number of points to allocate room for in a new line.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
     /**
      * When a segment of this freehand line has only a portion erased, the
      * resulting new line segments are placed in this array.
@@ -30,17 +42,24 @@ public final class FreehandLine extends Shape {
             new ArrayList<StraightLine>();
 
     /**
-     * The points that comprise this line.
+     * The points that comprise this line, packed as x and y coordinate pairs.
+     * Only the first mPointCount pairs are in use.
+     */
+    private float[] mCoordinates = new float[2 * INITIAL_CAPACITY];
+
+    /**
+     * Number of points in this line.
      */
-    private List<PointF> mPoints = new ArrayList<PointF>();
+    private int mPointCount;
 
     /**
-     * Whether each point in the line should be drawn. This allows us to
-     * temporarily suppress drawing the points when the line is being erased.
-     * However, it's only a temporary fix; the line should later be optimized so
-     * that points that shouldn't draw get removed instead.
+     * Segments that should not be drawn; bit i is set when the segment from
+     * point i to point i + 1 has been erased. This allows us to temporarily
+     * suppress drawing the points when the line is being erased. However, it's
+     * only a temporary fix; the line should later be optimized so that points
+     * that shouldn't draw get removed instead.
      */
-    private List<Boolean> mShouldDraw = new ArrayList<Boolean>();
+    private BitSet mErasedSegments = new BitSet();
 
     /**
      * Constructor.
@@ -63,10 +82,39 @@ public final class FreehandLine extends Shape {
      */
     @Override
     public void addPoint(final PointF p) {
-        this.mPoints.add(p);
-        this.mShouldDraw.add(true);
+        this.addPoint(p.x, p.y);
         this.getBoundingRectangle().updateBounds(p);
-        this.invalidatePath();
+
+        // While a stroke is being drawn, the new point only adds a segment at
+        // the end of the path, so extend the cached path instead of
+        // rebuilding it. Partially erased segments are drawn after the last
+        // point, so lines that have them are rebuilt.
+        if (this.mPartiallyErasedLineSegments == null
+                || this.mPartiallyErasedLineSegments.isEmpty()) {
+            this.appendToPath(p.x, p.y);
+        } else {
+            this.invalidatePath();
+        }
+    }
+
+    /**
+     * Appends a point to the coordinate buffer, growing it if needed.
+     * 
+     * @param x
+     *            X coordinate of the point.
+     * @param y
+     *            Y coordinate of the point.
+     */
+    private void addPoint(final float x, final float y) {
+        if (2 * this.mPointCount == this.mCoordinates.length) {
+            float[] grown = new float[2 * this.mCoordinates.length];
+            System.arraycopy(this.mCoordinates, 0, grown, 0,
+                    this.mCoordinates.length);
+            this.mCoordinates = grown;
+        }
+        this.mCoordinates[2 * this.mPointCount] = x;
+        this.mCoordinates[2 * this.mPointCount + 1] = y;
+        this.mPointCount++;
     }
 
     /**
@@ -92,21 +140,24 @@ public final class FreehandLine extends Shape {
 
         // i and j store consecutive points, so they define a line segment.
         // Start with the line segment from the last point to the first point.
-        int j = this.mPoints.size() - 1;
+        float[] c = this.mCoordinates;
+        int j = this.mPointCount - 1;
         boolean oddNodes = false;
-        for (int i = 0; i < this.mPoints.size(); ++i) {
-            PointF pj = this.mPoints.get(j);
-            PointF pi = this.mPoints.get(i);
+        for (int i = 0; i < this.mPointCount; ++i) {
+            float pjx = c[2 * j];
+            float pjy = c[2 * j + 1];
+            float pix = c[2 * i];
+            float piy = c[2 * i + 1];
 
             // Check if the test point is in between the y coordinates of the
             // two points that make up this line segment. This checks two
             // conditions: whether the horizontal line has an intersection
             // (avoids division by 0), and whether the intersection between
             // the extruded line and horizontal line occurs on the line segment.
-            if (pi.y < p.y && pj.y >= p.y || pj.y < p.y && pi.y >= p.y) {
+            if (piy < p.y && pjy >= p.y || pjy < p.y && piy >= p.y) {
                 // Check if the horizontal line/line segment intersectino occurs
                 // to the left of the test point.
-                if (pi.x + (p.y - pi.y) / (pj.y - pi.y) * (pj.x - pi.x) < p.x) {
+                if (pix + (p.y - piy) / (pjy - piy) * (pjx - pix) < p.x) {
                     oddNodes = !oddNodes;
                 }
             }
@@ -123,20 +174,21 @@ public final class FreehandLine extends Shape {
     @Override
     protected Path createPath() {
         // Do not try to draw a line with too few points.
-        if (this.mPoints.size() < 2) {
+        if (this.mPointCount < 2) {
             return null;
         }
 
         Path path = new Path();
         boolean penDown = false;
-        for (int i = 0; i < this.mPoints.size(); ++i) {
-            PointF p1 = this.mPoints.get(i);
+        for (int i = 0; i < this.mPointCount; ++i) {
+            float x = this.mCoordinates[2 * i];
+            float y = this.mCoordinates[2 * i + 1];
             if (penDown) {
-                path.lineTo(p1.x, p1.y);
+                path.lineTo(x, y);
             } else {
-                path.moveTo(p1.x, p1.y);
+                path.moveTo(x, y);
             }
-            penDown = this.mShouldDraw.get(i).booleanValue();
+            penDown = !this.mErasedSegments.get(i);
         }
 
         if (this.mPartiallyErasedLineSegments == null) {
@@ -150,6 +202,146 @@ public final class FreehandLine extends Shape {
         return path;
     }
 
+    /**
+     * Creates a Path object that draws a Douglas-Peucker simplification of
+     * this shape. Each run of points drawn without lifting the pen is
+     * simplified separately, so erased gaps are preserved.
+     * 
+     * @param tolerance
+     *            Largest distance, in world space, that the simplified path
+     *            may deviate from the line.
+     * @return The created path, or null if simplifying would not remove
+     *         enough points to be worthwhile.
+     */
+    @Override
+    protected Path createPath(float tolerance) {
+        int size = this.mPointCount;
+        if (size < 2) {
+            return null;
+        }
+
+        boolean[] keep = new boolean[size];
+        int kept = 0;
+        int runStart = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i == size - 1 || this.mErasedSegments.get(i)) {
+                kept += this.simplify(runStart, i, tolerance, keep);
+                runStart = i + 1;
+            }
+        }
+        if (kept > size * MAX_SIMPLIFIED_FRACTION) {
+            return null;
+        }
+
+        Path path = new Path();
+        boolean penDown = false;
+        for (int i = 0; i < size; ++i) {
+            if (keep[i]) {
+                float x = this.mCoordinates[2 * i];
+                float y = this.mCoordinates[2 * i + 1];
+                if (penDown) {
+                    path.lineTo(x, y);
+                } else {
+                    path.moveTo(x, y);
+                }
+                penDown = !this.mErasedSegments.get(i);
+            }
+        }
+
+        if (this.mPartiallyErasedLineSegments != null) {
+            for (StraightLine l : this.mPartiallyErasedLineSegments) {
+                path.addPath(l.createPath());
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Marks the points in the given run that a Douglas-Peucker simplification
+     * keeps.
+     * 
+     * @param first
+     *            Index of the first point in the run.
+     * @param last
+     *            Index of the last point in the run.
+     * @param tolerance
+     *            Largest distance that the simplification may deviate from
+     *            the run.
+     * @param keep
+     *            Array to mark the kept points in.
+     * @return The number of points kept.
+     */
+    private int simplify(int first, int last, float tolerance, boolean[] keep) {
+        keep[first] = true;
+        if (first == last) {
+            return 1;
+        }
+        keep[last] = true;
+        int kept = 2;
+
+        // Each pending span is pushed as a pair of indices; there are never
+        // more pending spans than points in the run.
+        int[] stack = new int[2 * (last - first + 1)];
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            float[] c = this.mCoordinates;
+            float maxDistance = 0;
+            int farthest = -1;
+            for (int i = start + 1; i < end; ++i) {
+                float d =
+                        distanceToSegment(c[2 * i], c[2 * i + 1], c[2 * start],
+                                c[2 * start + 1], c[2 * end], c[2 * end + 1]);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > tolerance) {
+                keep[farthest] = true;
+                kept++;
+                stack[top++] = start;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = end;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Computes the distance from a point to a line segment.
+     * 
+     * @param px
+     *            X coordinate of the point.
+     * @param py
+     *            Y coordinate of the point.
+     * @param ax
+     *            X coordinate of the first endpoint of the segment.
+     * @param ay
+     *            Y coordinate of the first endpoint of the segment.
+     * @param bx
+     *            X coordinate of the second endpoint of the segment.
+     * @param by
+     *            Y coordinate of the second endpoint of the segment.
+     * @return The distance.
+     */
+    private static float distanceToSegment(float px, float py, float ax,
+            float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return Util.distance(px, py, ax, ay);
+        }
+        float t = ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        return Util.distance(px, py, ax + t * dx, ay + t * dy);
+    }
+
     /**
      * Erases all points in the line that fall in the circle specified by the
      * given center and radius. This does not delete the points, just marks them
@@ -173,26 +365,26 @@ public final class FreehandLine extends Shape {
                 sl.erase(center, radius);
             }
 
-            for (int i = 0; i < this.mPoints.size() - 1; ++i) {
-                if (this.mShouldDraw.get(i)) {
-                    PointF p1 = this.mPoints.get(i);
-                    PointF p2 = this.mPoints.get(i + 1);
+            float[] c = this.mCoordinates;
+            for (int i = 0; i < this.mPointCount - 1; ++i) {
+                if (!this.mErasedSegments.get(i)) {
                     Util.IntersectionPair intersection =
-                            Util.lineCircleIntersection(p1, p2, center, radius);
+                            Util.lineCircleIntersection(c[2 * i], c[2 * i + 1],
+                                    c[2 * i + 2], c[2 * i + 3], center, radius);
                     if (intersection != null) {
-                        this.mShouldDraw.set(i, false);
+                        this.mErasedSegments.set(i);
                         StraightLine sl =
                                 new StraightLine(this.getColor(),
                                         this.getWidth());
-                        sl.addPoint(p1);
-                        sl.addPoint(p2);
+                        sl.addPoint(this.getPoint(i));
+                        sl.addPoint(this.getPoint(i + 1));
                         sl.erase(center, radius);
                         this.mPartiallyErasedLineSegments.add(sl);
                     }
                 }
             }
+            this.invalidatePath();
         }
-        this.invalidatePath();
     }
 
     /**
@@ -201,12 +393,7 @@ public final class FreehandLine extends Shape {
      */
     @Override
     public boolean needsOptimization() {
-        for (boolean b : this.mShouldDraw) {
-            if (!b) {
-                return true;
-            }
-        }
-        return false;
+        return !this.mErasedSegments.isEmpty();
     }
 
     /**
@@ -222,19 +409,19 @@ public final class FreehandLine extends Shape {
         List<Shape> optimizedLines = new ArrayList<Shape>();
         FreehandLine l = new FreehandLine(this.getColor(), this.getWidth());
         optimizedLines.add(l);
-        for (int i = 0; i < this.mPoints.size(); ++i) {
-            l.addPoint(this.mPoints.get(i));
-            if (!this.mShouldDraw.get(i).booleanValue()) {
+        for (int i = 0; i < this.mPointCount; ++i) {
+            l.addPoint(this.getPoint(i));
+            if (this.mErasedSegments.get(i)) {
                 // Do not add a line with only one point in it, those are
                 // useless
-                if (l.mPoints.size() <= 1) {
+                if (l.mPointCount <= 1) {
                     optimizedLines.remove(l);
                 }
                 l = new FreehandLine(this.getColor(), this.getWidth());
                 optimizedLines.add(l);
             }
-            this.mShouldDraw.set(i, true);
         }
+        this.mErasedSegments.clear();
 
         for (StraightLine sl : this.mPartiallyErasedLineSegments) {
             if (sl.needsOptimization()) {
@@ -251,16 +438,20 @@ public final class FreehandLine extends Shape {
         return optimizedLines;
     }
 
+    /**
+     * @param i
+     *            Index of the point to get.
+     * @return A new PointF holding the point at the given index.
+     */
+    private PointF getPoint(int i) {
+        return new PointF(this.mCoordinates[2 * i], this.mCoordinates[2 * i + 1]);
+    }
+
     @Override
     public void serialize(MapDataSerializer s) throws IOException {
         this.serializeBase(s, SHAPE_TYPE);
         s.startObject();
-        s.startArray();
-        for (PointF p : this.mPoints) {
-            s.serializeFloat(p.x);
-            s.serializeFloat(p.y);
-        }
-        s.endArray();
+        s.serializeCoordinates(this.mCoordinates, 2 * this.mPointCount);
         s.endObject();
     }
 
@@ -268,15 +459,10 @@ public final class FreehandLine extends Shape {
     protected void shapeSpecificDeserialize(MapDataDeserializer s)
             throws IOException {
         s.expectObjectStart();
-        int arrayLevel = s.expectArrayStart();
-        while (s.hasMoreArrayItems(arrayLevel)) {
-            PointF p = new PointF();
-            p.x = s.readFloat();
-            p.y = s.readFloat();
-            this.mPoints.add(p);
-            this.mShouldDraw.add(true);
+        float[] coordinates = s.readCoordinates();
+        for (int i = 0; i + 1 < coordinates.length; i += 2) {
+            this.addPoint(coordinates[i], coordinates[i + 1]);
         }
-        s.expectArrayEnd();
         s.expectObjectEnd();
     }
 }
@@ -0,0 +1,195 @@
+package com.tbocek.android.combatmap.model.primitives;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+
+import com.tbocek.android.combatmap.WeightedLruCache;
+
+/**
+ * Cache of decoded tiles of background images, shared between every image so
+ * that the memory spent on backgrounds is bounded no matter how many images a
+ * map has or how large they are.
+ *
+ * Tiles are keyed by image path, sample size and tile position. Tiles are
+ * evicted in least recently used order once the memory budget is exceeded.
+ * Evicted bitmaps are not recycled, since another thread may still be drawing
+ * them. The cache also tracks which tiles are being decoded in the background,
+ * so that each tile is only decoded once.
+ *
+ * This class is thread safe.
+ *
+ * @author Tim
+ *
+ */
+final class ImageTileCache {
+
+    /**
+     * The decoded tiles, weighed by their size in bytes.
+     */
+    private final WeightedLruCache<TileKey, Bitmap> mTiles;
+
+    /**
+     * Tiles that are being decoded.
+     */
+    private Set<TileKey> mPendingTiles = new HashSet<TileKey>();
+
+    /**
+     * Constructor.
+     *
+     * @param budgetBytes
+     *            Maximum amount of memory to spend on tile bitmaps.
+     */
+    ImageTileCache(long budgetBytes) {
+        this.mTiles = new WeightedLruCache<TileKey, Bitmap>(budgetBytes) {
+            @Override
+            protected long weigh(Bitmap tile) {
+                return (long) tile.getRowBytes() * tile.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Looks up a decoded tile, marking it as recently used.
+     *
+     * @param path
+     *            Path of the image the tile belongs to.
+     * @param sampleSize
+     *            Sample size that the tile was decoded at.
+     * @param column
+     *            Column of the tile.
+     * @param row
+     *            Row of the tile.
+     * @return The tile, or null if it is not cached.
+     */
+    synchronized Bitmap get(String path, int sampleSize, int column, int row) {
+        return this.mTiles.get(new TileKey(path, sampleSize, column, row));
+    }
+
+    /**
+     * Records that a tile is about to be decoded.
+     *
+     * @param path
+     *            Path of the image the tile belongs to.
+     * @param sampleSize
+     *            Sample size that the tile will be decoded at.
+     * @param column
+     *            Column of the tile.
+     * @param row
+     *            Row of the tile.
+     * @return False if the tile is already cached or being decoded.
+     */
+    synchronized boolean markPending(String path, int sampleSize, int column,
+            int row) {
+        TileKey key = new TileKey(path, sampleSize, column, row);
+        if (this.mTiles.containsKey(key)) {
+            return false;
+        }
+        return this.mPendingTiles.add(key);
+    }
+
+    /**
+     * Records that a tile is no longer being decoded, without adding it.
+     *
+     * @param path
+     *            Path of the image the tile belongs to.
+     * @param sampleSize
+     *            Sample size that the tile was decoded at.
+     * @param column
+     *            Column of the tile.
+     * @param row
+     *            Row of the tile.
+     */
+    synchronized void clearPending(String path, int sampleSize, int column,
+            int row) {
+        this.mPendingTiles.remove(new TileKey(path, sampleSize, column, row));
+    }
+
+    /**
+     * Adds a decoded tile, evicting other tiles if the budget is exceeded.
+     *
+     * @param path
+     *            Path of the image the tile belongs to.
+     * @param sampleSize
+     *            Sample size that the tile was decoded at.
+     * @param column
+     *            Column of the tile.
+     * @param row
+     *            Row of the tile.
+     * @param tile
+     *            The decoded tile.
+     */
+    synchronized void put(String path, int sampleSize, int column, int row,
+            Bitmap tile) {
+        TileKey key = new TileKey(path, sampleSize, column, row);
+        this.mPendingTiles.remove(key);
+        this.mTiles.put(key, tile);
+    }
+
+    /**
+     * Key identifying a decoded tile.
+     *
+     * @author Tim
+     *
+     */
+    private static final class TileKey {
+        /**
+         * Path of the image the tile belongs to.
+         */
+        private final String mPath;
+
+        /**
+         * Sample size that the tile was decoded at.
+         */
+        private final int mSampleSize;
+
+        /**
+         * Column of the tile.
+         */
+        private final int mColumn;
+
+        /**
+         * Row of the tile.
+         */
+        private final int mRow;
+
+        /**
+         * Constructor.
+         *
+         * @param path
+         *            Path of the image the tile belongs to.
+         * @param sampleSize
+         *            Sample size that the tile was decoded at.
+         * @param column
+         *            Column of the tile.
+         * @param row
+         *            Row of the tile.
+         */
+        TileKey(String path, int sampleSize, int column, int row) {
+            this.mPath = path;
+            this.mSampleSize = sampleSize;
+            this.mColumn = column;
+            this.mRow = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return this.mPath.equals(other.mPath)
+                    && this.mSampleSize == other.mSampleSize
+                    && this.mColumn == other.mColumn && this.mRow == other.mRow;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = this.mPath.hashCode();
+            h = h * 31 + this.mSampleSize;
+            h = h * 31 + this.mColumn;
+            return h * 31 + this.mRow;
+        }
+    }
+}
@@ -5,8 +5,11 @@ import java.util.List;
 
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
+import android.graphics.Region;
 import android.graphics.Region.Op;
 
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
@@ -26,6 +29,19 @@ public abstract class Shape {
      */
     private static final int FOG_OF_WAR_ALPHA = 128;
 
+    /**
+     * World space tolerances at which simplified level of detail paths are
+     * built, from coarsest to finest.
+     */
+    private static final float[] DETAIL_TOLERANCES = {1 / 4f, 1 / 16f,
+            1 / 64f, 1 / 256f};
+
+    /**
+     * Largest error, in screen space pixels, that a simplified path may
+     * introduce when drawn.
+     */
+    private static final float MAX_DETAIL_ERROR_PIXELS = 0.5f;
+
     /**
      * Paint object that is used when drawing fog of war regions for the fog of
      * war editor.
@@ -64,6 +80,19 @@ public abstract class Shape {
      */
     private transient Path mPath;
 
+    /**
+     * Cached simplified paths, one per entry in DETAIL_TOLERANCES. Entries are
+     * built on demand, and may be the full path if simplifying does not help.
+     */
+    private transient Path[] mDetailPaths;
+
+    /**
+     * Whether the cached path was extended in place since it was last built
+     * from scratch. Simplified paths are not used for such shapes, since they
+     * would need to be rebuilt every time the path grows.
+     */
+    private transient boolean mPathExtended;
+
     /**
      * The stroke width to draw this line with. +Infinity will use a fill
      * instead (to ensure that it draws beneath all lines).
@@ -118,6 +147,24 @@ public abstract class Shape {
      */
     public abstract void addPoint(final PointF p);
 
+    /**
+     * Extends the cached path with a straight segment to the given point,
+     * instead of invalidating it. Does nothing if the path has not been built
+     * yet, since it will include the point when it is.
+     * 
+     * @param x
+     *            X coordinate of the point to extend the path to.
+     * @param y
+     *            Y coordinate of the point to extend the path to.
+     */
+    protected void appendToPath(float x, float y) {
+        if (this.mPath != null) {
+            this.mPath.lineTo(x, y);
+            this.mDetailPaths = null;
+            this.mPathExtended = true;
+        }
+    }
+
     /**
      * Changes the given canvas's transformation to apply this draw offset.
      * 
@@ -152,6 +199,28 @@ public abstract class Shape {
         }
     }
 
+    /**
+     * Adds the area covered by this shape to the given fog of war region.
+     * 
+     * @param region
+     *            The region to add to, in screen space.
+     * @param worldToScreen
+     *            Matrix that converts world space to screen space.
+     * @param bounds
+     *            Area of the screen that the region needs to cover.
+     */
+    public void unionFogOfWar(final Region region, final Matrix worldToScreen,
+            final Region bounds) {
+        this.ensurePathCreated();
+        if (this.mPath != null) {
+            Path screenSpacePath = new Path();
+            this.mPath.transform(worldToScreen, screenSpacePath);
+            Region shapeRegion = new Region();
+            shapeRegion.setPath(screenSpacePath, bounds);
+            region.op(shapeRegion, Region.Op.UNION);
+        }
+    }
+
     /**
      * Commits the pending move operation by returning a copy of this shape with
      * the offset applied. The offset is cleared from this shape. Calling code
@@ -188,6 +257,20 @@ public abstract class Shape {
      */
     protected abstract Path createPath();
 
+    /**
+     * Creates a simplified Android graphics Path object used to draw this
+     * shape when zoomed out. Shapes that do not support simplification return
+     * null, in which case the full path is used.
+     * 
+     * @param tolerance
+     *            Largest distance, in world space, that the simplified path
+     *            may deviate from the shape.
+     * @return The created path, or null.
+     */
+    protected Path createPath(float tolerance) {
+        return null;
+    }
+
     /**
      * Draws the line on the given canvas.
      * 
@@ -202,6 +285,27 @@ public abstract class Shape {
         }
     }
 
+    /**
+     * Draws the line on the given canvas, using a simplified path if the
+     * extra detail would not be visible at the current zoom level.
+     * 
+     * @param c
+     *            Canvas to draw on.
+     * @param transformer
+     *            The world space to screen space transformation the canvas
+     *            draws with.
+     */
+    public void draw(final Canvas c, final CoordinateTransformer transformer) {
+        Path detailPath =
+                this.getDetailPath(transformer.worldSpaceToScreenSpace(1.0f));
+        if (detailPath == null) {
+            this.draw(c);
+            return;
+        }
+        this.ensurePaintCreated();
+        c.drawPath(detailPath, this.mPaint);
+    }
+
     /**
      * Draws this path specifically as a fog of war region.
      * 
@@ -250,6 +354,37 @@ public abstract class Shape {
         }
     }
 
+    /**
+     * Gets the coarsest simplified path whose error is not visible at the
+     * given zoom level, creating it if needed.
+     * 
+     * @param zoom
+     *            Size of one world space unit, in screen space.
+     * @return The simplified path, or null if the full path should be used.
+     */
+    private Path getDetailPath(float zoom) {
+        if (this.mPathExtended) {
+            return null;
+        }
+        for (int i = 0; i < DETAIL_TOLERANCES.length; ++i) {
+            if (DETAIL_TOLERANCES[i] * zoom <= MAX_DETAIL_ERROR_PIXELS) {
+                if (this.mDetailPaths == null) {
+                    this.mDetailPaths = new Path[DETAIL_TOLERANCES.length];
+                }
+                if (this.mDetailPaths[i] == null) {
+                    Path p = this.createPath(DETAIL_TOLERANCES[i]);
+                    if (p == null) {
+                        this.ensurePathCreated();
+                        p = this.mPath;
+                    }
+                    this.mDetailPaths[i] = p;
+                }
+                return this.mDetailPaths[i];
+            }
+        }
+        return null;
+    }
+
     /**
      * Erases the portion of this shape that falls within the given circle.
      * 
@@ -269,6 +404,24 @@ public abstract class Shape {
         return this.mBoundingRectangle;
     }
 
+    /**
+     * Gets the smallest rectangle needed to fully enclose the line both where
+     * it is and where it is drawn with its pending draw offset applied.
+     * 
+     * @return The bounding rectangle. If there is no pending draw offset this
+     *         is the same object returned by getBoundingRectangle().
+     */
+    public BoundingRectangle getDrawBoundingRectangle() {
+        if (!this.hasOffset()) {
+            return this.mBoundingRectangle;
+        }
+        BoundingRectangle r = new BoundingRectangle();
+        r.updateBounds(this.mBoundingRectangle);
+        r.move(this.mDrawOffsetDeltaX, this.mDrawOffsetDeltaY);
+        r.updateBounds(this.mBoundingRectangle);
+        return r;
+    }
+
     /**
      * @return This shape's color.
      */
@@ -326,6 +479,40 @@ public abstract class Shape {
      */
     protected void invalidatePath() {
         this.mPath = null;
+        this.mDetailPaths = null;
+        this.mPathExtended = false;
+    }
+
+    /**
+     * Signals that this shape is no longer being edited interactively, so that
+     * simplified paths can be used for it again.
+     */
+    public void finishEditing() {
+        this.mPathExtended = false;
+    }
+
+    /**
+     * Checks whether any part of this shape could be drawn inside the given
+     * world space region. This accounts for the pending draw offset and for
+     * half of the stroke width, which extends past the bounding rectangle.
+     * 
+     * @param worldSpaceBounds
+     *            The visible region, in world space.
+     * @return True if the shape may be visible, false if it can safely be
+     *         skipped when drawing.
+     */
+    public boolean isVisible(RectF worldSpaceBounds) {
+        float deltaX = 0;
+        float deltaY = 0;
+        if (this.hasOffset()) {
+            deltaX = this.mDrawOffsetDeltaX;
+            deltaY = this.mDrawOffsetDeltaY;
+        }
+        float margin =
+                this.getWidth() == Float.POSITIVE_INFINITY ? 0 : this
+                        .getWidth() / 2;
+        return this.mBoundingRectangle.testClip(worldSpaceBounds, deltaX,
+                deltaY, margin);
     }
 
     /**
@@ -453,4 +640,4 @@ public abstract class Shape {
         return this.getWidth() > 1.0f;
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -2,7 +2,7 @@ package com.tbocek.android.combatmap.model.primitives;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 import android.graphics.Path;
@@ -34,9 +34,15 @@ public class StraightLine extends Shape {
     /**
      * Where to toggle the line on and off, for erasing purposes. These values
      * are parameterized by the length of the line, so that all values fall in
-     * the range [0,1].
+     * the range [0,1]. Only the first mToggleCount entries are in use; null
+     * if the line has not been erased.
      */
-    private List<Float> mLineToggleParameterization;
+    private float[] mLineToggleParameterization;
+
+    /**
+     * Number of toggles in mLineToggleParameterization.
+     */
+    private int mToggleCount;
 
     /**
      * First endpoint on the line. X coordinate guaranteed to be less than x
@@ -100,8 +106,9 @@ public class StraightLine extends Shape {
         if (this.mLineToggleParameterization != null) {
             // Erasing has happened, follow erasing instructions.
             boolean on = false;
-            for (float toggleT : this.mLineToggleParameterization) {
-                PointF togglePoint = this.parameterizationToPoint(toggleT);
+            for (int i = 0; i < this.mToggleCount; ++i) {
+                PointF togglePoint =
+                        this.parameterizationToPoint(this.mLineToggleParameterization[i]);
                 if (on) {
                     path.lineTo(togglePoint.x, togglePoint.y);
                 } else {
@@ -169,15 +176,16 @@ public class StraightLine extends Shape {
         }
 
         if (this.mLineToggleParameterization == null) {
-            this.mLineToggleParameterization = new ArrayList<Float>();
-            this.mLineToggleParameterization.add(0f);
-            this.mLineToggleParameterization.add(1f);
+            this.mLineToggleParameterization = new float[4];
+            this.mLineToggleParameterization[0] = 0f;
+            this.mLineToggleParameterization[1] = 1f;
+            this.mToggleCount = 2;
         }
 
         // Location in the array before which to insert the first segment
         int segmentStartInsertion =
-                Collections.binarySearch(this.mLineToggleParameterization,
-                        segmentStart);
+                Arrays.binarySearch(this.mLineToggleParameterization, 0,
+                        this.mToggleCount, segmentStart);
         if (segmentStartInsertion < 0) {
             segmentStartInsertion = -segmentStartInsertion - 1;
         }
@@ -185,8 +193,8 @@ public class StraightLine extends Shape {
 
         // Location in the array before which to insert the last segment.
         int segmentEndInsertion =
-                -Collections.binarySearch(this.mLineToggleParameterization,
-                        segmentEnd) - 1;
+                -Arrays.binarySearch(this.mLineToggleParameterization, 0,
+                        this.mToggleCount, segmentEnd) - 1;
         if (segmentEndInsertion < 0) {
             segmentEndInsertion = -segmentEndInsertion - 1;
         }
@@ -199,21 +207,44 @@ public class StraightLine extends Shape {
         // segmentStartInsertion.
         // Guard this by making sure we don't try to remove from the end of the
         // list.
-        if (segmentStartInsertion != this.mLineToggleParameterization.size()) {
-            for (int i = 0; i < segmentEndInsertion - segmentStartInsertion; ++i) {
-                this.mLineToggleParameterization.remove(segmentStartInsertion);
-            }
+        if (segmentStartInsertion != this.mToggleCount
+                && segmentEndInsertion > segmentStartInsertion) {
+            System.arraycopy(this.mLineToggleParameterization,
+                    segmentEndInsertion, this.mLineToggleParameterization,
+                    segmentStartInsertion, this.mToggleCount
+                            - segmentEndInsertion);
+            this.mToggleCount -= segmentEndInsertion - segmentStartInsertion;
         }
 
         if (endInDrawnRegion) {
-            this.mLineToggleParameterization.add(segmentStartInsertion,
-                    segmentEnd);
+            this.insertToggle(segmentStartInsertion, segmentEnd);
         }
 
         if (startInDrawnRegion) {
-            this.mLineToggleParameterization.add(segmentStartInsertion,
-                    segmentStart);
+            this.insertToggle(segmentStartInsertion, segmentStart);
+        }
+    }
+
+    /**
+     * Inserts a toggle into mLineToggleParameterization, growing it if needed.
+     * 
+     * @param index
+     *            Index to insert the toggle at.
+     * @param t
+     *            The parameterized distance to toggle at.
+     */
+    private void insertToggle(int index, float t) {
+        if (this.mToggleCount == this.mLineToggleParameterization.length) {
+            float[] grown = new float[2 * this.mToggleCount];
+            System.arraycopy(this.mLineToggleParameterization, 0, grown, 0,
+                    this.mToggleCount);
+            this.mLineToggleParameterization = grown;
         }
+        System.arraycopy(this.mLineToggleParameterization, index,
+                this.mLineToggleParameterization, index + 1, this.mToggleCount
+                        - index);
+        this.mLineToggleParameterization[index] = t;
+        this.mToggleCount++;
     }
 
     @Override
@@ -262,10 +293,10 @@ public class StraightLine extends Shape {
     public List<Shape> removeErasedPoints() {
         List<Shape> shapes = new ArrayList<Shape>();
 
-        if (this.mLineToggleParameterization.size() > 0) {
-            for (int i = 0; i < this.mLineToggleParameterization.size(); i += 2) {
-                float startT = this.mLineToggleParameterization.get(i);
-                float endT = this.mLineToggleParameterization.get(i + 1);
+        if (this.mToggleCount > 0) {
+            for (int i = 0; i < this.mToggleCount; i += 2) {
+                float startT = this.mLineToggleParameterization[i];
+                float endT = this.mLineToggleParameterization[i + 1];
 
                 StraightLine l =
                         new StraightLine(this.getColor(), this.getWidth());
@@ -275,6 +306,7 @@ public class StraightLine extends Shape {
             }
         }
         this.mLineToggleParameterization = null;
+        this.mToggleCount = 0;
         this.invalidatePath();
         return shapes;
     }
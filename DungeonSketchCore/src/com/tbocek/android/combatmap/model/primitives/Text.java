@@ -66,6 +66,14 @@ public class Text extends Shape {
         drawBoundingBoxes = value;
     }
 
+    /**
+     * @return Whether bounding boxes are currently drawn around every text
+     *         object.
+     */
+    public static boolean areBoundingBoxesDrawn() {
+        return drawBoundingBoxes;
+    }
+
     /**
      * HACK: Ctor for deserialization ONLY!!! The bounding rectangle in
      * particular MUST be manually set!!!
@@ -0,0 +1,159 @@
+package com.tbocek.android.combatmap.model.primitives;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import com.tbocek.android.combatmap.WeightedLruCache;
+
+/**
+ * Cache of loaded token images, keyed by token ID. Images are evicted in least
+ * recently used order once their total size exceeds the memory budget, so that
+ * browsing a large token library does not keep every image ever decoded in
+ * memory.
+ *
+ * This class is thread safe.
+ *
+ * @author Tim
+ *
+ */
+public final class TokenImageCache {
+
+    /**
+     * Bytes per pixel assumed for images whose size cannot be measured.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * The cached images, weighed by their estimated size in bytes.
+     */
+    private final WeightedLruCache<String, Drawable> mImages;
+
+    /**
+     * Number of lookups that found an image.
+     */
+    private long mHitCount;
+
+    /**
+     * Number of lookups that did not find an image.
+     */
+    private long mMissCount;
+
+    /**
+     * Constructor.
+     *
+     * @param budgetBytes
+     *            Maximum amount of memory to spend on token images.
+     */
+    TokenImageCache(long budgetBytes) {
+        this.mImages = new WeightedLruCache<String, Drawable>(budgetBytes) {
+            @Override
+            protected long weigh(Drawable image) {
+                return getBytes(image);
+            }
+        };
+    }
+
+    /**
+     * Looks up the image for the given token, marking it as recently used.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @return The image, or null if it is not cached.
+     */
+    synchronized Drawable get(String tokenId) {
+        Drawable d = this.mImages.get(tokenId);
+        if (d != null) {
+            this.mHitCount++;
+        } else {
+            this.mMissCount++;
+        }
+        return d;
+    }
+
+    /**
+     * Checks whether the image for the given token is cached, without marking
+     * it as used.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @return True if the image is cached.
+     */
+    synchronized boolean contains(String tokenId) {
+        return this.mImages.containsKey(tokenId);
+    }
+
+    /**
+     * Adds the image for the given token, evicting other images if the budget
+     * is exceeded. An image larger than the whole budget is still cached, on
+     * its own.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @param image
+     *            The loaded image.
+     */
+    synchronized void put(String tokenId, Drawable image) {
+        this.mImages.put(tokenId, image);
+    }
+
+    /**
+     * Changes the memory budget, evicting images if needed.
+     *
+     * @param budgetBytes
+     *            Maximum amount of memory to spend on token images.
+     */
+    synchronized void setBudget(long budgetBytes) {
+        this.mImages.setMaxWeight(budgetBytes);
+    }
+
+    /**
+     * @return Number of lookups that found an image.
+     */
+    public synchronized long getHitCount() {
+        return this.mHitCount;
+    }
+
+    /**
+     * @return Number of lookups that did not find an image.
+     */
+    public synchronized long getMissCount() {
+        return this.mMissCount;
+    }
+
+    /**
+     * @return Number of images evicted to stay within the budget.
+     */
+    public synchronized long getEvictionCount() {
+        return this.mImages.getEvictionCount();
+    }
+
+    /**
+     * @return Memory used by the cached images, in bytes.
+     */
+    public synchronized long getUsedBytes() {
+        return this.mImages.getWeight();
+    }
+
+    /**
+     * Estimates the memory used by an image.
+     *
+     * @param image
+     *            The image.
+     * @return The image's size, in bytes.
+     */
+    private static long getBytes(Drawable image) {
+        if (image instanceof BitmapDrawable) {
+            Bitmap b = ((BitmapDrawable) image).getBitmap();
+            if (b != null) {
+                return (long) b.getRowBytes() * b.getHeight();
+            }
+        }
+        int width = image.getIntrinsicWidth();
+        int height = image.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+}
@@ -0,0 +1,236 @@
+package com.tbocek.android.combatmap.model.primitives;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Path;
+import android.graphics.drawable.Drawable;
+
+import com.tbocek.android.combatmap.WeightedLruCache;
+
+/**
+ * Cache of token images that have already been clipped to a circle, scaled and
+ * tinted, so that drawing a token only takes a single bitmap blit instead of
+ * a clip to a new path and a draw of the full resolution drawable.
+ *
+ * Sprites are keyed by token ID, a diameter bucket and a variant. Each sprite
+ * is rendered at the largest diameter in its bucket and scaled down when it is
+ * drawn, so that zooming does not render a new sprite for every frame. Sprites
+ * are evicted in least recently used order once the memory budget is
+ * exceeded. Evicted bitmaps are not recycled, since another thread may still
+ * be drawing them.
+ *
+ * This class is thread safe.
+ *
+ * @author Tim
+ *
+ */
+final class TokenSpriteCache {
+
+    /**
+     * Ways that a token image can be rendered.
+     */
+    enum Variant {
+        /**
+         * The token image as is.
+         */
+        NORMAL,
+
+        /**
+         * The token image with a red tint.
+         */
+        BLOODIED
+    }
+
+    /**
+     * Number of diameter buckets per doubling of the diameter.
+     */
+    private static final int BUCKETS_PER_OCTAVE = 4;
+
+    /**
+     * Largest sprite diameter, in pixels. Tokens drawn larger than this are
+     * rare (the map must be zoomed far in) and would use a lot of memory, so
+     * they are not cached.
+     */
+    static final int MAX_SPRITE_DIAMETER = 512;
+
+    /**
+     * Rendered sprites, weighed by their size in bytes.
+     */
+    private final WeightedLruCache<SpriteKey, Bitmap> mSprites;
+
+    /**
+     * Constructor.
+     *
+     * @param budgetBytes
+     *            Maximum amount of memory to spend on sprite bitmaps.
+     */
+    TokenSpriteCache(long budgetBytes) {
+        this.mSprites = new WeightedLruCache<SpriteKey, Bitmap>(budgetBytes) {
+            @Override
+            protected long weigh(Bitmap sprite) {
+                return (long) sprite.getWidth() * sprite.getHeight() * 4;
+            }
+        };
+    }
+
+    /**
+     * Looks up an already rendered sprite for the given token.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @param radius
+     *            Radius the token will be drawn at, in pixels.
+     * @param variant
+     *            How the image should be rendered.
+     * @return A square sprite at least as large as the token's diameter, or
+     *         null if none was rendered yet.
+     */
+    synchronized Bitmap getSprite(String tokenId, float radius,
+            Variant variant) {
+        return this.mSprites.get(new SpriteKey(tokenId, getBucket(radius),
+                variant));
+    }
+
+    /**
+     * Renders a sprite for the given token and adds it to the cache.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @param drawable
+     *            The token's image.
+     * @param radius
+     *            Radius the token will be drawn at, in pixels.
+     * @param variant
+     *            How to render the image.
+     * @param filter
+     *            Color filter to render the variant with, or null.
+     * @param maxDiameter
+     *            Largest sprite that the drawable has enough detail for.
+     * @return A square sprite at least as large as the token's diameter, or
+     *         null if the token is too large to cache.
+     */
+    synchronized Bitmap renderSprite(String tokenId, Drawable drawable,
+            float radius, Variant variant, ColorFilter filter,
+            int maxDiameter) {
+        int bucket = getBucket(radius);
+        int diameter =
+                (int) Math.ceil(Math.pow(2, bucket
+                        / (double) BUCKETS_PER_OCTAVE));
+        if (diameter > Math.min(MAX_SPRITE_DIAMETER, maxDiameter)) {
+            return null;
+        }
+
+        // Make room before allocating the sprite, so that the evicted sprites
+        // can be collected first.
+        this.mSprites.trimTo(this.mSprites.getMaxWeight()
+                - (long) diameter * diameter * 4);
+        Bitmap sprite = rasterize(drawable, diameter, filter);
+        this.mSprites.put(new SpriteKey(tokenId, bucket, variant), sprite);
+        return sprite;
+    }
+
+    /**
+     * Throws away all sprites.
+     */
+    synchronized void clear() {
+        this.mSprites.clear();
+    }
+
+    /**
+     * @param radius
+     *            Radius a token will be drawn at, in pixels.
+     * @return The diameter bucket that the token's sprite belongs in.
+     */
+    private static int getBucket(float radius) {
+        return (int) Math.ceil(Math.log(Math.max(2 * radius, 1)) / Math.log(2)
+                * BUCKETS_PER_OCTAVE);
+    }
+
+    /**
+     * Renders a token image clipped to a circle.
+     *
+     * @param drawable
+     *            The token's image.
+     * @param diameter
+     *            Width and height of the sprite, in pixels.
+     * @param filter
+     *            Color filter to render with, or null.
+     * @return The rendered sprite.
+     */
+    private static Bitmap rasterize(Drawable drawable, int diameter,
+            ColorFilter filter) {
+        Bitmap sprite =
+                Bitmap.createBitmap(diameter, diameter, Bitmap.Config.ARGB_8888);
+        Canvas c = new Canvas(sprite);
+        Path p = new Path();
+        p.addCircle(diameter / 2.0f, diameter / 2.0f, diameter / 2.0f,
+                Path.Direction.CW);
+        c.clipPath(p);
+
+        // The drawable is shared between every token with the same ID, so put
+        // back the state that was changed.
+        drawable.setBounds(0, 0, diameter, diameter);
+        drawable.setColorFilter(filter);
+        drawable.draw(c);
+        drawable.setColorFilter(null);
+        return sprite;
+    }
+
+    /**
+     * Key identifying a rendered sprite.
+     *
+     * @author Tim
+     *
+     */
+    private static final class SpriteKey {
+        /**
+         * ID of the token.
+         */
+        private final String mTokenId;
+
+        /**
+         * Diameter bucket of the sprite.
+         */
+        private final int mBucket;
+
+        /**
+         * How the sprite was rendered.
+         */
+        private final Variant mVariant;
+
+        /**
+         * Constructor.
+         *
+         * @param tokenId
+         *            ID of the token.
+         * @param bucket
+         *            Diameter bucket of the sprite.
+         * @param variant
+         *            How the sprite was rendered.
+         */
+        SpriteKey(String tokenId, int bucket, Variant variant) {
+            this.mTokenId = tokenId;
+            this.mBucket = bucket;
+            this.mVariant = variant;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SpriteKey)) {
+                return false;
+            }
+            SpriteKey other = (SpriteKey) o;
+            return this.mTokenId.equals(other.mTokenId)
+                    && this.mBucket == other.mBucket
+                    && this.mVariant == other.mVariant;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = this.mTokenId.hashCode();
+            h = h * 31 + this.mBucket;
+            return h * 31 + this.mVariant.hashCode();
+        }
+    }
+}
@@ -167,11 +167,34 @@ public final class Util {
      */
     public static IntersectionPair lineCircleIntersection(PointF p1, PointF p2,
             PointF center, float radius) {
+        return lineCircleIntersection(p1.x, p1.y, p2.x, p2.y, center, radius);
+    }
+
+    /**
+     * Computes the intersection of a line segment and a circle.
+     * 
+     * @param p1x
+     *            X coordinate of the first endpoint of the line segment.
+     * @param p1y
+     *            Y coordinate of the first endpoint of the line segment.
+     * @param p2x
+     *            X coordinate of the second endpoint of the line segment.
+     * @param p2y
+     *            Y coordinate of the second endpoint of the line segment.
+     * @param center
+     *            Center of the circle.
+     * @param radius
+     *            Radius of the circle.
+     * @return IntersectionPair with the intersections, or null if there are
+     *         none.
+     */
+    public static IntersectionPair lineCircleIntersection(float p1x,
+            float p1y, float p2x, float p2y, PointF center, float radius) {
         // First, make sure that the line segment is anywhere near the circle.
-        if (center.x + radius < Math.min(p1.x, p2.x)
-                || center.x - radius > Math.max(p1.x, p2.x)
-                || center.y + radius < Math.min(p1.y, p2.y)
-                || center.y - radius > Math.max(p1.y, p2.y)) {
+        if (center.x + radius < Math.min(p1x, p2x)
+                || center.x - radius > Math.max(p1x, p2x)
+                || center.y + radius < Math.min(p1y, p2y)
+                || center.y - radius > Math.max(p1y, p2y)) {
             return null;
         }
 
@@ -180,10 +203,10 @@ public final class Util {
 
         // Transform to standard coordinate system where circle is
         // centered at (0, 0)
-        float x1 = p1.x - center.x;
-        float y1 = p1.y - center.y;
-        float x2 = p2.x - center.x;
-        float y2 = p2.y - center.y;
+        float x1 = p1x - center.x;
+        float y1 = p1y - center.y;
+        float x2 = p2x - center.x;
+        float y2 = p2y - center.y;
 
         float dx = x2 - x1;
         float dy = y2 - y1;
@@ -245,22 +268,10 @@ public final class Util {
         BitmapFactory.decodeStream(is, null, o);
         is.close();
 
-        // Find the correct scale value. It should be the power of 2.
-        int widthTmp = o.outWidth;
-        int heightTmp = o.outHeight;
-        int scale = 1;
-        while (true) {
-            if (widthTmp / 2 < maxWidth || heightTmp / 2 < maxHeight) {
-                break;
-            }
-            widthTmp /= 2;
-            heightTmp /= 2;
-            scale *= 2;
-        }
-
         // Decode with inSampleSize
         BitmapFactory.Options o2 = new BitmapFactory.Options();
-        o2.inSampleSize = scale;
+        o2.inSampleSize =
+                computeSampleSize(o.outWidth, o.outHeight, maxWidth, maxHeight);
         is = contentResolver.openInputStream(selectedImage);
         Bitmap b = BitmapFactory.decodeStream(
                 contentResolver.openInputStream(selectedImage), null, o2);
@@ -269,6 +280,36 @@ public final class Util {
         return b;
     }
 
+    /**
+     * Finds the largest power of two that an image can be downsampled by while
+     * staying at least as large as the given size.
+     * 
+     * @param width
+     *            Width of the image.
+     * @param height
+     *            Height of the image.
+     * @param minWidth
+     *            The smallest width that the downsampled image may have.
+     * @param minHeight
+     *            The smallest height that the downsampled image may have.
+     * @return The sample size to pass to BitmapFactory.
+     */
+    public static int computeSampleSize(int width, int height, int minWidth,
+            int minHeight) {
+        int widthTmp = width;
+        int heightTmp = height;
+        int scale = 1;
+        while (true) {
+            if (widthTmp / 2 < minWidth || heightTmp / 2 < minHeight) {
+                break;
+            }
+            widthTmp /= 2;
+            heightTmp /= 2;
+            scale *= 2;
+        }
+        return scale;
+    }
+
     /**
      * Utility class - private constructor.
      */
@@ -218,6 +218,7 @@ public final class TokenManager extends SherlockActivity {
 
         this.mButtons = Lists.newArrayList();
         for (BaseToken t : tokens) {
+            t.setThumbnailSize(cellDimension);
             TokenButton b =
                     (TokenButton) this.mTokenViewFactory.getTokenView(t);
             b.setShouldDrawDark(true);
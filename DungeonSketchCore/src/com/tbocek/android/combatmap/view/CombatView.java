@@ -1,6 +1,7 @@
 package com.tbocek.android.combatmap.view;
 
 
+import java.util.List;
 import java.util.Queue;
 
 import android.annotation.SuppressLint;
@@ -15,6 +16,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region.Op;
 import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 import android.view.DragEvent;
 import android.view.GestureDetector;
@@ -25,21 +27,28 @@ import android.view.SurfaceView;
 import android.view.View;
 
 import com.tbocek.android.combatmap.DeveloperMode;
+import com.tbocek.android.combatmap.MemoryBudget;
 import com.tbocek.android.combatmap.ScrollBuffer;
 import com.tbocek.android.combatmap.ScrollBuffer.DrawRequest;
+import com.tbocek.android.combatmap.TokenLoadManager;
+import com.tbocek.android.combatmap.model.BelowTokensCache;
+import com.tbocek.android.combatmap.model.FogOfWarMask;
 import com.tbocek.android.combatmap.model.LineCollection;
 import com.tbocek.android.combatmap.model.MapData;
 import com.tbocek.android.combatmap.model.MapDrawer;
 import com.tbocek.android.combatmap.model.MapDrawer.FogOfWarMode;
+import com.tbocek.android.combatmap.model.MapTileCache;
 import com.tbocek.android.combatmap.model.MultiSelectManager;
 import com.tbocek.android.combatmap.model.TokenCollection;
 import com.tbocek.android.combatmap.model.UndoRedoTarget;
 import com.tbocek.android.combatmap.model.primitives.BackgroundImage;
 import com.tbocek.android.combatmap.model.primitives.BaseToken;
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+import com.tbocek.android.combatmap.model.primitives.DrawableToken;
 import com.tbocek.android.combatmap.model.primitives.PointF;
 import com.tbocek.android.combatmap.model.primitives.Shape;
 import com.tbocek.android.combatmap.model.primitives.Text;
+import com.tbocek.android.combatmap.model.primitives.TokenImageCache;
 import com.tbocek.android.combatmap.view.interaction.BackgroundImageInteractionMode;
 import com.tbocek.android.combatmap.view.interaction.CombatViewInteractionMode;
 import com.tbocek.android.combatmap.view.interaction.DrawTextInteractionMode;
@@ -61,18 +70,6 @@ import com.tbocek.android.combatmap.view.interaction.ZoomPanInteractionMode;
  */
 public final class CombatView extends SurfaceView {
 	
-	/**
-	 * A simple 3-state machine to make sure that full-screen draws performed during
-	 * input processing are batched, and performed once at the very end of the draw.
-	 * @author Tim
-	 *
-	 */
-	private enum FullscreenDrawLatch {
-		NOT_BATCHING, // Not attempting to batch full-screen draw operations.
-		BATCHING, // Attempting to batch full-screen draws, none have been requested.
-		BATCHED // A full-screen draw has been requested.
-	}
-	
 	/**
 	 * For framerate tracking.  Number of seconds to use when finding the
 	 * framerate
@@ -91,6 +88,12 @@ public final class CombatView extends SurfaceView {
      */
     private static final int EXPLANATORY_TEXT_LINE_HEIGHT_DP = 20;
 
+    /**
+     * How far past the edge of the screen to prefetch background images in
+     * the direction the map is panned, as a fraction of the screen size.
+     */
+    private static final float PREFETCH_SCREEN_FRACTION = 0.5f;
+
     /**
      * Reference to the collection of lines that are actively being drawn.
      */
@@ -125,8 +128,6 @@ public final class CombatView extends SurfaceView {
      * input.
      */
     private CombatViewInteractionMode mInteractionMode;
-    
-    private FullscreenDrawLatch mDrawLatch = FullscreenDrawLatch.NOT_BATCHING;
 
     /**
      * The color to use when creating a new line.
@@ -202,22 +203,116 @@ public final class CombatView extends SurfaceView {
         }
 
         @Override
-        public void surfaceCreated(SurfaceHolder arg0) {
-            CombatView.this.mSurfaceReady = true;
+        public void surfaceCreated(SurfaceHolder holder) {
+            CombatView.this.mRenderThread =
+                    new RenderThread(holder, CombatView.this.mUiHandler,
+                            CombatView.this.mRenderer);
+            CombatView.this.mRenderThread.start();
             CombatView.this.refreshMap();
         }
 
         @Override
         public void surfaceDestroyed(SurfaceHolder arg0) {
-            CombatView.this.mSurfaceReady = false;
+            CombatView.this.mRenderThread.quit();
+            CombatView.this.mRenderThread = null;
+            CombatView.this.mTileCache.clear();
+            CombatView.this.mBelowTokensCache.clear();
+            CombatView.this.mBackgroundFogOfWarMask.clear();
+            CombatView.this.mGmNotesFogOfWarMask.clear();
+        }
+    };
+
+    /**
+     * Draws frames requested from the render thread.
+     */
+    private RenderThread.Renderer mRenderer = new RenderThread.Renderer() {
+        @Override
+        public Bitmap renderFrame(Rect damage, int scrollX, int scrollY) {
+            Bitmap frame = CombatView.this.mFrameBuffer;
+            if (frame == null) {
+                return null;
+            }
+            Canvas canvas = CombatView.this.mFrameCanvas;
+            if ((scrollX != 0 || scrollY != 0)
+                    && CombatView.this.drawScrolledFrame(canvas, scrollX,
+                            scrollY)) {
+                damage.set(0, 0, frame.getWidth(), frame.getHeight());
+                return frame;
+            }
+            if (damage.isEmpty()) {
+                return null;
+            }
+            canvas.save();
+            canvas.clipRect(damage);
+            CombatView.this.drawOnCanvas(canvas, damage);
+            CombatView.this.drawOverlays(canvas);
+            canvas.restore();
+            return frame;
+        }
+
+        @Override
+        public void onFramePosted() {
+            if (CombatView.this.mOnRefreshListener != null) {
+                CombatView.this.mOnRefreshListener.onRefresh();
+            }
+        }
+    };
+
+    /**
+     * Handler for the UI thread, used by the render thread.
+     */
+    private Handler mUiHandler = new Handler();
+
+    /**
+     * Redraws the parts of background images that finished loading in the
+     * background.
+     */
+    private BackgroundImage.LoadListener mImageLoadListener =
+            new BackgroundImage.LoadListener() {
+        @Override
+        public void onImageLoaded(BackgroundImage image, RectF worldSpaceRegion) {
+            MapData data = CombatView.this.mData;
+            if (data == null || !data.getBackgroundImages().contains(image)) {
+                return;
+            }
+            data.getBackgroundImages().markRegionChanged(worldSpaceRegion);
+            Rect damage =
+                    CombatView.this.getWorldSpaceTransformer()
+                    .worldSpaceToScreenSpace(worldSpaceRegion);
+            // Cover pixels that the conversion to integers truncated.
+            damage.inset(-1, -1);
+            CombatView.this.refreshMap(damage);
+        }
+    };
 
+    /**
+     * Redraws the map when token images that were evicted from the cache
+     * finish reloading.
+     */
+    private TokenLoadManager.JobCallback mTokenReloadCallback =
+            new TokenLoadManager.JobCallback() {
+        @Override
+        public void onJobComplete(List<BaseToken> loadedTokens) {
+            CombatView.this.refreshMap();
         }
     };
 
     /**
-     * Whether the surface is ready to draw.
+     * Thread that draws to the surface, or null if the surface is not ready to
+     * draw.
      */
-    private boolean mSurfaceReady = false;
+    private RenderThread mRenderThread;
+
+    /**
+     * Part of a pixel that was scrolled horizontally but not yet applied,
+     * since the map only moves by whole pixels.
+     */
+    private float mScrollRemainderX;
+
+    /**
+     * Part of a pixel that was scrolled vertically but not yet applied.
+     */
+    private float mScrollRemainderY;
 
     /**
      * Object to manage a selection of multiple tokens.
@@ -252,8 +347,58 @@ public final class CombatView extends SurfaceView {
     private long mLastFramerateComputeTime;
     
     private float mFramerate;
+
+    /**
+     * Number of shapes skipped by viewport culling in the last frame.
+     */
+    private int mCulledShapeCount;
+
+    /**
+     * Number of tokens skipped by viewport culling in the last frame.
+     */
+    private int mCulledTokenCount;
+
+    /**
+     * Cache of rasterized background layers, so that panning does not need to
+     * redraw every line on the map.
+     */
+    private MapTileCache mTileCache = new MapTileCache(
+            MemoryBudget.MAP_TILE_BYTES);
+
+    /**
+     * Screen-sized cache of the layers below the tokens, used while the
+     * current interaction mode mostly redraws tokens.
+     */
+    private BelowTokensCache mBelowTokensCache = new BelowTokensCache();
+
+    /**
+     * Cached union of the background fog of war.
+     */
+    private FogOfWarMask mBackgroundFogOfWarMask = new FogOfWarMask();
+
+    /**
+     * Cached union of the GM notes fog of war.
+     */
+    private FogOfWarMask mGmNotesFogOfWarMask = new FogOfWarMask();
+
+    /**
+     * Whether mBelowTokensCache should be used.
+     */
+    private boolean mCacheLayersBelowTokens;
     
     private ScrollBuffer mScrollBuffer = new ScrollBuffer();
+
+    /**
+     * Offscreen copy of the whole frame, which the render thread draws into
+     * while the UI thread is parked and then copies to the surface. Null until
+     * the size of the view is known.
+     */
+    private Bitmap mFrameBuffer;
+
+    /**
+     * Canvas that draws into mFrameBuffer.
+     */
+    private Canvas mFrameCanvas;
     
     /**
      * Constructor.
@@ -319,6 +464,10 @@ public final class CombatView extends SurfaceView {
         }
 
         this.getHolder().addCallback(this.mSurfaceHolderCallback);
+        BackgroundImage.registerLoadListener(this.mImageLoadListener,
+                this.mUiHandler);
+        DrawableToken.registerReloadCallback(this.mTokenReloadCallback,
+                this.mUiHandler);
         // setLayerType(View.LAYER_TYPE_SOFTWARE, null);
     }
 
@@ -400,7 +549,8 @@ public final class CombatView extends SurfaceView {
      */
     private void drawOnCanvas(final Canvas canvas, final Rect dirty) {
     	long startTime = System.currentTimeMillis();
-        new MapDrawer()
+        MapDrawer drawer = new MapDrawer();
+        drawer
         .drawGridLines(true)
         .drawGmNotes(this.mShouldDrawGmNotes)
         .drawTokens(true)
@@ -412,7 +562,15 @@ public final class CombatView extends SurfaceView {
                         : FogOfWarMode.CLIP)
                         .applyMaskToTokens(mApplyMaskToTokens)
                         .backgroundFogOfWar(this.mFogOfWarMode)
+                        .useTileCache(this.mTileCache)
+                        .useBelowTokensCache(this.mCacheLayersBelowTokens
+                                ? this.mBelowTokensCache
+                                : null)
+                        .useFogOfWarMasks(this.mBackgroundFogOfWarMask,
+                                this.mGmNotesFogOfWarMask)
                         .draw(canvas, this.getData(), dirty);
+        this.mCulledShapeCount = drawer.getCulledShapeCount();
+        this.mCulledTokenCount = drawer.getCulledTokenCount();
 
         this.mInteractionMode.draw(canvas);
         
@@ -451,6 +609,13 @@ public final class CombatView extends SurfaceView {
 
     	if (DeveloperMode.shouldDisplayFramerate()) {
     		canvas.drawText("Framerate: " + Float.toString(mFramerate) + " fps", 4, 16, this.mFrameratePaint);
+    		canvas.drawText("Culled: " + Integer.toString(mCulledShapeCount) + " shapes, "
+    				+ Integer.toString(mCulledTokenCount) + " tokens", 4, 40, this.mFrameratePaint);
+    		TokenImageCache images = DrawableToken.getDrawableCache();
+    		canvas.drawText("Token images: " + Long.toString(images.getHitCount()) + " hits, "
+    				+ Long.toString(images.getMissCount()) + " misses, "
+    				+ Long.toString(images.getEvictionCount()) + " evictions, "
+    				+ Long.toString(images.getUsedBytes() / 1024) + " KB", 4, 64, this.mFrameratePaint);
     	}
     }
 
@@ -569,6 +734,7 @@ public final class CombatView extends SurfaceView {
 
         new MapDrawer().drawGridLines(false).drawGmNotes(false)
         .drawTokens(true).areTokensManipulable(true)
+        .loadImagesSynchronously(true)
         .drawAnnotations(false).gmNotesFogOfWar(FogOfWarMode.NOTHING)
         .backgroundFogOfWar(this.mFogOfWarMode)
         .draw(canvas, this.getData(), canvas.getClipBounds());
@@ -617,7 +783,6 @@ public final class CombatView extends SurfaceView {
             this.mInteractionMode.addFinger();
         }
 
-        this.mDrawLatch = FullscreenDrawLatch.BATCHING;
         this.mGestureDetector.onTouchEvent(ev);
         this.mScaleDetector.onTouchEvent(ev);
 
@@ -626,24 +791,28 @@ public final class CombatView extends SurfaceView {
         if (ev.getAction() == MotionEvent.ACTION_UP) {
             this.mInteractionMode.removeFinger();
             this.mInteractionMode.onUp(ev);
-        }
-        
-        // If one or more fullscreen draws was requested, do so now, and either
-        // way leave us open to non-touch-event-driven draw requests.
-        if (this.mDrawLatch == FullscreenDrawLatch.BATCHED) {
-        	this.mDrawLatch = FullscreenDrawLatch.NOT_BATCHING;
-        	this.refreshMap();
-        } else {
-        	this.mDrawLatch = FullscreenDrawLatch.NOT_BATCHING;
+
+            // Shapes are no longer being directly manipulated, so stop
+            // treating them as changing on every draw.
+            if (this.mActiveLines != null) {
+                this.mActiveLines.retireLiveLines();
+                LineCollection fogOfWar = this.getActiveFogOfWar();
+                if (fogOfWar != null) {
+                    fogOfWar.retireLiveLines();
+                }
+            }
         }
         return true;
     }
 
     /**
-     * Removes all erased points from the currently active set of lines.
+     * Removes all erased points from the lines in the currently active set
+     * that were erased since the last optimization.
+     * 
+     * @return The world space region covered by the lines that changed.
      */
-    public void optimizeActiveLines() {
-        this.mActiveLines.optimize();
+    public RectF optimizeActiveLines() {
+        return this.mActiveLines.optimize();
     }
 
     /**
@@ -669,7 +838,9 @@ public final class CombatView extends SurfaceView {
     }
 
     /**
-     * Redraws the contents of the map.
+     * Redraws the contents of the map. The region is redrawn by the render
+     * thread in its next frame, together with any other regions requested
+     * before then.
      * @param invalidBounds Screen space portion to redraw.s
      */
     public void refreshMap(Rect invalidBounds) {
@@ -680,28 +851,11 @@ public final class CombatView extends SurfaceView {
     		return;
     	}
 
-    	// If we already need a full screen refresh as part of this draw,
-    	// be smart and don't redraw just part of the screen!
-    	if (this.mDrawLatch == FullscreenDrawLatch.BATCHED) {
-    		return;
-    	}
-    	
-        if (!this.mSurfaceReady) {
+        if (this.mRenderThread == null) {
             return;
         }
 
-        SurfaceHolder holder = this.getHolder();
-        Canvas canvas = holder.lockCanvas(invalidBounds);
-        if (canvas != null) {
-        	canvas.clipRect(invalidBounds);
-            this.drawOnCanvas(canvas, invalidBounds);
-            this.drawOverlays(canvas);
-            holder.unlockCanvasAndPost(canvas);
-        }
-
-        if (this.mOnRefreshListener != null) {
-            this.mOnRefreshListener.onRefresh();
-        }
+        this.mRenderThread.postDamage(invalidBounds);
         
         // If we called this, then a non-scroll operation triggered a map refresh.
         // This means the scroll buffer will contain out-of-date info.s
@@ -712,13 +866,7 @@ public final class CombatView extends SurfaceView {
      * Refreshes the entire map.
      */
     public void refreshMap() {
-    	// If we are batching full screen draw operations, defer this operation
-    	// until we are ready for the batch.
-    	if (this.mDrawLatch != FullscreenDrawLatch.NOT_BATCHING) {
-    		this.mDrawLatch = FullscreenDrawLatch.BATCHED;
-    	} else {
-    		refreshMap(new Rect(0,0,this.getWidth(),this.getHeight()));
-    	}
+    	refreshMap(new Rect(0,0,this.getWidth(),this.getHeight()));
     }
     
     /**
@@ -751,6 +899,21 @@ public final class CombatView extends SurfaceView {
         }
     }
 
+    /**
+     * Sets whether to keep a cached bitmap of everything below the token
+     * layer. This makes redraws that only affect tokens, such as token drags,
+     * much cheaper, at the cost of a screen-sized bitmap.
+     * 
+     * @param cache
+     *            Whether to use the cache.
+     */
+    public void setCacheLayersBelowTokens(boolean cache) {
+        this.mCacheLayersBelowTokens = cache;
+        if (!cache) {
+            this.mBelowTokensCache.clear();
+        }
+    }
+
     /**
      * Sets whether tokens are manipulatable.
      * 
@@ -1172,26 +1335,90 @@ public final class CombatView extends SurfaceView {
 	@Override
 	protected void onSizeChanged (int w, int h, int oldw, int oldh) {
 		mScrollBuffer.allocateBitmaps(w, h, this.getContext());
+		// The render thread may still be copying the old frame to the
+		// surface, so it is left to the garbage collector.
+		mFrameBuffer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+		mFrameCanvas = new Canvas(mFrameBuffer);
+		this.refreshMap();
 	}
 	
+	/**
+	 * Scrolls the map by the given amount.  The view moves by whole pixels
+	 * right away, so that everything on the UI thread sees the new origin;
+	 * the render thread shifts the previous frame by the same number of
+	 * pixels in its next frame, together with any other scrolls requested
+	 * before then.
+	 * @param deltaXF Horizontal distance to scroll, in screen space.
+	 * @param deltaYF Vertical distance to scroll, in screen space.
+	 */
 	public void scroll(float deltaXF, float deltaYF) {
-		DrawRequest req = mScrollBuffer.scroll(deltaXF, deltaYF);
-		if (req == null) return;
-		
-        getWorldSpaceTransformer()
-        	.moveOrigin(req.deltaX, req.deltaY);
+		this.mScrollRemainderX += deltaXF;
+		this.mScrollRemainderY += deltaYF;
+		int deltaX = (int) this.mScrollRemainderX;
+		int deltaY = (int) this.mScrollRemainderY;
+		if (deltaX == 0 && deltaY == 0) {
+			return;
+		}
+		this.mScrollRemainderX -= deltaX;
+		this.mScrollRemainderY -= deltaY;
+
+		getWorldSpaceTransformer().moveOrigin(deltaX, deltaY);
+		if (this.mRenderThread != null) {
+			this.mRenderThread.postScroll(deltaX, deltaY);
+		}
+		this.prefetchBackgroundImages(deltaX, deltaY);
+	}
+
+	/**
+	 * Starts loading the parts of background images that are about to scroll
+	 * into view, so that they don't show up as placeholders.
+	 * @param deltaXF Horizontal distance being scrolled, in screen space.
+	 * @param deltaYF Vertical distance being scrolled, in screen space.
+	 */
+	private void prefetchBackgroundImages(float deltaXF, float deltaYF) {
+		float left = 0;
+		float top = 0;
+		float right = this.getWidth();
+		float bottom = this.getHeight();
+		// The map moves with the scroll, so new parts of it come into view
+		// on the opposite side.
+		if (deltaXF < 0) {
+			right += this.getWidth() * PREFETCH_SCREEN_FRACTION;
+		} else if (deltaXF > 0) {
+			left -= this.getWidth() * PREFETCH_SCREEN_FRACTION;
+		}
+		if (deltaYF < 0) {
+			bottom += this.getHeight() * PREFETCH_SCREEN_FRACTION;
+		} else if (deltaYF > 0) {
+			top -= this.getHeight() * PREFETCH_SCREEN_FRACTION;
+		}
+		CoordinateTransformer transformer = this.getWorldSpaceTransformer();
+		PointF upperLeft = transformer.screenSpaceToWorldSpace(left, top);
+		PointF lowerRight = transformer.screenSpaceToWorldSpace(right, bottom);
+		this.getData().getBackgroundImages().prefetch(transformer,
+				new RectF(upperLeft.x, upperLeft.y, lowerRight.x, lowerRight.y));
+	}
+
+	/**
+	 * Shifts the previous frame through the scroll buffer, draws the parts
+	 * that scrolled into view and draws the result.  The origin was already
+	 * moved by scroll().
+	 * @param canvas The canvas to draw the whole frame on.
+	 * @param deltaX Horizontal distance scrolled, in whole pixels.
+	 * @param deltaY Vertical distance scrolled, in whole pixels.
+	 * @return False if the scroll did not move the map.
+	 */
+	private boolean drawScrolledFrame(Canvas canvas, int deltaX, int deltaY) {
+		DrawRequest req = mScrollBuffer.scroll(deltaX, deltaY);
+		if (req == null) return false;
 		
 		for (Rect r: req.invalidRegions) {
 			req.canvas.clipRect(r, Op.REPLACE);
 			this.drawOnCanvas(req.canvas, r);
 		}
 
-        SurfaceHolder holder = this.getHolder();
-        Canvas canvas = holder.lockCanvas();
-        if (canvas != null) {
-            canvas.drawBitmap(mScrollBuffer.getActiveBuffer(), 0, 0, null);
-            this.drawOverlays(canvas);
-            holder.unlockCanvasAndPost(canvas);
-        }
+        canvas.drawBitmap(mScrollBuffer.getActiveBuffer(), 0, 0, null);
+        this.drawOverlays(canvas);
+        return true;
 	}
 }
\ No newline at end of file
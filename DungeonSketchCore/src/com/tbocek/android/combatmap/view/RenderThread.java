@@ -0,0 +1,283 @@
+package com.tbocek.android.combatmap.view;
+
+import java.util.concurrent.CountDownLatch;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+/**
+ * Thread that owns all drawing to a SurfaceView's surface. The UI thread
+ * posts damaged screen regions and scroll offsets; the render thread unions
+ * everything posted since the last frame and draws at most one frame per
+ * display refresh, so that a burst of input events costs a single draw
+ * instead of one draw per event.
+ *
+ * The map model is not thread safe, so the UI thread hands the model over
+ * while each frame is rendered: the render thread posts a message that parks
+ * the UI thread between messages, renders the frame into an offscreen bitmap,
+ * and releases the UI thread. Only then does it lock the surface, copy the
+ * frame to it and post it. Any code that runs on the UI thread is therefore
+ * free to modify the model without locking, and the UI thread is never parked
+ * while the surface is locked, so it can never be waiting on the render thread
+ * while the render thread waits for a surface buffer or for the window to
+ * finish resizing the surface.
+ *
+ * @author Tim
+ *
+ */
+final class RenderThread extends Thread {
+
+    /**
+     * Draws frames on behalf of the render thread.
+     */
+    interface Renderer {
+        /**
+         * Renders a frame into an offscreen bitmap. Called on the render
+         * thread while the UI thread is parked, before the surface is locked.
+         *
+         * @param damage
+         *            Screen space region that needs to be redrawn. Is set to
+         *            the region of the frame that changed, which is the whole
+         *            frame if the map scrolled.
+         * @param scrollX
+         *            Horizontal distance, in whole pixels, that the view
+         *            was scrolled since the last frame.
+         * @param scrollY
+         *            Vertical distance, in whole pixels, that the view was
+         *            scrolled since the last frame.
+         * @return The complete frame, or null if there is nothing to post.
+         *         Must not be modified on the UI thread until the next frame
+         *         is rendered.
+         */
+        Bitmap renderFrame(Rect damage, int scrollX, int scrollY);
+
+        /**
+         * Called on the UI thread after each frame is posted.
+         */
+        void onFramePosted();
+    }
+
+    /**
+     * Minimum time between the start of two frames, in milliseconds.
+     */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "RenderThread";
+
+    /**
+     * The surface to draw to.
+     */
+    private final SurfaceHolder mHolder;
+
+    /**
+     * Handler for the UI thread.
+     */
+    private final Handler mUiHandler;
+
+    /**
+     * Object that draws the frames.
+     */
+    private final Renderer mRenderer;
+
+    /**
+     * Union of the damage posted since the last frame.
+     */
+    private final Rect mDamage = new Rect();
+
+    /**
+     * Horizontal scroll distance posted since the last frame, in pixels.
+     */
+    private int mScrollX;
+
+    /**
+     * Vertical scroll distance posted since the last frame, in pixels.
+     */
+    private int mScrollY;
+
+    /**
+     * Whether the thread should keep drawing frames.
+     */
+    private boolean mRunning = true;
+
+    /**
+     * Time that the last frame started.
+     */
+    private long mLastFrameTime;
+
+    /**
+     * Notifies the renderer that a frame was posted; run on the UI thread.
+     */
+    private final Runnable mFramePostedCallback = new Runnable() {
+        @Override
+        public void run() {
+            RenderThread.this.mRenderer.onFramePosted();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param holder
+     *            The surface to draw to.
+     * @param uiHandler
+     *            Handler for the UI thread.
+     * @param renderer
+     *            Object that draws the frames.
+     */
+    RenderThread(SurfaceHolder holder, Handler uiHandler, Renderer renderer) {
+        super(TAG);
+        this.mHolder = holder;
+        this.mUiHandler = uiHandler;
+        this.mRenderer = renderer;
+    }
+
+    /**
+     * Requests that the given screen space region be redrawn in the next
+     * frame.
+     *
+     * @param damage
+     *            The region to redraw.
+     */
+    synchronized void postDamage(Rect damage) {
+        this.mDamage.union(damage);
+        this.notifyAll();
+    }
+
+    /**
+     * Requests that the previous frame be shifted by the given amount in the
+     * next frame. The caller has already moved the view by that amount.
+     *
+     * @param deltaX
+     *            Horizontal distance scrolled, in pixels.
+     * @param deltaY
+     *            Vertical distance scrolled, in pixels.
+     */
+    synchronized void postScroll(int deltaX, int deltaY) {
+        this.mScrollX += deltaX;
+        this.mScrollY += deltaY;
+        this.notifyAll();
+    }
+
+    /**
+     * Stops the thread and waits for it to finish. Must be called on the UI
+     * thread before the surface is destroyed.
+     */
+    void quit() {
+        synchronized (this) {
+            this.mRunning = false;
+            this.notifyAll();
+        }
+        this.interrupt();
+        boolean joined = false;
+        while (!joined) {
+            try {
+                this.join();
+                joined = true;
+            } catch (InterruptedException e) {
+                // Keep waiting; the surface must not be used once it is
+                // destroyed.
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Rect damage = new Rect();
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (this.mRunning && this.mDamage.isEmpty()
+                            && this.mScrollX == 0 && this.mScrollY == 0) {
+                        this.wait();
+                    }
+                    // Let more damage accumulate until the next frame is due.
+                    long wait =
+                            this.mLastFrameTime + FRAME_INTERVAL_MS
+                                    - System.currentTimeMillis();
+                    while (this.mRunning && wait > 0) {
+                        this.wait(wait);
+                        wait =
+                                this.mLastFrameTime + FRAME_INTERVAL_MS
+                                        - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    // Only quit() interrupts this thread.
+                }
+                if (!this.mRunning) {
+                    return;
+                }
+                this.mLastFrameTime = System.currentTimeMillis();
+            }
+
+            Bitmap frame = this.renderFrameOnUiHandoff(damage);
+            if (frame == null || damage.isEmpty()) {
+                continue;
+            }
+
+            // The UI thread is running again by now, so it is free to resize
+            // the surface while this thread waits for a buffer.
+            Canvas canvas = this.mHolder.lockCanvas(damage);
+            if (canvas == null) {
+                continue;
+            }
+            try {
+                canvas.drawBitmap(frame, 0, 0, null);
+            } finally {
+                this.mHolder.unlockCanvasAndPost(canvas);
+            }
+            this.mUiHandler.post(this.mFramePostedCallback);
+        }
+    }
+
+    /**
+     * Parks the UI thread, renders a frame, and releases the UI thread again.
+     * The damage and scroll posted so far are taken once the UI thread is
+     * parked, so that the scroll matches the view the frame is drawn with.
+     *
+     * @param damage
+     *            Receives the screen space region that needs to be redrawn,
+     *            and is then set to the region of the frame that changed.
+     * @return The rendered frame, or null if there is nothing to post.
+     */
+    private Bitmap renderFrameOnUiHandoff(Rect damage) {
+        final CountDownLatch parked = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        this.mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                parked.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting for a frame", e);
+                }
+            }
+        });
+        try {
+            parked.await();
+            int scrollX;
+            int scrollY;
+            synchronized (this) {
+                damage.set(this.mDamage);
+                this.mDamage.setEmpty();
+                scrollX = this.mScrollX;
+                scrollY = this.mScrollY;
+                this.mScrollX = 0;
+                this.mScrollY = 0;
+            }
+            return this.mRenderer.renderFrame(damage, scrollX, scrollY);
+        } catch (InterruptedException e) {
+            // quit() was called while the UI thread was busy; drop the frame.
+            return null;
+        } finally {
+            released.countDown();
+        }
+    }
+}
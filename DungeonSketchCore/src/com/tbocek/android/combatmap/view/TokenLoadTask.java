@@ -2,16 +2,23 @@ package com.tbocek.android.combatmap.view;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.os.AsyncTask;
+import android.util.Log;
 import android.view.View;
 
+import com.google.common.collect.Lists;
 import com.tbocek.android.combatmap.model.primitives.BaseToken;
 
 /**
- * This task loads custom token images on a separate thread. This allows faster
+ * This task loads custom token images on separate threads. This allows faster
  * startup times for activities that need to load the entire token library.
+ * Images are loaded in parallel, one thread per processor.
  * 
  * @author Tim
  * @deprecated Use TokenLoadManager instead!
@@ -20,6 +27,11 @@ import com.tbocek.android.combatmap.model.primitives.BaseToken;
 @Deprecated
 public class TokenLoadTask extends AsyncTask<Void, String, Void> {
 
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "TokenLoadTask";
+
     /**
      * Combat view in which these tokens are being drawn.
      */
@@ -62,12 +74,32 @@ public class TokenLoadTask extends AsyncTask<Void, String, Void> {
 
     @Override
     protected Void doInBackground(Void... args) {
-        for (TokenButton b : this.mTokenButtonMap.values()) {
-            BaseToken t = b.getClone();
-            if (t.needsLoad()) {
-                t.load();
-            }
-            this.publishProgress(b.getTokenId());
+        List<Callable<Void>> loads = Lists.newArrayList();
+        for (final TokenButton b : this.mTokenButtonMap.values()) {
+            loads.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // Load the prototype, which knows which thumbnail size
+                    // the button needs.
+                    BaseToken t = b.getPrototype();
+                    if (t.needsLoad()) {
+                        t.load();
+                    }
+                    TokenLoadTask.this.publishProgress(b.getTokenId());
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Runtime.getRuntime()
+                        .availableProcessors());
+        try {
+            pool.invokeAll(loads);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while loading token images", e);
+        } finally {
+            pool.shutdownNow();
         }
         return null;
     }
@@ -83,7 +115,7 @@ public class TokenLoadTask extends AsyncTask<Void, String, Void> {
     protected void onPreExecute() {
         this.mTokenButtonMap = new HashMap<String, TokenButton>();
         for (TokenButton b : this.mTokenButtons) {
-            if (b.getClone().needsLoad()) {
+            if (b.getPrototype().needsLoad()) {
                 b.setVisibility(View.INVISIBLE);
                 this.mTokenButtonMap.put(b.getTokenId(), b);
             }
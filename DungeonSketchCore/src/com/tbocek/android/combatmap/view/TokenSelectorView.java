@@ -417,6 +417,11 @@ public final class TokenSelectorView extends LinearLayout {
                 return;
             }
 
+            // The row only shows small tokens, so don't load full images.
+            for (BaseToken t : this.mTokens) {
+                t.setThumbnailSize(this.mBitmap.getHeight());
+            }
+
             TokenLoadManager.getInstance().startJob(this.mTokens,
                     new TokenLoadManager.JobCallback() {
                         @Override
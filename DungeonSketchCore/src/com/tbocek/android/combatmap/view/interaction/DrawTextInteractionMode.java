@@ -15,6 +15,12 @@ import com.tbocek.android.combatmap.view.CombatView;
  */
 public class DrawTextInteractionMode extends BaseDrawInteractionMode {
 
+    /**
+     * Distance in screen space that a touch may be from a text object and
+     * still select it.
+     */
+    private static final float TOUCH_RADIUS = 20;
+
     /**
      * Constructor.
      * 
@@ -37,7 +43,7 @@ public class DrawTextInteractionMode extends BaseDrawInteractionMode {
                         .getWorldSpaceTransformer()
                         .screenSpaceToWorldSpace(new PointF(e.getX(), e.getY()));
 
-        Shape t = this.getView().getActiveLines().findShape(p, Text.class);
+        Shape t = this.findTextNear(p);
         if (t != null) {
             this.getView().requestEditTextObject((Text) t);
         }
@@ -52,7 +58,7 @@ public class DrawTextInteractionMode extends BaseDrawInteractionMode {
                         .getWorldSpaceTransformer()
                         .screenSpaceToWorldSpace(
                                 new PointF(arg0.getX(), arg0.getY()));
-        Shape t = this.getView().getActiveLines().findShape(p, Text.class);
+        Shape t = this.findTextNear(p);
         if (t != null) {
             t.setDrawOffset(this.getView().getWorldSpaceTransformer()
                     .screenSpaceToWorldSpace(arg1.getX() - arg0.getX()), this
@@ -76,6 +82,20 @@ public class DrawTextInteractionMode extends BaseDrawInteractionMode {
         return true;
     }
 
+    /**
+     * Finds the text object closest to the given point, within touch range.
+     * 
+     * @param p
+     *            The point to search from, in world space.
+     * @return The text object, or null if none is in range.
+     */
+    private Shape findTextNear(PointF p) {
+        return this.getView().getActiveLines().findNearestShape(
+                p,
+                this.getView().getWorldSpaceTransformer()
+                        .screenSpaceToWorldSpace(TOUCH_RADIUS), Text.class);
+    }
+
     @Override
     public void onStartMode() {
         Text.shouldDrawBoundingBoxes(true);
@@ -3,8 +3,11 @@ package com.tbocek.android.combatmap.view.interaction;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.view.MotionEvent;
 
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
 import com.tbocek.android.combatmap.model.primitives.PointF;
 import com.tbocek.android.combatmap.view.CombatView;
 
@@ -37,6 +40,11 @@ public final class EraserInteractionMode extends BaseDrawInteractionMode {
      */
     private PointF mLastErasedPoint;
 
+    /**
+     * Paint used to draw the eraser.
+     */
+    private Paint mEraserPaint = new Paint();
+
     /**
      * Constructor.
      * 
@@ -45,44 +53,98 @@ public final class EraserInteractionMode extends BaseDrawInteractionMode {
      */
     public EraserInteractionMode(final CombatView view) {
         super(view);
+        this.mEraserPaint.setColor(ERASER_COLOR);
     }
 
     @Override
     public void draw(final Canvas c) {
-        Paint p = new Paint();
         // Draw a light grey circle showing the erase diameter.
-        p.setColor(ERASER_COLOR);
-
         if (this.mIsErasing) {
             c.drawCircle(this.mLastErasedPoint.x, this.mLastErasedPoint.y,
-                    ERASER_RADIUS, p);
+                    ERASER_RADIUS, this.mEraserPaint);
         }
     }
 
     @Override
     public boolean onScroll(final MotionEvent e1, final MotionEvent e2,
             final float distanceX, final float distanceY) {
+        // Only redraw where the erase indicator was, where it is now, and
+        // what was erased.
+        Rect damage = new Rect();
+        if (this.mIsErasing) {
+            this.unionEraserBounds(damage);
+        }
+
         // Set up to draw erase indicator
         this.mIsErasing = true;
         this.mLastErasedPoint = new PointF(e2.getX(), e2.getY());
+        this.unionEraserBounds(damage);
 
         // Erase
-        this.getView()
-                .getActiveLines()
-                .erase(this.getView().getWorldSpaceTransformer()
-                        .screenSpaceToWorldSpace(this.mLastErasedPoint),
-                        this.getView().getWorldSpaceTransformer()
-                                .screenSpaceToWorldSpace(ERASER_RADIUS));
-
-        this.getView().refreshMap();
+        CoordinateTransformer transformer =
+                this.getView().getWorldSpaceTransformer();
+        RectF erased =
+                this.getView()
+                        .getActiveLines()
+                        .erase(transformer
+                                .screenSpaceToWorldSpace(this.mLastErasedPoint),
+                                transformer
+                                        .screenSpaceToWorldSpace(ERASER_RADIUS));
+        this.unionWorldSpaceBounds(damage, erased, transformer);
+
+        this.getView().refreshMap(damage);
         return true;
     }
 
     @Override
     public void onUp(final MotionEvent event) {
+        Rect damage = new Rect();
+        if (this.mIsErasing) {
+            this.unionEraserBounds(damage);
+        }
         this.mIsErasing = false;
-        this.getView().optimizeActiveLines();
-        this.getView().refreshMap();
+        this.unionWorldSpaceBounds(damage,
+                this.getView().optimizeActiveLines(),
+                this.getView().getWorldSpaceTransformer());
+        this.getView().refreshMap(damage);
+    }
+
+    /**
+     * Grows the given screen space rectangle to include the erase indicator
+     * at the last erased point.
+     * 
+     * @param damage
+     *            The rectangle to grow.
+     */
+    private void unionEraserBounds(final Rect damage) {
+        // Leave a pixel of slack for antialiasing.
+        damage.union((int) (this.mLastErasedPoint.x - ERASER_RADIUS) - 1,
+                (int) (this.mLastErasedPoint.y - ERASER_RADIUS) - 1,
+                (int) (this.mLastErasedPoint.x + ERASER_RADIUS) + 2,
+                (int) (this.mLastErasedPoint.y + ERASER_RADIUS) + 2);
+    }
+
+    /**
+     * Grows the given screen space rectangle to include a world space
+     * rectangle.
+     * 
+     * @param damage
+     *            The rectangle to grow.
+     * @param worldSpaceBounds
+     *            The world space rectangle to include; ignored if empty.
+     * @param transformer
+     *            Transformation from world space to screen space.
+     */
+    private void unionWorldSpaceBounds(final Rect damage,
+            final RectF worldSpaceBounds,
+            final CoordinateTransformer transformer) {
+        if (worldSpaceBounds.isEmpty()) {
+            return;
+        }
+        Rect r = transformer.worldSpaceToScreenSpace(worldSpaceBounds);
+        // The conversion truncates, so round out by a pixel.
+        r.inset(-1, -1);
+        damage.union(r);
     }
 
 }
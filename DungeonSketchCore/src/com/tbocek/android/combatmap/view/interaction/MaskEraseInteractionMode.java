@@ -12,6 +12,12 @@ import com.tbocek.android.combatmap.view.CombatView;
  */
 public class MaskEraseInteractionMode extends ZoomPanInteractionMode {
 
+    /**
+     * Distance in screen space that a tap may be from a mask element and
+     * still erase it.
+     */
+    private static final float TOUCH_RADIUS = 20;
+
     /**
      * Constructor.
      * @param view The CombatView being controlled.
@@ -29,6 +35,15 @@ public class MaskEraseInteractionMode extends ZoomPanInteractionMode {
                 && this.getView().getActiveFogOfWar() != null) {
             Shape shapeUnderPress =
                     this.getView().getActiveFogOfWar().findShape(pt);
+            if (shapeUnderPress == null) {
+                // Allow for taps that land just outside a small element.
+                shapeUnderPress =
+                        this.getView().getActiveFogOfWar().findNearestShape(
+                                pt,
+                                this.getView().getWorldSpaceTransformer()
+                                        .screenSpaceToWorldSpace(TOUCH_RADIUS),
+                                null);
+            }
             if (shapeUnderPress != null) {
                 this.getView().getActiveFogOfWar().deleteShape(shapeUnderPress);
                 this.getView().refreshMap();
@@ -151,6 +151,19 @@ public final class TokenManipulationInteractionMode extends
 
     @Override
     public boolean useDefaultLongPressLogic() { return false; }
+
+    @Override
+    public void onStartMode() {
+        super.onStartMode();
+        // Most redraws in this mode only move tokens around.
+        this.getView().setCacheLayersBelowTokens(true);
+    }
+
+    @Override
+    public void onEndMode() {
+        super.onEndMode();
+        this.getView().setCacheLayersBelowTokens(false);
+    }
     
     @Override
     public void draw(final Canvas c) {
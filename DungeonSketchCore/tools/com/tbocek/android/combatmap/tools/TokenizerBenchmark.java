@@ -0,0 +1,222 @@
+package com.tbocek.android.combatmap.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
+import com.tbocek.android.combatmap.model.io.MapDataSerializer;
+
+/**
+ * Desktop benchmark for the text map tokenizer in MapDataDeserializer.
+ * Generates a text map of freehand lines with about a million tokens, then
+ * reads it back repeatedly and reports the time taken and the bytes
+ * allocated per read.
+ *
+ * For comparison, the same map is also read the way the deserializer used
+ * to: one String per line from BufferedReader.readLine, parsed with
+ * Integer.parseInt and Float.parseFloat.
+ *
+ * This is not part of the app. Run it on a HotSpot JVM, which provides the
+ * per-thread allocation counter, with the core sources and Guava on the
+ * class path:
+ *
+ * <pre>
+ * javac -cp DungeonSketchCore/libs/guava-14.0.1.jar -d out \
+ *     -sourcepath DungeonSketchCore/src \
+ *     DungeonSketchCore/tools/com/tbocek/android/combatmap/tools/TokenizerBenchmark.java
+ * java -cp out com.tbocek.android.combatmap.tools.TokenizerBenchmark
+ * </pre>
+ *
+ * @author Tim
+ *
+ */
+public final class TokenizerBenchmark {
+
+    /**
+     * Number of tokens to generate, at least.
+     */
+    private static final int TOKEN_COUNT = 1000000;
+
+    /**
+     * Number of reads of each kind that are not reported, so that the JIT
+     * has compiled the code under test.
+     */
+    private static final int WARMUP_RUNS = 3;
+
+    /**
+     * Number of reads of each kind that are reported.
+     */
+    private static final int MEASURED_RUNS = 3;
+
+    /**
+     * Seed for the generated map, so that every run reads the same data.
+     */
+    private static final long SEED = 1;
+
+    /**
+     * Private constructor because this is a utility class.
+     */
+    private TokenizerBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            Ignored.
+     * @throws IOException
+     *             On serialization error.
+     */
+    public static void main(String[] args) throws IOException {
+        String map = generateMap();
+        System.out.println("Map: " + map.length() + " characters");
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory
+                        .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; ++run) {
+            for (int pass = 0; pass < 2; ++pass) {
+                boolean readLine = pass == 0;
+                long bytesBefore = threads.getThreadAllocatedBytes(thread);
+                long timeBefore = System.nanoTime();
+                long checksum =
+                        readLine ? readWithReadLine(map)
+                                : readWithDeserializer(map);
+                long time = System.nanoTime() - timeBefore;
+                long bytes =
+                        threads.getThreadAllocatedBytes(thread) - bytesBefore;
+                if (run >= WARMUP_RUNS) {
+                    System.out.printf(
+                            "%-12s %8.1f ms %10.1f MB allocated"
+                                    + " (checksum %d)%n",
+                            readLine ? "readLine" : "deserializer",
+                            time / 1e6, bytes / 1e6, checksum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a map that consists of one array of freehand lines. Each line
+     * is a type name, an object of style fields and an object holding an
+     * array of coordinates, the same shape that a LineCollection writes.
+     *
+     * @return The text map.
+     * @throws IOException
+     *             On serialization error.
+     */
+    private static String generateMap() throws IOException {
+        StringWriter out = new StringWriter();
+        MapDataSerializer s = new MapDataSerializer(out);
+        Random random = new Random(SEED);
+        s.serializeInt(2);
+        s.startArray();
+        int tokens = 0;
+        while (tokens < TOKEN_COUNT) {
+            s.serializeString("fh");
+            s.startObject();
+            s.serializeInt(random.nextInt());
+            for (int i = 0; i < 5; ++i) {
+                s.serializeFloat(random.nextFloat() * 1000);
+            }
+            s.endObject();
+
+            int count = 2 * (20 + random.nextInt(200));
+            float[] coordinates = new float[count];
+            float x = random.nextFloat() * 1000;
+            float y = random.nextFloat() * 1000;
+            for (int i = 0; i < count; i += 2) {
+                x += random.nextFloat() - 0.5f;
+                y += random.nextFloat() - 0.5f;
+                coordinates[i] = x;
+                coordinates[i + 1] = y;
+            }
+            s.startObject();
+            s.serializeCoordinates(coordinates, count);
+            s.endObject();
+            // Type name, two objects of two delimiters each, the array
+            // delimiters and the style fields.
+            tokens += 13 + count;
+        }
+        s.endArray();
+        s.flush();
+        return out.toString();
+    }
+
+    /**
+     * Reads the map with MapDataDeserializer.
+     *
+     * @param map
+     *            The text map.
+     * @return Checksum of the values read.
+     * @throws IOException
+     *             On deserialization error.
+     */
+    private static long readWithDeserializer(String map) throws IOException {
+        MapDataDeserializer s =
+                new MapDataDeserializer(new BufferedReader(new StringReader(
+                        map)));
+        long checksum = s.readInt();
+        int level = s.expectArrayStart();
+        while (s.hasMoreArrayItems(level)) {
+            checksum += s.readString().length();
+            s.expectObjectStart();
+            checksum += s.readInt();
+            for (int i = 0; i < 5; ++i) {
+                checksum += (long) s.readFloat();
+            }
+            s.expectObjectEnd();
+            s.expectObjectStart();
+            int coordinateLevel = s.expectArrayStart();
+            while (s.hasMoreArrayItems(coordinateLevel)) {
+                checksum += (long) s.readFloat();
+            }
+            s.expectArrayEnd();
+            s.expectObjectEnd();
+        }
+        s.expectArrayEnd();
+        return checksum;
+    }
+
+    /**
+     * Reads the map a line at a time with BufferedReader.readLine, parsing
+     * each number from the String that holds its line.
+     *
+     * @param map
+     *            The text map.
+     * @return Checksum of the values read, the same as readWithDeserializer
+     *         returns.
+     * @throws IOException
+     *             On read error.
+     */
+    private static long readWithReadLine(String map) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(map));
+        long checksum = Integer.parseInt(reader.readLine());
+        reader.readLine(); // [
+        String line = reader.readLine();
+        while (!line.equals("]")) {
+            checksum += line.length();
+            reader.readLine(); // {
+            checksum += Integer.parseInt(reader.readLine());
+            for (int i = 0; i < 5; ++i) {
+                checksum += (long) Float.parseFloat(reader.readLine());
+            }
+            reader.readLine(); // }
+            reader.readLine(); // {
+            reader.readLine(); // [
+            line = reader.readLine();
+            while (!line.equals("]")) {
+                checksum += (long) Float.parseFloat(line);
+                line = reader.readLine();
+            }
+            reader.readLine(); // }
+            line = reader.readLine();
+        }
+        return checksum;
+    }
+}